@@ -0,0 +1,117 @@
+package bgu.spl.app;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import bgu.spl.mics.RequestCompleted;
+import bgu.spl.mics.impl.MessageCodec;
+
+import com.google.gson.Gson;
+
+/**
+ * Compares encoding and decoding every message of the store with the
+ * {@link StoreMessages} binary formats and with JSON, the way the
+ * {@code BusNode} sent them before. A {@link RequestCompleted} holds an
+ * abstract request JSON cannot read back, so as JSON only its result is
+ * measured, which is what the node sent.
+ * <p>
+ * The binary streams are measured in their steady state, where the shoe
+ * types and the service names are already known symbols. Run with
+ * {@code -prof gc} to see the allocation rate of either codec.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CodecBenchmark {
+
+	@Param({ "PurchaseOrderRequest", "ManufacturingOrderRequest", "RestockRequest", "TickBroadcast",
+			"NewDiscountBroadcast", "Receipt", "RequestCompleted" })
+	private String message;
+
+	@Param({ "binary", "json" })
+	private String codec;
+
+	private Object value;
+	private Object jsonValue;
+	private Gson gson;
+	private MessageCodec.Encoder encoder;
+	private MessageCodec.Decoder decoder;
+	private ByteBuffer buffer;
+	private byte[] json;
+
+	@Setup
+	public void setUp() {
+		value = create(message);
+		gson = new Gson();
+		MessageCodec messageCodec = StoreMessages.newCodec();
+		encoder = messageCodec.newEncoder();
+		decoder = messageCodec.newDecoder();
+		buffer = ByteBuffer.allocateDirect(1024);
+		// the first message defines the symbols of the stream
+		encoder.encode(value, buffer);
+		buffer.flip();
+		decoder.decode(buffer);
+		buffer.clear();
+		encoder.encode(value, buffer);
+		buffer.flip();
+		jsonValue = value instanceof RequestCompleted ? ((RequestCompleted<?>) value).getResult() : value;
+		json = gson.toJson(jsonValue).getBytes(StandardCharsets.UTF_8);
+		System.out.println(message + ": " + buffer.remaining() + " bytes, " + json.length + " bytes as JSON");
+	}
+
+	private static Object create(String message) {
+		PurchaseOrderRequest purchase = new PurchaseOrderRequest("seller 1", "Bruria", "red-boots", false, 12, 1);
+		Receipt receipt = new Receipt("seller 1", "Bruria", "red-boots", false, 13, 12, 1);
+		switch (message) {
+		case "PurchaseOrderRequest":
+			return purchase;
+		case "ManufacturingOrderRequest":
+			return new ManufacturingOrderRequest("red-boots", 11, 12);
+		case "RestockRequest":
+			return new RestockRequest("red-boots");
+		case "TickBroadcast":
+			return new TickBroadcast(12, 60);
+		case "NewDiscountBroadcast":
+			return new NewDiscountBroadcast("red-boots", 2);
+		case "Receipt":
+			return receipt;
+		case "RequestCompleted":
+			return new RequestCompleted<Receipt>(purchase, receipt);
+		default:
+			throw new IllegalArgumentException(message);
+		}
+	}
+
+	@Benchmark
+	public Object encode() {
+		if (codec.equals("json"))
+			return gson.toJson(jsonValue).getBytes(StandardCharsets.UTF_8);
+		buffer.clear();
+		encoder.encode(value, buffer);
+		return buffer;
+	}
+
+	@Benchmark
+	public Object decode() {
+		if (codec.equals("json"))
+			return gson.fromJson(new String(json, StandardCharsets.UTF_8), jsonValue.getClass());
+		buffer.position(0);
+		return decoder.decode(buffer);
+	}
+}
@@ -0,0 +1,297 @@
+package bgu.spl.app;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the {@link Store} under contention, to baseline any redesign of
+ * the inventory: {@link Store#take} alone from 1 and 8 threads, and the
+ * {@code inventory} group mixing the operations of a running store: four
+ * sellers taking shoes, the manager adding discounts, restocking with
+ * {@link Store#add} and {@link Store#addShoeIfNotInStorage}, all at once.
+ * <p>
+ * The store holds 1, 10 or 100k shoe types (SKUs), picked either uniformly
+ * or with a hot spot: {@link #HOT_PERCENT}% of the operations on the first
+ * 1% of the SKUs. Every thread picks the same sequence, from a fixed seed.
+ * After every iteration the inventory invariants are checked (no negative
+ * stock, no more discounted shoes than shoes) and the violations printed.
+ * <p>
+ * {@link #main(String[])} is a stress run instead: it drives the same mix
+ * for a while, also adding new SKUs while the others are taken, counts
+ * every result and exception, and checks the invariants and that every
+ * shoe added is either sold or still in storage:
+ * {@code java -cp target/benchmarks.jar bgu.spl.app.StoreBenchmark 8 10 10 hot}
+ * (threads, seconds, SKUs, distribution).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class StoreBenchmark {
+	/**
+	 * the share, in percent, of the operations on the hot SKUs.
+	 */
+	public static final int HOT_PERCENT = 90;
+	/**
+	 * the shoes of every SKU in storage at the start, enough for the takes
+	 * of a whole trial.
+	 */
+	public static final int STOCK = 1 << 28;
+	/**
+	 * the number of SKU picks every thread cycles through.
+	 */
+	private static final int PICKS = 1 << 16;
+
+	@Param({ "1", "10", "100000" })
+	private int skus;
+
+	@Param({ "uniform", "hot" })
+	private String distribution;
+
+	private Store store;
+	private String[] names;
+
+	@Setup(Level.Trial)
+	public void setUp() {
+		names = names(skus);
+		store = reset(names, STOCK);
+	}
+
+	@TearDown(Level.Iteration)
+	public void check() {
+		List<String> violations = violations();
+		if (!violations.isEmpty())
+			System.out.println(violations.size() + " invariant violations, first: " + violations.get(0));
+	}
+
+	@State(Scope.Thread)
+	public static class Picker {
+		private String[] picks;
+		private int next;
+
+		@Setup(Level.Trial)
+		public void setUp(StoreBenchmark benchmark) {
+			int[] indexes = picks(benchmark.skus, benchmark.distribution, PICKS, new Random(42));
+			picks = new String[PICKS];
+			for (int i = 0; i < PICKS; i++)
+				picks[i] = benchmark.names[indexes[i]];
+		}
+
+		private String next() {
+			String name = picks[next];
+			next = (next + 1) & (PICKS - 1);
+			return name;
+		}
+	}
+
+	@Benchmark
+	@Threads(1)
+	public BuyResult take(Picker picker) {
+		return store.take(picker.next(), false);
+	}
+
+	@Benchmark
+	@Threads(8)
+	public BuyResult contendedTake(Picker picker) {
+		return store.take(picker.next(), false);
+	}
+
+	@Benchmark
+	@Group("inventory")
+	@GroupThreads(4)
+	public BuyResult sellers(Picker picker) {
+		return store.take(picker.next(), false);
+	}
+
+	@Benchmark
+	@Group("inventory")
+	@GroupThreads(1)
+	public void discounts(Picker picker) {
+		store.addDiscount(picker.next(), 1);
+	}
+
+	@Benchmark
+	@Group("inventory")
+	@GroupThreads(1)
+	public void restocks(Picker picker) {
+		String name = picker.next();
+		// as the manager does when a manufacturing order is completed
+		store.addShoeIfNotInStorage(name, 0, 0);
+		store.add(name, 1);
+	}
+
+	/**
+	 * @return the names of {@code skus} SKUs.
+	 */
+	static String[] names(int skus) {
+		String[] names = new String[skus];
+		for (int i = 0; i < skus; i++)
+			names[i] = "shoe-" + i;
+		return names;
+	}
+
+	/**
+	 * @return {@code count} SKU indexes in {@code [0, skus)}, uniform or with
+	 *         {@link #HOT_PERCENT}% of them in the first 1% of the SKUs.
+	 */
+	static int[] picks(int skus, String distribution, int count, Random random) {
+		int hot = Math.max(1, skus / 100);
+		int[] picks = new int[count];
+		for (int i = 0; i < count; i++) {
+			if ("hot".equals(distribution) && random.nextInt(100) < HOT_PERCENT)
+				picks[i] = random.nextInt(hot);
+			else if ("hot".equals(distribution) || "uniform".equals(distribution))
+				picks[i] = random.nextInt(skus);
+			else
+				throw new IllegalArgumentException("Unknown distribution: " + distribution);
+		}
+		return picks;
+	}
+
+	/**
+	 * replaces the storage of the store singleton with {@code stock} shoes
+	 * of every SKU in {@code names}, none on discount.
+	 */
+	static Store reset(String[] names, int stock) {
+		Store store = Store.load(new ShoeStorageInfo[0]);
+		List<ShoeStorageInfo> storage = Store.getShoeStorageData();
+		storage.clear();
+		for (String name : names)
+			storage.add(new ShoeStorageInfo(name, stock, 0));
+		store.getReceipts().clear();
+		return store;
+	}
+
+	/**
+	 * @return a description of every SKU in storage with negative stock or
+	 *         more discounted shoes than shoes.
+	 */
+	static List<String> violations() {
+		List<String> violations = new ArrayList<String>();
+		synchronized (Store.getShoeStorageData()) {
+			for (ShoeStorageInfo s : Store.getShoeStorageData()) {
+				int amount = s.getAmountOnStorage();
+				int discounted = s.getDiscountedAmount();
+				if (amount < 0 || discounted < 0 || discounted > amount)
+					violations.add(s.getShoeType() + ": amount " + amount + ", discounted " + discounted);
+			}
+		}
+		return violations;
+	}
+
+	public static void main(String[] args) throws InterruptedException {
+		int threads = args.length > 0 ? Integer.parseInt(args[0]) : 8;
+		int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+		int skus = args.length > 2 ? Integer.parseInt(args[2]) : 10;
+		String distribution = args.length > 3 ? args[3] : "hot";
+		int stock = 1000;
+		String[] names = names(skus);
+		Store store = reset(names, stock);
+
+		// a few threads restock, add discounts and new SKUs, the rest sell
+		int sellers = Math.max(1, threads - 3);
+		AtomicBoolean running = new AtomicBoolean(true);
+		AtomicLong[] results = new AtomicLong[BuyResult.values().length];
+		for (int i = 0; i < results.length; i++)
+			results[i] = new AtomicLong();
+		AtomicLong restocked = new AtomicLong();
+		AtomicLong discounted = new AtomicLong();
+		AtomicLong added = new AtomicLong();
+		AtomicLong errors = new AtomicLong();
+		List<Throwable> firstErrors = new ArrayList<Throwable>();
+		CountDownLatch start = new CountDownLatch(1);
+		List<Thread> workers = new ArrayList<Thread>();
+		for (int t = 0; t < sellers + 3; t++) {
+			int role = t < sellers ? 0 : t - sellers + 1;
+			int[] picks = picks(skus, distribution, PICKS, new Random(42 + t));
+			workers.add(new Thread(() -> {
+				try {
+					start.await();
+				} catch (InterruptedException e) {
+					return;
+				}
+				for (int i = 0; running.get(); i = (i + 1) & (PICKS - 1)) {
+					String name = names[picks[i]];
+					try {
+						switch (role) {
+						case 0:
+							results[store.take(name, (i & 7) == 0).ordinal()].incrementAndGet();
+							break;
+						case 1:
+							store.add(name, 1);
+							restocked.incrementAndGet();
+							break;
+						case 2:
+							store.addDiscount(name, 1);
+							discounted.incrementAndGet();
+							break;
+						default:
+							store.addShoeIfNotInStorage("new-" + added.incrementAndGet(), 0, 0);
+							Thread.yield();
+						}
+					} catch (RuntimeException e) {
+						if (errors.incrementAndGet() <= 3)
+							synchronized (firstErrors) {
+								firstErrors.add(e);
+							}
+					}
+				}
+			}));
+		}
+		for (Thread worker : workers)
+			worker.start();
+		long begin = System.nanoTime();
+		start.countDown();
+		Thread.sleep(TimeUnit.SECONDS.toMillis(seconds));
+		running.set(false);
+		for (Thread worker : workers)
+			worker.join();
+		double elapsed = (System.nanoTime() - begin) / 1e9;
+
+		long sold = results[BuyResult.REGULAR_PRICE.ordinal()].get()
+				+ results[BuyResult.DISCOUNTED_PRICE.ordinal()].get();
+		long inStorage = 0;
+		for (String name : names)
+			inStorage += store.getByShoeType(name).getAmountOnStorage();
+		long lost = (long) skus * stock + restocked.get() - sold - inStorage;
+		System.out.printf("%d sellers and 3 mutators over %d %s SKUs for %.1f s%n", sellers, skus, distribution,
+				elapsed);
+		for (BuyResult result : BuyResult.values())
+			System.out.printf("  %-16s %12d (%10.0f/s)%n", result, results[result.ordinal()].get(),
+					results[result.ordinal()].get() / elapsed);
+		System.out.printf("  %-16s %12d%n  %-16s %12d%n  %-16s %12d%n", "restocked", restocked.get(), "discounts",
+				discounted.get(), "new SKUs", added.get());
+		System.out.printf("  %-16s %12d%n", "exceptions", errors.get());
+		for (Throwable error : firstErrors)
+			System.out.println("    " + error);
+		System.out.printf("  %-16s %12d%n", "shoes lost", lost);
+		List<String> violations = violations();
+		System.out.printf("  %-16s %12d%n", "violations", violations.size());
+		for (int i = 0; i < Math.min(3, violations.size()); i++)
+			System.out.println("    " + violations.get(i));
+	}
+}
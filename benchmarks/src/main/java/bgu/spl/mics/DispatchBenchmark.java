@@ -0,0 +1,119 @@
+package bgu.spl.mics;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Measures the cost of finding and calling the callback of a taken message,
+ * with the {@link DispatchTable} used by the {@link MicroService} event loop
+ * and with the former dispatch: kind tests with
+ * {@link Class#isAssignableFrom} and a {@link ConcurrentHashMap} lookup per
+ * kind.
+ * <p>
+ * Every invocation dispatches the same mix of {@link #MESSAGES} messages
+ * a seller sees: ticks, purchase requests and completions of its own
+ * requests.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DispatchBenchmark {
+	/**
+	 * the number of messages dispatched by every invocation.
+	 */
+	public static final int MESSAGES = 64;
+
+	public static class TickBroadcast implements Broadcast {
+	}
+
+	public static class TerminateBroadcast implements Broadcast {
+	}
+
+	public static class PurchaseRequest extends Request<Boolean> {
+	}
+
+	public static class RestockRequest extends Request<Boolean> {
+	}
+
+	private Message[] messages;
+	private DispatchTable table;
+	private ConcurrentHashMap<Class<? extends Message>, Callback<Broadcast>> broadcastSubscribes;
+	private ConcurrentHashMap<Class<? extends Message>, Callback<Request>> requestSubscribes;
+	private Blackhole blackhole;
+
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	@Setup
+	public void setUp(Blackhole blackhole) {
+		this.blackhole = blackhole;
+		Callback<Message> consume = blackhole::consume;
+		table = new DispatchTable();
+		table.put(TickBroadcast.class, consume);
+		table.put(TerminateBroadcast.class, consume);
+		table.put(PurchaseRequest.class, consume);
+		table.put(RestockRequest.class, consume);
+		table.put(RequestCompleted.class, consume);
+		broadcastSubscribes = new ConcurrentHashMap<Class<? extends Message>, Callback<Broadcast>>();
+		requestSubscribes = new ConcurrentHashMap<Class<? extends Message>, Callback<Request>>();
+		broadcastSubscribes.put(TickBroadcast.class, (Callback) consume);
+		broadcastSubscribes.put(TerminateBroadcast.class, (Callback) consume);
+		requestSubscribes.put(PurchaseRequest.class, (Callback) consume);
+		requestSubscribes.put(RestockRequest.class, (Callback) consume);
+		messages = new Message[MESSAGES];
+		for (int i = 0; i < MESSAGES; i++) {
+			switch (i % 4) {
+			case 0:
+				messages[i] = new TickBroadcast();
+				break;
+			case 1:
+				messages[i] = new RequestCompleted<Boolean>(new RestockRequest(), true);
+				break;
+			default:
+				messages[i] = new PurchaseRequest();
+			}
+		}
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(MESSAGES)
+	public void dispatchTable() {
+		for (Message m : messages)
+			table.dispatch(m);
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(MESSAGES)
+	public void kindTestsAndMaps() {
+		for (Message m : messages)
+			handleByKind(m);
+	}
+
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	private void handleByKind(Message msg) {
+		if (Broadcast.class.isAssignableFrom(msg.getClass())) {
+			broadcastSubscribes.get(msg.getClass()).call((Broadcast) msg);
+		} else {
+			if (Request.class.isAssignableFrom(msg.getClass())) {
+				requestSubscribes.get(msg.getClass()).call((Request) msg);
+			} else {
+				if (RequestCompleted.class.isAssignableFrom(msg.getClass()))
+					blackhole.consume(msg);
+			}
+		}
+	}
+}
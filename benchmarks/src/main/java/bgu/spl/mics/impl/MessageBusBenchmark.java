@@ -0,0 +1,237 @@
+package bgu.spl.mics.impl;
+
+import java.util.Collection;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import bgu.spl.mics.Broadcast;
+import bgu.spl.mics.Mailbox;
+import bgu.spl.mics.Message;
+import bgu.spl.mics.MicroService;
+import bgu.spl.mics.Request;
+import bgu.spl.mics.impl.SendRequestBenchmark.IdleService;
+
+/**
+ * Measures the basic operations of the {@link MessageBusImpl}, without any
+ * micro-service thread, so a change of the bus shows in the numbers alone:
+ * <li>{@link #roundTrip}: a request sent, taken by its receiver, completed,
+ * and its {@link bgu.spl.mics.RequestCompleted} taken by the requester, with
+ * and without the {@link BusMetrics}.</li>
+ * <li>{@link #fanOut}: a broadcast to 10, 1k and 10k subscribers, whose
+ * mailboxes drop the messages so only the fan-out is measured.</li>
+ * <li>{@link #churn} and {@link #contendedChurn}: a micro-service
+ * registering, subscribing to a request and a broadcast type and
+ * un-registering, next to 10 and 1k subscribers of the same types.</li>
+ * <p>
+ * All the parameters, iterations and forks are fixed here, so runs of two
+ * versions of the bus are comparable; add {@code -rf json} to keep the
+ * results.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MessageBusBenchmark {
+
+	public static class PingRequest extends Request<Boolean> {
+	}
+
+	public static class PingBroadcast implements Broadcast {
+	}
+
+	@State(Scope.Benchmark)
+	public static class RoundTrip {
+		@Param({ "false", "true" })
+		private boolean metrics;
+
+		private MessageBusImpl bus;
+		private MicroService requester;
+		private MicroService receiver;
+		private PingRequest request;
+
+		@Setup(Level.Trial)
+		public void setUp() {
+			bus = MessageBusImpl.getInstance();
+			bus.setMetrics(metrics);
+			requester = new IdleService("requester");
+			receiver = new IdleService("receiver");
+			bus.register(requester);
+			bus.register(receiver);
+			bus.subscribeRequest(PingRequest.class, receiver);
+			request = new PingRequest();
+		}
+
+		@TearDown(Level.Trial)
+		public void tearDown() {
+			bus.unregister(requester);
+			bus.unregister(receiver);
+			bus.setMetrics(false);
+		}
+	}
+
+	@State(Scope.Benchmark)
+	public static class FanOut {
+		@Param({ "10", "1000", "10000" })
+		private int subscribers;
+
+		private MessageBusImpl bus;
+		private MicroService[] services;
+		private PingBroadcast broadcast;
+
+		@Setup(Level.Trial)
+		public void setUp() {
+			bus = MessageBusImpl.getInstance();
+			services = new MicroService[subscribers];
+			for (int i = 0; i < subscribers; i++) {
+				services[i] = new IdleService("subscriber" + i);
+				bus.register(services[i], new DroppingMailbox());
+				bus.subscribeBroadcast(PingBroadcast.class, services[i]);
+			}
+			broadcast = new PingBroadcast();
+		}
+
+		@TearDown(Level.Trial)
+		public void tearDown() {
+			for (MicroService m : services)
+				bus.unregister(m);
+		}
+	}
+
+	@State(Scope.Benchmark)
+	public static class Churn {
+		@Param({ "10", "1000" })
+		private int subscribers;
+
+		private MessageBusImpl bus;
+		private MicroService[] services;
+
+		@Setup(Level.Trial)
+		public void setUp() {
+			bus = MessageBusImpl.getInstance();
+			services = new MicroService[subscribers];
+			for (int i = 0; i < subscribers; i++) {
+				services[i] = new IdleService("subscriber" + i);
+				bus.register(services[i], new DroppingMailbox());
+				bus.subscribeRequest(PingRequest.class, services[i]);
+				bus.subscribeBroadcast(PingBroadcast.class, services[i]);
+			}
+		}
+
+		@TearDown(Level.Trial)
+		public void tearDown() {
+			for (MicroService m : services)
+				bus.unregister(m);
+		}
+	}
+
+	@State(Scope.Thread)
+	public static class Churner {
+		private static final AtomicInteger ids = new AtomicInteger();
+		private MicroService service;
+
+		@Setup(Level.Trial)
+		public void setUp() {
+			service = new IdleService("churner" + ids.incrementAndGet());
+		}
+	}
+
+	@Benchmark
+	public Message roundTrip(RoundTrip state) throws InterruptedException {
+		MessageBusImpl bus = state.bus;
+		bus.sendRequest(state.request, state.requester);
+		handled(state, state.receiver, bus.awaitMessage(state.receiver));
+		bus.complete(state.request, Boolean.TRUE);
+		return handled(state, state.requester, bus.awaitMessage(state.requester));
+	}
+
+	/**
+	 * reports {@code msg} handled by {@code m}, as the event loop of
+	 * {@code m} would when the bus is metered.
+	 */
+	private static Message handled(RoundTrip state, MicroService m, Message msg) {
+		if (state.metrics) {
+			long start = System.nanoTime();
+			state.bus.handled(m, state.bus.getMailbox(m), msg, start, System.nanoTime());
+		}
+		return msg;
+	}
+
+	@Benchmark
+	public void fanOut(FanOut state) {
+		state.bus.sendBroadcast(state.broadcast);
+	}
+
+	@Benchmark
+	@Threads(1)
+	public void churn(Churn state, Churner churner) {
+		churn(state.bus, churner.service);
+	}
+
+	@Benchmark
+	@Threads(4)
+	public void contendedChurn(Churn state, Churner churner) {
+		churn(state.bus, churner.service);
+	}
+
+	private static void churn(MessageBusImpl bus, MicroService m) {
+		bus.register(m, new DroppingMailbox());
+		bus.subscribeRequest(PingRequest.class, m);
+		bus.subscribeBroadcast(PingBroadcast.class, m);
+		bus.unregister(m);
+	}
+
+	/**
+	 * A {@link Mailbox} that drops the messages put in it.
+	 */
+	static class DroppingMailbox implements Mailbox {
+		@Override
+		public void put(Message m) {
+		}
+
+		@Override
+		public Message take() {
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		public Message poll() {
+			return null;
+		}
+
+		@Override
+		public Message peek() {
+			return null;
+		}
+
+		@Override
+		public int drainTo(Collection<? super Message> buffer, int max) {
+			return 0;
+		}
+
+		@Override
+		public int size() {
+			return 0;
+		}
+
+		@Override
+		public boolean isEmpty() {
+			return true;
+		}
+	}
+}
@@ -0,0 +1,123 @@
+package bgu.spl.mics.impl;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import bgu.spl.mics.Mailbox;
+import bgu.spl.mics.Request;
+import bgu.spl.mics.impl.SendRequestBenchmark.IdleService;
+
+/**
+ * Measures {@link RequestRoute#select(Request)}, the pick of the receiver of
+ * every sent request, with every {@link RoutingPolicy}, from 1, 2, 4 and 8
+ * sending threads at once. The policies share the state of a route (e.g.
+ * the round-robin cursor), so this is where senders contend.
+ * <p>
+ * The subscribers have empty {@link LinkedMailbox}es. Every thread sends
+ * the same sequence of requests, keyed by {@link #KEYS} shoe types picked
+ * with a fixed seed, so the affinity policy sees the same keys in every
+ * run.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RoutingBenchmark {
+	/**
+	 * the number of distinct routing keys.
+	 */
+	public static final int KEYS = 64;
+	/**
+	 * the number of requests every thread cycles through.
+	 */
+	private static final int REQUESTS = 1024;
+
+	public static class KeyedRequest extends Request<Boolean> {
+		private final String key;
+
+		KeyedRequest(String key) {
+			this.key = key;
+		}
+
+		@Override
+		public Object getRoutingKey() {
+			return key;
+		}
+	}
+
+	@Param({ "round-robin", "least-loaded", "power-of-two", "affinity" })
+	private String policy;
+
+	@Param({ "4", "64" })
+	private int subscribers;
+
+	private RequestRoute route;
+
+	@Setup(Level.Trial)
+	public void setUp() {
+		route = new RequestRoute();
+		route.setPolicy(RoutingPolicy.forName(policy));
+		for (int i = 0; i < subscribers; i++)
+			route.add(new IdleService("subscriber" + i), new LinkedMailbox());
+	}
+
+	@State(Scope.Thread)
+	public static class Sender {
+		private KeyedRequest[] requests;
+		private int next;
+
+		@Setup(Level.Trial)
+		public void setUp() {
+			Random random = new Random(42);
+			requests = new KeyedRequest[REQUESTS];
+			for (int i = 0; i < REQUESTS; i++)
+				requests[i] = new KeyedRequest("shoe-" + random.nextInt(KEYS));
+		}
+
+		private KeyedRequest next() {
+			KeyedRequest r = requests[next];
+			next = (next + 1) & (REQUESTS - 1);
+			return r;
+		}
+	}
+
+	@Benchmark
+	@Threads(1)
+	public Mailbox select1(Sender sender) {
+		return route.select(sender.next());
+	}
+
+	@Benchmark
+	@Threads(2)
+	public Mailbox select2(Sender sender) {
+		return route.select(sender.next());
+	}
+
+	@Benchmark
+	@Threads(4)
+	public Mailbox select4(Sender sender) {
+		return route.select(sender.next());
+	}
+
+	@Benchmark
+	@Threads(8)
+	public Mailbox select8(Sender sender) {
+		return route.select(sender.next());
+	}
+}
@@ -0,0 +1,112 @@
+package bgu.spl.mics.impl;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import bgu.spl.mics.MicroService;
+import bgu.spl.mics.Request;
+
+/**
+ * Measures the throughput of {@link MessageBusImpl#sendRequest} when many
+ * senders dispatch requests of the same type at the same time (e.g. all the
+ * {@code WebsiteClientService}s of a tick sending {@code PurchaseOrderRequest}
+ * s).
+ * <p>
+ * Receivers are never run, their queues are dropped by un-registering them
+ * at the end of every iteration.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SendRequestBenchmark {
+
+	public static class PingRequest extends Request<Boolean> {
+	}
+
+	@Param({ "4" })
+	private int receivers;
+
+	private MessageBusImpl bus;
+	private MicroService[] receiverServices;
+
+	@Setup(Level.Iteration)
+	public void setUp() {
+		bus = MessageBusImpl.getInstance();
+		receiverServices = new MicroService[receivers];
+		for (int i = 0; i < receivers; i++) {
+			receiverServices[i] = new IdleService("receiver" + i);
+			bus.register(receiverServices[i]);
+			bus.subscribeRequest(PingRequest.class, receiverServices[i]);
+		}
+	}
+
+	@TearDown(Level.Iteration)
+	public void tearDown() {
+		for (MicroService m : receiverServices)
+			bus.unregister(m);
+		// the requests are never completed, drop their request table slots
+		bus.getRequests().clear();
+	}
+
+	@State(Scope.Thread)
+	public static class Sender {
+		private static final AtomicInteger ids = new AtomicInteger();
+		private MicroService service;
+		private PingRequest request;
+
+		@Setup(Level.Iteration)
+		public void setUp() {
+			service = new IdleService("sender" + ids.incrementAndGet());
+			request = new PingRequest();
+			MessageBusImpl.getInstance().register(service);
+		}
+
+		@TearDown(Level.Iteration)
+		public void tearDown() {
+			MessageBusImpl.getInstance().unregister(service);
+		}
+	}
+
+	@Benchmark
+	@Threads(1)
+	public boolean singleSender(Sender sender) {
+		return bus.sendRequest(sender.request, sender.service);
+	}
+
+	@Benchmark
+	@Threads(8)
+	public boolean contendedSenders(Sender sender) {
+		return bus.sendRequest(sender.request, sender.service);
+	}
+
+	/**
+	 * A {@link MicroService} that is only registered, never run.
+	 */
+	static class IdleService extends MicroService {
+		IdleService(String name) {
+			super(name);
+		}
+
+		@Override
+		protected void initialize() {
+		}
+	}
+}
@@ -0,0 +1,173 @@
+package bgu.spl.mics.impl;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import bgu.spl.mics.Broadcast;
+import bgu.spl.mics.MicroService;
+
+/**
+ * Compares running every micro-service on a platform thread, on a virtual
+ * thread (see {@link ServiceThreads}), and on the workers of a
+ * {@link ServiceScheduler}.
+ * <p>
+ * The JMH benchmark measures the time to start {@code services} idle
+ * micro-services, wait until all of them are registered and subscribed, and
+ * stop them all with a broadcast. Run it on Java 21 or later, on older
+ * runtimes the virtual variant silently uses platform threads.
+ * <p>
+ * {@link #main(String[])} looks for the largest supported number of
+ * micro-services instead: it doubles the count until starting them fails or
+ * the limit is reached, and prints the heap, resident memory and thread
+ * count at every step:
+ * {@code java -cp target/benchmarks.jar bgu.spl.mics.impl.ServiceScaleBenchmark virtual 1000000}
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class ServiceScaleBenchmark {
+
+	public static class StopBroadcast implements Broadcast {
+	}
+
+	@Param({ "platform", "virtual", "scheduler" })
+	private String threads;
+
+	@Param({ "1000", "10000" })
+	private int services;
+
+	@Benchmark
+	public int startAndStop() throws InterruptedException {
+		MicroService[] started = start(threads, services);
+		stop(started);
+		return started.length;
+	}
+
+	/**
+	 * A {@link MicroService} that waits for a {@link StopBroadcast} and
+	 * terminates.
+	 */
+	static class ParkedService extends MicroService {
+		private final CountDownLatch ready;
+		private final CountDownLatch stopped;
+
+		ParkedService(String name, CountDownLatch ready, CountDownLatch stopped) {
+			super(name);
+			this.ready = ready;
+			this.stopped = stopped;
+		}
+
+		@Override
+		protected void initialize() {
+			subscribeBroadcast(StopBroadcast.class, stop -> {
+				terminate();
+				stopped.countDown();
+			});
+			ready.countDown();
+		}
+	}
+
+	private static CountDownLatch stopped;
+	private static ServiceScheduler scheduler;
+
+	/**
+	 * starts {@code count} {@link ParkedService}s on threads of the
+	 * {@code kind} factory, or on a {@link ServiceScheduler} if {@code kind}
+	 * is {@code "scheduler"}, and waits until all of them are subscribed.
+	 */
+	private static MicroService[] start(String kind, int count) throws InterruptedException {
+		CountDownLatch ready = new CountDownLatch(count);
+		stopped = new CountDownLatch(count);
+		MicroService[] started = new MicroService[count];
+		if ("scheduler".equals(kind)) {
+			scheduler = new ServiceScheduler();
+			for (int i = 0; i < count; i++) {
+				started[i] = new ParkedService("service" + i, ready, stopped);
+				scheduler.start(started[i]);
+			}
+		} else {
+			ThreadFactory factory = ServiceThreads.forName(kind);
+			for (int i = 0; i < count; i++) {
+				started[i] = new ParkedService("service" + i, ready, stopped);
+				factory.newThread(started[i]).start();
+			}
+		}
+		ready.await();
+		return started;
+	}
+
+	/**
+	 * stops the services started by {@link #start}, waits until all of them
+	 * handled the stop broadcast and un-registers them.
+	 */
+	private static void stop(MicroService[] started) throws InterruptedException {
+		MessageBusImpl bus = MessageBusImpl.getInstance();
+		bus.sendBroadcast(new StopBroadcast());
+		stopped.await();
+		if (scheduler != null) {
+			scheduler.awaitTermination();
+			scheduler = null;
+		}
+		for (MicroService m : started)
+			bus.unregister(m);
+	}
+
+	public static void main(String[] args) throws InterruptedException {
+		String kind = args.length > 0 ? args[0] : "virtual";
+		int limit = args.length > 1 ? Integer.parseInt(args[1]) : 1000000;
+		if ("virtual".equals(kind) && !ServiceThreads.isVirtualSupported())
+			System.out.println("virtual threads are not supported by this runtime, using platform threads");
+		System.out.printf("%10s %12s %10s %10s %10s%n", "services", "start (ms)", "heap (MB)", "rss (MB)", "threads");
+		for (int count = 1000; count <= limit; count *= 2) {
+			long begin = System.nanoTime();
+			MicroService[] started;
+			try {
+				started = start(kind, count);
+			} catch (OutOfMemoryError e) {
+				System.out.println("failed to start " + count + " services: " + e.getMessage());
+				return;
+			}
+			long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - begin);
+			System.gc();
+			Runtime runtime = Runtime.getRuntime();
+			long heap = (runtime.totalMemory() - runtime.freeMemory()) >> 20;
+			int liveThreads = ManagementFactory.getThreadMXBean().getThreadCount();
+			System.out.printf("%10d %12d %10d %10s %10d%n", count, elapsed, heap, residentMegabytes(), liveThreads);
+			stop(started);
+		}
+	}
+
+	/**
+	 * @return the resident set size of this process in megabytes, or "?" if
+	 *         it cannot be read (it is read from /proc, on Linux only).
+	 */
+	private static String residentMegabytes() {
+		try {
+			for (String line : Files.readAllLines(Paths.get("/proc/self/status")))
+				if (line.startsWith("VmRSS:"))
+					return Long.toString(Long.parseLong(line.replaceAll("[^0-9]", "")) >> 10);
+		} catch (IOException | RuntimeException e) {
+			// not on Linux
+		}
+		return "?";
+	}
+}
@@ -0,0 +1,180 @@
+package bgu.spl.mics.impl;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compares the round trip of a {@link BusNode} frame through the two
+ * transports between nodes of the same machine: a loopback TCP connection,
+ * and a pair of {@link SharedRing}s in a memory-mapped file.
+ * <p>
+ * Every operation sends a frame of {@code size} bytes to an echo thread and
+ * waits until it is sent back, the way a request waits for its result. Both
+ * sides of the shared rings spin and then yield while empty, so with fewer
+ * than two free cores the shared variant measures the scheduler as well.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TransportBenchmark {
+	private static final int SPINS = 64;
+
+	@Param({ "socket", "shared" })
+	private String transport;
+
+	@Param({ "200" })
+	private int size;
+
+	private byte[] frame;
+	private Thread echo;
+	private volatile boolean stopped;
+
+	// socket
+	private SocketChannel client;
+	private SocketChannel server;
+	private ByteBuffer out;
+	private ByteBuffer in;
+
+	// shared
+	private File file;
+	private SharedRing toEcho;
+	private SharedRing fromEcho;
+
+	@Setup(Level.Trial)
+	public void setUp() throws IOException {
+		frame = new byte[size];
+		stopped = false;
+		if (transport.equals("socket"))
+			setUpSocket();
+		else
+			setUpShared();
+		echo.setDaemon(true);
+		echo.start();
+	}
+
+	private void setUpSocket() throws IOException {
+		try (ServerSocketChannel listener = ServerSocketChannel.open()) {
+			listener.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+			client = SocketChannel.open(listener.getLocalAddress());
+			server = listener.accept();
+		}
+		client.setOption(StandardSocketOptions.TCP_NODELAY, true);
+		server.setOption(StandardSocketOptions.TCP_NODELAY, true);
+		out = ByteBuffer.allocate(4 + size);
+		in = ByteBuffer.allocate(4 + size);
+		echo = new Thread(() -> {
+			ByteBuffer buffer = ByteBuffer.allocate(4 + size);
+			try {
+				while (!stopped) {
+					buffer.clear();
+					while (buffer.hasRemaining())
+						if (server.read(buffer) == -1)
+							return;
+					buffer.flip();
+					while (buffer.hasRemaining())
+						server.write(buffer);
+				}
+			} catch (IOException e) {
+				// closed by tearDown
+			}
+		}, "socket-echo");
+	}
+
+	private void setUpShared() throws IOException {
+		file = File.createTempFile("transport", ".shm", new File("/dev/shm").isDirectory() ? new File("/dev/shm")
+				: null);
+		int capacity = 64 * 1024;
+		MappedByteBuffer buffer;
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ,
+				StandardOpenOption.WRITE)) {
+			buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, 2 * (SharedRing.HEADER_SIZE + capacity));
+		}
+		toEcho = new SharedRing(buffer, 0, capacity);
+		fromEcho = new SharedRing(buffer, SharedRing.HEADER_SIZE + capacity, capacity);
+		// the echo side has rings of its own over the same memory
+		SharedRing echoIn = new SharedRing(buffer.duplicate(), 0, capacity);
+		SharedRing echoOut = new SharedRing(buffer.duplicate(), SharedRing.HEADER_SIZE + capacity, capacity);
+		echo = new Thread(() -> {
+			int idle = 0;
+			while (!stopped) {
+				byte[] received = echoIn.poll();
+				if (received == null) {
+					idle = backOff(idle);
+					continue;
+				}
+				idle = 0;
+				while (!echoOut.offer(received))
+					Thread.yield();
+			}
+		}, "shared-echo");
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws IOException, InterruptedException {
+		stopped = true;
+		if (client != null) {
+			client.close();
+			server.close();
+		}
+		echo.join();
+		if (file != null)
+			file.delete();
+	}
+
+	@Benchmark
+	public int roundTrip() throws IOException {
+		if (transport.equals("socket")) {
+			out.clear();
+			out.putInt(size).put(frame).flip();
+			while (out.hasRemaining())
+				client.write(out);
+			in.clear();
+			while (in.hasRemaining())
+				client.read(in);
+			return in.getInt(0);
+		}
+		while (!toEcho.offer(frame))
+			Thread.yield();
+		byte[] received;
+		int idle = 0;
+		while ((received = fromEcho.poll()) == null)
+			idle = backOff(idle);
+		return received.length;
+	}
+
+	private static int backOff(int idle) {
+		if (idle < SPINS) {
+			Thread.onSpinWait();
+			return idle + 1;
+		}
+		Thread.yield();
+		return idle;
+	}
+}
@@ -36,10 +36,6 @@ public class ManagementService extends MicroService {
 	 * singleton {@link Store}.
 	 */
 	private Store store;
-	/**
-	 * int - current tick of the global clock.
-	 */
-	private int currentTick;
 	/**
 	 * CountDownLatch - let the current thread wait for the rest of the threads
 	 * to be ready.
@@ -61,7 +57,6 @@ public class ManagementService extends MicroService {
 		this.countDown = countDown;
 		this.discountSchedules = new ArrayList<DiscountSchedule>();
 		this.store = store;
-		this.currentTick = 0;
 		this.orders = new ConcurrentHashMap<String, ArrayList<ManufacturingOrderInfo>>();
 		this.log = Logger.getLogger("manager");
 	}
@@ -84,17 +79,19 @@ public class ManagementService extends MicroService {
 	/**
 	 * let the {@link ManagementService} subscribe for the needed broadcasts:
 	 * <li>{@link TerminationBroadcast}</li>
-	 * <li>{@link TickBroadcast}</li>
+	 * <li>{@link TickBroadcast}</li>, only while there are discounts to
+	 * add, the manager unsubscribes after the tick of the last one.
 	 */
 	private void subscribeBroadcasts() {
 		this.subscribeBroadcast(TerminationBroadcast.class, broadcast -> {
-			broadcast.getPhaser().arriveAndAwaitAdvance();
+			broadcast.getPhaser().arrive();
 			log.info("	MicroService manager Terminated!");
 			this.terminate();
 		});
 
+		if (discountSchedules.isEmpty())
+			return;
 		this.subscribeBroadcast(TickBroadcast.class, broadcast -> {
-			this.currentTick = broadcast.getTick();
 			for (int i = 0; i < discountSchedules.size(); i++) {
 				DiscountSchedule ds = discountSchedules.get(i);
 				if (ds.getTick() == broadcast.getTick()) {
@@ -106,6 +103,10 @@ public class ManagementService extends MicroService {
 					}
 				}
 			}
+			// a discount is added at its exact tick only
+			discountSchedules.removeIf(ds -> ds.getTick() <= broadcast.getTick());
+			if (discountSchedules.isEmpty())
+				this.unsubscribeBroadcast(TickBroadcast.class);
 		});
 	}
 
@@ -116,25 +117,31 @@ public class ManagementService extends MicroService {
 	private void subscribeRequests() {
 		this.subscribeRequest(RestockRequest.class, request -> {
 			String str ="	" + this.getName() + " recieved restock request of shoe: " + request.getShoeType();
-			boolean found = false;
-			int amount = this.currentTick % 5 + 1;
+			int amount = this.getCurrentTick() % 5 + 1;
 			String shoeType = request.getShoeType();
 			boolean isOrdered = isAlreadyOrdered(shoeType);
+			ArrayList<ManufacturingOrderInfo> list = orders.get(shoeType);
+			ManufacturingOrderInfo order;
 			if (!isOrdered) {
 				log.info(str + "\n		Ordering " + amount + " of: '" + shoeType + "'");
-				orders.get(shoeType).add(new ManufacturingOrderInfo(shoeType, amount, 1));
-				found = this.sendRequest(new ManufacturingOrderRequest(request.getShoeType(), amount, this.currentTick),
-						result -> onComplete(request, result));
+				ManufacturingOrderInfo placed = new ManufacturingOrderInfo(shoeType, amount, 1);
+				list.add(placed);
+				placed.setDelivery(this.sendRequest(new ManufacturingOrderRequest(shoeType, amount, this.getCurrentTick()))
+						.handle((result, noFactory) -> onComplete(placed, result)));
+				order = placed;
 			} else {
 				log.info(str + "\n		Shoe was already ordered, waiting for it's completion.");
-				ArrayList<ManufacturingOrderInfo> list = orders.get(shoeType);
-				list.get(list.size() - 1).addRequest(request);
-				found = true;
+				order = list.get(list.size() - 1);
+				order.reserve();
 			}
-
-			if (!found)
-				this.complete(request, false);
-
+			// completed in this service event loop once the order is stocked,
+			// the shoe reserved for a seller that gave up waiting is stocked
+			order.getDelivery().thenAccept(result -> {
+				if (!this.complete(request, result != null) && result != null) {
+					log.info("	" + this.getName() + " stocks the " + shoeType + " reserved for a timed out restock");
+					store.add(shoeType, 1);
+				}
+			});
 		});
 	}
 
@@ -162,30 +169,29 @@ public class ManagementService extends MicroService {
 
 	/**
 	 * Adding a {@code result} {@link Receipt} to the {@link Store} receipts
-	 * file and removing the first {@link ManufacturingOrderInfo} order from the
-	 * {@link #orders} and completing all the requests of that order.
+	 * file, removing the {@code order} from the {@link #orders} and adding
+	 * the shoes that were not reserved to the {@link Store}. The
+	 * {@link RestockRequest}s of the order are completed by the
+	 * {@link ManufacturingOrderInfo#getDelivery()} stages once this returns.
 	 * 
-	 * @param request
-	 *            a {@link RestckRequest} which the manager received from the
-	 *            {@link SellingService}.
+	 * @param order
+	 *            the delivered {@link ManufacturingOrderInfo}.
 	 * @param result
-	 *            a {@link Receipt}.
+	 *            a {@link Receipt}, or null if no {@link ShoeFactoryService}
+	 *            could take the order.
+	 * @return {@code result}.
 	 */
-	private void onComplete(RestockRequest request, Receipt result) {
+	private Receipt onComplete(ManufacturingOrderInfo order, Receipt result) {
+		orders.get(order.getShoeType()).remove(order);
+		if (result == null)
+			return null;
 		log.info("	" + this.getName() + " recieved " + result.getAmountSold() + " x "
 				+ result.getShoeType() + " from " + result.getSeller());
-		store.file(new Receipt(result.getSeller(), "store", result.getShoeType(), false, this.currentTick,
+		store.file(new Receipt(result.getSeller(), "store", result.getShoeType(), false, this.getCurrentTick(),
 				result.getRequestTick(), result.getAmountSold()));
-		ManufacturingOrderInfo order = orders.get(result.getShoeType()).remove(0);
-		ArrayList<RestockRequest> requests = order.getRequests();
-		for (RestockRequest r : requests) {
-			this.complete(r, true);
-		}
-
 		store.addShoeIfNotInStorage(result.getShoeType(), 0, 0);
 		store.add(result.getShoeType(), result.getAmountSold() - order.getAmountReserved());
-		this.complete(request, true);
-
+		return result;
 	}
 
 	/*
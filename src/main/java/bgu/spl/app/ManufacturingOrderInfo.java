@@ -1,6 +1,6 @@
 package bgu.spl.app;
 
-import java.util.ArrayList;
+import java.util.concurrent.CompletableFuture;
 
 /**
  * This class representing a single manufacturing order info of a shoe.
@@ -22,9 +22,10 @@ public class ManufacturingOrderInfo {
 	 */
 	private int amountReserved;
 	/**
-	 * ArrayList - contains all the {@link RestockReuest}s of that shoe.
+	 * CompletableFuture - completed with the {@link Receipt} of the factory
+	 * once the order is delivered and stocked, or with null if it failed.
 	 */
-	private ArrayList<RestockRequest> requests;
+	private CompletableFuture<Receipt> delivery;
 
 	/**
 	 * Creates a new {@link ManufacturingOrderInfo}.
@@ -40,7 +41,7 @@ public class ManufacturingOrderInfo {
 		this.shoeType = shoeType;
 		this.amountOnOrder = amountOnOrder;
 		this.amountReserved = amountReserved;
-		requests = new ArrayList<RestockRequest>();
+		this.delivery = null;
 	}
 
 	/**
@@ -73,21 +74,25 @@ public class ManufacturingOrderInfo {
 	}
 
 	/**
-	 * Adds a {@link RestockRequest} to the {@link #requests} list and increase
-	 * {@link #amountReserved} by 1.
-	 * 
-	 * @param r
-	 *            the request which will be added to the {@link #requests} list.
+	 * Reserves one more shoe of this order for a {@link RestockRequest}, by
+	 * increasing {@link #amountReserved} by 1.
 	 */
-	public void addRequest(RestockRequest r) {
-		requests.add(r);
+	public void reserve() {
 		amountReserved++;
 	}
 
 	/**
-	 * @return the {@link #requests} list.
+	 * @return the {@link #delivery}.
+	 */
+	public CompletableFuture<Receipt> getDelivery() {
+		return delivery;
+	}
+
+	/**
+	 * @param delivery
+	 *            the {@link #delivery} to set.
 	 */
-	public ArrayList<RestockRequest> getRequests() {
-		return requests;
+	public void setDelivery(CompletableFuture<Receipt> delivery) {
+		this.delivery = delivery;
 	}
 }
@@ -9,7 +9,7 @@ import bgu.spl.mics.Request;
  * @author Anan Kays, Saleem Dibbiny
  *
  */
-public class ManufacturingOrderRequest implements Request<Receipt> {
+public class ManufacturingOrderRequest extends Request<Receipt> {
 	/**
 	 * String - the type of a shoe which the {@link ManagementService} requests
 	 * from the {@link ShoeFactoryService}.
@@ -50,6 +50,24 @@ public class ManufacturingOrderRequest implements Request<Receipt> {
 		this.requestTick = requestTick;
 	}
 
+	/**
+	 * Creates a {@link ManufacturingOrderRequest} that was partly
+	 * manufactured, e.g. when it is read back by {@link StoreMessages}.
+	 * 
+	 * @param shoeType
+	 *            String - the type of a shoe to manufacture.
+	 * @param amount
+	 *            int - the {@link #amount} still to manufacture.
+	 * @param requestedAmount
+	 *            int - the {@link #requestedAmount}.
+	 * @param requestTick
+	 *            int - the tick when the request occurred.
+	 */
+	ManufacturingOrderRequest(String shoeType, int amount, int requestedAmount, int requestTick) {
+		this(shoeType, requestedAmount, requestTick);
+		this.amount = amount;
+	}
+
 	/**
 	 * @return the {@link #shoeType}
 	 */
@@ -57,6 +75,15 @@ public class ManufacturingOrderRequest implements Request<Receipt> {
 		return shoeType;
 	}
 
+	/**
+	 * @return the {@link #shoeType}, so requests for the same shoe are
+	 *         handled by the same service when affinity routing is used.
+	 */
+	@Override
+	public Object getRoutingKey() {
+		return shoeType;
+	}
+
 	/**
 	 * @return the {@link #amount}.
 	 */
@@ -8,7 +8,7 @@ import bgu.spl.mics.Request;
  * @author Anan Kays, Saleem Dibbiny
  *
  */
-public class PurchaseOrderRequest implements Request<Receipt> {
+public class PurchaseOrderRequest extends Request<Receipt> {
 	/**
 	 * String - the shoe which the client wish to buy from the {@link Store}.
 	 */
@@ -72,6 +72,15 @@ public class PurchaseOrderRequest implements Request<Receipt> {
 		return shoeType;
 	}
 
+	/**
+	 * @return the {@link #shoeType}, so requests for the same shoe are
+	 *         handled by the same service when affinity routing is used.
+	 */
+	@Override
+	public Object getRoutingKey() {
+		return shoeType;
+	}
+
 	/**
 	 * @return the {@link #onlyDiscount}.
 	 */
@@ -10,7 +10,7 @@ import bgu.spl.mics.Request;
  * @author Anan Kays, Saleem Dibbiny
  *
  */
-public class RestockRequest implements Request<Boolean> {
+public class RestockRequest extends Request<Boolean> {
 	/**
 	 * String - the shoe which the {@link ManagementService} need to order from
 	 * the {@link ShoeFactoryService}.
@@ -1,6 +1,7 @@
 package bgu.spl.app;
 
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Logger;
 
 import bgu.spl.mics.MicroService;
@@ -22,10 +23,6 @@ public class SellingService extends MicroService {
 	 * singleton {@link Store}.
 	 */
 	private Store store;
-	/**
-	 * int - describes the current global system clock.
-	 */
-	private int currentTick;
 	/**
 	 * String - the Selling service name.
 	 */
@@ -35,6 +32,11 @@ public class SellingService extends MicroService {
 	 * to be ready.
 	 */
 	private CountDownLatch countDown;
+	/**
+	 * long - the time, in milliseconds, a sent request may take before it is
+	 * given up on, 0 for no deadline.
+	 */
+	private long requestTimeout = 0;
 	private final Logger log;
 
 	/**
@@ -51,26 +53,32 @@ public class SellingService extends MicroService {
 	public SellingService(Store store, String name, CountDownLatch countDown) {
 		super(name);
 		this.store = store;
-		this.currentTick = 0;
 		this.name = name;
 		this.countDown = countDown;
 		this.log = Logger.getLogger(name);
 	}
 
+	/**
+	 * @param requestTimeout
+	 *            the {@link #requestTimeout} to set, in milliseconds.
+	 */
+	public void setRequestTimeout(long requestTimeout) {
+		this.requestTimeout = requestTimeout;
+	}
+
 	/**
 	 * let the {@link SellingService} subscribe for the needed broadcasts:
 	 * <li>{@link TerminationBroadcast}</li>
-	 * <li>{@link TickBroadcast}</li>
+	 * The receipts are stamped with the shared clock tick (see
+	 * {@link #getCurrentTick()}), so the seller does not receive the
+	 * {@link TickBroadcast}s at all.
 	 */
-	private void subscribeTerminationAndTickBroadcasts() {
+	private void subscribeTerminationBroadcast() {
 		this.subscribeBroadcast(TerminationBroadcast.class, broadcast -> {
-			broadcast.getPhaser().arriveAndAwaitAdvance();
+			broadcast.getPhaser().arrive();
 			log.info("	MicroService " + this.name + " Terminated!");
 			this.terminate();
 		});
-		this.subscribeBroadcast(TickBroadcast.class, broadcast -> {
-			this.currentTick = broadcast.getTick();
-		});
 	}
 
 	/**
@@ -96,14 +104,23 @@ public class SellingService extends MicroService {
 					"	" + name + " recieved purchase request of " + req.getShoeType() + "\n		Result: " + result);
 			switch (result) {
 			case NOT_IN_STOCK:
-				this.sendRequest(new RestockRequest(req.getShoeType()), restockReq -> {
-					if (restockReq.booleanValue()) {
-						store.file(new Receipt(req.getSeller(), req.getCustomer(), req.getShoeType(), false,
-								currentTick, req.getRequestTick(), 1));
-						this.complete(req, new Receipt(req.getSeller(), req.getCustomer(), req.getShoeType(), false,
-								currentTick, req.getRequestTick(), 1));
-					}
-				});
+				// runs in this service event loop once the manager answers,
+				// other purchase requests are handled meanwhile
+				// no manager, or no answer in time, is a failed restock
+				this.sendRequest(new RestockRequest(req.getShoeType()), requestTimeout, TimeUnit.MILLISECONDS)
+						.exceptionally(noAnswer -> false)
+						.thenAccept(restocked -> {
+							if (restocked.booleanValue()) {
+								Receipt receipt = new Receipt(req.getSeller(), req.getCustomer(), req.getShoeType(),
+										false, getCurrentTick(), req.getRequestTick(), 1);
+								if (this.complete(req, receipt))
+									store.file(receipt);
+								else
+									giveBack(req.getShoeType(), false);
+							} else {
+								this.complete(req, null);
+							}
+						});
 				break;
 			case NOT_ON_DISCOUNT:
 				this.complete(req, null);
@@ -115,14 +132,34 @@ public class SellingService extends MicroService {
 				break;
 			}
 			if (shoeFound) {
-				store.file(new Receipt(req.getSeller(), req.getCustomer(), req.getShoeType(), false, currentTick,
-						req.getRequestTick(), 1));
-				this.complete(req, new Receipt(req.getSeller(), req.getCustomer(), req.getShoeType(), isDiscounted,
-						currentTick, req.getRequestTick(), 1));
+				int tick = getCurrentTick();
+				if (this.complete(req, new Receipt(req.getSeller(), req.getCustomer(), req.getShoeType(),
+						isDiscounted, tick, req.getRequestTick(), 1)))
+					store.file(new Receipt(req.getSeller(), req.getCustomer(), req.getShoeType(), false, tick,
+							req.getRequestTick(), 1));
+				else
+					giveBack(req.getShoeType(), isDiscounted);
 			}
 		});
 	}
 
+	/**
+	 * puts back a shoe taken for a client that gave up on its
+	 * {@link PurchaseOrderRequest} meanwhile, no {@link Receipt} is filed for
+	 * it.
+	 * 
+	 * @param shoeType
+	 *            the type of the taken shoe.
+	 * @param discounted
+	 *            true if the shoe was taken on discount.
+	 */
+	private void giveBack(String shoeType, boolean discounted) {
+		log.info("	" + name + " puts back a " + shoeType + ", the client gave up waiting");
+		store.add(shoeType, 1);
+		if (discounted)
+			store.addDiscount(shoeType, 1);
+	}
+
 	/*
 	 * (non-Javadoc)
 	 * 
@@ -130,7 +167,7 @@ public class SellingService extends MicroService {
 	 */
 	@Override
 	protected void initialize() {
-		subscribeTerminationAndTickBroadcasts();
+		subscribeTerminationBroadcast();
 		subscribePurchaseOrderRequests();
 		log.info("Ready and waiting for other services");
 		countDown.countDown();
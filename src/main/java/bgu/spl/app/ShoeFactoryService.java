@@ -15,14 +15,20 @@ import bgu.spl.mics.MicroService;
  *
  */
 public class ShoeFactoryService extends MicroService {
-	/**
-	 * int - describes the current tick of the global clock system.
-	 */
-	private int currentTick;
 	/**
 	 * ArrayList - contains all the {@link ManufacturingOrderRequest} schedules.
 	 */
 	ArrayList<ManufacturingOrderRequest> requestsSchedule = new ArrayList<ManufacturingOrderRequest>();
+	/**
+	 * int - the number of shoes left to manufacture for all the
+	 * {@link #requestsSchedule}, written only by the event loop.
+	 */
+	private volatile int pendingShoes;
+	/**
+	 * int - the last tick a shoe was manufactured at, or that was made up
+	 * for, written only by the event loop.
+	 */
+	private int lastTick;
 	/**
 	 * String - the name of the factory.
 	 */
@@ -45,7 +51,6 @@ public class ShoeFactoryService extends MicroService {
 	 */
 	public ShoeFactoryService(String name, CountDownLatch countDown) {
 		super(name);
-		currentTick = 0;
 		this.countDown = countDown;
 		this.name = name;
 		this.log = Logger.getLogger(name);
@@ -54,28 +59,51 @@ public class ShoeFactoryService extends MicroService {
 	/**
 	 * let the {@link ShoeFactoryService} subscribe for the needed broadcasts:
 	 * <li>{@link TerminationBroadcast}</li>
-	 * <li>{@link TickBroadcast}</li>
+	 * The {@link TickBroadcast}s are received only while there are shoes to
+	 * manufacture (see {@link #subscribeTicks()}).
 	 */
 	private void subscribeBroadcasts() {
 		this.subscribeBroadcast(TerminationBroadcast.class, broadcast -> {
-			broadcast.getPhaser().arriveAndAwaitAdvance();
+			broadcast.getPhaser().arrive();
 			log.info("	MicroService " + this.name + " Terminated!");
 			this.terminate();
 		});
+	}
+
+	/**
+	 * subscribes for the {@link TickBroadcast}s, a shoe is manufactured on
+	 * every tick. Once the {@link #requestsSchedule} is done the factory
+	 * unsubscribes, so an idle factory is not woken up by the ticks.
+	 */
+	private void subscribeTicks() {
 		this.subscribeBroadcast(TickBroadcast.class, broadcast -> {
-			this.currentTick = broadcast.getTick();
-			if (requestsSchedule.size() > 0) {
-				ManufacturingOrderRequest r = requestsSchedule.get(0);
-				r.decreaseAmount();
-				if (r.getAmount() == 0) {
-					this.complete(r, new Receipt(this.name, "store", r.getShoeType(), false, this.currentTick,
-							r.getRequestTick(), r.getRequestedAmount()));
-					requestsSchedule.remove(0);
-				}
-			}
+			// a tick already made up for when the order was handled
+			if (broadcast.getTick() > lastTick)
+				manufacture(broadcast.getTick());
+			if (requestsSchedule.isEmpty())
+				this.unsubscribeBroadcast(TickBroadcast.class);
 		});
 	}
 
+	/**
+	 * manufactures a shoe of the first {@link ManufacturingOrderRequest} of
+	 * the {@link #requestsSchedule} at {@code tick}, and completes the
+	 * request once all its shoes are manufactured.
+	 */
+	private void manufacture(int tick) {
+		lastTick = tick;
+		if (requestsSchedule.isEmpty())
+			return;
+		ManufacturingOrderRequest r = requestsSchedule.get(0);
+		r.decreaseAmount();
+		pendingShoes--;
+		if (r.getAmount() == 0) {
+			this.complete(r, new Receipt(this.name, "store", r.getShoeType(), false, tick, r.getRequestTick(),
+					r.getRequestedAmount()));
+			requestsSchedule.remove(0);
+		}
+	}
+
 	/**
 	 * let the {@link ShoeFactoryService} subscribe for the needed requests:
 	 * <li>{@link ManufacturingOrderRequest}</li>
@@ -84,10 +112,32 @@ public class ShoeFactoryService extends MicroService {
 		this.subscribeRequest(ManufacturingOrderRequest.class, request -> {
 			
 			log.info("	"+this.name+" recieved a request of manufacturing "+request.getAmount() + " x "+request.getShoeType());
+			boolean idle = requestsSchedule.isEmpty();
 			requestsSchedule.add(request);
+			pendingShoes += request.getAmount();
+			if (!idle)
+				return;
+			// an idle factory did not receive the ticks sent since the
+			// order was queued, they are made up for from the shared clock
+			// after subscribing, so no tick falls in between
+			subscribeTicks();
+			lastTick = Math.max(lastTick, request.getRequestTick());
+			for (int tick = getCurrentTick(); lastTick < tick && !requestsSchedule.isEmpty();)
+				manufacture(lastTick + 1);
+			if (requestsSchedule.isEmpty())
+				this.unsubscribeBroadcast(TickBroadcast.class);
 		});
 	}
 
+	/**
+	 * @return the number of shoes this factory still has to manufacture, one
+	 *         tick each.
+	 */
+	@Override
+	public int getPendingWork() {
+		return pendingShoes;
+	}
+
 	/*
 	 * (non-Javadoc)
 	 * 
@@ -2,32 +2,86 @@ package bgu.spl.app;
 
 import java.io.FileNotFoundException;
 import java.io.FileReader;
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.Phaser;
+import java.util.concurrent.ThreadFactory;
 import java.util.logging.Logger;
 
+import bgu.spl.mics.MicroService;
+import bgu.spl.mics.Request;
+import bgu.spl.mics.SimulationClock;
+import bgu.spl.mics.impl.BusMetrics;
+import bgu.spl.mics.impl.BusNode;
+import bgu.spl.mics.impl.MessageBusImpl;
+import bgu.spl.mics.impl.RequestTracer;
+import bgu.spl.mics.impl.RingBufferMailbox;
+import bgu.spl.mics.impl.RingBufferMailbox.WaitStrategy;
+import bgu.spl.mics.impl.RoutingPolicy;
+import bgu.spl.mics.impl.ServiceScheduler;
+import bgu.spl.mics.impl.ServiceThreads;
+
 import com.google.gson.Gson;
 import com.google.gson.stream.JsonReader;
 
 public class ShoeStoreRunner {
 	private static final Logger log = Logger.getLogger(ShoeStoreRunner.class.getName());
+	/**
+	 * ThreadFactory - creates the thread of every micro-service.
+	 */
+	private static ThreadFactory threads;
+	/**
+	 * ServiceScheduler - runs the micro-services on a fixed pool of workers,
+	 * or null if every micro-service runs on its own thread.
+	 */
+	private static ServiceScheduler scheduler;
+	/**
+	 * List - the threads of the started micro-services.
+	 */
+	private static final List<Thread> started = new ArrayList<Thread>();
+	/**
+	 * the number of spans kept when requests are traced.
+	 */
+	private static final int TRACE_CAPACITY = 1 << 16;
 
 	public static void main(String args[]) {
 		log.info("Reading json file");
 		AllData data = readJsonFile("src/resources/files/" + args[0]);
 		int numberOfServices = getNumberOfServices(data);
+		boolean hasTimer = data.services.time != null;
 
-		CountDownLatch countDown = new CountDownLatch(numberOfServices - 1);
+		// the time service waits for all the others
+		CountDownLatch countDown = new CountDownLatch(hasTimer ? numberOfServices - 1 : numberOfServices);
 		Phaser phaser = new Phaser(numberOfServices);
 
 		log.info("Initializing " + numberOfServices + " services");
 
+		// Discrete-event mode and metrics, before any micro-service registers
+		initializeQuiescence(data);
+		if (data.services.metrics)
+			MessageBusImpl.getInstance().setMetrics(true);
+		if (data.services.trace != null)
+			MessageBusImpl.getInstance().setTracing(TRACE_CAPACITY);
+
+		// Request routing
+		initializeRouting(data);
+
+		// Micro-service threads
+		initializeThreads(data);
+
+		// Message-bus node, before any micro-service subscribes
+		BusNode node = initializeNode(data, phaser);
+
 		// Store
 		Store store = initializeStore(data);
 
 		// Management Service
-		initializeManagementService(store, data, countDown);
+		if (data.services.manager != null)
+			initializeManagementService(store, data, countDown);
 
 		// Web Site Client Services
 		initializeWebsiteClientService(data, countDown, phaser);
@@ -38,22 +92,157 @@ public class ShoeStoreRunner {
 		// Shoe Factory Services
 		initializeShoeFactoryService(data, countDown);
 
-		// Timer Service
-		initializeTimeService(store, data, countDown, phaser);
+		// Timer Service, or the other nodes connect once all are ready
+		if (hasTimer)
+			initializeTimeService(store, data, countDown, phaser);
+		else
+			listen(node, data, countDown);
+
+		// Virtual threads are daemons, so wait here for the simulation to end
+		for (Thread thread : started) {
+			try {
+				thread.join();
+			} catch (InterruptedException e) {
+				e.printStackTrace();
+			}
+		}
+		if (scheduler != null) {
+			try {
+				scheduler.awaitTermination();
+			} catch (InterruptedException e) {
+				e.printStackTrace();
+			}
+		}
+		printMetrics();
+		exportTrace(data);
+		if (node != null)
+			node.close();
+	}
+
+	/**
+	 * Prints the metrics of the message-bus once the simulation ended, if the
+	 * json file asked for them ({@code "metrics": true} in the services
+	 * section), after the store printed by the {@link TimeService}.
+	 */
+	private static void printMetrics() {
+		BusMetrics metrics = MessageBusImpl.getInstance().getMetrics();
+		if (metrics != null)
+			System.out.print(metrics.report());
+	}
+
+	/**
+	 * Writes the spans of the traced requests to the file the json file
+	 * named ({@code "trace": "/tmp/store-trace.jsonl"} in the services
+	 * section) once the simulation ended, see {@link RequestTracer#export}.
+	 * The last {@link #TRACE_CAPACITY} spans are kept.
+	 */
+	private static void exportTrace(AllData data) {
+		RequestTracer tracer = MessageBusImpl.getInstance().getTracer();
+		if (tracer == null)
+			return;
+		try {
+			int spans = tracer.export(Paths.get(data.services.trace));
+			log.info("Wrote " + spans + " of " + tracer.getRecorded() + " spans to " + data.services.trace);
+		} catch (IOException e) {
+			log.warning("Cannot write the trace to " + data.services.trace + ": " + e);
+		}
+	}
+
+	/**
+	 * Creates the {@link BusNode} of this process if the json file has a
+	 * node section, so some micro-services may run in other processes. The
+	 * process running the {@link TimeService} connects to the others
+	 * ({@code "node": {"name": "store", "connect": ["localhost:7000"]}})
+	 * before its micro-services start. A process without a time section
+	 * runs its micro-services, e.g. only factories or sellers, and then
+	 * listens ({@code "node": {"name": "factories", "listen": 7000}}), on the
+	 * loopback address unless another one is given
+	 * ({@code "address": "0.0.0.0"}); the nodes do not authenticate their
+	 * peers, so only listen where every peer is trusted. On the
+	 * same machine the processes may share memory instead of a socket: the
+	 * listening process creates a file ({@code "share": "/dev/shm/store"})
+	 * and the connecting one attaches to it
+	 * ({@code "connect": ["shm:/dev/shm/store"]}).
+	 * <p>
+	 * The {@link TerminationBroadcast}s received from another process are
+	 * given the local phaser, and the {@link TickBroadcast}s advance the
+	 * local {@link SimulationClock}. The messages of the store are sent in
+	 * the binary formats of {@link StoreMessages}. Every process has its own {@link Store},
+	 * so the sellers of a process sell the stock of its own initial storage.
+	 */
+	private static BusNode initializeNode(AllData data, Phaser phaser) {
+		NodeData config = data.node;
+		if (config == null)
+			return null;
+		try {
+			BusNode node = new BusNode(config.name == null ? "node" : config.name);
+			node.setCodec(StoreMessages.newCodec());
+			node.localize(TerminationBroadcast.class, received -> new TerminationBroadcast(phaser));
+			node.localize(TickBroadcast.class, tick -> {
+				SimulationClock.getInstance().advance(tick.getTick());
+				return tick;
+			});
+			if (config.connect != null) {
+				for (String address : config.connect) {
+					if (address.startsWith("shm:")) {
+						node.connectShared(Paths.get(address.substring("shm:".length())));
+						continue;
+					}
+					int colon = address.lastIndexOf(':');
+					node.connect(address.substring(0, colon), Integer.parseInt(address.substring(colon + 1)));
+				}
+			}
+			return node;
+		} catch (IOException | InterruptedException e) {
+			throw new IllegalStateException("Cannot connect the message-bus node", e);
+		}
+	}
 
+	/**
+	 * waits for the micro-services of this process to be ready and lets the
+	 * other nodes connect, see {@link #initializeNode}.
+	 */
+	private static void listen(BusNode node, AllData data, CountDownLatch countDown) {
+		try {
+			countDown.await();
+			if (node != null && data.node.listen > 0) {
+				node.listen(data.node.address, data.node.listen);
+				log.info("Node " + node.getName() + " listening on port " + data.node.listen);
+			}
+			if (node != null && data.node.share != null) {
+				node.listenShared(Paths.get(data.node.share));
+				log.info("Node " + node.getName() + " sharing " + data.node.share);
+			}
+		} catch (IOException | InterruptedException e) {
+			throw new IllegalStateException("Cannot listen for the message-bus nodes", e);
+		}
 	}
 
+	/**
+	 * Starts the {@link TimeService}. The time section of the json file may
+	 * ask for the discrete-event mode ({@code "discrete": true}) or for the
+	 * adaptive mode, with the bounds of the interval between the ticks and
+	 * the backlog that slows them down:
+	 * {@code "adaptive": {"min": 20, "max": 1000, "backlog": 8}}.
+	 */
 	private static void initializeTimeService(Store store, AllData data, CountDownLatch countDown, Phaser phaser) {
 		TimeService timer = new TimeService(data.services.time.speed, data.services.time.duration, store, countDown,
 				phaser);
-		new Thread(timer).start();
+		timer.setDiscrete(data.services.time.discrete);
+		AdaptiveData adaptive = data.services.time.adaptive;
+		if (adaptive != null && !data.services.time.discrete)
+			timer.setAdaptive(adaptive.min, adaptive.max, adaptive.backlog);
+		useMailbox(timer, data);
+		// waits for the other services in initialize, so never on a worker
+		startOnThread(timer);
 
 	}
 
 	private static void initializeShoeFactoryService(AllData data, CountDownLatch countDown) {
 		for (int i = 0; i < data.services.factories; i++) {
 			ShoeFactoryService factory = new ShoeFactoryService("Factory" + i, countDown);
-			new Thread(factory).start();
+			useMailbox(factory, data);
+			start(factory);
 		}
 
 	}
@@ -61,17 +250,22 @@ public class ShoeStoreRunner {
 	private static void initializeSellingService(Store store, AllData data, CountDownLatch countDown) {
 		for (int i = 0; i < data.services.sellers; i++) {
 			SellingService seller = new SellingService(store, "SellingService" + i, countDown);
-			new Thread(seller).start();
+			seller.setRequestTimeout(requestTimeoutMillis(data));
+			useMailbox(seller, data);
+			start(seller);
 		}
 
 	}
 
 	private static void initializeWebsiteClientService(AllData data, CountDownLatch countDown, Phaser phaser) {
 		CustomerData[] customers = data.services.customers;
+		if (customers == null)
+			return;
 		WebsiteClientService[] websiteClientServices = new WebsiteClientService[customers.length];
 		for (int i = 0; i < data.services.customers.length; i++) {
 			CustomerData customer = customers[i];
 			websiteClientServices[i] = new WebsiteClientService(customer.name, countDown, phaser);
+			websiteClientServices[i].setRequestTimeout(requestTimeoutMillis(data));
 			for (int j = 0; j < customer.wishList.length; j++) {
 				websiteClientServices[i].addWishItem(customer.wishList[j]);
 			}
@@ -79,7 +273,8 @@ public class ShoeStoreRunner {
 				PurchaseSchedule purchaseInfo = customer.purchaseSchedule[j];
 				websiteClientServices[i].addPurchaseSchedule(purchaseInfo.getShoeType(), purchaseInfo.getTick());
 			}
-			new Thread(websiteClientServices[i]).start();
+			useMailbox(websiteClientServices[i], data);
+			start(websiteClientServices[i]);
 
 		}
 
@@ -92,18 +287,152 @@ public class ShoeStoreRunner {
 					data.services.manager.discountSchedule[i].getTick(),
 					data.services.manager.discountSchedule[i].getAmount());
 		}
-		new Thread(managerService).start();
+		useMailbox(managerService, data);
+		start(managerService);
+
+	}
+
+	/**
+	 * Lets the message-bus track quiescence if the json file asks for the
+	 * discrete-event mode ({@code "discrete": true} in the time section), in
+	 * which the {@link TimeService} sends every tick as soon as the previous
+	 * one was fully handled instead of every {@code speed} milliseconds.
+	 * Ring mailboxes do not track quiescence, so a {@code "mailbox"} setting
+	 * is ignored in that mode. The message-bus only sees its own mailboxes,
+	 * so the mode cannot be used with a node section: a tick would be sent
+	 * while other processes still handle the previous one.
+	 */
+	private static void initializeQuiescence(AllData data) {
+		if (!isDiscrete(data))
+			return;
+		if (data.node != null)
+			throw new IllegalArgumentException("Discrete-event mode cannot run with a message-bus node");
+		MessageBusImpl.getInstance().setQuiescenceTracking(true);
+		if (data.services.mailbox != null)
+			log.warning("Discrete-event mode uses the default mailboxes, ignoring the mailbox setting");
+	}
 
+	/**
+	 * @return the time, in milliseconds, the clients and sellers give every
+	 *         request they send, set in ticks in the json file
+	 *         ({@code "requestTimeout": 5} in the services section), or 0 for
+	 *         no deadline (the default).
+	 */
+	private static long requestTimeoutMillis(AllData data) {
+		TimeData time = data.services.time;
+		if (time == null)
+			return 0;
+		// the ticks may stretch up to the adaptive bound
+		int speed = time.adaptive == null ? time.speed : Math.max(time.speed, time.adaptive.max);
+		return (long) data.services.requestTimeout * speed;
+	}
+
+	/**
+	 * Chooses the threads the micro-services run on: a platform thread each
+	 * (the default), a virtual thread each if the json file asks for it
+	 * ({@code "threads": "virtual"} in the services section) and the runtime
+	 * supports it, or a {@link ServiceScheduler} ({@code "threads":
+	 * "scheduler"}, with an optional {@code "workers": 4}, one per processor
+	 * by default). The scheduler gives every micro-service its own mailbox,
+	 * so a {@code "mailbox"} setting is ignored in that mode.
+	 */
+	private static void initializeThreads(AllData data) {
+		String kind = data.services.threads == null ? "platform" : data.services.threads;
+		if ("scheduler".equalsIgnoreCase(kind)) {
+			scheduler = data.services.workers > 0 ? new ServiceScheduler(data.services.workers)
+					: new ServiceScheduler();
+			threads = ServiceThreads.platformThreads();
+			return;
+		}
+		threads = ServiceThreads.forName(kind);
+		if ("virtual".equalsIgnoreCase(kind) && !ServiceThreads.isVirtualSupported())
+			log.warning("Virtual threads are not supported by this runtime, using platform threads");
+	}
+
+	private static void start(MicroService service) {
+		if (scheduler != null)
+			scheduler.start(service);
+		else
+			startOnThread(service);
+	}
+
+	private static void startOnThread(MicroService service) {
+		Thread thread = threads.newThread(service);
+		started.add(thread);
+		thread.start();
+	}
+
+	/**
+	 * Lets {@code service} use a {@link RingBufferMailbox} if the json file
+	 * asks for it ({@code "mailbox": {"type": "ring", "capacity": 1024,
+	 * "wait": "park"}} in the services section), otherwise the message-bus
+	 * default is kept.
+	 */
+	private static void useMailbox(MicroService service, AllData data) {
+		MailboxData mailbox = data.services.mailbox;
+		// quiescence is tracked by the default mailboxes only
+		if (mailbox != null && "ring".equalsIgnoreCase(mailbox.type) && !isDiscrete(data)) {
+			int capacity = mailbox.capacity > 0 ? mailbox.capacity : RingBufferMailbox.DEFAULT_CAPACITY;
+			WaitStrategy wait = mailbox.wait == null ? WaitStrategy.PARK
+					: WaitStrategy.valueOf(mailbox.wait.toUpperCase());
+			service.useMailbox(new RingBufferMailbox(capacity, wait));
+		}
+	}
+
+	/**
+	 * Sets the routing policy of every request type the json file names
+	 * ({@code "routing": {"purchase": "power-of-two", "manufacturing":
+	 * "least-loaded"}} in the services section, see
+	 * {@link RoutingPolicy#forName(String)}), the others stay round-robin.
+	 * Work stealing is enabled for the request types listed in
+	 * {@code "stealing": ["purchase"]} inside the routing section.
+	 */
+	private static void initializeRouting(AllData data) {
+		RoutingData routing = data.services.routing;
+		if (routing != null) {
+			useRouting(PurchaseOrderRequest.class, routing.purchase);
+			useRouting(RestockRequest.class, routing.restock);
+			useRouting(ManufacturingOrderRequest.class, routing.manufacturing);
+			if (routing.stealing != null)
+				for (String type : routing.stealing)
+					MessageBusImpl.getInstance().setWorkStealing(requestType(type), true);
+		}
+	}
+
+	private static void useRouting(Class<? extends Request> type, String policy) {
+		if (policy != null)
+			MessageBusImpl.getInstance().setRoutingPolicy(type, RoutingPolicy.forName(policy));
+	}
+
+	private static Class<? extends Request> requestType(String name) {
+		switch (name.toLowerCase()) {
+		case "purchase":
+			return PurchaseOrderRequest.class;
+		case "restock":
+			return RestockRequest.class;
+		case "manufacturing":
+			return ManufacturingOrderRequest.class;
+		default:
+			throw new IllegalArgumentException("Unknown request type: " + name);
+		}
+	}
+
+	private static boolean isDiscrete(AllData data) {
+		return data.services.time != null && data.services.time.discrete;
 	}
 
 	private static Store initializeStore(AllData data) {
+		if (data.initialStorage == null)
+			return Store.load(new ShoeStorageInfo[0]);
 		return Store.load(Arrays.stream(data.initialStorage).map(s -> new ShoeStorageInfo(s.shoeType, s.amount))
 				.toArray(ShoeStorageInfo[]::new));
 	}
 
 	private static int getNumberOfServices(AllData data) {
-		int numberOfServices = 1;
-		numberOfServices += data.services.factories + data.services.sellers + data.services.customers.length;
+		int numberOfServices = data.services.time == null ? 0 : 1;
+		numberOfServices += data.services.factories + data.services.sellers;
+		if (data.services.customers != null)
+			numberOfServices += data.services.customers.length;
 		if (data.services.manager != null)
 			numberOfServices += 1;
 		return numberOfServices;
@@ -124,6 +453,15 @@ public class ShoeStoreRunner {
 	private class AllData {
 		private InitialShoeData[] initialStorage;
 		private ServicesData services;
+		private NodeData node;
+	}
+
+	private class NodeData {
+		private String name;
+		private int listen;
+		private String address;
+		private String share;
+		private String[] connect;
 	}
 
 	private class ServicesData {
@@ -132,11 +470,39 @@ public class ShoeStoreRunner {
 		private int factories;
 		private int sellers;
 		private CustomerData[] customers;
+		private MailboxData mailbox;
+		private RoutingData routing;
+		private String threads;
+		private int workers;
+		private int requestTimeout;
+		private boolean metrics;
+		private String trace;
+	}
+
+	private class RoutingData {
+		private String purchase;
+		private String restock;
+		private String manufacturing;
+		private String[] stealing;
+	}
+
+	private class MailboxData {
+		private String type;
+		private int capacity;
+		private String wait;
 	}
 
 	private class TimeData {
 		private int speed;
 		private int duration;
+		private boolean discrete;
+		private AdaptiveData adaptive;
+	}
+
+	private class AdaptiveData {
+		private int min;
+		private int max;
+		private int backlog;
 	}
 
 	private class ManagerData {
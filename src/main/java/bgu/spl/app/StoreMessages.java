@@ -0,0 +1,83 @@
+package bgu.spl.app;
+
+import bgu.spl.mics.impl.MessageCodec;
+import bgu.spl.mics.impl.MessageCodec.Format;
+
+/**
+ * The binary formats of the messages of the store, and of the
+ * {@link Receipt}s they are completed with, for a {@link MessageCodec}.
+ * <p>
+ * The shoe types and the service names are written as symbols, so after
+ * their first use they take a byte or two. The {@link TerminationBroadcast}
+ * is written without its phaser, which is local to the process.
+ *
+ * @author Anan Kays, Saleem Dibbiny
+ *
+ */
+public final class StoreMessages {
+	public static final int PURCHASE_ORDER_REQUEST = MessageCodec.FIRST_TAG;
+	public static final int MANUFACTURING_ORDER_REQUEST = MessageCodec.FIRST_TAG + 1;
+	public static final int RESTOCK_REQUEST = MessageCodec.FIRST_TAG + 2;
+	public static final int TICK_BROADCAST = MessageCodec.FIRST_TAG + 3;
+	public static final int NEW_DISCOUNT_BROADCAST = MessageCodec.FIRST_TAG + 4;
+	public static final int TERMINATION_BROADCAST = MessageCodec.FIRST_TAG + 5;
+	public static final int RECEIPT = MessageCodec.FIRST_TAG + 6;
+
+	private StoreMessages() {
+	}
+
+	/**
+	 * @return a new {@link MessageCodec} knowing the messages of the store.
+	 */
+	public static MessageCodec newCodec() {
+		MessageCodec codec = new MessageCodec();
+		register(codec);
+		return codec;
+	}
+
+	/**
+	 * registers the messages of the store with {@code codec}.
+	 *
+	 * @param codec
+	 *            MessageCodec - the codec.
+	 */
+	public static void register(MessageCodec codec) {
+		codec.register(PurchaseOrderRequest.class, PURCHASE_ORDER_REQUEST, Format.of((r, out) -> {
+			out.writeSymbol(r.getSeller());
+			out.writeSymbol(r.getCustomer());
+			out.writeSymbol(r.getShoeType());
+			out.writeBoolean(r.isOnlyDiscount());
+			out.writeInt(r.getRequestTick());
+			out.writeInt(r.getAmount());
+		}, in -> new PurchaseOrderRequest(in.readSymbol(), in.readSymbol(), in.readSymbol(), in.readBoolean(),
+				in.readInt(), in.readInt())));
+		codec.register(ManufacturingOrderRequest.class, MANUFACTURING_ORDER_REQUEST, Format.of((r, out) -> {
+			out.writeSymbol(r.getShoeType());
+			out.writeInt(r.getAmount());
+			out.writeInt(r.getRequestedAmount());
+			out.writeInt(r.getRequestTick());
+		}, in -> new ManufacturingOrderRequest(in.readSymbol(), in.readInt(), in.readInt(), in.readInt())));
+		codec.register(RestockRequest.class, RESTOCK_REQUEST,
+				Format.of((r, out) -> out.writeSymbol(r.getShoeType()), in -> new RestockRequest(in.readSymbol())));
+		codec.register(TickBroadcast.class, TICK_BROADCAST, Format.of((b, out) -> {
+			out.writeInt(b.getTick());
+			out.writeInt(b.getLifeSpan());
+		}, in -> new TickBroadcast(in.readInt(), in.readInt())));
+		codec.register(NewDiscountBroadcast.class, NEW_DISCOUNT_BROADCAST, Format.of((b, out) -> {
+			out.writeSymbol(b.getShoeType());
+			out.writeInt(b.getAmount());
+		}, in -> new NewDiscountBroadcast(in.readSymbol(), in.readInt())));
+		codec.register(TerminationBroadcast.class, TERMINATION_BROADCAST, Format.of((b, out) -> {
+		}, in -> new TerminationBroadcast(null)));
+		codec.register(Receipt.class, RECEIPT, Format.of((r, out) -> {
+			out.writeSymbol(r.getSeller());
+			out.writeSymbol(r.getCustomer());
+			out.writeSymbol(r.getShoeType());
+			out.writeBoolean(r.isDiscount());
+			out.writeInt(r.getIssuedTick());
+			out.writeInt(r.getRequestTick());
+			out.writeInt(r.getAmountSold());
+		}, in -> new Receipt(in.readSymbol(), in.readSymbol(), in.readSymbol(), in.readBoolean(), in.readInt(),
+				in.readInt(), in.readInt())));
+	}
+}
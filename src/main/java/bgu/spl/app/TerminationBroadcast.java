@@ -15,8 +15,9 @@ public class TerminationBroadcast implements Broadcast {
 	/**
 	 * Phaser - A reusable synchronization barrier, similar in functionality to
 	 * CyclicBarrier and CountDownLatch but supporting more flexible usage.
+	 * Local to the process, it is not sent to other message-bus nodes.
 	 */
-	private Phaser phaser;
+	private transient Phaser phaser;
 
 	/**
 	 * Creates a new {@link TerminationBroadcast} broadcast message.
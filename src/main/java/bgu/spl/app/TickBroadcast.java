@@ -40,6 +40,13 @@ public class TickBroadcast implements Broadcast {
 		return tick;
 	}
 
+	/**
+	 * @return the {@link #lifeSpan}.
+	 */
+	public int getLifeSpan() {
+		return lifeSpan;
+	}
+
 	/**
 	 * @return true if the current tick equals the {@link #lifeSpan}.
 	 */
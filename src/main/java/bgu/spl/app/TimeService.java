@@ -1,18 +1,41 @@
 package bgu.spl.app;
 
-import java.util.Timer;
-import java.util.TimerTask;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.Phaser;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Logger;
 
 import bgu.spl.mics.MicroService;
+import bgu.spl.mics.SimulationClock;
+import bgu.spl.mics.impl.HierarchicalTimerWheel;
 
 /**
  * This micro-service is the global system timer (handles the clock ticks in the
  * system). it is responsible for counting how much clock ticks passed since the
  * beginning of its execution and notifying every other micro-services (thats
  * interested) about it using the {@link TickBroadcast}.
+ * <p>
+ * The ticks are driven by a fixed-rate micro-service timer, so they are sent
+ * from the event loop of this micro-service, and every tick is due
+ * {@link #speed} milliseconds after the previous deadline rather than after
+ * the previous tick. The delay of every tick is measured and reported.
+ * Every tick is also published on the shared {@link SimulationClock}, read
+ * by the micro-services that only need to know the current tick.
+ * <p>
+ * In adaptive mode the interval between two ticks changes within
+ * configured bounds: before every tick the backlog of the message-bus (the
+ * messages waiting in all the queues) and the delay of the tick are
+ * checked, and the interval is doubled if the micro-services fall behind,
+ * or shrunk by a quarter once they caught up, so the ticks do not pile up
+ * in the queues under load and no time is wasted when idle. The chosen
+ * intervals are logged and kept, see {@link #getIntervals()}.
+ * <p>
+ * In discrete-event mode the speed is ignored: the next tick is sent as
+ * soon as the message-bus is quiescent, i.e. every micro-service finished
+ * handling the previous one and all the messages it caused, so a simulation
+ * runs as fast as the CPU allows and reports its rate in ticks per second.
  * 
  * @author Anan Kays, Saleem Dibbiny
  *
@@ -45,6 +68,55 @@ public class TimeService extends MicroService {
 	 * CyclicBarrier and CountDownLatch but supporting more flexible usage.
 	 */
 	private Phaser phaser;
+	/**
+	 * Timeout - the fixed-rate timer calling {@link #onClock(long)}, or in
+	 * adaptive mode the timer of the next tick.
+	 */
+	private HierarchicalTimerWheel.Timeout clock;
+	/**
+	 * long - the longest delay, in nanoseconds, between the time a tick was
+	 * due and the time it was sent.
+	 */
+	private long maxLag = 0;
+	/**
+	 * long - the sum of the delays of all the ticks, in nanoseconds.
+	 */
+	private long totalLag = 0;
+	/**
+	 * boolean - true to send every tick as soon as the message-bus is
+	 * quiescent instead of every {@link #speed} milliseconds.
+	 */
+	private boolean discrete = false;
+	/**
+	 * long - the System.nanoTime the first tick was sent at.
+	 */
+	private long startTime;
+	/**
+	 * boolean - true to adapt the interval between the ticks to the backlog
+	 * of the message-bus.
+	 */
+	private boolean adaptive = false;
+	/**
+	 * int - the shortest interval, in milliseconds, in adaptive mode.
+	 */
+	private int minSpeed;
+	/**
+	 * int - the longest interval, in milliseconds, in adaptive mode.
+	 */
+	private int maxSpeed;
+	/**
+	 * int - the backlog above which the interval is stretched in adaptive
+	 * mode.
+	 */
+	private int maxBacklog;
+	/**
+	 * int - the current interval, in milliseconds, in adaptive mode.
+	 */
+	private int interval;
+	/**
+	 * List - the interval chosen after every tick, in milliseconds.
+	 */
+	private final List<Integer> intervals = new ArrayList<Integer>();
 	private final Logger log;
 
 	/**
@@ -87,7 +159,154 @@ public class TimeService extends MicroService {
 		}
 	}
 
-	@SuppressWarnings("deprecation")
+	/**
+	 * sends the next {@link TickBroadcast}, or terminates the system once
+	 * {@link #duration} ticks passed. Called in the event loop every
+	 * {@link #speed} milliseconds by a fixed-rate timer, and records how late
+	 * it was called.
+	 * 
+	 * @param deadline
+	 *            the System.nanoTime the tick was due at.
+	 */
+	private void onClock(long deadline) {
+		long lag = System.nanoTime() - deadline;
+		maxLag = Math.max(maxLag, lag);
+		totalLag += lag;
+		if (lag > TimeUnit.MILLISECONDS.toNanos(speed))
+			log.warning("Tick " + (tick + 1) + " is late by " + TimeUnit.NANOSECONDS.toMillis(lag) + " ms");
+		if (!advance()) {
+			clock.cancel();
+			log.info("Tick lag: max " + TimeUnit.NANOSECONDS.toMicros(maxLag) + " us, mean "
+					+ TimeUnit.NANOSECONDS.toMicros(totalLag / tick) + " us");
+			store.print();
+		}
+	}
+
+	/**
+	 * sends the next {@link TickBroadcast} in adaptive mode, and schedules
+	 * the following one. The interval is doubled if the backlog is above
+	 * {@link #maxBacklog} or the tick is late by more than half the interval,
+	 * and shrunk by a quarter if the backlog is below a quarter of
+	 * {@link #maxBacklog}, always within {@link #minSpeed} and
+	 * {@link #maxSpeed}.
+	 * 
+	 * @param deadline
+	 *            the System.nanoTime the tick was due at.
+	 */
+	private void onPacedClock(long deadline) {
+		long lag = System.nanoTime() - deadline;
+		maxLag = Math.max(maxLag, lag);
+		totalLag += lag;
+		int backlog = messageBus.getBacklog();
+		if (backlog > maxBacklog || lag > TimeUnit.MILLISECONDS.toNanos(interval) / 2)
+			interval = Math.min(maxSpeed, 2 * interval);
+		else if (backlog <= maxBacklog / 4)
+			interval = Math.max(minSpeed, interval - Math.max(1, interval / 4));
+		if (advance()) {
+			intervals.add(interval);
+			log.info("	Next tick in " + interval + " ms, backlog " + backlog);
+			clock = schedule(interval, TimeUnit.MILLISECONDS, this::onPacedClock);
+		} else {
+			long total = 0;
+			for (int chosen : intervals)
+				total += chosen;
+			log.info("Tick lag: max " + TimeUnit.NANOSECONDS.toMicros(maxLag) + " us, mean interval "
+					+ (intervals.isEmpty() ? interval : total / intervals.size()) + " ms");
+			store.print();
+		}
+	}
+
+	/**
+	 * sends the next {@link TickBroadcast} in discrete-event mode, called in
+	 * the event loop once the message-bus is quiescent, and waits for the
+	 * next quiescence.
+	 * 
+	 * @param detected
+	 *            the System.nanoTime the quiescence was detected at.
+	 */
+	private void onQuiescence(long detected) {
+		if (tick == 0)
+			startTime = detected;
+		if (advance()) {
+			whenQuiescent(this::onQuiescence);
+		} else {
+			long elapsed = Math.max(1, System.nanoTime() - startTime);
+			log.info("Ran " + duration + " ticks in " + TimeUnit.NANOSECONDS.toMillis(elapsed) + " ms, "
+					+ (duration * TimeUnit.SECONDS.toNanos(1) / elapsed) + " ticks per second");
+			store.print();
+		}
+	}
+
+	/**
+	 * sends the next {@link TickBroadcast}, or once {@link #duration} ticks
+	 * passed, sends the {@link TerminationBroadcast}, waits for all the
+	 * micro-services to terminate and terminates.
+	 * 
+	 * @return false if terminated.
+	 */
+	private boolean advance() {
+		tick++;
+		if (tick > duration) {
+			this.sendBroadcast(new TerminationBroadcast(phaser));
+			phaser.arriveAndAwaitAdvance();
+			log.info("	MicroService " + this.getName() + " Terminated!");
+			this.terminate();
+			return false;
+		}
+		log.info("Tick " + tick + ":");
+		// published before the broadcast, so its receivers read the same tick
+		SimulationClock.getInstance().advance(tick);
+		this.sendBroadcast(new TickBroadcast(tick, duration));
+		return true;
+	}
+
+	/**
+	 * switches to adaptive mode, the first interval is {@link #speed}
+	 * bounded by {@code minSpeed} and {@code maxSpeed}.
+	 * 
+	 * @param minSpeed
+	 *            the shortest interval between two ticks, in milliseconds.
+	 * @param maxSpeed
+	 *            the longest interval between two ticks, in milliseconds.
+	 * @param maxBacklog
+	 *            the number of messages waiting in the queues above which the
+	 *            ticks are slowed down.
+	 */
+	public void setAdaptive(int minSpeed, int maxSpeed, int maxBacklog) {
+		if (minSpeed <= 0 || maxSpeed < minSpeed)
+			throw new IllegalArgumentException("Bad adaptive tick bounds: " + minSpeed + ".." + maxSpeed);
+		this.adaptive = true;
+		this.minSpeed = minSpeed;
+		this.maxSpeed = maxSpeed;
+		this.maxBacklog = maxBacklog;
+		this.interval = Math.max(minSpeed, Math.min(maxSpeed, speed));
+	}
+
+	/**
+	 * @return the interval, in milliseconds, chosen after every tick in
+	 *         adaptive mode, empty otherwise.
+	 */
+	public List<Integer> getIntervals() {
+		return intervals;
+	}
+
+	/**
+	 * @param discrete
+	 *            the {@link #discrete} to set, requires a message-bus that
+	 *            tracks quiescence.
+	 */
+	public void setDiscrete(boolean discrete) {
+		this.discrete = discrete;
+	}
+
+	/**
+	 * @return the longest delay, in nanoseconds, between the time a tick was
+	 *         due and the time it was sent.
+	 */
+	public long getMaxLag() {
+		return maxLag;
+	}
+
 	@Override
 	/*
 	 * (non-Javadoc)
@@ -95,30 +314,20 @@ public class TimeService extends MicroService {
 	 * @see bgu.spl.mics.MicroService#initialize()
 	 */
 	protected void initialize() {
-		int delay = speed; // milliseconds
-		TimeService thisService = this;
-		Timer timer = new Timer();
 		log.info("Ready and waiting for other services");
+		SimulationClock.getInstance().reset();
 		waitOtherThreads();
 		log.info("All services are ready to start");
-		timer.schedule(new TimerTask() {
-
-			@Override
-			public void run() {
-				tick++;
-				if (tick > duration) {
-					thisService.sendBroadcast(new TerminationBroadcast(phaser));
-					phaser.arriveAndAwaitAdvance();
-					log.info("	MicroService " + thisService.getName() + " Terminated!");
-					thisService.terminate();
-					timer.cancel();
-					store.print();
-				} else {
-					log.info("Tick " + tick + ":");
-					thisService.sendBroadcast(new TickBroadcast(tick, duration));
-				}
-			}
-		}, 0, delay);
-		Thread.currentThread().stop();
+		if (discrete) {
+			whenQuiescent(this::onQuiescence);
+			return;
+		}
+		if (adaptive) {
+			clock = schedule(0, TimeUnit.MILLISECONDS, this::onPacedClock);
+			return;
+		}
+		// the ticks are due at fixed times from now, a late tick does not
+		// delay the following ones
+		clock = scheduleAtFixedRate(0, speed, TimeUnit.MILLISECONDS, this::onClock);
 	}
 }
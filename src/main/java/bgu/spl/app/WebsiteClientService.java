@@ -6,6 +6,7 @@ import java.util.List;
 import java.util.Set;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.Phaser;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Logger;
@@ -39,10 +40,6 @@ public class WebsiteClientService extends MicroService {
 	 * String - The client name.
 	 */
 	private String name;
-	/**
-	 * int - describes the current global clock system.
-	 */
-	private int currentTick = 0;
 	/**
 	 * AtomicInteger - the number of requests which sent by the client.
 	 */
@@ -61,6 +58,11 @@ public class WebsiteClientService extends MicroService {
 	 * AtomicBoolean - check whether the micro-service should terminate.
 	 */
 	private AtomicBoolean isTerminated;
+	/**
+	 * long - the time, in milliseconds, a sent request may take before it is
+	 * given up on, 0 for no deadline.
+	 */
+	private long requestTimeout = 0;
 	private final Logger log;
 
 	/**
@@ -102,28 +104,40 @@ public class WebsiteClientService extends MicroService {
 		this.wishList.add(itemType);
 	}
 
+	/**
+	 * @param requestTimeout
+	 *            the {@link #requestTimeout} to set, in milliseconds.
+	 */
+	public void setRequestTimeout(long requestTimeout) {
+		this.requestTimeout = requestTimeout;
+	}
+
 	/**
 	 * let the {@link WebsiteClientService} subscribe for the needed broadcasts:
 	 * <li>{@link TerminationBroadcast}</li>
 	 * <li>{@link TickBroadcast}</li> When the micro-service subsribe for the
 	 * {@link TickBroadcast}, He iterate over all the {@link PurchaseShcedule}
-	 * list and checks if the {@link #currentTick} equals to the shoe scheduled
+	 * list and checks if the received tick equals to the shoe scheduled
 	 * tick, if Yes, {@link PurchaseOrderRequest} will be sent by the client,
 	 * does nothing otherwise.
 	 * <p>
 	 * In addition, the client will terminate in case that the
 	 * {@link #purchaseSchedules} list and the {@link #wishList} are empty.
+	 * The ticks are received only while the {@link #purchaseSchedules} list
+	 * is not empty, the client unsubscribes after its last purchase.
 	 */
 	private void subscribeTerminationAndTickBroadcasts() {
 		this.subscribeBroadcast(TerminationBroadcast.class, broadcast -> {
 			if (!this.isTerminated.getAndSet(true)) {
-				broadcast.getPhaser().arriveAndAwaitAdvance();
+				broadcast.getPhaser().arrive();
 				log.info("	MicroService " + this.name + " Terminated!");
 				this.terminate();
 			}
 		});
+		if (purchaseSchedules.isEmpty())
+			return;
 		this.subscribeBroadcast(TickBroadcast.class, tick -> {
-			currentTick = tick.getTick();
+			int currentTick = tick.getTick();
 			int i = 0;
 			ArrayList<PurchaseSchedule> list = new ArrayList<PurchaseSchedule>();
 			for (PurchaseSchedule purchaseSchedule : purchaseSchedules) {
@@ -132,7 +146,8 @@ public class WebsiteClientService extends MicroService {
 					list.add(purchaseSchedule);
 					requestsSent.incrementAndGet();
 					log.info("	Client " + name + " requested to buy: " + shoeType + ".");
-					this.sendRequest(new PurchaseOrderRequest("Store", name, shoeType, false, currentTick, 1), req -> {
+					this.sendRequest(new PurchaseOrderRequest("Store", name, shoeType, false, currentTick, 1),
+							requestTimeout, TimeUnit.MILLISECONDS, req -> {
 						if (req != null)
 							log.info("	Client " + name + " has Successfully bought: " + shoeType + ".");
 						requestsSent.decrementAndGet();
@@ -146,6 +161,8 @@ public class WebsiteClientService extends MicroService {
 				i++;
 			}
 			purchaseSchedules.removeAll(list);
+			if (purchaseSchedules.isEmpty())
+				this.unsubscribeBroadcast(TickBroadcast.class);
 		});
 	}
 
@@ -161,8 +178,8 @@ public class WebsiteClientService extends MicroService {
 				if (wishList.contains(cal.getShoeType())) {
 					requestsSent.incrementAndGet();
 					wishList.remove(cal.getShoeType());
-					this.sendRequest(new PurchaseOrderRequest("Store", name, cal.getShoeType(), true, currentTick, 1),
-							req -> {
+					this.sendRequest(new PurchaseOrderRequest("Store", name, cal.getShoeType(), true, getCurrentTick(), 1),
+							requestTimeout, TimeUnit.MILLISECONDS, req -> {
 						if (req != null) {
 							log.info("	Client " + name + " has Successfully bought: " + cal.getShoeType()
 									+ ", YESSS!!.");
@@ -0,0 +1,155 @@
+package bgu.spl.mics;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The callbacks of a single micro-service, indexed by message class. The
+ * event loop finds the callback of every taken message with a single lookup
+ * in an identity-keyed open addressing table, instead of testing the kind of
+ * the message and looking it up in a map per kind.
+ * <p>
+ * The table is filled by the subscriptions, usually all made in
+ * {@link MicroService#initialize()}. A message of a class that was never
+ * subscribed to is resolved once, to the callback of its nearest subscribed
+ * superclass or to no callback at all, and the result is cached, so every
+ * later message of that class is dispatched by the same lookup. A message
+ * without a callback is ignored.
+ * <p>
+ * The table is not thread-safe, it must only be used by the thread currently
+ * running its micro-service.
+ */
+public final class DispatchTable {
+	/**
+	 * the callback cached for message classes without a callback.
+	 */
+	private static final Callback<Message> IGNORE = m -> {
+	};
+
+	/**
+	 * Map - the subscribed message classes and their callbacks.
+	 */
+	private final Map<Class<?>, Callback<Message>> subscribed;
+	/**
+	 * Class[] - the resolved message classes, a power of two sized open
+	 * addressing table, null marks an empty slot.
+	 */
+	private Class<?>[] keys;
+	/**
+	 * Callback[] - the callback of the class in the same slot of
+	 * {@link #keys}.
+	 */
+	private Callback<Message>[] callbacks;
+	/**
+	 * int - the number of resolved classes.
+	 */
+	private int size;
+
+	/**
+	 * Creates a new empty {@link DispatchTable}.
+	 */
+	public DispatchTable() {
+		this.subscribed = new HashMap<Class<?>, Callback<Message>>();
+		rebuild(8);
+	}
+
+	/**
+	 * sets the callback of the messages of class {@code type}, and of its
+	 * subclasses that have no callback of their own, replacing the current
+	 * one if any.
+	 *
+	 * @param <M>
+	 *            the type of message.
+	 * @param type
+	 *            the message class.
+	 * @param callback
+	 *            the callback to call with every message of class
+	 *            {@code type}.
+	 */
+	@SuppressWarnings("unchecked")
+	public <M extends Message> void put(Class<M> type, Callback<? super M> callback) {
+		subscribed.put(type, (Callback<Message>) callback);
+		// the classes resolved so far may now resolve to the new callback
+		rebuild(keys.length);
+	}
+
+	/**
+	 * calls the callback of the class of {@code m}, if there is one.
+	 *
+	 * @param m
+	 *            the message to handle.
+	 */
+	public void dispatch(Message m) {
+		callbackOf(m.getClass()).call(m);
+	}
+
+	/**
+	 * @param type
+	 *            a message class.
+	 * @return true if messages of class {@code type} have a callback.
+	 */
+	public boolean isHandled(Class<? extends Message> type) {
+		return callbackOf(type) != IGNORE;
+	}
+
+	private Callback<Message> callbackOf(Class<?> type) {
+		Class<?>[] k = keys;
+		int mask = k.length - 1;
+		for (int i = hash(type) & mask;; i = (i + 1) & mask) {
+			Class<?> key = k[i];
+			if (key == type)
+				return callbacks[i];
+			if (key == null)
+				return resolve(type);
+		}
+	}
+
+	/**
+	 * finds the callback of the nearest subscribed superclass of
+	 * {@code type} and caches it.
+	 */
+	private Callback<Message> resolve(Class<?> type) {
+		Callback<Message> callback = IGNORE;
+		for (Class<?> c = type; c != null; c = c.getSuperclass()) {
+			Callback<Message> found = subscribed.get(c);
+			if (found != null) {
+				callback = found;
+				break;
+			}
+		}
+		if (2 * (size + 1) > keys.length)
+			rebuild(2 * keys.length);
+		insert(type, callback);
+		return callback;
+	}
+
+	/**
+	 * replaces the table with an empty one of {@code capacity} slots holding
+	 * only the subscribed classes, the other classes are resolved again.
+	 */
+	@SuppressWarnings("unchecked")
+	private void rebuild(int capacity) {
+		while (2 * subscribed.size() > capacity)
+			capacity *= 2;
+		keys = new Class<?>[capacity];
+		callbacks = new Callback[capacity];
+		size = 0;
+		for (Map.Entry<Class<?>, Callback<Message>> entry : subscribed.entrySet())
+			insert(entry.getKey(), entry.getValue());
+	}
+
+	private void insert(Class<?> type, Callback<Message> callback) {
+		int mask = keys.length - 1;
+		int i = hash(type) & mask;
+		while (keys[i] != null)
+			i = (i + 1) & mask;
+		keys[i] = type;
+		callbacks[i] = callback;
+		size++;
+	}
+
+	private static int hash(Class<?> type) {
+		int h = System.identityHashCode(type) * 0x9E3779B9;
+		return h ^ (h >>> 16);
+	}
+}
@@ -0,0 +1,109 @@
+package bgu.spl.mics;
+
+import java.util.Collection;
+
+/**
+ * A mailbox is the message queue the {@link MessageBus} allocates to a
+ * registered {@link MicroService}. Any thread may add messages to a mailbox
+ * but only the owning micro-service takes messages out of it, so an
+ * implementation may rely on having a single consumer.
+ * <p>
+ * A micro-service can choose its mailbox implementation using
+ * {@link MicroService#useMailbox(Mailbox)} before it is started.
+ */
+public interface Mailbox {
+
+	/**
+	 * adds {@code m} to the end of the mailbox. This method may wait for
+	 * space if the mailbox is bounded and full, but it never fails.
+	 * <p>
+	 * 
+	 * @param m
+	 *            the message to add.
+	 */
+	void put(Message m);
+
+	/**
+	 * removes and returns the message at the head of the mailbox, waiting
+	 * until a message became available.
+	 * <p>
+	 * 
+	 * @return the message at the head of the mailbox.
+	 * @throws InterruptedException
+	 *             if interrupted while waiting for a message to became
+	 *             available.
+	 */
+	Message take() throws InterruptedException;
+
+	/**
+	 * @return the message at the head of the mailbox after removing it, or
+	 *         null if the mailbox is empty.
+	 */
+	Message poll();
+
+	/**
+	 * @return the message at the head of the mailbox without removing it, or
+	 *         null if the mailbox is empty.
+	 */
+	Message peek();
+
+	/**
+	 * removes up to {@code max} messages from the head of the mailbox and
+	 * adds them, in order, to {@code buffer}. This method does not wait.
+	 * <p>
+	 * 
+	 * @param buffer
+	 *            the collection to add the messages to.
+	 * @param max
+	 *            the maximum number of messages to move.
+	 * @return the number of messages moved.
+	 */
+	int drainTo(Collection<? super Message> buffer, int max);
+
+	/**
+	 * @return the number of messages in the mailbox.
+	 */
+	int size();
+
+	/**
+	 * @return true if the mailbox is empty.
+	 */
+	boolean isEmpty();
+
+	/**
+	 * removes {@code m} from the mailbox, if it is still waiting there. Used
+	 * by the message-bus to drop a request that timed out or was cancelled
+	 * before its receiver took it. Mailboxes that cannot remove a message
+	 * from the middle keep it, and the receiver handles it anyway.
+	 * <p>
+	 * 
+	 * @param m
+	 *            the message to remove.
+	 * @return true if {@code m} was removed. The default is false.
+	 */
+	default boolean purge(Message m) {
+		return false;
+	}
+
+	/**
+	 * tells the mailbox that its owner finished handling, or dropped,
+	 * {@code count} messages it took from it. Used by mailboxes that track
+	 * quiescence (see {@link bgu.spl.mics.impl.QuiescenceTracker}), the
+	 * default does nothing.
+	 * <p>
+	 * 
+	 * @param count
+	 *            the number of messages.
+	 */
+	default void handled(int count) {
+	}
+
+	/**
+	 * tells the mailbox that its owner un-registered and will not take
+	 * messages anymore. A mailbox that tracks quiescence drops the messages
+	 * it holds and every message added later, the default does nothing.
+	 */
+	default void close() {
+	}
+
+}
@@ -1,5 +1,8 @@
 package bgu.spl.mics;
 
+import java.util.Collection;
+import java.util.concurrent.TimeUnit;
+
 /**
  * The message-bus is a shared object used for communication between
  * micro-services. It should be implemented as a thread-safe singleton. The
@@ -30,6 +33,20 @@ public interface MessageBus {
 	 */
 	void subscribeBroadcast(Class<? extends Broadcast> type, MicroService m);
 
+	/**
+	 * stops delivering {@link Broadcast}s of type {@code type} to {@code m},
+	 * e.g., while its callback has nothing to do with them. The broadcasts
+	 * already in its queue are kept, and {@code m} may subscribe again later.
+	 * If {@code m} is not subscribed to {@code type}, nothing should happen.
+	 * <p>
+	 * 
+	 * @param type
+	 *            the type to unsubscribe from
+	 * @param m
+	 *            the unsubscribing micro-service
+	 */
+	void unsubscribeBroadcast(Class<? extends Broadcast> type, MicroService m);
+
 	/**
 	 * Notifying the MessageBus that the request {@code r} is completed and its
 	 * result was {@code result}. When this method is called, the message-bus
@@ -44,8 +61,11 @@ public interface MessageBus {
 	 *            the completed request
 	 * @param result
 	 *            the result of the completed request
+	 * @return true if {@code r} was in flight and {@code result} is
+	 *         delivered, false if {@code r} was already completed, timed out
+	 *         or cancelled and {@code result} is dropped.
 	 */
-	<T> void complete(Request<T> r, T result);
+	<T> boolean complete(Request<T> r, T result);
 
 	/**
 	 * add the {@link Broadcast} {@code b} to the message queues of all the
@@ -72,6 +92,135 @@ public interface MessageBus {
 	 */
 	boolean sendRequest(Request<?> r, MicroService requester);
 
+	/**
+	 * add the {@link Request} {@code r} to the message queue of one of the
+	 * micro-services subscribed to {@code r.getClass()}, like
+	 * {@link #sendRequest(Request, MicroService)}, and keep {@code onComplete}
+	 * with it. When {@code r} is completed, {@code onComplete} is delivered to
+	 * {@code requester} inside the {@link RequestCompleted} message.
+	 * <p>
+	 * 
+	 * @param <T>
+	 *            the type of the result expected by {@code r}
+	 * @param r
+	 *            the request to add to the queue.
+	 * @param requester
+	 *            the {@link MicroService} sending {@code r}.
+	 * @param onComplete
+	 *            the callback to deliver with the result of {@code r}, may
+	 *            be null.
+	 * @return true if there was at least one micro-service subscribed to
+	 *         {@code r.getClass()} and false otherwise.
+	 */
+	<T> boolean sendRequest(Request<T> r, MicroService requester, Callback<T> onComplete);
+
+	/**
+	 * add the {@link Request} {@code r} to the message queue of one of the
+	 * micro-services subscribed to {@code r.getClass()}, like
+	 * {@link #sendRequest(Request, MicroService, Callback)}, with a deadline.
+	 * If {@code r} is not completed within {@code timeout}, it is removed
+	 * from the receiver queue if the receiver did not take it yet, a later
+	 * completion of {@code r} is ignored, and a timed out
+	 * {@link RequestCompleted} message (see
+	 * {@link RequestCompleted#isTimedOut()}) is added to the queue of
+	 * {@code requester} instead.
+	 * <p>
+	 * 
+	 * @param <T>
+	 *            the type of the result expected by {@code r}
+	 * @param r
+	 *            the request to add to the queue.
+	 * @param requester
+	 *            the {@link MicroService} sending {@code r}.
+	 * @param onComplete
+	 *            the callback to deliver with the result of {@code r}, may
+	 *            be null.
+	 * @param timeout
+	 *            the time {@code r} may take, zero or less for no deadline.
+	 * @param unit
+	 *            the unit of {@code timeout}.
+	 * @return true if there was at least one micro-service subscribed to
+	 *         {@code r.getClass()} and false otherwise.
+	 */
+	<T> boolean sendRequest(Request<T> r, MicroService requester, Callback<T> onComplete, long timeout,
+			TimeUnit unit);
+
+	/**
+	 * cancels the in-flight request {@code r}: it is removed from the
+	 * receiver queue if the receiver did not take it yet, a later completion
+	 * of {@code r} is ignored, and no {@link RequestCompleted} message is
+	 * sent for it.
+	 * <p>
+	 * 
+	 * @param r
+	 *            the request to cancel.
+	 * @return true if {@code r} was in flight, false if it was already
+	 *         completed, timed out or cancelled.
+	 */
+	boolean cancel(Request<?> r);
+
+	/**
+	 * @param m
+	 *            a micro-service.
+	 * @return the message queue allocated to {@code m}, or null if {@code m}
+	 *         is not registered.
+	 */
+	Mailbox getMailbox(MicroService m);
+
+	/**
+	 * @return the number of messages waiting in the queues of all the
+	 *         registered micro-services, a snapshot that may be stale while
+	 *         messages are sent and taken.
+	 */
+	int getBacklog();
+
+	/**
+	 * runs {@code task} once the message-bus is quiescent: every message sent
+	 * so far was handled, and no micro-service is inside a callback. The task
+	 * runs at most once, in the thread that handled the last message, or
+	 * right away if the bus is already quiescent.
+	 * <p>
+	 * 
+	 * @param task
+	 *            the task to run.
+	 * @throws IllegalStateException
+	 *             if the message-bus does not track quiescence.
+	 */
+	void whenQuiescent(Runnable task);
+
+	/**
+	 * @return true if the message-bus keeps metrics or traces of the handled
+	 *         messages, in which case the micro-services time every callback
+	 *         and report it with {@link #handled}.
+	 */
+	boolean isMetered();
+
+	/**
+	 * @return true if the message-bus traces requests, in which case the
+	 *         micro-services stamp every request they send with its trace
+	 *         context (see {@link Request#getTraceId()}).
+	 */
+	boolean isTraced();
+
+	/**
+	 * notifies the message-bus that {@code m} handled {@code msg}, for its
+	 * metrics and traces. Called only while {@link #isMetered()}.
+	 * <p>
+	 * 
+	 * @param m
+	 *            the micro-service that handled {@code msg}, which may have
+	 *            un-registered in the callback.
+	 * @param queue
+	 *            the message queue of {@code m}.
+	 * @param msg
+	 *            the handled message.
+	 * @param startNanos
+	 *            the System.nanoTime the callback of {@code msg} started at.
+	 * @param endNanos
+	 *            the System.nanoTime the callback of {@code msg} ended at.
+	 */
+	void handled(MicroService m, Mailbox queue, Message msg, long startNanos, long endNanos);
+
 	/**
 	 * allocates a message-queue for the {@link MicroService} {@code m}.
 	 * <p>
@@ -81,6 +230,19 @@ public interface MessageBus {
 	 */
 	void register(MicroService m);
 
+	/**
+	 * allocates {@code mailbox} as the message-queue of the
+	 * {@link MicroService} {@code m}.
+	 * <p>
+	 * 
+	 * @param m
+	 *            the micro-service to create a queue for.
+	 * @param mailbox
+	 *            the message-queue to allocate, owned by {@code m} from now
+	 *            on.
+	 */
+	void register(MicroService m, Mailbox mailbox);
+
 	/**
 	 * remove the message queue allocated to {@code m} via the call to
 	 * {@link #register(bgu.spl.mics.MicroService)} and clean all references
@@ -112,4 +274,48 @@ public interface MessageBus {
 	 */
 	Message awaitMessage(MicroService m) throws InterruptedException;
 
+	/**
+	 * using this method, a <b>registered</b> micro-service can take a batch
+	 * of messages from its allocated queue in a single operation. Up to
+	 * {@code max} messages are moved, in order, into {@code buffer}. This
+	 * method is blocking only if no messages are available in the
+	 * micro-service queue, in which case it waits until at least one message
+	 * became available. The method should throw the
+	 * {@link IllegalStateException} in the case where {@code m} was never
+	 * registered.
+	 * <p>
+	 * 
+	 * @param m
+	 *            the micro-service requesting to take messages from its
+	 *            message queue
+	 * @param buffer
+	 *            the collection to add the taken messages to
+	 * @param max
+	 *            the maximum number of messages to take, must be positive
+	 * @return the number of messages added to {@code buffer} (at least one)
+	 * @throws InterruptedException
+	 *             if interrupted while waiting for a message to became
+	 *             available.
+	 */
+	int awaitMessages(MicroService m, Collection<? super Message> buffer, int max) throws InterruptedException;
+
+	/**
+	 * using this method, a <b>registered</b> micro-service can take the
+	 * messages that are already waiting in its allocated queue, up to
+	 * {@code max} of them, in order, into {@code buffer}. This method never
+	 * waits. The method should throw the {@link IllegalStateException} in the
+	 * case where {@code m} was never registered.
+	 * <p>
+	 * 
+	 * @param m
+	 *            the micro-service requesting to take messages from its
+	 *            message queue
+	 * @param buffer
+	 *            the collection to add the taken messages to
+	 * @param max
+	 *            the maximum number of messages to take
+	 * @return the number of messages added to {@code buffer}, possibly zero
+	 */
+	int pollMessages(MicroService m, Collection<? super Message> buffer, int max);
+
 }
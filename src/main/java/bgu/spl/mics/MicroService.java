@@ -1,9 +1,13 @@
 package bgu.spl.mics;
 
-import java.util.HashMap;
-import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
+import bgu.spl.mics.impl.HierarchicalTimerWheel;
 import bgu.spl.mics.impl.MessageBusImpl;
 
 
@@ -25,13 +29,38 @@ import bgu.spl.mics.impl.MessageBusImpl;
  * <p>
  */
 public abstract class MicroService implements Runnable {
+	/**
+	 * the maximum number of messages the event loop takes from the message
+	 * queue at once.
+	 */
+	private static final int MAX_BATCH = 32;
 	protected MessageBus messageBus = MessageBusImpl.getInstance();
 	private boolean terminated = false;
 	private final String name;
-	private ConcurrentHashMap<Class<? extends Message>, Callback<Broadcast>> BroadcastSubscribes = new ConcurrentHashMap<Class<? extends Message>, Callback<Broadcast>>();
-	private ConcurrentHashMap<Class<? extends Message>, Callback<Request>> RequestSubscribes = new ConcurrentHashMap<Class<? extends Message>, Callback<Request>>();
+	private Mailbox mailbox = null;
+	private volatile int busHandle = -1;
+	/**
+	 * the messages taken from the message queue and not handled yet, touched
+	 * only by the thread currently running this micro-service.
+	 */
+	private final List<Message> batch = new ArrayList<Message>(MAX_BATCH);
+	/**
+	 * the trace id and span id the requests sent by the current callback are
+	 * stamped with as their trace and parent, 0 outside of a traced request.
+	 */
+	private long traceId = 0;
+	private long parentSpanId = 0;
+	/**
+	 * the callbacks of the subscribed message types, and of
+	 * {@link RequestCompleted} which runs the on-complete callback of a sent
+	 * request.
+	 */
+	private final DispatchTable Dispatch = new DispatchTable();
 
-	private Map<Request, Callback> onCompleteCallbacks = new HashMap<Request, Callback>();
+	{
+		Dispatch.put(RequestCompleted.class, MicroService::onRequestCompleted);
+		Dispatch.put(TimerExpired.class, expired -> expired.getAction().call(expired.getDeadline()));
+	}
 
 	/**
 	 * @param name
@@ -64,10 +93,9 @@ public abstract class MicroService implements Runnable {
 	 *            the callback that should be called when messages of type
 	 *            {@code type} are taken from this micro-service message queue.
 	 */
-	@SuppressWarnings("unchecked")
 	protected final <R extends Request> void subscribeRequest(Class<R> type, Callback<R> callback) {
 		this.messageBus.subscribeRequest(type, this);
-		this.RequestSubscribes.put(type, (Callback<Request>) callback);
+		this.Dispatch.put(type, callback);
 
 	}
 
@@ -93,10 +121,9 @@ public abstract class MicroService implements Runnable {
 	 *            the callback that should be called when messages of type
 	 *            {@code type} are taken from this micro-service message queue.
 	 */
-	@SuppressWarnings("unchecked")
 	protected final <B extends Broadcast> void subscribeBroadcast(Class<B> type, Callback<B> callback) {
 		this.messageBus.subscribeBroadcast(type, this);
-		this.BroadcastSubscribes.put(type, (Callback<Broadcast>) callback);
+		this.Dispatch.put(type, callback);
 	}
 
 	/**
@@ -119,12 +146,247 @@ public abstract class MicroService implements Runnable {
 	 *         {@code r.getClass()} and false otherwise.
 	 */
 	protected final <T> boolean sendRequest(Request<T> r, Callback<T> onComplete) {
+		// the message-bus keeps onComplete in its request table and hands it
+		// back inside the RequestCompleted message
+		trace(r);
+		return this.messageBus.sendRequest(r, this, onComplete);
+	}
 
-		if (this.messageBus.sendRequest(r, this)) {
-			this.onCompleteCallbacks.put(r, onComplete);
-			return true;
-		}
-		return false;
+	/**
+	 * send the request {@code r} using the message-bus and return a future
+	 * that is completed with its result. The future is completed <b> in this
+	 * micro-service event loop </b>, so stages attached to it from within
+	 * this micro-service callbacks with the non-async methods of
+	 * {@link CompletableFuture} (e.g., {@code thenAccept}, {@code thenCompose})
+	 * also run in the event loop, and may touch the micro-service state
+	 * without synchronization.
+	 * <p>
+	 * 
+	 * @param <T>
+	 *            the type of the expected result of the request {@code r}
+	 * @param r
+	 *            the request to send
+	 * @return a future completed with the result of {@code r}, or completed
+	 *         exceptionally with an {@link IllegalStateException} if no
+	 *         micro-service is subscribed to {@code r.getClass()}.
+	 */
+	protected final <T> CompletableFuture<T> sendRequest(Request<T> r) {
+		return sendRequest(r, 0, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * send the request {@code r} using the message-bus, like
+	 * {@link #sendRequest(Request, Callback)}, with a deadline: if {@code r}
+	 * is not completed within {@code timeout}, {@code onComplete} is called
+	 * <b> in this micro-service event loop </b> with a null result, and a
+	 * later completion of {@code r} is ignored.
+	 * <p>
+	 * 
+	 * @param <T>
+	 *            the type of the expected result of the request {@code r}
+	 * @param r
+	 *            the request to send
+	 * @param timeout
+	 *            the time {@code r} may take, zero or less for no deadline.
+	 * @param unit
+	 *            the unit of {@code timeout}.
+	 * @param onComplete
+	 *            the callback to call with the result of {@code r}, or with
+	 *            null if it timed out.
+	 * @return true if there was at least one micro-service subscribed to
+	 *         {@code r.getClass()} and false otherwise.
+	 */
+	protected final <T> boolean sendRequest(Request<T> r, long timeout, TimeUnit unit, Callback<T> onComplete) {
+		trace(r);
+		return this.messageBus.sendRequest(r, this, onComplete, timeout, unit);
+	}
+
+	/**
+	 * send the request {@code r} using the message-bus, like
+	 * {@link #sendRequest(Request)}, with a deadline.
+	 * <p>
+	 * 
+	 * @param <T>
+	 *            the type of the expected result of the request {@code r}
+	 * @param r
+	 *            the request to send
+	 * @param timeout
+	 *            the time {@code r} may take, zero or less for no deadline.
+	 * @param unit
+	 *            the unit of {@code timeout}.
+	 * @return a future completed with the result of {@code r}, or completed
+	 *         exceptionally with a {@link TimeoutException} if {@code r} was
+	 *         not completed within {@code timeout}, or with an
+	 *         {@link IllegalStateException} if no micro-service is subscribed
+	 *         to {@code r.getClass()}.
+	 */
+	protected final <T> CompletableFuture<T> sendRequest(Request<T> r, long timeout, TimeUnit unit) {
+		FutureCompletion<T> completion = new FutureCompletion<T>();
+		if (!sendRequest(r, timeout, unit, completion))
+			completion.future.completeExceptionally(
+					new IllegalStateException("No micro-service is subscribed to " + r.getClass().getName()));
+		return completion.future;
+	}
+
+	/**
+	 * cancel the request {@code r} this micro-service sent and that was not
+	 * completed yet: it is dropped from the receiver queue if the receiver
+	 * did not take it yet, and its result, if it is completed anyway, is
+	 * ignored. The callback, or future, of {@code r} is never called.
+	 * <p>
+	 * 
+	 * @param r
+	 *            the request to cancel
+	 * @return true if {@code r} was cancelled, false if it was already
+	 *         completed or timed out.
+	 */
+	protected final boolean cancelRequest(Request<?> r) {
+		return this.messageBus.cancel(r);
+	}
+
+	/**
+	 * send all the {@code requests} using the message-bus, so they are
+	 * handled concurrently, and return a future of all their results (see
+	 * {@link #sendRequest(Request)} and {@link #whenAll(List)}).
+	 * <p>
+	 * 
+	 * @param <T>
+	 *            the type of the expected result of the requests
+	 * @param requests
+	 *            the requests to send
+	 * @return a future completed with the results of {@code requests}, in the
+	 *         same order, once all of them are completed.
+	 */
+	protected final <T> CompletableFuture<List<T>> sendRequests(List<? extends Request<T>> requests) {
+		List<CompletableFuture<T>> futures = new ArrayList<CompletableFuture<T>>(requests.size());
+		for (Request<T> r : requests)
+			futures.add(sendRequest(r));
+		return whenAll(futures);
+	}
+
+	/**
+	 * combines {@code futures} into a single future of all their results.
+	 * <p>
+	 * 
+	 * @param <T>
+	 *            the type of the results
+	 * @param futures
+	 *            the futures to combine
+	 * @return a future completed with the results of {@code futures}, in the
+	 *         same order, once all of them are completed, or completed
+	 *         exceptionally if any of them was.
+	 */
+	protected static <T> CompletableFuture<List<T>> whenAll(List<? extends CompletableFuture<? extends T>> futures) {
+		return CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[futures.size()])).thenApply(done -> {
+			List<T> results = new ArrayList<T>(futures.size());
+			for (CompletableFuture<? extends T> future : futures)
+				results.add(future.join());
+			return results;
+		});
+	}
+
+	/**
+	 * calls {@code action} <b> in this micro-service event loop </b> once
+	 * {@code delay} passed. The timer is kept by the shared
+	 * {@link HierarchicalTimerWheel}, and is dropped if this micro-service is
+	 * no longer registered when it expires.
+	 * <p>
+	 * 
+	 * @param delay
+	 *            the time to wait before calling {@code action}.
+	 * @param unit
+	 *            the unit of {@code delay}.
+	 * @param action
+	 *            the callback to call, given the {@link System#nanoTime()}
+	 *            the timer was due at.
+	 * @return the handle cancelling the timer.
+	 */
+	protected final HierarchicalTimerWheel.Timeout schedule(long delay, TimeUnit unit, Callback<Long> action) {
+		return HierarchicalTimerWheel.getInstance().schedule(deadline -> expire(null, action, deadline), delay,
+				unit);
+	}
+
+	/**
+	 * calls {@code action} <b> in this micro-service event loop </b> once
+	 * {@code initialDelay} passed and then every {@code period}, until the
+	 * timer is cancelled or this micro-service un-registers. The deadlines
+	 * are fixed: a late call does not delay the next ones (see
+	 * {@link HierarchicalTimerWheel#scheduleAtFixedRate}).
+	 * <p>
+	 * 
+	 * @param initialDelay
+	 *            the time to wait before the first call.
+	 * @param period
+	 *            the time between the deadlines of two calls.
+	 * @param unit
+	 *            the unit of {@code initialDelay} and {@code period}.
+	 * @param action
+	 *            the callback to call, given the {@link System#nanoTime()}
+	 *            the call was due at.
+	 * @return the handle cancelling the timer.
+	 */
+	protected final HierarchicalTimerWheel.Timeout scheduleAtFixedRate(long initialDelay, long period,
+			TimeUnit unit, Callback<Long> action) {
+		final HierarchicalTimerWheel.Timeout[] timer = new HierarchicalTimerWheel.Timeout[1];
+		timer[0] = HierarchicalTimerWheel.getInstance().scheduleAtFixedRate(
+				deadline -> expire(timer[0], action, deadline), initialDelay, period, unit);
+		return timer[0];
+	}
+
+	/**
+	 * adds the {@link TimerExpired} message of a timer to the queue of this
+	 * micro-service, run by the timer wheel thread. A periodic
+	 * {@code timer} is cancelled if this micro-service un-registered.
+	 */
+	private void expire(HierarchicalTimerWheel.Timeout timer, Callback<Long> action, long deadline) {
+		Mailbox queue = this.messageBus.getMailbox(this);
+		if (queue != null)
+			queue.put(new TimerExpired(action, deadline));
+		else if (timer != null)
+			timer.cancel();
+	}
+
+	/**
+	 * calls {@code action} <b> in this micro-service event loop </b> once the
+	 * message-bus is quiescent: every message sent so far was handled and
+	 * no micro-service is inside a callback (see
+	 * {@link MessageBus#whenQuiescent(Runnable)}). The callback of this
+	 * micro-service that calls this method counts too, so {@code action}
+	 * runs at the earliest after it returns.
+	 * <p>
+	 * 
+	 * @param action
+	 *            the callback to call, given the {@link System#nanoTime()}
+	 *            the quiescence was detected at.
+	 * @throws IllegalStateException
+	 *             if the message-bus does not track quiescence.
+	 */
+	protected final void whenQuiescent(Callback<Long> action) {
+		this.messageBus.whenQuiescent(() -> expire(null, action, System.nanoTime()));
+	}
+
+	/**
+	 * stops receiving broadcast messages of type {@code type}, e.g., while
+	 * the callback has nothing to do with them, so the message-bus does not
+	 * add them to this micro-service queue at all. The callback is kept: the
+	 * messages already in the queue are still handled, and subscribing again
+	 * with {@link #subscribeBroadcast(Class, Callback)} resumes the delivery.
+	 * <p>
+	 * 
+	 * @param type
+	 *            the {@link Class} representing the type of broadcast message
+	 *            to unsubscribe from.
+	 */
+	protected final void unsubscribeBroadcast(Class<? extends Broadcast> type) {
+		this.messageBus.unsubscribeBroadcast(type, this);
+	}
+
+	/**
+	 * @return the current tick of the shared {@link SimulationClock}, read
+	 *         without any message.
+	 */
+	protected final int getCurrentTick() {
+		return SimulationClock.getInstance().getTick();
 	}
 
 	/**
@@ -151,9 +413,24 @@ public abstract class MicroService implements Runnable {
 	 * @param result
 	 *            the result to provide to the micro-service requesting
 	 *            {@code r}.
+	 * @return true if {@code result} is delivered, false if the requester
+	 *         already gave up on {@code r} (it timed out or was cancelled).
+	 */
+	protected final <T> boolean complete(Request<T> r, T result) {
+		return this.messageBus.complete(r, result);
+	}
+
+	/**
+	 * sets the {@link Mailbox} the message-bus will allocate to this
+	 * micro-service when it registers. Must be called before the
+	 * micro-service is started, otherwise the message-bus default is used.
+	 * <p>
+	 * 
+	 * @param mailbox
+	 *            the message queue of this micro-service.
 	 */
-	protected final <T> void complete(Request<T> r, T result) {
-		this.messageBus.complete(r, result);
+	public final void useMailbox(Mailbox mailbox) {
+		this.mailbox = mailbox;
 	}
 
 	/**
@@ -179,38 +456,213 @@ public abstract class MicroService implements Runnable {
 	}
 
 	/**
-	 * the entry point of the micro-service. TODO: you must complete this code
-	 * otherwise you will end up in an infinite loop.
+	 * @return the handle the message-bus allocated to this micro-service when
+	 *         it registered, or -1 if it is not registered. Handles are dense
+	 *         and unique among the registered micro-services.
+	 */
+	public final int getBusHandle() {
+		return busHandle;
+	}
+
+	/**
+	 * attaches the handle allocated by the message-bus to this micro-service.
+	 * This method is used by the message-bus implementation only, derived
+	 * classes should never call it.
+	 * <p>
+	 * 
+	 * @param handle
+	 *            the allocated handle, or -1 when un-registered.
+	 */
+	public final void setBusHandle(int handle) {
+		this.busHandle = handle;
+	}
+
+	/**
+	 * an estimate of the work this micro-service already accepted and did not
+	 * finish yet, beyond the messages waiting in its message queue (e.g.,
+	 * requests it scheduled for later ticks). Load aware routing policies add
+	 * it to the queue length when picking a receiver.
+	 * <p>
+	 * Called by the sending threads, so overriding classes must keep it
+	 * cheap and safe to read concurrently with the event loop.
+	 * <p>
+	 * 
+	 * @return the pending work, in the same unit as a queued message. The
+	 *         default is 0.
+	 */
+	public int getPendingWork() {
+		return 0;
+	}
+
+	/**
+	 * the entry point of the micro-service. The event loop takes the pending
+	 * messages in batches of up to {@link #MAX_BATCH} messages (see
+	 * {@link MessageBus#awaitMessages}) and handles them one by one, stopping
+	 * as soon as the micro-service terminates.
 	 */
-	@SuppressWarnings({ "unchecked", "deprecation" })
 	@Override
 	public final void run() {
-		this.messageBus.register(this);
-		initialize();
+		registerAndInitialize();
 		while (!terminated) {
 			try {
-				Message msg = this.messageBus.awaitMessage(this);
-				if (Broadcast.class.isAssignableFrom(msg.getClass())) {
-					this.BroadcastSubscribes.get(msg.getClass()).call((Broadcast) msg);
-				} else {
-					if (Request.class.isAssignableFrom(msg.getClass())) {
-						this.RequestSubscribes.get(msg.getClass()).call((Request) msg);
-					} else {
-						if (RequestCompleted.class.isAssignableFrom(msg.getClass())) {
-
-							Callback<Object> c = this.onCompleteCallbacks
-									.remove(((RequestCompleted<?>) msg).getCompletedRequest());
-							c.call(((RequestCompleted) msg).getResult());
-
-						}
-					}
-				}
+				this.messageBus.awaitMessages(this, batch, MAX_BATCH);
+				for (int i = 0; i < batch.size() && !terminated; i++)
+					handle(batch.get(i));
 			} catch (InterruptedException e) {
 				e.printStackTrace();
+			} finally {
+				finishBatch();
 			}
 
 		}
 
 	}
 
+	/**
+	 * registers this micro-service to the message-bus, with the mailbox set
+	 * by {@link #useMailbox(Mailbox)} if any, and calls {@link #initialize()}.
+	 * This is the first step of {@link #run()}, execution engines that drive
+	 * the event loop themselves (see
+	 * {@link bgu.spl.mics.impl.ServiceScheduler}) call it instead of
+	 * {@link #run()}. Derived classes should never call it.
+	 * <p>
+	 * 
+	 * @return true if the micro-service did not terminate while initializing.
+	 */
+	public final boolean registerAndInitialize() {
+		if (mailbox == null)
+			this.messageBus.register(this);
+		else
+			this.messageBus.register(this, mailbox);
+		this.mailbox = this.messageBus.getMailbox(this);
+		initialize();
+		return !terminated;
+	}
+
+	/**
+	 * handles the messages already waiting in the message queue, up to
+	 * {@code max} of them, one by one, without waiting for new messages (see
+	 * {@link MessageBus#pollMessages}). This is a single slice of the event
+	 * loop of {@link #run()}, used by execution engines that drive the event
+	 * loop themselves and call it only when the queue is not empty. It must
+	 * not be called by two threads at once. Derived classes should never
+	 * call it.
+	 * <p>
+	 * 
+	 * @param max
+	 *            the maximum number of messages to handle.
+	 * @return true if the micro-service is still running, false once it
+	 *         terminated.
+	 */
+	public final boolean handleAvailable(int max) {
+		if (terminated)
+			return false;
+		try {
+			this.messageBus.pollMessages(this, batch, max);
+			for (int i = 0; i < batch.size() && !terminated; i++)
+				handle(batch.get(i));
+		} finally {
+			finishBatch();
+		}
+		return !terminated;
+	}
+
+	/**
+	 * tells the message queue the messages of the batch were handled, the
+	 * ones skipped because this micro-service terminated included, and
+	 * empties the batch.
+	 */
+	private void finishBatch() {
+		if (!batch.isEmpty())
+			this.mailbox.handled(batch.size());
+		batch.clear();
+	}
+
+	/**
+	 * stamps {@code r} with a new span id if the message-bus traces requests.
+	 * Sent from a callback of a traced request, {@code r} joins its trace as
+	 * its child; sent from the callback of a completed traced request, it
+	 * joins the trace as a sibling of the completed request, on behalf of
+	 * the same parent. Otherwise {@code r} starts a new trace. The ids are
+	 * random, so the spans of several processes do not collide.
+	 */
+	private void trace(Request<?> r) {
+		if (!this.messageBus.isTraced())
+			return;
+		long span = newTraceId();
+		if (traceId != 0)
+			r.setTrace(traceId, span, parentSpanId);
+		else
+			r.setTrace(newTraceId(), span, 0);
+	}
+
+	private static long newTraceId() {
+		long id;
+		do {
+			id = ThreadLocalRandom.current().nextLong();
+		} while (id == 0);
+		return id;
+	}
+
+	/**
+	 * calls the callback that is related to the type of {@code msg}, if any
+	 * (see {@link DispatchTable}). When the message-bus keeps metrics or
+	 * traces (see {@link MessageBus#isMetered()}), the callback is timed and
+	 * runs in the trace context of {@code msg} (see {@link #trace(Request)}).
+	 * 
+	 * @param msg
+	 *            the message taken from this micro-service message queue.
+	 */
+	private void handle(Message msg) {
+		if (!this.messageBus.isMetered()) {
+			this.Dispatch.dispatch(msg);
+			return;
+		}
+		if (msg instanceof Request) {
+			traceId = ((Request<?>) msg).getTraceId();
+			parentSpanId = ((Request<?>) msg).getSpanId();
+		} else if (msg instanceof RequestCompleted) {
+			Request<?> completed = ((RequestCompleted<?>) msg).getCompletedRequest();
+			traceId = completed.getTraceId();
+			parentSpanId = completed.getParentSpanId();
+		}
+		long start = System.nanoTime();
+		try {
+			this.Dispatch.dispatch(msg);
+		} finally {
+			traceId = 0;
+			parentSpanId = 0;
+			this.messageBus.handled(this, this.mailbox, msg, start, System.nanoTime());
+		}
+	}
+
+	/**
+	 * runs the on-complete callback of a completed request, if it was given
+	 * one. A future of a timed out request is completed with a
+	 * {@link TimeoutException}, other callbacks are called with null.
+	 */
+	@SuppressWarnings("unchecked")
+	private static void onRequestCompleted(RequestCompleted<?> msg) {
+		RequestCompleted<Object> completed = (RequestCompleted<Object>) msg;
+		Callback<Object> c = completed.getOnComplete();
+		if (completed.isTimedOut() && c instanceof FutureCompletion)
+			((FutureCompletion<Object>) c).future.completeExceptionally(
+					new TimeoutException(completed.getCompletedRequest().getClass().getName() + " timed out"));
+		else if (c != null)
+			c.call(completed.getResult());
+	}
+
+	/**
+	 * The callback completing the future returned by
+	 * {@link MicroService#sendRequest(Request, long, TimeUnit)}.
+	 */
+	private static final class FutureCompletion<T> implements Callback<T> {
+		private final CompletableFuture<T> future = new CompletableFuture<T>();
+
+		@Override
+		public void call(T result) {
+			future.complete(result);
+		}
+	}
+
 }
@@ -1,12 +1,113 @@
 package bgu.spl.mics;
 
 /**
- * A "Marker" interface extending {@link Message}. A micro-service that sends a
- * Request Message expects to receive a result of type {@code <R>} when a
- * micro-service that received the request completed handling it. When sending a
- * request, it will be received only by single subscriber - in a Round-Robin
- * fashion.
+ * The base class of the request messages, extending {@link Message}. A
+ * micro-service that sends a Request Message expects to receive a result of
+ * type {@code <R>} when a micro-service that received the request completed
+ * handling it. When sending a request, it will be received only by single
+ * subscriber - in a Round-Robin fashion.
+ * <p>
+ * While a request is in flight, the message-bus stamps it with an id that
+ * identifies it in the bus request table, so completing it does not require
+ * looking the request up by its identity.
+ * <p>
+ * When the message-bus traces requests (see {@link MessageBus#isTraced()}),
+ * the sending micro-service also stamps a request with its trace context: the
+ * id of the trace, shared by all the requests sent, directly or not, on
+ * behalf of the same first request, the id of its own span, and the span id
+ * of the request that was being handled when it was sent.
  */
-public interface Request<R> extends Message {
+public abstract class Request<R> implements Message {
+	/**
+	 * long - the id of this request in the message-bus request table, or 0 if
+	 * it was never sent.
+	 */
+	private long requestId = 0;
+	/**
+	 * long - the id of the trace of this request, or 0 if it is not traced.
+	 */
+	private long traceId = 0;
+	/**
+	 * long - the id of the span of this request, or 0 if it is not traced.
+	 */
+	private long spanId = 0;
+	/**
+	 * long - the span id of the request this one was sent on behalf of, or 0
+	 * if it started its trace.
+	 */
+	private long parentSpanId = 0;
+
+	/**
+	 * the key affinity routing uses to send related requests to the same
+	 * receiver (see {@code bgu.spl.mics.impl.AffinityPolicy}). Requests with
+	 * equal keys go to the same subscriber as long as the subscribers do not
+	 * change.
+	 * 
+	 * @return the routing key of this request, or null (the default) if it
+	 *         has none.
+	 */
+	public Object getRoutingKey() {
+		return null;
+	}
+
+	/**
+	 * @return the id the message-bus gave this request when it was last sent,
+	 *         or 0 if it was never sent.
+	 */
+	public final long getRequestId() {
+		return requestId;
+	}
+
+	/**
+	 * sets the id of this request in the message-bus request table. Used by
+	 * the message-bus implementation only.
+	 * 
+	 * @param requestId
+	 *            the id of this request.
+	 */
+	public final void setRequestId(long requestId) {
+		this.requestId = requestId;
+	}
+
+	/**
+	 * @return the id of the trace of this request, or 0 if it is not traced.
+	 */
+	public final long getTraceId() {
+		return traceId;
+	}
+
+	/**
+	 * @return the id of the span of this request, or 0 if it is not traced.
+	 */
+	public final long getSpanId() {
+		return spanId;
+	}
+
+	/**
+	 * @return the span id of the request this one was sent on behalf of, or 0
+	 *         if it started its trace or is not traced.
+	 */
+	public final long getParentSpanId() {
+		return parentSpanId;
+	}
+
+	/**
+	 * stamps the trace context of this request, set by the sending
+	 * micro-service, or by the message-bus implementation for a request
+	 * received from another process.
+	 * 
+	 * @param traceId
+	 *            the id of the trace.
+	 * @param spanId
+	 *            the id of the span of this request.
+	 * @param parentSpanId
+	 *            the span id of the request this one is sent on behalf of, or
+	 *            0.
+	 */
+	public final void setTrace(long traceId, long spanId, long parentSpanId) {
+		this.traceId = traceId;
+		this.spanId = spanId;
+		this.parentSpanId = parentSpanId;
+	}
 
 }
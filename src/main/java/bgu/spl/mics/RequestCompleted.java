@@ -4,10 +4,43 @@ public class RequestCompleted<T> implements Message {
 
 	private Request<T> completed;
 	private T result;
+	private Callback<T> onComplete;
+	private boolean timedOut;
 
 	public RequestCompleted(Request<T> completed, T result) {
+		this(completed, result, null);
+	}
+
+	/**
+	 * @param completed
+	 *            the completed request.
+	 * @param result
+	 *            the result of {@code completed}.
+	 * @param onComplete
+	 *            the callback the requester gave when it sent
+	 *            {@code completed}, may be null.
+	 */
+	public RequestCompleted(Request<T> completed, T result, Callback<T> onComplete) {
+		this(completed, result, onComplete, false);
+	}
+
+	/**
+	 * @param completed
+	 *            the completed request.
+	 * @param result
+	 *            the result of {@code completed}, null if it timed out.
+	 * @param onComplete
+	 *            the callback the requester gave when it sent
+	 *            {@code completed}, may be null.
+	 * @param timedOut
+	 *            true if {@code completed} was not completed before its
+	 *            deadline.
+	 */
+	public RequestCompleted(Request<T> completed, T result, Callback<T> onComplete, boolean timedOut) {
 		this.completed = completed;
 		this.result = result;
+		this.onComplete = onComplete;
+		this.timedOut = timedOut;
 	}
 
 	public Request getCompletedRequest() {
@@ -18,4 +51,20 @@ public class RequestCompleted<T> implements Message {
 		return result;
 	}
 
+	/**
+	 * @return the callback to call with the {@link #getResult() result}, or
+	 *         null if there is none.
+	 */
+	public Callback<T> getOnComplete() {
+		return onComplete;
+	}
+
+	/**
+	 * @return true if the request was not completed before its deadline, the
+	 *         {@link #getResult() result} is then null.
+	 */
+	public boolean isTimedOut() {
+		return timedOut;
+	}
+
 }
@@ -0,0 +1,62 @@
+package bgu.spl.mics;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The simulation clock shared by all the micro-services, read through
+ * {@link MicroService#getCurrentTick()}. It holds the last tick published by
+ * the timer micro-service, so a micro-service that only needs to know the
+ * current tick reads it here instead of subscribing to a tick broadcast and
+ * copying every one of them from its queue.
+ * <p>
+ * The clock is monotonic: publishing a tick older than the current one has
+ * no effect. Reading it is a single volatile read.
+ */
+public final class SimulationClock {
+
+	private static class SingletonHolder {
+		private static SimulationClock instance = new SimulationClock();
+	}
+
+	/**
+	 * AtomicInteger - the last published tick, 0 before the first one.
+	 */
+	private final AtomicInteger tick;
+
+	private SimulationClock() {
+		this.tick = new AtomicInteger();
+	}
+
+	/**
+	 * @return the singleton {@link SimulationClock}.
+	 */
+	public static SimulationClock getInstance() {
+		return SingletonHolder.instance;
+	}
+
+	/**
+	 * @return the last published tick.
+	 */
+	public int getTick() {
+		return tick.get();
+	}
+
+	/**
+	 * publishes {@code next} as the current tick, if it is later than the
+	 * current one.
+	 *
+	 * @param next
+	 *            the new tick.
+	 * @return the current tick after the call.
+	 */
+	public int advance(int next) {
+		return tick.accumulateAndGet(next, Math::max);
+	}
+
+	/**
+	 * sets the clock back to 0, for a new simulation.
+	 */
+	public void reset() {
+		tick.set(0);
+	}
+}
@@ -0,0 +1,36 @@
+package bgu.spl.mics;
+
+/**
+ * The message a micro-service timer (see
+ * {@link MicroService#schedule(long, java.util.concurrent.TimeUnit, Callback)})
+ * adds to the queue of its micro-service when it expires, so the timer action
+ * runs in the micro-service event loop like any other callback.
+ */
+public class TimerExpired implements Message {
+
+	private final Callback<Long> action;
+	private final long deadline;
+
+	/**
+	 * @param action
+	 *            the action of the expired timer.
+	 * @param deadline
+	 *            the {@link System#nanoTime()} the timer was due at.
+	 */
+	public TimerExpired(Callback<Long> action, long deadline) {
+		this.action = action;
+		this.deadline = deadline;
+	}
+
+	public Callback<Long> getAction() {
+		return action;
+	}
+
+	/**
+	 * @return the {@link System#nanoTime()} the timer was due at.
+	 */
+	public long getDeadline() {
+		return deadline;
+	}
+
+}
@@ -0,0 +1,100 @@
+package bgu.spl.mics.impl;
+
+import java.util.Arrays;
+
+import bgu.spl.mics.Mailbox;
+import bgu.spl.mics.MicroService;
+import bgu.spl.mics.Request;
+
+/**
+ * A {@link RoutingPolicy} sending the requests with the same
+ * {@link Request#getRoutingKey() routing key} to the same subscriber, so all
+ * the work on a key (e.g., a shoe type) is done by a single thread and its
+ * data stays in that thread's cache. Requests without a key are routed
+ * round-robin.
+ * <p>
+ * Keys are spread by consistent hashing: every subscriber owns
+ * {@link #POINTS_PER_SUBSCRIBER} points on a hash ring and a key belongs to
+ * the first point at or after its hash. When a subscriber joins or leaves,
+ * only the keys of its own points move. The ring is rebuilt only when the
+ * subscribers snapshot changes, so selecting is a binary search.
+ */
+public class AffinityPolicy implements RoutingPolicy {
+	/**
+	 * the number of points every subscriber owns on the ring.
+	 */
+	public static final int POINTS_PER_SUBSCRIBER = 64;
+
+	/**
+	 * The hash ring built for a single subscribers snapshot.
+	 */
+	private static final class Ring {
+		private final MicroService[] subscribers;
+		private final int[] points;
+		private final int[] owners;
+
+		private Ring(MicroService[] subscribers) {
+			this.subscribers = subscribers;
+			int n = subscribers.length * POINTS_PER_SUBSCRIBER;
+			long[] sorted = new long[n];
+			for (int i = 0; i < subscribers.length; i++) {
+				int seed = System.identityHashCode(subscribers[i]);
+				for (int p = 0; p < POINTS_PER_SUBSCRIBER; p++) {
+					int point = mix(seed ^ mix(p + 1));
+					// the point in the high bits, the owner in the low bits
+					sorted[i * POINTS_PER_SUBSCRIBER + p] = ((long) point << 32) | i;
+				}
+			}
+			Arrays.sort(sorted);
+			this.points = new int[n];
+			this.owners = new int[n];
+			for (int i = 0; i < n; i++) {
+				points[i] = (int) (sorted[i] >> 32);
+				owners[i] = (int) sorted[i];
+			}
+		}
+
+		private int owner(int hash) {
+			int index = Arrays.binarySearch(points, hash);
+			if (index < 0)
+				index = -index - 1;
+			return owners[index == points.length ? 0 : index];
+		}
+	}
+
+	/**
+	 * Ring - the ring of the last subscribers snapshot seen.
+	 */
+	private volatile Ring ring;
+	/**
+	 * RoundRobinPolicy - routes the requests that have no key.
+	 */
+	private final RoundRobinPolicy unkeyed = new RoundRobinPolicy();
+
+	@Override
+	public int select(Request<?> r, MicroService[] subscribers, Mailbox[] mailboxes) {
+		Object key = r.getRoutingKey();
+		if (key == null || subscribers.length == 1)
+			return unkeyed.select(r, subscribers, mailboxes);
+		Ring current = ring;
+		if (current == null || current.subscribers != subscribers) {
+			current = new Ring(subscribers);
+			ring = current;
+		}
+		return current.owner(mix(key.hashCode()));
+	}
+
+	/**
+	 * the MurmurHash3 finalizer, spreads the bits of {@code h} over the
+	 * whole int range.
+	 */
+	private static int mix(int h) {
+		h ^= h >>> 16;
+		h *= 0x85ebca6b;
+		h ^= h >>> 13;
+		h *= 0xc2b2ae35;
+		h ^= h >>> 16;
+		return h;
+	}
+
+}
@@ -0,0 +1,116 @@
+package bgu.spl.mics.impl;
+
+import java.util.Arrays;
+
+import bgu.spl.mics.Mailbox;
+import bgu.spl.mics.MicroService;
+
+/**
+ * The routing table entry of a single {@link bgu.spl.mics.Broadcast} type. It
+ * holds the subscribed micro-services together with their already resolved
+ * message queues, as two immutable arrays that are rebuilt only when a
+ * micro-service subscribes or un-registers.
+ * <p>
+ * Sending a broadcast is a plain walk over {@link #getMailboxes()}, with no
+ * locking and no per-subscriber map lookup.
+ */
+public class BroadcastRoute {
+	/**
+	 * MicroService[] - the subscribers, in subscription order.
+	 */
+	private volatile MicroService[] subscribers;
+	/**
+	 * Mailbox[] - {@code mailboxes[i]} is the message queue of
+	 * {@code subscribers[i]}.
+	 */
+	private volatile Mailbox[] mailboxes;
+
+	/**
+	 * Creates a new empty {@link BroadcastRoute}.
+	 */
+	public BroadcastRoute() {
+		this.subscribers = new MicroService[0];
+		this.mailboxes = new Mailbox[0];
+	}
+
+	/**
+	 * Adds {@code m} and its message queue to the end of the route, unless
+	 * it is already there.
+	 *
+	 * @param m
+	 *            the subscribing micro-service.
+	 * @param mailbox
+	 *            the message queue of {@code m}.
+	 */
+	public synchronized void add(MicroService m, Mailbox mailbox) {
+		if (indexOf(m) != -1)
+			return;
+		MicroService[] nextSubscribers = Arrays.copyOf(subscribers, subscribers.length + 1);
+		Mailbox[] nextMailboxes = Arrays.copyOf(mailboxes, mailboxes.length + 1);
+		nextSubscribers[subscribers.length] = m;
+		nextMailboxes[mailboxes.length] = mailbox;
+		subscribers = nextSubscribers;
+		mailboxes = nextMailboxes;
+	}
+
+	/**
+	 * Removes {@code m} from the route, if it is there.
+	 *
+	 * @param m
+	 *            the micro-service to remove.
+	 */
+	public synchronized void remove(MicroService m) {
+		int index = indexOf(m);
+		if (index == -1)
+			return;
+		MicroService[] nextSubscribers = new MicroService[subscribers.length - 1];
+		Mailbox[] nextMailboxes = new Mailbox[mailboxes.length - 1];
+		for (int i = 0, j = 0; i < subscribers.length; i++) {
+			if (i != index) {
+				nextSubscribers[j] = subscribers[i];
+				nextMailboxes[j] = mailboxes[i];
+				j++;
+			}
+		}
+		subscribers = nextSubscribers;
+		mailboxes = nextMailboxes;
+	}
+
+	/**
+	 * @param m
+	 *            the checked micro-service.
+	 * @return true if {@code m} is subscribed to this route.
+	 */
+	public boolean contains(MicroService m) {
+		return indexOf(m) != -1;
+	}
+
+	/**
+	 * @return the number of subscribers.
+	 */
+	public int size() {
+		return subscribers.length;
+	}
+
+	/**
+	 * @return the current subscribers snapshot, must not be modified.
+	 */
+	public MicroService[] getSubscribers() {
+		return subscribers;
+	}
+
+	/**
+	 * @return the current message queues snapshot, must not be modified.
+	 */
+	public Mailbox[] getMailboxes() {
+		return mailboxes;
+	}
+
+	private int indexOf(MicroService m) {
+		MicroService[] snapshot = subscribers;
+		for (int i = 0; i < snapshot.length; i++)
+			if (snapshot[i] == m)
+				return i;
+		return -1;
+	}
+}
@@ -0,0 +1,516 @@
+package bgu.spl.mics.impl;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+import bgu.spl.mics.Mailbox;
+import bgu.spl.mics.Message;
+
+/**
+ * The instrumentation of a {@link MessageBusImpl} (see
+ * {@link MessageBusImpl#setMetrics(boolean)}):
+ * <li>for every registered micro-service, the messages added to and taken
+ * from its mailbox, and the current and largest number of waiting
+ * messages.</li>
+ * <li>for every message class, the messages sent, and the histograms of the
+ * time they waited in a mailbox and of the time their callback took.</li>
+ * <li>for every request class, the histogram of the time from sending a
+ * request to completing it, and the number of requests that timed
+ * out.</li>
+ * <p>
+ * The counters are {@link LongAdder}s, striped per thread under contention,
+ * and the histograms have fixed power of two buckets of {@link LongAdder}s,
+ * so recording never takes a lock. Everything can be read at any time,
+ * while the counts still move.
+ * <p>
+ * The wait of a message is measured from the time the bus added it to a
+ * mailbox, kept on the side in the order of the mailbox, to the time its
+ * owner starts handling it. A message added to a mailbox by another
+ * component (e.g. a timer) has no wait, and so has a message whose stamp was
+ * passed over because a racing sender added its own stamp first.
+ * <p>
+ * The counters of an un-registered micro-service stop referring to its
+ * mailbox, and only the last {@link #MAX_RETIRED} of them are kept, so
+ * micro-services coming and going do not grow the metrics.
+ */
+public class BusMetrics {
+	/**
+	 * the largest number of stamps waiting for a mailbox, a mailbox whose
+	 * messages are never handled here (e.g., of a remote micro-service) does
+	 * not hold more.
+	 */
+	private static final int MAX_STAMPS = 4096;
+	/**
+	 * the number of stamps looked at to find the stamp of a handled message.
+	 */
+	private static final int STAMP_SCAN = 16;
+	/**
+	 * the number of un-registered micro-services whose counters are kept.
+	 */
+	public static final int MAX_RETIRED = 256;
+
+	/**
+	 * A histogram of durations in nanoseconds, with {@link #BUCKETS} buckets:
+	 * bucket {@code b} counts the durations below {@code 2^b} nanoseconds
+	 * and not below {@code 2^(b-1)}, the last one counts all the longer
+	 * ones.
+	 */
+	public static final class Histogram {
+		/**
+		 * the number of buckets, the last one starts at about 9 minutes.
+		 */
+		public static final int BUCKETS = 40;
+
+		private final LongAdder[] buckets;
+		private final LongAdder count;
+		private final LongAdder total;
+		private final LongAccumulator max;
+
+		public Histogram() {
+			this.buckets = new LongAdder[BUCKETS];
+			for (int i = 0; i < BUCKETS; i++)
+				buckets[i] = new LongAdder();
+			this.count = new LongAdder();
+			this.total = new LongAdder();
+			this.max = new LongAccumulator(Math::max, 0);
+		}
+
+		/**
+		 * counts {@code nanos} in its bucket.
+		 */
+		public void record(long nanos) {
+			if (nanos < 0)
+				nanos = 0;
+			buckets[Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(nanos))].increment();
+			count.increment();
+			total.add(nanos);
+			max.accumulate(nanos);
+		}
+
+		/**
+		 * @return the number of recorded durations.
+		 */
+		public long getCount() {
+			return count.sum();
+		}
+
+		/**
+		 * @return the mean duration, in nanoseconds, 0 if none was recorded.
+		 */
+		public long getMean() {
+			long n = count.sum();
+			return n == 0 ? 0 : total.sum() / n;
+		}
+
+		/**
+		 * @return the longest duration, in nanoseconds.
+		 */
+		public long getMax() {
+			return max.get();
+		}
+
+		/**
+		 * @param bucket
+		 *            a bucket index.
+		 * @return the number of durations in {@code bucket}.
+		 */
+		public long getBucket(int bucket) {
+			return buckets[bucket].sum();
+		}
+
+		/**
+		 * @param fraction
+		 *            the fraction of the durations, e.g. 0.99.
+		 * @return the upper bound, in nanoseconds, of the bucket holding the
+		 *         {@code fraction} quantile, at most {@link #getMax()}.
+		 */
+		public long getPercentile(double fraction) {
+			long n = count.sum();
+			if (n == 0)
+				return 0;
+			long rank = (long) Math.ceil(fraction * n);
+			long seen = 0;
+			for (int b = 0; b < BUCKETS - 1; b++) {
+				seen += buckets[b].sum();
+				if (seen >= rank)
+					return Math.min((1L << b) - 1, getMax());
+			}
+			return getMax();
+		}
+
+		@Override
+		public String toString() {
+			return "n=" + getCount() + " mean=" + micros(getMean()) + " p50=" + micros(getPercentile(0.5)) + " p99="
+					+ micros(getPercentile(0.99)) + " max=" + micros(getMax());
+		}
+
+		private static String micros(long nanos) {
+			return TimeUnit.NANOSECONDS.toMicros(nanos) + "us";
+		}
+	}
+
+	/**
+	 * The counters of the mailbox of a registered micro-service.
+	 */
+	public static final class ServiceMetrics {
+		private final String name;
+		/**
+		 * Mailbox - the counted mailbox, null once its owner un-registered.
+		 */
+		private volatile Mailbox mailbox;
+		private final LongAdder enqueued;
+		private final LongAdder dequeued;
+		private final LongAccumulator highWater;
+		/**
+		 * ConcurrentLinkedQueue - the time the bus added every message still
+		 * waiting in {@link #mailbox}, in the same order.
+		 */
+		private final ConcurrentLinkedQueue<Stamp> stamps;
+		private final AtomicInteger stampCount;
+
+		private ServiceMetrics(String name, Mailbox mailbox) {
+			this.name = name;
+			this.mailbox = mailbox;
+			this.enqueued = new LongAdder();
+			this.dequeued = new LongAdder();
+			this.highWater = new LongAccumulator(Math::max, 0);
+			this.stamps = new ConcurrentLinkedQueue<Stamp>();
+			this.stampCount = new AtomicInteger();
+		}
+
+		/**
+		 * @return the name of the micro-service.
+		 */
+		public String getName() {
+			return name;
+		}
+
+		/**
+		 * @return the number of messages the bus added to the mailbox.
+		 */
+		public long getEnqueued() {
+			return enqueued.sum();
+		}
+
+		/**
+		 * @return the number of messages the micro-service handled.
+		 */
+		public long getDequeued() {
+			return dequeued.sum();
+		}
+
+		/**
+		 * @return the number of messages waiting in the mailbox, 0 once its
+		 *         owner un-registered.
+		 */
+		public int getDepth() {
+			Mailbox current = mailbox;
+			return current == null ? 0 : current.size();
+		}
+
+		/**
+		 * @return the largest number of messages that waited in the mailbox
+		 *         at once.
+		 */
+		public long getHighWater() {
+			return highWater.get();
+		}
+
+		/**
+		 * @return the time the bus added {@code m}, or -1 if it is not known.
+		 */
+		private long takeStamp(Message m) {
+			Iterator<Stamp> it = stamps.iterator();
+			for (int i = 0; i < STAMP_SCAN && it.hasNext(); i++) {
+				Stamp stamp = it.next();
+				if (stamp.message != m)
+					continue;
+				// the stamps before it are of messages purged, stolen or
+				// added by a racing sender, they are no longer needed
+				for (int j = 0; j <= i; j++) {
+					stamps.poll();
+					stampCount.decrementAndGet();
+				}
+				return stamp.nanos;
+			}
+			return -1;
+		}
+
+		/**
+		 * @return the stamp of {@code m}, removed wherever it is in the
+		 *         queue, or null if it is not known.
+		 */
+		private Stamp removeStamp(Message m) {
+			Iterator<Stamp> it = stamps.iterator();
+			while (it.hasNext()) {
+				Stamp stamp = it.next();
+				if (stamp.message == m) {
+					it.remove();
+					stampCount.decrementAndGet();
+					return stamp;
+				}
+			}
+			return null;
+		}
+	}
+
+	/**
+	 * The histograms of a message class.
+	 */
+	public static final class TypeMetrics {
+		private final Class<?> type;
+		private final LongAdder sent;
+		private final LongAdder timedOut;
+		private final Histogram queueWait;
+		private final Histogram handling;
+		private final Histogram roundTrip;
+
+		private TypeMetrics(Class<?> type) {
+			this.type = type;
+			this.sent = new LongAdder();
+			this.timedOut = new LongAdder();
+			this.queueWait = new Histogram();
+			this.handling = new Histogram();
+			this.roundTrip = new Histogram();
+		}
+
+		/**
+		 * @return the message class.
+		 */
+		public Class<?> getType() {
+			return type;
+		}
+
+		/**
+		 * @return the number of messages added to a mailbox, a broadcast
+		 *         once per subscriber.
+		 */
+		public long getSent() {
+			return sent.sum();
+		}
+
+		/**
+		 * @return the number of requests that timed out.
+		 */
+		public long getTimedOut() {
+			return timedOut.sum();
+		}
+
+		/**
+		 * @return the time the messages waited in a mailbox.
+		 */
+		public Histogram getQueueWait() {
+			return queueWait;
+		}
+
+		/**
+		 * @return the time the callbacks of the messages took.
+		 */
+		public Histogram getHandling() {
+			return handling;
+		}
+
+		/**
+		 * @return the time from sending a request to completing it, requests
+		 *         only.
+		 */
+		public Histogram getRoundTrip() {
+			return roundTrip;
+		}
+	}
+
+	private static final class Stamp {
+		private final Message message;
+		private final long nanos;
+
+		private Stamp(Message message, long nanos) {
+			this.message = message;
+			this.nanos = nanos;
+		}
+	}
+
+	/**
+	 * long - the System.nanoTime the metrics started at.
+	 */
+	private final long startNanos;
+	/**
+	 * ConcurrentHashMap - the counters of every registered micro-service, by
+	 * mailbox.
+	 */
+	private final ConcurrentHashMap<Mailbox, ServiceMetrics> services;
+	/**
+	 * ConcurrentHashMap - the histograms of every message class.
+	 */
+	private final ConcurrentHashMap<Class<?>, TypeMetrics> types;
+	/**
+	 * ConcurrentLinkedQueue - the counters of the last {@link #MAX_RETIRED}
+	 * un-registered micro-services, oldest first.
+	 */
+	private final ConcurrentLinkedQueue<ServiceMetrics> retired;
+	private final AtomicInteger retiredCount;
+
+	/**
+	 * Creates a new empty {@link BusMetrics}.
+	 */
+	public BusMetrics() {
+		this.startNanos = System.nanoTime();
+		this.services = new ConcurrentHashMap<Mailbox, ServiceMetrics>();
+		this.types = new ConcurrentHashMap<Class<?>, TypeMetrics>();
+		this.retired = new ConcurrentLinkedQueue<ServiceMetrics>();
+		this.retiredCount = new AtomicInteger();
+	}
+
+	/**
+	 * starts counting the messages of {@code mailbox}.
+	 *
+	 * @param name
+	 *            the name of the owner of {@code mailbox}.
+	 * @param mailbox
+	 *            the mailbox of a micro-service.
+	 */
+	public void registered(String name, Mailbox mailbox) {
+		services.putIfAbsent(mailbox, new ServiceMetrics(name, mailbox));
+	}
+
+	/**
+	 * stops counting the messages of {@code mailbox}, whose owner
+	 * un-registered, and keeps its counters among the retired ones.
+	 *
+	 * @param mailbox
+	 *            the mailbox of a micro-service.
+	 */
+	public void unregistered(Mailbox mailbox) {
+		ServiceMetrics service = services.remove(mailbox);
+		if (service == null)
+			return;
+		service.mailbox = null;
+		service.stamps.clear();
+		service.stampCount.set(0);
+		retired.add(service);
+		if (retiredCount.incrementAndGet() > MAX_RETIRED && retired.poll() != null)
+			retiredCount.decrementAndGet();
+	}
+
+	/**
+	 * counts {@code m}, about to be added to {@code mailbox}.
+	 */
+	public void enqueued(Mailbox mailbox, Message m) {
+		type(m.getClass()).sent.increment();
+		ServiceMetrics service = services.get(mailbox);
+		if (service == null)
+			return;
+		service.enqueued.increment();
+		if (service.stampCount.get() < MAX_STAMPS) {
+			service.stampCount.incrementAndGet();
+			service.stamps.add(new Stamp(m, System.nanoTime()));
+		}
+		// the size before m is added, m is counted in the next one
+		service.highWater.accumulate(mailbox.size() + 1);
+	}
+
+	/**
+	 * counts {@code m}, taken from {@code mailbox} and handled from
+	 * {@code startNanos} to {@code endNanos}. Only the handling time is
+	 * counted if {@code mailbox} is null.
+	 */
+	public void handled(Mailbox mailbox, Message m, long startNanos, long endNanos) {
+		TypeMetrics type = type(m.getClass());
+		type.handling.record(endNanos - startNanos);
+		ServiceMetrics service = mailbox == null ? null : services.get(mailbox);
+		if (service == null)
+			return;
+		service.dequeued.increment();
+		long stamp = service.takeStamp(m);
+		if (stamp >= 0)
+			type.queueWait.record(startNanos - stamp);
+	}
+
+	/**
+	 * moves the stamp of {@code m}, stolen from {@code from} by the owner of
+	 * {@code to}, so its queue wait is counted when {@code to} handles it.
+	 */
+	public void stolen(Mailbox from, Mailbox to, Message m) {
+		ServiceMetrics victim = services.get(from);
+		ServiceMetrics thief = services.get(to);
+		Stamp stamp = victim == null ? null : victim.removeStamp(m);
+		if (stamp == null || thief == null)
+			return;
+		thief.stampCount.incrementAndGet();
+		thief.stamps.add(stamp);
+	}
+
+	/**
+	 * counts the completion of a request of class {@code type}, sent at
+	 * {@code sentNanos}.
+	 */
+	public void completed(Class<?> type, long sentNanos, boolean timedOut) {
+		TypeMetrics metrics = type(type);
+		metrics.roundTrip.record(System.nanoTime() - sentNanos);
+		if (timedOut)
+			metrics.timedOut.increment();
+	}
+
+	/**
+	 * @return the counters of the registered micro-services, and of the last
+	 *         {@link #MAX_RETIRED} un-registered ones.
+	 */
+	public Collection<ServiceMetrics> getServices() {
+		List<ServiceMetrics> all = new ArrayList<ServiceMetrics>(services.values());
+		all.addAll(retired);
+		return all;
+	}
+
+	/**
+	 * @return the histograms of the message classes.
+	 */
+	public Map<Class<?>, TypeMetrics> getTypes() {
+		return types;
+	}
+
+	/**
+	 * @return the metrics of {@code type}, created if needed.
+	 */
+	public TypeMetrics type(Class<?> type) {
+		TypeMetrics metrics = types.get(type);
+		return metrics != null ? metrics : types.computeIfAbsent(type, TypeMetrics::new);
+	}
+
+	/**
+	 * @return a report of all the metrics, with the rates per second since
+	 *         the metrics started.
+	 */
+	public String report() {
+		double seconds = Math.max(1, System.nanoTime() - startNanos) / 1e9;
+		StringBuilder report = new StringBuilder("Message-bus metrics over ").append(String.format("%.1f", seconds))
+				.append(" s\n");
+		List<ServiceMetrics> byName = new ArrayList<ServiceMetrics>(getServices());
+		byName.sort(Comparator.comparing(ServiceMetrics::getName));
+		for (ServiceMetrics service : byName)
+			report.append(String.format("  %-20s in %8d (%8.1f/s)  out %8d (%8.1f/s)  depth %4d  high %4d%n",
+					service.getName(), service.getEnqueued(), service.getEnqueued() / seconds,
+					service.getDequeued(), service.getDequeued() / seconds, service.getDepth(),
+					service.getHighWater()));
+		List<TypeMetrics> byType = new ArrayList<TypeMetrics>(types.values());
+		byType.sort(Comparator.comparing(t -> t.getType().getSimpleName()));
+		for (TypeMetrics type : byType) {
+			report.append("  ").append(type.getType().getSimpleName()).append(": sent ").append(type.getSent())
+					.append('\n');
+			report.append("    wait     ").append(type.getQueueWait()).append('\n');
+			report.append("    handling ").append(type.getHandling()).append('\n');
+			if (type.getRoundTrip().getCount() > 0)
+				report.append("    round    ").append(type.getRoundTrip()).append(", timed out ")
+						.append(type.getTimedOut()).append('\n');
+		}
+		return report.toString();
+	}
+}
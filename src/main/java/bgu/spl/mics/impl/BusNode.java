@@ -0,0 +1,1305 @@
+package bgu.spl.mics.impl;
+
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
+import java.util.function.UnaryOperator;
+import java.util.logging.Logger;
+
+import bgu.spl.mics.Broadcast;
+import bgu.spl.mics.Mailbox;
+import bgu.spl.mics.Message;
+import bgu.spl.mics.MicroService;
+import bgu.spl.mics.Request;
+import bgu.spl.mics.RequestCompleted;
+import bgu.spl.mics.impl.MessageCodec.Format;
+
+import com.google.gson.Gson;
+
+/**
+ * Spans the {@link MessageBusImpl} of this JVM over the message-buses of
+ * other JVMs, its peers, connected over TCP, or through shared memory for
+ * the peers on the same machine.
+ * <p>
+ * The nodes exchange the subscriptions of their micro-services. For every
+ * remote micro-service subscribed to a {@link Request} type, the local bus
+ * gets a proxy micro-service subscribed to the same type, whose mailbox
+ * forwards the requests it is given to the remote micro-service. The proxies
+ * are ordinary subscribers, so the local routing policy (round-robin by
+ * default) picks between the local and the remote micro-services alike. The
+ * receiving node hands the request to the micro-service it was routed to,
+ * and sends the result back when it is completed, which completes the
+ * original request. For the {@link Broadcast}s, every peer has a single
+ * gateway proxy subscribed to the broadcast types any of its micro-services
+ * subscribed to, so a broadcast crosses the network once per peer and is
+ * then delivered to the local subscribers of the peer only. A node does not
+ * forward what it received from a peer, so more than two nodes must all be
+ * connected to each other.
+ * <p>
+ * The frames, the messages and the request results are written by a
+ * {@link MessageCodec} (see {@link #setCodec}), every peer has a stream of
+ * its own in each direction. The classes the codec does not know are sent
+ * as JSON, read back into their classes, which must exist on both sides,
+ * and their {@code transient} fields are not sent. A message that holds
+ * process-local state may be given it back on arrival with
+ * {@link #localize}.
+ * <p>
+ * The sockets are non-blocking and served by a single selector thread,
+ * which also delivers the received messages. Sending queues the frame and
+ * wakes the selector thread up only if its peer had no frame queued.
+ * <p>
+ * A shared-memory peer (see {@link #listenShared} and {@link #connectShared})
+ * is a file both nodes map, usually under {@code /dev/shm}, holding a
+ * {@link SharedRing} for each direction. A thread of its own writes the
+ * queued frames into the ring of the peer, without a system call or a copy
+ * through the kernel, and polls the other ring and delivers the received
+ * messages. Sending queues the frame and unparks that thread, so a sender
+ * never waits for room in the ring. Memory has no way to wake the thread
+ * up, so it spins, yields and then parks for {@link #PARK_NANOS} while
+ * there is nothing to read or write.
+ * <p>
+ * The nodes do not authenticate each other: a node listens on the loopback
+ * address unless given another (see {@link #listen(String, int)}), a peer
+ * sending a frame longer than {@link #MAX_FRAME_SIZE} is disconnected, and
+ * only {@link Message} classes, or the classes {@link #allow allowed}, are
+ * read from the type names the peers send.
+ * <p>
+ * The node must be created before the local micro-services subscribe, and
+ * a node should have finished connecting (see {@link #connect} and
+ * {@link #awaitPeers}) before the local micro-services start sending, so
+ * the remote subscribers are known.
+ */
+public class BusNode implements SubscriptionListener {
+	private static final Logger log = Logger.getLogger(BusNode.class.getName());
+
+	private static final String HELLO = "hello";
+	private static final String SUBSCRIBE = "subscribe";
+	private static final String UNSUBSCRIBE = "unsubscribe";
+	private static final String READY = "ready";
+	private static final String REQUEST = "request";
+	private static final String COMPLETE = "complete";
+	private static final String BROADCAST = "broadcast";
+
+	/**
+	 * the initial size of the read buffer of a peer, grown for larger
+	 * frames.
+	 */
+	private static final int BUFFER_SIZE = 16 * 1024;
+	/**
+	 * the largest frame, in bytes, a socket peer may send, a peer announcing
+	 * a longer one is disconnected.
+	 */
+	public static final int MAX_FRAME_SIZE = 1 << 20;
+	/**
+	 * the default capacity, in bytes, of each ring of a shared-memory peer,
+	 * which bounds the size of a frame.
+	 */
+	public static final int SHARED_CAPACITY = 1 << 20;
+	/**
+	 * the number of empty polls a shared-memory reader spins, and then
+	 * yields, before it parks.
+	 */
+	private static final int SPINS = 64;
+	/**
+	 * the time, in nanoseconds, an idle shared-memory reader parks between
+	 * two polls.
+	 */
+	private static final long PARK_NANOS = 50_000;
+	/**
+	 * the time, in nanoseconds, a closing node keeps writing the frames
+	 * still queued for a shared-memory peer that does not read them.
+	 */
+	private static final long CLOSE_NANOS = TimeUnit.SECONDS.toNanos(1);
+	/**
+	 * the layout of a shared-memory file: a header with a magic number, the
+	 * capacity of the rings and the closed flag of either node, and then the
+	 * ring written by the node that created the file and the ring written by
+	 * the node that attached to it.
+	 */
+	private static final long SHARED_MAGIC = 0x6275732d6e6f6465L;
+	private static final int SHARED_CAPACITY_AT = 8;
+	private static final int CREATOR_CLOSED_AT = 16;
+	private static final int ATTACHER_CLOSED_AT = 24;
+	private static final int SHARED_HEADER_SIZE = 128;
+	private static final VarHandle SHARED_LONG = MethodHandles.byteBufferViewVarHandle(long[].class,
+			ByteOrder.nativeOrder());
+
+	/**
+	 * A unit of the protocol, written by {@link #FRAME}, and prefixed by its
+	 * length on a socket. Only the fields of the operation are set:
+	 * <li>{@code hello}: service - the name of the sending node.</li>
+	 * <li>{@code subscribe}, {@code unsubscribe}: type, service - a
+	 * micro-service of the sending node (un)subscribed to a message type,
+	 * by its id on the node (see {@link BusNode#ids}).</li>
+	 * <li>{@code ready}: all the current subscriptions were sent.</li>
+	 * <li>{@code request}: id, service, body - a request routed to a
+	 * micro-service of the receiving node.</li>
+	 * <li>{@code complete}: id, body - the result of a request.</li>
+	 * <li>{@code broadcast}: body - a broadcast for the micro-services of the
+	 * receiving node.</li>
+	 */
+	private static final class Frame {
+		private final String op;
+		private final String type;
+		private final String service;
+		private final long id;
+		private final Object body;
+
+		private Frame(String op, String type, String service, long id, Object body) {
+			this.op = op;
+			this.type = type;
+			this.service = service;
+			this.id = id;
+			this.body = body;
+		}
+	}
+
+	private static final Format<Frame> FRAME = Format.of((frame, out) -> {
+		out.writeSymbol(frame.op);
+		out.writeSymbol(frame.type);
+		out.writeSymbol(frame.service);
+		out.writeLong(frame.id);
+		// last, a frame whose body cannot be read leaves the stream in order
+		out.writeObject(frame.body);
+	}, in -> new Frame(in.readSymbol(), in.readSymbol(), in.readSymbol(), in.readLong(), in.readObject()));
+
+	/**
+	 * The local stand-in of a remote micro-service, or of a whole peer. It
+	 * is registered with a {@link ProxyMailbox} and never run.
+	 */
+	private static final class Proxy extends MicroService {
+		private Proxy(String name) {
+			super(name);
+		}
+
+		@Override
+		protected void initialize() {
+		}
+	}
+
+	/**
+	 * The mailbox of a {@link Proxy}: the messages it is given are sent to
+	 * the peer instead of being queued.
+	 */
+	private final class ProxyMailbox implements Mailbox {
+		private final Peer peer;
+		/**
+		 * String - the remote micro-service the requests are routed to, null
+		 * for the gateway of the peer.
+		 */
+		private final String service;
+
+		private ProxyMailbox(Peer peer, String service) {
+			this.peer = peer;
+			this.service = service;
+		}
+
+		@Override
+		@SuppressWarnings("unchecked")
+		public void put(Message m) {
+			if (m instanceof Request) {
+				forward(peer, service, (Request<?>) m);
+			} else if (m instanceof Broadcast) {
+				send(peer, new Frame(BROADCAST, null, null, 0, m));
+			} else if (m instanceof RequestCompleted) {
+				// a request received from the peer was completed here
+				RequestCompleted<Object> completed = (RequestCompleted<Object>) m;
+				completed.getOnComplete().call(completed.getResult());
+			}
+		}
+
+		/**
+		 * forgets {@code m}, a request forwarded to the peer that timed out
+		 * or was cancelled here, so a later result of the peer is dropped.
+		 */
+		@Override
+		public boolean purge(Message m) {
+			if (m instanceof Request)
+				peer.inFlight.remove(((Request<?>) m).getRequestId(), m);
+			// the peer still handles it
+			return false;
+		}
+
+		@Override
+		public Message take() {
+			throw new UnsupportedOperationException("A remote micro-service is not run by this node");
+		}
+
+		@Override
+		public Message poll() {
+			return null;
+		}
+
+		@Override
+		public Message peek() {
+			return null;
+		}
+
+		@Override
+		public int drainTo(Collection<? super Message> buffer, int max) {
+			return 0;
+		}
+
+		@Override
+		public int size() {
+			return 0;
+		}
+
+		@Override
+		public boolean isEmpty() {
+			return true;
+		}
+	}
+
+	/**
+	 * The mapped file of a shared-memory peer.
+	 */
+	private static final class SharedLink {
+		/**
+		 * Path - the file, deleted on disconnection by the node that created
+		 * it, null for the node that attached to it.
+		 */
+		private final Path path;
+		private final MappedByteBuffer buffer;
+		/**
+		 * SharedRing - the ring the frames are sent through, written only by
+		 * {@link #reader}.
+		 */
+		private final SharedRing out;
+		/**
+		 * SharedRing - the ring the frames are received from, read only by
+		 * {@link #reader}.
+		 */
+		private final SharedRing in;
+		private final int closedAt;
+		private final int peerClosedAt;
+		/**
+		 * Thread - writes the queued frames into {@link #out} and reads
+		 * {@link #in}.
+		 */
+		private volatile Thread reader;
+		/**
+		 * boolean - set by {@link BusNode#close()} to have the reader
+		 * disconnect.
+		 */
+		private volatile boolean stopping;
+
+		private SharedLink(Path path, MappedByteBuffer buffer, boolean creator) {
+			this.path = creator ? path : null;
+			this.buffer = buffer;
+			int capacity = (int) buffer.getLong(SHARED_CAPACITY_AT);
+			SharedRing first = new SharedRing(buffer, SHARED_HEADER_SIZE, capacity);
+			SharedRing second = new SharedRing(buffer, SHARED_HEADER_SIZE + SharedRing.HEADER_SIZE + capacity,
+					capacity);
+			this.out = creator ? first : second;
+			this.in = creator ? second : first;
+			this.closedAt = creator ? CREATOR_CLOSED_AT : ATTACHER_CLOSED_AT;
+			this.peerClosedAt = creator ? ATTACHER_CLOSED_AT : CREATOR_CLOSED_AT;
+		}
+
+		private boolean isPeerClosed() {
+			return (long) SHARED_LONG.getAcquire(buffer, peerClosedAt) != 0;
+		}
+	}
+
+	/**
+	 * A connected node.
+	 */
+	private final class Peer {
+		/**
+		 * SocketChannel - the connection to the peer, null for a
+		 * shared-memory peer.
+		 */
+		private final SocketChannel channel;
+		/**
+		 * SharedLink - the file shared with the peer, null for a socket peer.
+		 */
+		private final SharedLink shared;
+		private ByteBuffer in;
+		/**
+		 * ByteBuffer - the frames sent since the last flush, each behind its
+		 * length, guarded by {@link #encoder}.
+		 */
+		private ByteBuffer out;
+		/**
+		 * ByteBuffer - the frames the selector thread is writing, swapped
+		 * with {@link #out} once written, so neither buffer is allocated
+		 * again unless a frame outgrows it.
+		 */
+		private ByteBuffer writing;
+		/**
+		 * AtomicBoolean - true while the selector thread is writing the
+		 * queued frames, or is about to.
+		 */
+		private final AtomicBoolean flushing;
+		/**
+		 * CountDownLatch - released once the peer sent its subscriptions.
+		 */
+		private final CountDownLatch ready;
+		/**
+		 * ConcurrentHashMap - the requests sent to the peer and not
+		 * completed yet, by request id.
+		 */
+		private final ConcurrentHashMap<Long, Request<?>> inFlight;
+		/**
+		 * Map - the proxies of the remote request subscribers, by name,
+		 * touched only by the thread reading the peer.
+		 */
+		private final Map<String, Proxy> services;
+		/**
+		 * Map - the number of remote subscribers of every broadcast type,
+		 * touched only by the thread reading the peer.
+		 */
+		private final Map<Class<?>, Integer> broadcasts;
+		/**
+		 * Encoder - the stream of frames sent to the peer, guarded by
+		 * itself, which also orders the frames.
+		 */
+		private final MessageCodec.Encoder encoder;
+		/**
+		 * Decoder - the stream of frames received from the peer, used only
+		 * by the thread reading the peer.
+		 */
+		private final MessageCodec.Decoder decoder;
+		private SelectionKey key;
+		private String name;
+		/**
+		 * Proxy - subscribed to the broadcasts the peer needs, and the
+		 * requester of the requests received from the peer.
+		 */
+		private Proxy gateway;
+		private volatile boolean closed;
+
+		private Peer(SocketChannel channel, SharedLink shared) {
+			this.channel = channel;
+			this.shared = shared;
+			this.in = channel == null ? null : ByteBuffer.allocate(BUFFER_SIZE);
+			this.out = ByteBuffer.allocate(BUFFER_SIZE);
+			this.writing = ByteBuffer.allocate(BUFFER_SIZE).flip();
+			this.flushing = new AtomicBoolean();
+			this.ready = new CountDownLatch(1);
+			this.inFlight = new ConcurrentHashMap<Long, Request<?>>();
+			this.services = new HashMap<String, Proxy>();
+			this.broadcasts = new HashMap<Class<?>, Integer>();
+			this.encoder = codec.newEncoder();
+			this.decoder = codec.newDecoder();
+		}
+	}
+
+	private final String name;
+	private final MessageBusImpl bus;
+	private final Gson gson;
+	private volatile MessageCodec codec;
+	private final Selector selector;
+	private final Thread thread;
+	/**
+	 * ConcurrentLinkedQueue - the tasks the selector thread runs on its next
+	 * round, registrations and flushes.
+	 */
+	private final ConcurrentLinkedQueue<Runnable> tasks;
+	/**
+	 * List - the connected peers.
+	 */
+	private final List<Peer> peers;
+	/**
+	 * Map - the subscriptions of the local micro-services, guarded by
+	 * itself, which also orders the announcements sent to the peers.
+	 */
+	private final Map<MicroService, List<Class<? extends Message>>> subscriptions;
+	/**
+	 * Map - the ids the local micro-services are known by to the peers, its
+	 * name and a number unique on the node, so two micro-services with the
+	 * same name are not mistaken for each other. Guarded by
+	 * {@link #subscriptions}.
+	 */
+	private final Map<MicroService, String> ids;
+	/**
+	 * int - the number of ids given so far, guarded by
+	 * {@link #subscriptions}.
+	 */
+	private int idCount;
+	/**
+	 * ConcurrentHashMap - the local request subscribers, by id.
+	 */
+	private final ConcurrentHashMap<String, MicroService> locals;
+	/**
+	 * ConcurrentHashMap - the functions applied to the messages of a type
+	 * received from the peers.
+	 */
+	private final ConcurrentHashMap<Class<?>, UnaryOperator<Message>> localizers;
+	/**
+	 * Set - the classes other than messages the peers may send as JSON.
+	 */
+	private final Set<Class<?>> allowed;
+	/**
+	 * int - the number of peers that sent their subscriptions, guarded by
+	 * this node.
+	 */
+	private int readyPeers;
+	private ServerSocketChannel server;
+
+	/**
+	 * Creates a new {@link BusNode} of the message-bus of this JVM, and
+	 * starts its selector thread.
+	 *
+	 * @param name
+	 *            the name of the node, which prefixes its micro-services
+	 *            names on the other nodes.
+	 * @throws IOException
+	 *             if the selector cannot be opened.
+	 */
+	public BusNode(String name) throws IOException {
+		this.name = name;
+		this.bus = MessageBusImpl.getInstance();
+		this.gson = new Gson();
+		setCodec(new MessageCodec());
+		this.selector = Selector.open();
+		this.tasks = new ConcurrentLinkedQueue<Runnable>();
+		this.peers = new CopyOnWriteArrayList<Peer>();
+		this.subscriptions = new LinkedHashMap<MicroService, List<Class<? extends Message>>>();
+		this.ids = new HashMap<MicroService, String>();
+		this.locals = new ConcurrentHashMap<String, MicroService>();
+		this.localizers = new ConcurrentHashMap<Class<?>, UnaryOperator<Message>>();
+		this.allowed = ConcurrentHashMap.newKeySet();
+		bus.setSubscriptionListener(this);
+		this.thread = new Thread(this::run, "bus-node-" + name);
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * sets the codec of the frames sent to and received from the peers
+	 * connected from now on, which must register the same classes with the
+	 * same tags on every node. Unless it has a fallback, the classes it does
+	 * not know are sent as JSON.
+	 *
+	 * @param codec
+	 *            the codec.
+	 */
+	public void setCodec(MessageCodec codec) {
+		if (!codec.hasFallback())
+			codec.setFallback(Format.of((value, out) -> {
+				out.writeSymbol(value.getClass().getName());
+				out.writeString(gson.toJson(value));
+			}, in -> {
+				String type = in.readSymbol();
+				String json = in.readString();
+				try {
+					return gson.fromJson(json, load(type));
+				} catch (ClassNotFoundException e) {
+					throw new IllegalArgumentException("Unknown class " + type, e);
+				}
+			}));
+		this.codec = codec;
+	}
+
+	/**
+	 * lets the peers send instances of {@code type}, which is not a
+	 * {@link Message}, as JSON, e.g., a request result the codec does not
+	 * know.
+	 *
+	 * @param type
+	 *            the class.
+	 */
+	public void allow(Class<?> type) {
+		allowed.add(type);
+	}
+
+	/**
+	 * @return the class named {@code type} by a peer, without initializing
+	 *         it.
+	 * @throws IllegalArgumentException
+	 *             if it is neither a {@link Message} nor {@link #allow
+	 *             allowed}.
+	 */
+	private Class<?> load(String type) throws ClassNotFoundException {
+		Class<?> loaded = Class.forName(type, false, BusNode.class.getClassLoader());
+		if (!Message.class.isAssignableFrom(loaded) && !allowed.contains(loaded))
+			throw new IllegalArgumentException(type + " is not a message");
+		return loaded;
+	}
+
+	/**
+	 * accepts the connections of other nodes of this machine on
+	 * {@code port} of the loopback address.
+	 *
+	 * @param port
+	 *            the port to listen on, 0 for any free port.
+	 * @return the port listened on.
+	 * @throws IOException
+	 *             if the port cannot be bound.
+	 */
+	public int listen(int port) throws IOException {
+		return listen(null, port);
+	}
+
+	/**
+	 * accepts the connections of other nodes on {@code port} of the local
+	 * address {@code host}. The nodes do not authenticate each other, so any
+	 * address other than the loopback one should be reachable from trusted
+	 * hosts only.
+	 *
+	 * @param host
+	 *            the address to listen on, e.g. {@code 0.0.0.0} for all the
+	 *            local addresses, or null for the loopback address.
+	 * @param port
+	 *            the port to listen on, 0 for any free port.
+	 * @return the port listened on.
+	 * @throws IOException
+	 *             if the port cannot be bound.
+	 */
+	public int listen(String host, int port) throws IOException {
+		ServerSocketChannel channel = ServerSocketChannel.open();
+		channel.bind(host == null ? new InetSocketAddress(InetAddress.getLoopbackAddress(), port)
+				: new InetSocketAddress(host, port));
+		channel.configureBlocking(false);
+		server = channel;
+		execute(() -> {
+			try {
+				channel.register(selector, SelectionKey.OP_ACCEPT);
+			} catch (IOException e) {
+				log.severe("Cannot accept on port " + port + ": " + e);
+			}
+		});
+		return ((InetSocketAddress) channel.getLocalAddress()).getPort();
+	}
+
+	/**
+	 * connects to the node listening on {@code host:port}, and waits until
+	 * it sent the subscriptions of its micro-services.
+	 *
+	 * @param host
+	 *            the host of the node.
+	 * @param port
+	 *            the port the node listens on.
+	 * @throws IOException
+	 *             if the connection failed.
+	 * @throws InterruptedException
+	 *             if interrupted while waiting for the subscriptions.
+	 */
+	public void connect(String host, int port) throws IOException, InterruptedException {
+		SocketChannel channel = SocketChannel.open(new InetSocketAddress(host, port));
+		channel.configureBlocking(false);
+		Peer peer = new Peer(channel, null);
+		execute(() -> addPeer(peer));
+		peer.ready.await();
+		if (peer.closed)
+			throw new IOException("Node " + host + ":" + port + " closed the connection");
+	}
+
+	/**
+	 * creates the file {@code path} for a node on the same machine to attach
+	 * to with {@link #connectShared}, with rings of
+	 * {@link #SHARED_CAPACITY} bytes.
+	 *
+	 * @param path
+	 *            the file, usually under {@code /dev/shm}.
+	 * @throws IOException
+	 *             if the file cannot be created.
+	 * @see #listenShared(Path, int)
+	 */
+	public void listenShared(Path path) throws IOException {
+		listenShared(path, SHARED_CAPACITY);
+	}
+
+	/**
+	 * creates the file {@code path} for a node on the same machine to attach
+	 * to with {@link #connectShared}. A file left at {@code path} is
+	 * replaced. The file serves a single peer, and is deleted when it
+	 * disconnects.
+	 *
+	 * @param path
+	 *            the file, usually under {@code /dev/shm}.
+	 * @param capacity
+	 *            the capacity, in bytes, of the ring of each direction, a
+	 *            power of two.
+	 * @throws IOException
+	 *             if the file cannot be created.
+	 */
+	public void listenShared(Path path, int capacity) throws IOException {
+		Path temp = path.resolveSibling(path.getFileName() + ".tmp");
+		long size = SHARED_HEADER_SIZE + 2L * (SharedRing.HEADER_SIZE + capacity);
+		MappedByteBuffer buffer;
+		try (FileChannel file = FileChannel.open(temp, StandardOpenOption.CREATE,
+				StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+			buffer = file.map(FileChannel.MapMode.READ_WRITE, 0, size);
+		}
+		buffer.putLong(SHARED_CAPACITY_AT, capacity);
+		SHARED_LONG.setRelease(buffer, 0, SHARED_MAGIC);
+		SharedLink link = new SharedLink(path, buffer, true);
+		// the attaching node sees the file only once it is complete
+		Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		startShared(new Peer(null, link));
+	}
+
+	/**
+	 * attaches to the file {@code path} created by a node on the same
+	 * machine with {@link #listenShared}, and waits until that node sent the
+	 * subscriptions of its micro-services.
+	 *
+	 * @param path
+	 *            the file.
+	 * @throws IOException
+	 *             if the file cannot be mapped, is not a node file, or the
+	 *             node disconnected.
+	 * @throws InterruptedException
+	 *             if interrupted while waiting for the subscriptions.
+	 */
+	public void connectShared(Path path) throws IOException, InterruptedException {
+		MappedByteBuffer buffer;
+		try (FileChannel file = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+			buffer = file.map(FileChannel.MapMode.READ_WRITE, 0, file.size());
+		}
+		if (buffer.capacity() < SHARED_HEADER_SIZE || (long) SHARED_LONG.getAcquire(buffer, 0) != SHARED_MAGIC)
+			throw new IOException(path + " is not a node file");
+		Peer peer = new Peer(null, new SharedLink(path, buffer, false));
+		startShared(peer);
+		peer.ready.await();
+		if (peer.closed)
+			throw new IOException("Node of " + path + " closed the connection");
+	}
+
+	/**
+	 * waits until {@code count} peers, connected in either direction, sent
+	 * the subscriptions of their micro-services.
+	 *
+	 * @param count
+	 *            the number of peers to wait for.
+	 * @param timeout
+	 *            the longest time to wait.
+	 * @param unit
+	 *            the unit of {@code timeout}.
+	 * @return true if {@code count} peers are ready, false if the time
+	 *         passed first.
+	 * @throws InterruptedException
+	 *             if interrupted while waiting.
+	 */
+	public synchronized boolean awaitPeers(int count, long timeout, TimeUnit unit) throws InterruptedException {
+		long deadline = System.nanoTime() + unit.toNanos(timeout);
+		long left;
+		while (readyPeers < count && (left = deadline - System.nanoTime()) > 0)
+			TimeUnit.NANOSECONDS.timedWait(this, left);
+		return readyPeers >= count;
+	}
+
+	/**
+	 * passes every message of class {@code type} received from a peer
+	 * through {@code localizer} before it is delivered, e.g., to replace
+	 * the {@code transient} fields that were not sent.
+	 *
+	 * @param <M>
+	 *            the type of message.
+	 * @param type
+	 *            the message class.
+	 * @param localizer
+	 *            returns the message to deliver.
+	 */
+	@SuppressWarnings("unchecked")
+	public <M extends Message> void localize(Class<M> type, UnaryOperator<M> localizer) {
+		localizers.put(type, m -> localizer.apply((M) m));
+	}
+
+	/**
+	 * @return the name of this node.
+	 */
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * @return the number of connected peers.
+	 */
+	public int getPeerCount() {
+		return peers.size();
+	}
+
+	/**
+	 * disconnects from all the peers and stops the selector thread and the
+	 * shared-memory readers. The requests still in flight to a peer are
+	 * completed with null.
+	 */
+	public void close() {
+		bus.setSubscriptionListener(null);
+		for (Peer peer : peers) {
+			if (peer.shared != null) {
+				peer.shared.stopping = true;
+				LockSupport.unpark(peer.shared.reader);
+				try {
+					peer.shared.reader.join();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+		}
+		execute(() -> {
+			for (Peer peer : peers)
+				disconnect(peer);
+			try {
+				if (server != null)
+					server.close();
+				selector.close();
+			} catch (IOException e) {
+				log.warning("Closing node " + name + ": " + e);
+			}
+		});
+	}
+
+	@Override
+	public void subscribed(Class<? extends Message> type, MicroService m) {
+		if (m instanceof Proxy)
+			return;
+		synchronized (subscriptions) {
+			subscriptions.computeIfAbsent(m, s -> new ArrayList<Class<? extends Message>>()).add(type);
+			String id = ids.computeIfAbsent(m, s -> s.getName() + "#" + ++idCount);
+			if (Request.class.isAssignableFrom(type))
+				locals.put(id, m);
+			for (Peer peer : peers)
+				send(peer, new Frame(SUBSCRIBE, type.getName(), id, 0, null));
+		}
+	}
+
+	@Override
+	public void unsubscribed(Class<? extends Message> type, MicroService m) {
+		if (m instanceof Proxy)
+			return;
+		synchronized (subscriptions) {
+			List<Class<? extends Message>> types = subscriptions.get(m);
+			if (types == null || !types.remove(type))
+				return;
+			String id = types.isEmpty() ? ids.remove(m) : ids.get(m);
+			if (types.isEmpty())
+				subscriptions.remove(m);
+			if (Request.class.isAssignableFrom(type))
+				locals.remove(id, m);
+			for (Peer peer : peers)
+				send(peer, new Frame(UNSUBSCRIBE, type.getName(), id, 0, null));
+		}
+	}
+
+	/**
+	 * sends {@code r}, given to the proxy of {@code service}, to
+	 * {@code peer}, or completes it with null if the peer is gone or
+	 * {@code r} is too large to send.
+	 */
+	private void forward(Peer peer, String service, Request<?> r) {
+		if (peer.closed) {
+			bus.complete(r, null);
+			return;
+		}
+		long id = r.getRequestId();
+		peer.inFlight.put(id, r);
+		// the peer may have been disconnected before r was added
+		if (peer.closed && peer.inFlight.remove(id) != null) {
+			bus.complete(r, null);
+			return;
+		}
+		if (!send(peer, new Frame(REQUEST, null, service, id, r)) && peer.inFlight.remove(id) != null)
+			bus.complete(r, null);
+	}
+
+	/**
+	 * queues {@code frame} for {@code peer}, and has the selector thread
+	 * write it unless it is already writing to the peer. A frame for a
+	 * shared-memory peer is written into its ring instead.
+	 *
+	 * @return false if {@code frame} was dropped, as longer than
+	 *         {@link #MAX_FRAME_SIZE} or than a record of the ring.
+	 */
+	private boolean send(Peer peer, Frame frame) {
+		SharedLink link = peer.shared;
+		int limit = link == null ? MAX_FRAME_SIZE : Math.min(MAX_FRAME_SIZE, link.out.capacity() - 4);
+		synchronized (peer.encoder) {
+			ByteBuffer encoded = encode(peer, frame, limit);
+			if (encoded == null)
+				return false;
+			if (peer.out.remaining() < 4 + encoded.remaining()) {
+				ByteBuffer larger = ByteBuffer
+						.allocate(Math.max(peer.out.position() + 4 + encoded.remaining(), 2 * peer.out.capacity()));
+				peer.out = larger.put(peer.out.flip());
+			}
+			peer.out.putInt(encoded.remaining()).put(encoded);
+		}
+		if (link != null)
+			LockSupport.unpark(link.reader);
+		else if (peer.flushing.compareAndSet(false, true))
+			execute(() -> flush(peer));
+		return true;
+	}
+
+	/**
+	 * encodes {@code frame} for {@code peer}, holding its encoder.
+	 *
+	 * @return the encoded frame, or null if it is longer than {@code limit}.
+	 */
+	private ByteBuffer encode(Peer peer, Frame frame, int limit) {
+		try {
+			return peer.encoder.encode(frame, FRAME, limit);
+		} catch (BufferOverflowException e) {
+			log.warning("Node " + name + " dropped a " + frame.op + " frame longer than " + limit + " bytes to "
+					+ peer.name);
+			return null;
+		}
+	}
+
+	private void execute(Runnable task) {
+		tasks.add(task);
+		selector.wakeup();
+	}
+
+	private void run() {
+		try {
+			while (true) {
+				selector.select();
+				Runnable task;
+				while ((task = tasks.poll()) != null) {
+					try {
+						task.run();
+					} catch (RuntimeException e) {
+						log.warning("Node " + name + " failed a task: " + e);
+					}
+				}
+				// closed by close()
+				if (!selector.isOpen())
+					return;
+				for (SelectionKey key : selector.selectedKeys()) {
+					// a peer that breaks the selector thread is dropped alone
+					try {
+						select(key);
+					} catch (RuntimeException e) {
+						Peer peer = (Peer) key.attachment();
+						log.warning("Node " + name + " dropped " + (peer == null ? "a connection" : peer.name)
+								+ ": " + e);
+						if (peer != null)
+							disconnect(peer);
+					}
+				}
+				selector.selectedKeys().clear();
+			}
+		} catch (IOException e) {
+			log.severe("Node " + name + " stopped: " + e);
+		}
+	}
+
+	private void select(SelectionKey key) throws IOException {
+		if (!key.isValid())
+			return;
+		if (key.isAcceptable())
+			accept();
+		else if (key.isReadable())
+			read((Peer) key.attachment());
+		if (key.isValid() && key.isWritable())
+			flush((Peer) key.attachment());
+	}
+
+	private void accept() throws IOException {
+		SocketChannel channel = server.accept();
+		if (channel == null)
+			return;
+		channel.configureBlocking(false);
+		addPeer(new Peer(channel, null));
+	}
+
+	/**
+	 * registers the channel of {@code peer} and sends it the subscriptions
+	 * of the local micro-services.
+	 */
+	private void addPeer(Peer peer) {
+		try {
+			peer.key = peer.channel.register(selector, SelectionKey.OP_READ, peer);
+		} catch (IOException e) {
+			log.warning("Cannot register a peer of node " + name + ": " + e);
+			return;
+		}
+		announce(peer);
+	}
+
+	/**
+	 * sends the subscriptions of the local micro-services to the new
+	 * {@code peer}, and starts the thread writing and reading its rings.
+	 */
+	private void startShared(Peer peer) {
+		announce(peer);
+		peer.shared.reader = new Thread(() -> readShared(peer), "bus-node-" + name + "-shared");
+		peer.shared.reader.setDaemon(true);
+		peer.shared.reader.start();
+	}
+
+	/**
+	 * adds {@code peer} and sends it the subscriptions of the local
+	 * micro-services.
+	 */
+	private void announce(Peer peer) {
+		// the later subscriptions are sent by the listener, in order
+		synchronized (subscriptions) {
+			peers.add(peer);
+			send(peer, new Frame(HELLO, null, name, 0, null));
+			for (Map.Entry<MicroService, List<Class<? extends Message>>> entry : subscriptions.entrySet())
+				for (Class<? extends Message> type : entry.getValue())
+					send(peer, new Frame(SUBSCRIBE, type.getName(), ids.get(entry.getKey()), 0, null));
+			send(peer, new Frame(READY, null, null, 0, null));
+		}
+	}
+
+	/**
+	 * writes the frames queued for {@code peer}, and waits for the socket to
+	 * be writable if it is full.
+	 */
+	private void flush(Peer peer) {
+		if (peer.closed)
+			return;
+		try {
+			while (true) {
+				if (peer.writing.hasRemaining() || swap(peer)) {
+					peer.channel.write(peer.writing);
+					if (peer.writing.hasRemaining()) {
+						peer.key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+						return;
+					}
+					continue;
+				}
+				peer.key.interestOps(SelectionKey.OP_READ);
+				peer.flushing.set(false);
+				// a frame queued meanwhile did not schedule a flush
+				if (!swap(peer) || !peer.flushing.compareAndSet(false, true))
+					return;
+			}
+		} catch (IOException e) {
+			disconnect(peer);
+		}
+	}
+
+	/**
+	 * takes the frames sent to {@code peer} since the last swap for writing,
+	 * once the previous ones were written.
+	 *
+	 * @return false if no frame was sent since.
+	 */
+	private boolean swap(Peer peer) {
+		synchronized (peer.encoder) {
+			if (peer.out.position() == 0)
+				return false;
+			ByteBuffer written = peer.writing.clear();
+			peer.writing = peer.out.flip();
+			peer.out = written;
+			return true;
+		}
+	}
+
+	/**
+	 * reads what {@code peer} sent, and handles every complete frame.
+	 */
+	private void read(Peer peer) {
+		try {
+			if (peer.channel.read(peer.in) == -1) {
+				disconnect(peer);
+				return;
+			}
+		} catch (IOException e) {
+			disconnect(peer);
+			return;
+		}
+		ByteBuffer in = peer.in;
+		in.flip();
+		while (in.remaining() >= 4) {
+			int length = in.getInt(in.position());
+			if (length < 0 || length > MAX_FRAME_SIZE) {
+				log.warning("Node " + name + " got a frame of " + length + " bytes from " + peer.name);
+				disconnect(peer);
+				return;
+			}
+			if (in.remaining() < 4 + length) {
+				if (4 + length > in.capacity()) {
+					ByteBuffer larger = ByteBuffer.allocate(Math.max(4 + length, 2 * in.capacity()));
+					larger.put(in);
+					larger.flip();
+					in = larger;
+					peer.in = larger;
+				}
+				break;
+			}
+			in.getInt();
+			// the frame is decoded in place, bounded by the limit
+			int limit = in.limit();
+			int end = in.position() + length;
+			in.limit(end);
+			handle(peer, in);
+			in.limit(limit).position(end);
+		}
+		in.compact();
+	}
+
+	/**
+	 * writes the frames queued for the shared-memory {@code peer} into its
+	 * ring, as long as the ring has room, run by the reader of the peer.
+	 *
+	 * @return true if a frame was written.
+	 */
+	private boolean writeShared(Peer peer) {
+		SharedRing ring = peer.shared.out;
+		boolean wrote = false;
+		while (peer.writing.hasRemaining() || swap(peer)) {
+			ByteBuffer writing = peer.writing;
+			int start = writing.position();
+			int limit = writing.limit();
+			writing.limit(start + 4 + writing.getInt(start)).position(start + 4);
+			boolean offered = ring.offer(writing);
+			writing.limit(limit);
+			if (!offered) {
+				writing.position(start);
+				return wrote;
+			}
+			wrote = true;
+		}
+		return wrote;
+	}
+
+	/**
+	 * @return true if frames are queued for {@code peer}.
+	 */
+	private boolean isQueued(Peer peer) {
+		synchronized (peer.encoder) {
+			return peer.writing.hasRemaining() || peer.out.position() > 0;
+		}
+	}
+
+	/**
+	 * writes the frames queued for {@code peer} into its ring, and handles
+	 * the frames {@code peer} writes into the other, until either node
+	 * disconnects.
+	 */
+	private void readShared(Peer peer) {
+		SharedLink link = peer.shared;
+		// the frames are decoded in place, in the ring
+		Consumer<ByteBuffer> reader = received -> handle(peer, received);
+		int idle = 0;
+		while (true) {
+			boolean busy = writeShared(peer);
+			if (link.in.poll(reader)) {
+				idle = 0;
+			} else if (link.stopping || link.isPeerClosed()) {
+				// the frames written before the peer closed
+				while (link.in.poll(reader))
+					;
+				// and the frames sent before this node closed
+				long deadline = System.nanoTime() + CLOSE_NANOS;
+				while (!link.isPeerClosed() && isQueued(peer) && System.nanoTime() - deadline < 0)
+					idle = writeShared(peer) ? 0 : backOff(idle);
+				disconnect(peer);
+				return;
+			} else {
+				idle = busy ? 0 : backOff(idle);
+			}
+		}
+	}
+
+	/**
+	 * waits a little, longer as {@code idle} grows.
+	 *
+	 * @return the next value of {@code idle}.
+	 */
+	private static int backOff(int idle) {
+		if (idle < SPINS)
+			Thread.onSpinWait();
+		else if (idle < 2 * SPINS)
+			Thread.yield();
+		else
+			LockSupport.parkNanos(PARK_NANOS);
+		return idle < 2 * SPINS ? idle + 1 : idle;
+	}
+
+	private void handle(Peer peer, ByteBuffer encoded) {
+		Frame frame;
+		try {
+			frame = peer.decoder.decode(encoded, FRAME);
+		} catch (RuntimeException e) {
+			log.warning("Node " + name + " dropped a frame from " + peer.name + ": " + e);
+			return;
+		}
+		try {
+			handle(peer, frame);
+		} catch (ClassNotFoundException | RuntimeException e) {
+			log.warning("Node " + name + " dropped a " + frame.op + " frame from " + peer.name + ": " + e);
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	private void handle(Peer peer, Frame frame) throws ClassNotFoundException {
+		switch (frame.op) {
+		case HELLO:
+			peer.name = frame.service;
+			peer.gateway = new Proxy(peer.name);
+			bus.register(peer.gateway, new ProxyMailbox(peer, null));
+			break;
+		case SUBSCRIBE:
+			subscribe(peer, load(frame.type), frame.service);
+			break;
+		case UNSUBSCRIBE:
+			unsubscribe(peer, load(frame.type), frame.service);
+			break;
+		case READY:
+			peer.ready.countDown();
+			synchronized (this) {
+				readyPeers++;
+				notifyAll();
+			}
+			log.info("Node " + name + " connected to node " + peer.name);
+			break;
+		case REQUEST:
+			receive(peer, frame);
+			break;
+		case COMPLETE:
+			Request<Object> r = (Request<Object>) peer.inFlight.remove(frame.id);
+			// the request may have been sent again since, with another id
+			if (r != null && r.getRequestId() == frame.id)
+				bus.complete(r, frame.body);
+			break;
+		case BROADCAST:
+			deliver(localize((Message) frame.body));
+			break;
+		default:
+			log.warning("Node " + name + " got an unknown frame: " + frame.op);
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	private void subscribe(Peer peer, Class<?> type, String service) {
+		if (Request.class.isAssignableFrom(type)) {
+			Proxy proxy = peer.services.get(service);
+			if (proxy == null) {
+				proxy = new Proxy(peer.name + "/" + service);
+				bus.register(proxy, new ProxyMailbox(peer, service));
+				peer.services.put(service, proxy);
+			}
+			bus.subscribeRequest((Class<? extends Request>) type, proxy);
+		} else if (peer.broadcasts.merge(type, 1, Integer::sum) == 1) {
+			bus.subscribeBroadcast((Class<? extends Broadcast>) type, peer.gateway);
+		}
+	}
+
+	/**
+	 * drops the subscription of a remote micro-service. A request
+	 * subscription is dropped only when the micro-service un-registers, as
+	 * the micro-services never unsubscribe from requests otherwise.
+	 */
+	@SuppressWarnings("unchecked")
+	private void unsubscribe(Peer peer, Class<?> type, String service) {
+		if (Request.class.isAssignableFrom(type)) {
+			Proxy proxy = peer.services.remove(service);
+			if (proxy != null)
+				bus.unregister(proxy);
+		} else {
+			Integer count = peer.broadcasts.get(type);
+			if (count == null)
+				return;
+			if (count > 1) {
+				peer.broadcasts.put(type, count - 1);
+			} else {
+				peer.broadcasts.remove(type);
+				bus.unsubscribeBroadcast((Class<? extends Broadcast>) type, peer.gateway);
+			}
+		}
+	}
+
+	/**
+	 * hands a request received from {@code peer} to the local micro-service
+	 * it was routed to, the result is sent back by the gateway of the peer.
+	 */
+	@SuppressWarnings("unchecked")
+	private void receive(Peer peer, Frame frame) {
+		Request<Object> r = (Request<Object>) localize((Message) frame.body);
+		MicroService receiver = locals.get(frame.service);
+		long id = frame.id;
+		// a result too large to send completes the remote request with null
+		boolean sent = receiver != null && bus.sendRequestTo(r, peer.gateway, result -> {
+			if (!send(peer, new Frame(COMPLETE, null, null, id, result)))
+				send(peer, new Frame(COMPLETE, null, null, id, null));
+		}, receiver);
+		if (!sent)
+			send(peer, new Frame(COMPLETE, null, null, id, null));
+	}
+
+	private Message localize(Message m) {
+		UnaryOperator<Message> localizer = localizers.get(m.getClass());
+		return localizer == null ? m : localizer.apply(m);
+	}
+
+	/**
+	 * delivers a broadcast received from a peer to the local subscribers,
+	 * but not to the gateways of the other peers.
+	 */
+	private void deliver(Message b) {
+		BroadcastRoute route = bus.getBroadcastSubscribers().get(b.getClass());
+		if (route == null)
+			return;
+		for (Mailbox mailbox : route.getMailboxes())
+			if (!(mailbox instanceof ProxyMailbox))
+				mailbox.put(b);
+	}
+
+	/**
+	 * closes the connection to {@code peer}, un-registers its proxies and
+	 * completes the requests in flight to it with null.
+	 */
+	private void disconnect(Peer peer) {
+		if (peer.closed)
+			return;
+		peer.closed = true;
+		peers.remove(peer);
+		if (peer.shared != null) {
+			SHARED_LONG.setRelease(peer.shared.buffer, peer.shared.closedAt, 1L);
+			try {
+				if (peer.shared.path != null)
+					Files.deleteIfExists(peer.shared.path);
+			} catch (IOException e) {
+				log.warning("Cannot delete " + peer.shared.path + ": " + e);
+			}
+		} else {
+			try {
+				peer.channel.close();
+			} catch (IOException e) {
+				// closed anyway
+			}
+		}
+		if (peer.gateway != null)
+			bus.unregister(peer.gateway);
+		for (Proxy proxy : peer.services.values())
+			bus.unregister(proxy);
+		peer.services.clear();
+		for (Request<?> r : peer.inFlight.values())
+			bus.complete(r, null);
+		peer.inFlight.clear();
+		// a connect waiting for the peer gives up
+		peer.ready.countDown();
+		log.info("Node " + name + " disconnected from node " + peer.name);
+	}
+}
@@ -0,0 +1,398 @@
+package bgu.spl.mics.impl;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.LongConsumer;
+
+/**
+ * A hierarchical timer wheel running one-shot and fixed-rate tasks, with a
+ * resolution of one tick. It is made of {@link #LEVELS} wheels of
+ * {@link #SLOTS} slots: level 0 holds the tasks due in the next
+ * {@link #SLOTS} ticks, a slot of level {@code n} covers
+ * {@code SLOTS^n} ticks, and its tasks are cascaded to the lower levels when
+ * the wheel reaches it. Scheduling and cancelling are O(1), and unlike a
+ * single hashed wheel a far deadline is not revisited on every round.
+ * <p>
+ * Deadlines are absolute: a fixed-rate task is due at
+ * {@code first + k * period}, however late the previous run was, so the delay
+ * of a run does not drift into the following ones, and a late wheel runs the
+ * missed runs back to back. Every task is given the {@link System#nanoTime()}
+ * it was due at, so it can measure its own lag.
+ * <p>
+ * Tasks are scheduled lock-free from any thread and moved into the wheel,
+ * and run, by the single wheel thread, so tasks must be short. The wheel
+ * thread is a daemon started with the first task. It sleeps until the next
+ * non-empty slot, or the next cascade, and does not tick at all while no task
+ * is pending. A task due after the wheel thread wakes up anyway does not
+ * take the wheel lock, which keeps scheduling cheap for the request
+ * deadlines of the bus.
+ */
+public class HierarchicalTimerWheel {
+	/**
+	 * the number of wheels.
+	 */
+	public static final int LEVELS = 4;
+	/**
+	 * the number of slots in every wheel.
+	 */
+	public static final int SLOTS = 64;
+	private static final int SLOT_BITS = 6;
+	private static final int SLOT_MASK = SLOTS - 1;
+	/**
+	 * the farthest deadline, in ticks, the top wheel can hold at once, later
+	 * tasks are cascaded in it more than once.
+	 */
+	private static final long MAX_SPAN = (1L << (SLOT_BITS * LEVELS)) - 1;
+
+	/**
+	 * A task scheduled on the wheel.
+	 */
+	public static final class Timeout {
+		private static final int PENDING = 0;
+		private static final int CANCELLED = 1;
+		private static final int EXPIRED = 2;
+
+		private final LongConsumer task;
+		private final long periodNanos;
+		private final AtomicInteger state = new AtomicInteger(PENDING);
+		private long deadline;
+		private long expires;
+		private Timeout next;
+
+		private Timeout(LongConsumer task, long deadline, long periodNanos) {
+			this.task = task;
+			this.deadline = deadline;
+			this.periodNanos = periodNanos;
+		}
+
+		/**
+		 * prevents the next runs of the task.
+		 *
+		 * @return true if cancelled, false if the task was one-shot and
+		 *         already ran, or was cancelled before.
+		 */
+		public boolean cancel() {
+			return state.compareAndSet(PENDING, CANCELLED);
+		}
+
+		/**
+		 * @return true if the task was cancelled.
+		 */
+		public boolean isCancelled() {
+			return state.get() == CANCELLED;
+		}
+
+		/**
+		 * @return true if the task runs at a fixed rate.
+		 */
+		public boolean isPeriodic() {
+			return periodNanos > 0;
+		}
+	}
+
+	private static final class SingletonHolder {
+		private static final HierarchicalTimerWheel instance = new HierarchicalTimerWheel(1, TimeUnit.MILLISECONDS,
+				"timer-wheel");
+	}
+
+	/**
+	 * @return the wheel shared by the request deadlines of the bus and the
+	 *         micro-services timers (see
+	 *         {@link bgu.spl.mics.MicroService#schedule}), with a resolution
+	 *         of a millisecond.
+	 */
+	public static HierarchicalTimerWheel getInstance() {
+		return SingletonHolder.instance;
+	}
+
+	/**
+	 * long - the length of a tick in nanoseconds.
+	 */
+	private final long tickNanos;
+	private final String name;
+	/**
+	 * Timeout[][] - the heads of the task lists of every slot of every level,
+	 * touched only by the wheel thread.
+	 */
+	private final Timeout[][] wheels;
+	/**
+	 * ConcurrentLinkedQueue - the tasks scheduled since the wheel thread last
+	 * moved them into the wheels.
+	 */
+	private final ConcurrentLinkedQueue<Timeout> submitted;
+	/**
+	 * AtomicInteger - the number of tasks in the wheel or submitted to it.
+	 */
+	private final AtomicInteger pending;
+	/**
+	 * int - the number of tasks in the wheels, touched only by the wheel
+	 * thread.
+	 */
+	private int placed;
+	/**
+	 * long - the System.nanoTime of tick 0.
+	 */
+	private long startNanos;
+	/**
+	 * long - the next tick to process.
+	 */
+	private long tick;
+	/**
+	 * long - the System.nanoTime the sleeping wheel thread wakes up at.
+	 */
+	private volatile long wakeNanos;
+	/**
+	 * boolean - true while the wheel thread waits for a task.
+	 */
+	private volatile boolean idle;
+	private volatile Thread thread;
+
+	/**
+	 * Creates a new {@link HierarchicalTimerWheel}.
+	 *
+	 * @param tick
+	 *            the length of a tick, deadlines are rounded up to whole
+	 *            ticks.
+	 * @param unit
+	 *            the unit of {@code tick}.
+	 * @param name
+	 *            the name of the wheel thread.
+	 */
+	public HierarchicalTimerWheel(long tick, TimeUnit unit, String name) {
+		this.tickNanos = Math.max(1, unit.toNanos(tick));
+		this.name = name;
+		this.wheels = new Timeout[LEVELS][SLOTS];
+		this.submitted = new ConcurrentLinkedQueue<Timeout>();
+		this.pending = new AtomicInteger();
+	}
+
+	/**
+	 * runs {@code task} once {@code delay} passed.
+	 *
+	 * @param task
+	 *            the task to run, given the System.nanoTime it was due at.
+	 * @param delay
+	 *            the time to wait before running {@code task}.
+	 * @param unit
+	 *            the unit of {@code delay}.
+	 * @return the handle cancelling {@code task}.
+	 */
+	public Timeout schedule(LongConsumer task, long delay, TimeUnit unit) {
+		return submit(new Timeout(task, System.nanoTime() + unit.toNanos(delay), 0));
+	}
+
+	/**
+	 * runs {@code task} once {@code initialDelay} passed, and then every
+	 * {@code period}, until cancelled. Run {@code k} is due at
+	 * {@code initialDelay + k * period} from now.
+	 *
+	 * @param task
+	 *            the task to run, given the System.nanoTime it was due at.
+	 * @param initialDelay
+	 *            the time to wait before the first run.
+	 * @param period
+	 *            the time between the deadlines of two runs, must be
+	 *            positive.
+	 * @param unit
+	 *            the unit of {@code initialDelay} and {@code period}.
+	 * @return the handle cancelling {@code task}.
+	 */
+	public Timeout scheduleAtFixedRate(LongConsumer task, long initialDelay, long period, TimeUnit unit) {
+		if (period <= 0)
+			throw new IllegalArgumentException("period must be positive: " + period);
+		return submit(new Timeout(task, System.nanoTime() + unit.toNanos(initialDelay), unit.toNanos(period)));
+	}
+
+	/**
+	 * @return the number of tasks pending in the wheel, cancelled tasks
+	 *         included until the wheel passes them.
+	 */
+	public int pending() {
+		return pending.get();
+	}
+
+	private Timeout submit(Timeout timeout) {
+		submitted.add(timeout);
+		pending.incrementAndGet();
+		wakeUp(timeout.deadline);
+		return timeout;
+	}
+
+	/**
+	 * starts the wheel thread, or wakes it up if it sleeps past
+	 * {@code deadline}.
+	 */
+	private void wakeUp(long deadline) {
+		// the wheel thread publishes when it wakes up before it looks at the
+		// submitted tasks, so either it sees this one or it is seen here
+		if (thread != null && !idle && deadline - wakeNanos >= 0)
+			return;
+		synchronized (this) {
+			wakeUpLocked(deadline);
+		}
+	}
+
+	private void wakeUpLocked(long deadline) {
+		if (thread == null) {
+			startNanos = System.nanoTime();
+			wakeNanos = startNanos;
+			thread = new Thread(this::run, name);
+			thread.setDaemon(true);
+			thread.start();
+		} else if (idle || deadline - wakeNanos < 0) {
+			notifyAll();
+		}
+	}
+
+	/**
+	 * sleeps until {@code until}, or until woken up by an earlier task.
+	 */
+	private synchronized void sleepUntil(long until) throws InterruptedException {
+		wakeNanos = until;
+		idle = placed == 0;
+		long sleep;
+		while (submitted.isEmpty() && (sleep = until - System.nanoTime()) > 0) {
+			if (idle)
+				wait();
+			else
+				TimeUnit.NANOSECONDS.timedWait(this, sleep);
+		}
+		idle = false;
+		wakeNanos = System.nanoTime();
+	}
+
+	private void run() {
+		try {
+			while (true) {
+				long now = (System.nanoTime() - startNanos) / tickNanos;
+				// the ticks passed while the wheels were empty had no tasks
+				if (placed == 0)
+					tick = Math.max(tick, now);
+				moveSubmitted();
+				while (tick <= now) {
+					moveSubmitted();
+					process();
+				}
+				sleepUntil(startNanos + nextBusyTick() * tickNanos);
+			}
+		} catch (InterruptedException e) {
+			// the wheel thread is a daemon, it is never interrupted on purpose
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * cascades the upper wheels if level 0 wrapped, and runs the tasks of
+	 * the current level 0 slot.
+	 */
+	private void process() {
+		for (int level = 1; level < LEVELS; level++) {
+			if (((tick >>> (SLOT_BITS * (level - 1))) & SLOT_MASK) != 0)
+				break;
+			int slot = (int) ((tick >>> (SLOT_BITS * level)) & SLOT_MASK);
+			Timeout timeout = wheels[level][slot];
+			wheels[level][slot] = null;
+			while (timeout != null) {
+				Timeout next = timeout.next;
+				place(timeout);
+				timeout = next;
+			}
+		}
+		int slot = (int) (tick & SLOT_MASK);
+		Timeout timeout = wheels[0][slot];
+		wheels[0][slot] = null;
+		List<Timeout> again = null;
+		while (timeout != null) {
+			Timeout next = timeout.next;
+			timeout.next = null;
+			if (timeout.isPeriodic() ? runPeriodic(timeout) : runOnce(timeout)) {
+				if (again == null)
+					again = new ArrayList<Timeout>();
+				again.add(timeout);
+			} else {
+				placed--;
+				pending.decrementAndGet();
+			}
+			timeout = next;
+		}
+		tick++;
+		if (again != null)
+			for (Timeout periodic : again)
+				place(periodic);
+	}
+
+	/**
+	 * @return false, a one-shot task is never placed again.
+	 */
+	private boolean runOnce(Timeout timeout) {
+		if (timeout.state.compareAndSet(Timeout.PENDING, Timeout.EXPIRED))
+			runTask(timeout);
+		return false;
+	}
+
+	/**
+	 * @return true if the periodic task must be placed again.
+	 */
+	private boolean runPeriodic(Timeout timeout) {
+		if (timeout.isCancelled())
+			return false;
+		runTask(timeout);
+		timeout.deadline += timeout.periodNanos;
+		timeout.expires = toTick(timeout.deadline);
+		return !timeout.isCancelled();
+	}
+
+	private void runTask(Timeout timeout) {
+		try {
+			timeout.task.accept(timeout.deadline);
+		} catch (RuntimeException e) {
+			e.printStackTrace();
+		}
+	}
+
+	private void moveSubmitted() {
+		Timeout timeout;
+		while ((timeout = submitted.poll()) != null) {
+			timeout.expires = toTick(timeout.deadline);
+			place(timeout);
+			placed++;
+		}
+	}
+
+	/**
+	 * puts {@code timeout} in the lowest level whose span covers its
+	 * deadline, a task already due goes to the current tick slot.
+	 */
+	private void place(Timeout timeout) {
+		long at = Math.max(timeout.expires, tick);
+		long diff = Math.min(at - tick, MAX_SPAN);
+		int level = 0;
+		while (level < LEVELS - 1 && diff >= 1L << (SLOT_BITS * (level + 1)))
+			level++;
+		int slot = (int) (((tick + diff) >>> (SLOT_BITS * level)) & SLOT_MASK);
+		timeout.next = wheels[level][slot];
+		wheels[level][slot] = timeout;
+	}
+
+	/**
+	 * @return the next tick with tasks in its level 0 slot, or the next
+	 *         cascade if level 0 has none before it.
+	 */
+	private long nextBusyTick() {
+		long wrap = (tick | SLOT_MASK) + 1;
+		for (long t = tick; t < wrap; t++)
+			if (wheels[0][(int) (t & SLOT_MASK)] != null)
+				return t;
+		return wrap;
+	}
+
+	/**
+	 * @return the first tick processed at or after {@code deadline}.
+	 */
+	private long toTick(long deadline) {
+		return Math.max(0, (deadline - startNanos + tickNanos - 1) / tickNanos);
+	}
+}
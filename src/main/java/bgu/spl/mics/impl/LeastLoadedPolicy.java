@@ -0,0 +1,42 @@
+package bgu.spl.mics.impl;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import bgu.spl.mics.Mailbox;
+import bgu.spl.mics.MicroService;
+import bgu.spl.mics.Request;
+
+/**
+ * A {@link RoutingPolicy} handing every request to the subscriber with the
+ * lowest {@link RoutingPolicy#load load}. Every subscriber is checked, so
+ * selecting costs time linear in the number of subscribers; prefer
+ * {@link PowerOfTwoChoicesPolicy} for types with many subscribers.
+ * <p>
+ * The scan starts at a rotating position, so equally loaded subscribers
+ * (e.g., all idle) are still used in turns.
+ */
+public class LeastLoadedPolicy implements RoutingPolicy {
+	/**
+	 * AtomicInteger - the number of selections made so far, decides where
+	 * the next scan starts.
+	 */
+	private final AtomicInteger cursor = new AtomicInteger();
+
+	@Override
+	public int select(Request<?> r, MicroService[] subscribers, Mailbox[] mailboxes) {
+		int n = subscribers.length;
+		int start = (cursor.getAndIncrement() & Integer.MAX_VALUE) % n;
+		int best = start;
+		int bestLoad = RoutingPolicy.load(subscribers[start], mailboxes[start]);
+		for (int i = 1; i < n && bestLoad > 0; i++) {
+			int index = (start + i) % n;
+			int load = RoutingPolicy.load(subscribers[index], mailboxes[index]);
+			if (load < bestLoad) {
+				best = index;
+				bestLoad = load;
+			}
+		}
+		return best;
+	}
+
+}
@@ -0,0 +1,141 @@
+package bgu.spl.mics.impl;
+
+import java.util.Iterator;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.locks.LockSupport;
+
+import bgu.spl.mics.Mailbox;
+import bgu.spl.mics.Message;
+
+/**
+ * The default {@link Mailbox}: an unbounded {@link LinkedBlockingQueue}. It
+ * allocates a node per message and uses separate locks for adding and
+ * taking, but never makes a sender wait.
+ * <p>
+ * Unlike other mailboxes, a linked mailbox may also be consumed by other
+ * threads, which is what lets idle micro-services {@link #steal} requests
+ * from it (see {@link MessageBusImpl#setWorkStealing(Class, boolean)}).
+ */
+public class LinkedMailbox extends LinkedBlockingQueue<Message> implements Mailbox {
+
+	private static final long serialVersionUID = 1L;
+
+	/**
+	 * QuiescenceTracker - counts the messages of this mailbox, or null if
+	 * they are not tracked.
+	 */
+	private final transient QuiescenceTracker quiescence;
+	/**
+	 * boolean - true once the owner un-registered, only when tracked.
+	 */
+	private volatile boolean closed;
+	/**
+	 * Thread - the owner while it is parked waiting for work to steal, woken
+	 * when a message is added here or a sibling's queue grows, or null.
+	 */
+	private transient volatile Thread waiter;
+
+	/**
+	 * Creates a new empty {@link LinkedMailbox} that does not track
+	 * quiescence.
+	 */
+	public LinkedMailbox() {
+		this(null);
+	}
+
+	/**
+	 * Creates a new empty {@link LinkedMailbox}.
+	 *
+	 * @param quiescence
+	 *            the tracker counting the messages of this mailbox, or null.
+	 */
+	public LinkedMailbox(QuiescenceTracker quiescence) {
+		this.quiescence = quiescence;
+	}
+
+	@Override
+	public void put(Message m) {
+		if (quiescence == null) {
+			offer(m);
+			wake();
+			return;
+		}
+		if (closed)
+			return;
+		quiescence.sent();
+		offer(m);
+		// if the mailbox was closed meanwhile, either the closing thread
+		// dropped m and uncounted it, or m is still here
+		if (closed && remove(m))
+			quiescence.handled(1);
+		else
+			wake();
+	}
+
+	@Override
+	public boolean purge(Message m) {
+		boolean removed = remove(m);
+		if (removed && quiescence != null)
+			quiescence.handled(1);
+		return removed;
+	}
+
+	@Override
+	public void handled(int count) {
+		if (quiescence != null)
+			quiescence.handled(count);
+	}
+
+	@Override
+	public void close() {
+		if (quiescence == null)
+			return;
+		closed = true;
+		int dropped = 0;
+		while (poll() != null)
+			dropped++;
+		quiescence.handled(dropped);
+	}
+
+	/**
+	 * @param waiter
+	 *            the owner, about to park until {@link #wake()}, or null once
+	 *            it stopped waiting.
+	 */
+	public void setWaiter(Thread waiter) {
+		this.waiter = waiter;
+	}
+
+	/**
+	 * unparks the owner if it is waiting for work to steal, so it looks at
+	 * its own queue and its siblings again.
+	 */
+	public void wake() {
+		Thread t = waiter;
+		if (t != null)
+			LockSupport.unpark(t);
+	}
+
+	/**
+	 * removes the first message of type {@code type} in this mailbox on
+	 * behalf of a thread other than the owner. Other messages stay in place
+	 * and keep their order.
+	 * <p>
+	 * 
+	 * @param type
+	 *            the type of message to take.
+	 * @return the removed message, or null if there was no message of type
+	 *         {@code type} or the owner took it first.
+	 */
+	public Message steal(Class<? extends Message> type) {
+		Iterator<Message> it = iterator();
+		while (it.hasNext()) {
+			Message m = it.next();
+			// remove(m) fails if the owner took m since the iterator saw it
+			if (m.getClass() == type && remove(m))
+				return m;
+		}
+		return null;
+	}
+
+}
@@ -1,29 +1,47 @@
 package bgu.spl.mics.impl;
 
-import bgu.spl.ds.RoundRobinList;
 import bgu.spl.mics.Broadcast;
+import bgu.spl.mics.Callback;
+import bgu.spl.mics.Mailbox;
 import bgu.spl.mics.Message;
 import bgu.spl.mics.MessageBus;
 import bgu.spl.mics.MicroService;
 import bgu.spl.mics.Request;
 import bgu.spl.mics.RequestCompleted;
-import java.util.concurrent.*;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
 
 public class MessageBusImpl implements MessageBus {
-	private ConcurrentHashMap<String, LinkedBlockingQueue<Message>> PersonalMessageQueues;
-	private ConcurrentHashMap<String, LinkedBlockingQueue<Class<? extends Message>>> PersonalSubscribes;
-	private ConcurrentHashMap<Class<? extends Request>, RoundRobinList<MicroService>> RequestSubscribers;
-	private ConcurrentHashMap<Class<? extends Broadcast>, LinkedBlockingQueue<MicroService>> BroadcastSubscribers;
-	private ConcurrentHashMap<Request, MicroService> RequesterMessage;
-	private ConcurrentHashMap<String, LinkedBlockingQueue<Request>> RequestsSent;
+	private ServiceRegistry Services;
+	private ConcurrentHashMap<Class<? extends Request>, RequestRoute> RequestSubscribers;
+	private ConcurrentHashMap<Class<? extends Broadcast>, BroadcastRoute> BroadcastSubscribers;
+	private RequestTable Requests;
+	private HierarchicalTimerWheel Timeouts;
+	private volatile QuiescenceTracker Quiescence;
+	/**
+	 * SubscriptionListener - notified of the subscription changes, or null.
+	 */
+	private volatile SubscriptionListener Listener;
+	/**
+	 * BusMetrics - the metrics of the messages, or null if they are not kept.
+	 */
+	private volatile BusMetrics Metrics;
+	/**
+	 * RequestTracer - the spans of the traced requests, or null if requests
+	 * are not traced.
+	 */
+	private volatile RequestTracer Tracer;
 
 	private MessageBusImpl() {
-		PersonalMessageQueues = new ConcurrentHashMap<String, LinkedBlockingQueue<Message>>();
-		RequestSubscribers = new ConcurrentHashMap<Class<? extends Request>, RoundRobinList<MicroService>>();
-		BroadcastSubscribers = new ConcurrentHashMap<Class<? extends Broadcast>, LinkedBlockingQueue<MicroService>>();
-		RequesterMessage = new ConcurrentHashMap<Request, MicroService>();
-		RequestsSent = new ConcurrentHashMap<String, LinkedBlockingQueue<Request>>();
-		PersonalSubscribes = new ConcurrentHashMap<String, LinkedBlockingQueue<Class<? extends Message>>>();
+		Services = new ServiceRegistry();
+		RequestSubscribers = new ConcurrentHashMap<Class<? extends Request>, RequestRoute>();
+		BroadcastSubscribers = new ConcurrentHashMap<Class<? extends Broadcast>, BroadcastRoute>();
+		Requests = new RequestTable();
+		Timeouts = HierarchicalTimerWheel.getInstance();
 	}
 
 	private static class SingletonHolder {
@@ -34,33 +52,101 @@ public class MessageBusImpl implements MessageBus {
 		return SingletonHolder.instance;
 	}
 
-	public synchronized void subscribeRequest(Class<? extends Request> type, MicroService m) {
-		try {
-			if (!RequestSubscribers.containsKey(type)) {
-				RequestSubscribers.put(type, new RoundRobinList<MicroService>());
-			}
-			RequestSubscribers.get(type).put(m);
-			if (!PersonalSubscribes.containsKey(m.getName()))
-				PersonalSubscribes.put(m.getName(), new LinkedBlockingQueue<Class<? extends Message>>());
-			PersonalSubscribes.get(m.getName()).put(type);
-		} catch (InterruptedException e) {
-			e.printStackTrace();
-		}
+	/**
+	 * subscribes the <b>registered</b> micro-service {@code m} to receive
+	 * {@link Request}s of type {@code type}.
+	 * <p>
+	 * 
+	 * @param type
+	 *            the type to subscribe to
+	 * @param m
+	 *            the subscribing micro-service
+	 * @throws IllegalStateException
+	 *             if {@code m} is not registered.
+	 */
+	public void subscribeRequest(Class<? extends Request> type, MicroService m) {
+		ServiceRegistry.Entry entry = getRegisteredEntry(m);
+		RequestSubscribers.computeIfAbsent(type, t -> new RequestRoute()).add(m, entry.getMailbox());
+		entry.getSubscriptions().add(type);
+		notifySubscribed(type, m);
 	}
 
-	public synchronized void subscribeBroadcast(Class<? extends Broadcast> type, MicroService m) {
-		try {
-			if (!BroadcastSubscribers.containsKey(type))
-				BroadcastSubscribers.put(type, new LinkedBlockingQueue<MicroService>());
-			BroadcastSubscribers.get(type).put(m);
-			if (!PersonalSubscribes.containsKey(m.getName()))
-				PersonalSubscribes.put(m.getName(), new LinkedBlockingQueue<Class<? extends Message>>());
-			PersonalSubscribes.get(m.getName()).put(type);
-		} catch (InterruptedException e) {
-			e.printStackTrace();
+	/**
+	 * sets the {@link RoutingPolicy} that picks the receiver of every
+	 * {@link Request} of type {@code type}, instead of the default
+	 * {@link RoundRobinPolicy}. May be called before or after micro-services
+	 * subscribe to {@code type}.
+	 * <p>
+	 * 
+	 * @param type
+	 *            the request type to route with {@code policy}
+	 * @param policy
+	 *            the policy to use, not shared with other request types.
+	 */
+	public void setRoutingPolicy(Class<? extends Request> type, RoutingPolicy policy) {
+		RequestSubscribers.computeIfAbsent(type, t -> new RequestRoute()).setPolicy(policy);
+	}
+
+	/**
+	 * enables or disables work stealing for {@link Request}s of type
+	 * {@code type}. When enabled, a subscriber of {@code type} whose queue is
+	 * empty takes pending requests of {@code type} from the queue of its
+	 * busiest sibling instead of waiting (see {@link #awaitMessages}). Only
+	 * requests of {@code type} move: broadcasts and completions always stay
+	 * in the queue they were sent to. Stealing works between micro-services
+	 * using the default {@link LinkedMailbox} only.
+	 * <p>
+	 * 
+	 * @param type
+	 *            the request type
+	 * @param enabled
+	 *            true to let idle subscribers steal requests of {@code type}
+	 */
+	public void setWorkStealing(Class<? extends Request> type, boolean enabled) {
+		RequestSubscribers.computeIfAbsent(type, t -> new RequestRoute()).setWorkStealing(enabled);
+	}
+
+	/**
+	 * subscribes the <b>registered</b> micro-service {@code m} to receive
+	 * {@link Broadcast}s of type {@code type}.
+	 * <p>
+	 * 
+	 * @param type
+	 *            the type to subscribe to
+	 * @param m
+	 *            the subscribing micro-service
+	 * @throws IllegalStateException
+	 *             if {@code m} is not registered.
+	 */
+	public void subscribeBroadcast(Class<? extends Broadcast> type, MicroService m) {
+		ServiceRegistry.Entry entry = getRegisteredEntry(m);
+		BroadcastSubscribers.computeIfAbsent(type, t -> new BroadcastRoute()).add(m, entry.getMailbox());
+		if (!entry.getSubscriptions().contains(type)) {
+			entry.getSubscriptions().add(type);
+			notifySubscribed(type, m);
 		}
 	}
 
+	/**
+	 * stops delivering {@link Broadcast}s of type {@code type} to {@code m}.
+	 * Only the route of {@code type} is rebuilt, the broadcasts already in
+	 * the queue of {@code m} are kept.
+	 * <p>
+	 * 
+	 * @param type
+	 *            the type to unsubscribe from
+	 * @param m
+	 *            the unsubscribing micro-service
+	 */
+	public void unsubscribeBroadcast(Class<? extends Broadcast> type, MicroService m) {
+		ServiceRegistry.Entry entry = getRegisteredEntry(m);
+		BroadcastRoute route = BroadcastSubscribers.get(type);
+		if (route != null)
+			route.remove(m);
+		if (entry.getSubscriptions().remove(type))
+			notifyUnsubscribed(type, m);
+	}
+
 	/**
 	 * Notifying the MessageBus that the request {@code r} is completed and its
 	 * result was {@code result}. When this method is called, the message-bus
@@ -68,6 +154,11 @@ public class MessageBusImpl implements MessageBus {
 	 * queue of the requesting micro-service, the RequestCompleted message will
 	 * also contain the result of the request ({@code result}).
 	 * <p>
+	 * The requester is found through the {@link RequestTable} slot whose id
+	 * is stamped on {@code r}, and the slot is freed. Completing a request
+	 * that is not in flight (e.g., it timed out or was cancelled) does
+	 * nothing.
+	 * <p>
 	 * 
 	 * @param <T>
 	 *            the type of the result expected by the completed request
@@ -75,34 +166,174 @@ public class MessageBusImpl implements MessageBus {
 	 *            the completed request
 	 * @param result
 	 *            the result of the completed request
+	 * @return true if {@code r} was in flight and {@code result} is
+	 *         delivered, false if {@code r} was already completed, timed out
+	 *         or cancelled and {@code result} is dropped.
 	 */
-	public <T> void complete(Request<T> r, T result) {
-		MicroService requester = RequesterMessage.remove(r);
-		try {
-			PersonalMessageQueues.get(requester.getName()).put(new RequestCompleted<T>(r, result));
-		} catch (InterruptedException e) {
-			e.printStackTrace();
+	@SuppressWarnings("unchecked")
+	public <T> boolean complete(Request<T> r, T result) {
+		RequestTable.Completion completion = Requests.release(r);
+		if (completion == null)
+			return false;
+		if (completion.getTimeout() != null)
+			completion.getTimeout().cancel();
+		completed(r, completion, false);
+		deliver(completion, new RequestCompleted<T>(r, result, (Callback<T>) completion.getCallback()));
+		return true;
+	}
+
+	/**
+	 * cancels the in-flight request {@code r}: it is removed from the
+	 * receiver queue if it is still there (only mailboxes supporting
+	 * {@link Mailbox#purge} remove it), a later completion of {@code r} is
+	 * ignored, and no {@link RequestCompleted} message is sent for it.
+	 * <p>
+	 * 
+	 * @param r
+	 *            the request to cancel.
+	 * @return true if {@code r} was in flight, false if it was already
+	 *         completed, timed out or cancelled.
+	 */
+	public boolean cancel(Request<?> r) {
+		RequestTable.Completion completion = Requests.release(r);
+		if (completion == null)
+			return false;
+		if (completion.getTimeout() != null)
+			completion.getTimeout().cancel();
+		completion.getReceiver().purge(r);
+		return true;
+	}
+
+	/**
+	 * times out the request {@code r}, run by the {@link #Timeouts} wheel
+	 * when the deadline of {@code r} passed.
+	 * 
+	 * @param r
+	 *            the request to time out.
+	 * @param id
+	 *            the id {@code r} was given when it was sent with the
+	 *            deadline, it is not timed out if it was sent again since.
+	 */
+	@SuppressWarnings("unchecked")
+	private <T> void expire(Request<T> r, long id) {
+		RequestTable.Completion completion = Requests.release(r, id);
+		if (completion == null)
+			return;
+		completion.getReceiver().purge(r);
+		completed(r, completion, true);
+		deliver(completion, new RequestCompleted<T>(r, null, (Callback<T>) completion.getCallback(), true));
+	}
+
+	/**
+	 * records the round-trip of {@code r} in the metrics and the traces, if
+	 * they are kept and were already kept when {@code r} was sent.
+	 */
+	private void completed(Request<?> r, RequestTable.Completion completion, boolean timedOut) {
+		if (completion.getSentNanos() == 0)
+			return;
+		BusMetrics metrics = Metrics;
+		if (metrics != null)
+			metrics.completed(r.getClass(), completion.getSentNanos(), timedOut);
+		RequestTracer tracer = Tracer;
+		if (tracer != null && r.getTraceId() != 0) {
+			ServiceRegistry.Entry requester = Services.get(completion.getRequester(),
+					completion.getRequesterSerial());
+			tracer.record(r, RequestTracer.Kind.REQUEST,
+					requester == null ? null : requester.getService().getName(), completion.getSentNanos(),
+					System.nanoTime(), timedOut);
 		}
 	}
 
+	/**
+	 * adds {@code m} to {@code queue}, counted in the metrics if they are
+	 * kept.
+	 */
+	private void put(Mailbox queue, Message m) {
+		BusMetrics metrics = Metrics;
+		if (metrics != null)
+			metrics.enqueued(queue, m);
+		queue.put(m);
+	}
+
+	/**
+	 * add the {@link Request} {@code r} to the message queue of
+	 * {@code receiver}, whatever the routing of {@code r.getClass()}, and keep
+	 * {@code onComplete} with it like
+	 * {@link #sendRequest(Request, MicroService, Callback)}. Used by a
+	 * {@link BusNode} to deliver a request another node already routed.
+	 * <p>
+	 * 
+	 * @param <T>
+	 *            the type of the result expected by {@code r}
+	 * @param r
+	 *            the request to add to the queue.
+	 * @param requester
+	 *            the {@link MicroService} sending {@code r}.
+	 * @param onComplete
+	 *            the callback to deliver with the result of {@code r}, may
+	 *            be null.
+	 * @param receiver
+	 *            the {@link MicroService} to send {@code r} to.
+	 * @return true if both {@code requester} and {@code receiver} are
+	 *         registered, false otherwise.
+	 */
+	public <T> boolean sendRequestTo(Request<T> r, MicroService requester, Callback<T> onComplete,
+			MicroService receiver) {
+		ServiceRegistry.Entry entry = Services.get(requester);
+		Mailbox queue = Services.getMailbox(receiver);
+		if (entry == null || queue == null)
+			return false;
+		Requests.acquire(r, requester.getBusHandle(), entry.getSerial(), onComplete, queue);
+		put(queue, r);
+		RequestRoute route = RequestSubscribers.get(r.getClass());
+		if (route != null && route.isWorkStealing())
+			route.wakeIdle(queue);
+		return true;
+	}
+
+	/**
+	 * adds {@code completed} to the queue of the requester of
+	 * {@code completion}, if it is still registered.
+	 */
+	private void deliver(RequestTable.Completion completion, RequestCompleted<?> completed) {
+		// the requester may have un-registered, and its handle reused, since
+		// it sent the request
+		ServiceRegistry.Entry requester = Services.get(completion.getRequester(), completion.getRequesterSerial());
+		if (requester != null)
+			put(requester.getMailbox(), completed);
+	}
+
+	/**
+	 * add the {@link Broadcast} {@code b} to the message queues of all the
+	 * micro-services subscribed to {@code b.getClass()}.
+	 * <p>
+	 * The queues are taken from the {@link BroadcastRoute} snapshot of
+	 * {@code b.getClass()}, which already holds them resolved, so the
+	 * fan-out is a lock-free walk over an array.
+	 * <p>
+	 * 
+	 * @param b
+	 *            the message to add to the queues.
+	 */
 	public void sendBroadcast(Broadcast b) {
-		LinkedBlockingQueue<MicroService> queue = BroadcastSubscribers.get(b.getClass());
-		if (queue != null) {
-			for (MicroService service : queue) {
-				try {
-					PersonalMessageQueues.get(service.getName()).put(b);
-				} catch (InterruptedException e) {
-					e.printStackTrace();
-				}
-			}
+		BroadcastRoute route = BroadcastSubscribers.get(b.getClass());
+		if (route != null) {
+			Mailbox[] mailboxes = route.getMailboxes();
+			for (int i = 0; i < mailboxes.length; i++)
+				put(mailboxes[i], b);
 		}
 
 	}
 
 	/**
 	 * add the {@link Request} {@code r} to the message queue of one of the
-	 * micro-services subscribed to {@code r.getClass()} in a round-robin
-	 * fashion.
+	 * micro-services subscribed to {@code r.getClass()}, picked by the
+	 * {@link RoutingPolicy} of the type (round-robin by default).
+	 * <p>
+	 * This method takes no lock, the receiver is picked by
+	 * {@link RequestRoute#select(Request)} from an immutable snapshot of the
+	 * subscribers and their already resolved mailboxes, so concurrent senders
+	 * do not serialize on the bus.
 	 * <p>
 	 * 
 	 * @param r
@@ -112,53 +343,162 @@ public class MessageBusImpl implements MessageBus {
 	 * @return true if there was at least one micro-service subscribed to
 	 *         {@code r.getClass()} and false otherwise.
 	 */
-	public synchronized boolean sendRequest(Request<?> r, MicroService requester) {
-		RoundRobinList<MicroService> ls = RequestSubscribers.get(r.getClass());
-		if (ls != null && ls.size() > 0) {
-			try {
-				MicroService m = ls.select();
-				RequesterMessage.put(r, requester);
-				if (!RequestsSent.containsKey(requester.getName())) {
-					RequestsSent.put(requester.getName(), new LinkedBlockingQueue<Request>());
-				}
-				RequestsSent.get(requester.getName()).put(r);
-				PersonalMessageQueues.get(m.getName()).put(r);
-				return true;
-			} catch (InterruptedException e) {
-				e.printStackTrace();
-			}
+	public boolean sendRequest(Request<?> r, MicroService requester) {
+		return sendRequest(r, requester, null);
+	}
+
+	/**
+	 * add the {@link Request} {@code r} to the message queue of one of the
+	 * micro-services subscribed to {@code r.getClass()}, like
+	 * {@link #sendRequest(Request, MicroService)}, and keep {@code onComplete}
+	 * with it.
+	 * <p>
+	 * {@code r} takes a slot in the {@link RequestTable} holding its requester
+	 * and {@code onComplete}, and the slot id is stamped on {@code r}, so
+	 * {@link #complete} finds them with an array access. The slot is freed
+	 * when {@code r} is completed.
+	 * <p>
+	 * 
+	 * @param <T>
+	 *            the type of the result expected by {@code r}
+	 * @param r
+	 *            the request to add to the queue.
+	 * @param requester
+	 *            the {@link MicroService} sending {@code r}.
+	 * @param onComplete
+	 *            the callback to deliver with the result of {@code r}, may
+	 *            be null.
+	 * @return true if there was at least one micro-service subscribed to
+	 *         {@code r.getClass()} and false otherwise.
+	 */
+	public <T> boolean sendRequest(Request<T> r, MicroService requester, Callback<T> onComplete) {
+		return sendRequest(r, requester, onComplete, 0, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * add the {@link Request} {@code r} to the message queue of one of the
+	 * micro-services subscribed to {@code r.getClass()}, like
+	 * {@link #sendRequest(Request, MicroService, Callback)}, with a deadline.
+	 * <p>
+	 * The deadline is a task on the shared {@link HierarchicalTimerWheel},
+	 * with a resolution of a millisecond, attached to the
+	 * {@link RequestTable} slot of {@code r} and cancelled when {@code r} is
+	 * completed. When it expires first, the slot is freed, {@code r} is
+	 * removed from the receiver queue if still there (see
+	 * {@link Mailbox#purge}), and a timed out {@link RequestCompleted} is
+	 * added to the queue of {@code requester}. A receiver that already took
+	 * {@code r} still handles it, and its completion is ignored.
+	 * <p>
+	 * 
+	 * @param <T>
+	 *            the type of the result expected by {@code r}
+	 * @param r
+	 *            the request to add to the queue.
+	 * @param requester
+	 *            the {@link MicroService} sending {@code r}.
+	 * @param onComplete
+	 *            the callback to deliver with the result of {@code r}, may
+	 *            be null.
+	 * @param timeout
+	 *            the time {@code r} may take, zero or less for no deadline.
+	 * @param unit
+	 *            the unit of {@code timeout}.
+	 * @return true if there was at least one micro-service subscribed to
+	 *         {@code r.getClass()} and false otherwise.
+	 */
+	public <T> boolean sendRequest(Request<T> r, MicroService requester, Callback<T> onComplete, long timeout,
+			TimeUnit unit) {
+		RequestRoute route = RequestSubscribers.get(r.getClass());
+		Mailbox queue = route == null ? null : route.select(r);
+		ServiceRegistry.Entry entry = Services.get(requester);
+		if (queue != null && entry != null) {
+			long id = Requests.acquire(r, requester.getBusHandle(), entry.getSerial(), onComplete, queue);
+			// the deadline is attached before r is queued, so it is always
+			// there when r is completed
+			if (timeout > 0)
+				Requests.setTimeout(r, id, Timeouts.schedule(deadline -> expire(r, id), timeout, unit));
+			put(queue, r);
+			if (route.isWorkStealing())
+				route.wakeIdle(queue);
+			return true;
 		}
 
 		return false;
 	}
 
+	/**
+	 * allocates a {@link LinkedMailbox} for the {@link MicroService}
+	 * {@code m}.
+	 * <p>
+	 * 
+	 * @param m
+	 *            the micro-service to create a queue for.
+	 */
 	public void register(MicroService m) {
-		PersonalMessageQueues.put(m.getName(), new LinkedBlockingQueue<Message>());
+		register(m, new LinkedMailbox(Quiescence));
+	}
 
+	/**
+	 * registers {@code m} with {@code mailbox} as its message queue and
+	 * allocates a bus handle to it (see {@link ServiceRegistry}). If {@code m}
+	 * is already registered its current queue is kept.
+	 * <p>
+	 * 
+	 * @param m
+	 *            the micro-service to register.
+	 * @param mailbox
+	 *            the message queue to allocate to {@code m}.
+	 */
+	public void register(MicroService m, Mailbox mailbox) {
+		Services.register(m, mailbox);
+		BusMetrics metrics = Metrics;
+		if (metrics != null)
+			metrics.registered(m.getName(), Services.getMailbox(m));
 	}
 
 	public synchronized void unregister(MicroService m) {
-		LinkedBlockingQueue<Class<? extends Message>> types = PersonalSubscribes.get(m.getName());
-		if (types != null) {
-			for (Class<? extends Message> type : types) {
-				if (Broadcast.class.isAssignableFrom(type)) {
-					LinkedBlockingQueue<MicroService> queue = BroadcastSubscribers.get(type);
-					queue.remove(m);
-				} else {
-					if (Request.class.isAssignableFrom(type)) {
-						RoundRobinList<MicroService> queue = RequestSubscribers.get(type);
-						queue.remove(m);
-					}
+		int handle = m.getBusHandle();
+		ServiceRegistry.Entry entry = Services.unregister(m);
+		if (entry == null)
+			return;
+		entry.getMailbox().close();
+		BusMetrics metrics = Metrics;
+		if (metrics != null)
+			metrics.unregistered(entry.getMailbox());
+		for (Class<? extends Message> type : entry.getSubscriptions()) {
+			if (Broadcast.class.isAssignableFrom(type)) {
+				BroadcastSubscribers.get(type).remove(m);
+			} else {
+				if (Request.class.isAssignableFrom(type)) {
+					RequestSubscribers.get(type).remove(m);
 				}
 			}
-			PersonalSubscribes.remove(m.getName());
+			notifyUnsubscribed(type, m);
 		}
-		PersonalMessageQueues.remove(m.getName());
-		if (RequestsSent.containsKey(m.getName())) {
-			for (Request RequestSent : RequestsSent.get(m.getName())) {
-				RequesterMessage.remove(RequestSent);
+		release(entry, handle);
+	}
+
+	/**
+	 * frees the slots of the requests in flight sent to or by the
+	 * un-registered micro-service of {@code entry}: a request it will never
+	 * handle is timed out to its requester, and a request it will never get
+	 * the result of is cancelled.
+	 */
+	@SuppressWarnings("unchecked")
+	private void release(ServiceRegistry.Entry entry, int handle) {
+		for (Request<?> r : Requests.inFlight(entry.getMailbox(), handle, entry.getSerial())) {
+			RequestTable.Completion completion = Requests.release(r);
+			if (completion == null)
+				continue;
+			if (completion.getTimeout() != null)
+				completion.getTimeout().cancel();
+			if (completion.getReceiver() == entry.getMailbox()) {
+				completed(r, completion, true);
+				deliver(completion, new RequestCompleted<Object>((Request<Object>) r, null,
+						(Callback<Object>) completion.getCallback(), true));
+			} else {
+				completion.getReceiver().purge(r);
 			}
-			RequestsSent.remove(m.getName());
 		}
 	}
 
@@ -180,34 +520,339 @@ public class MessageBusImpl implements MessageBus {
 	 *             available.
 	 */
 	public Message awaitMessage(MicroService m) throws InterruptedException {
-		if (!PersonalMessageQueues.containsKey(m.getName()))
+		return getRegisteredEntry(m).getMailbox().take();
+	}
+
+	/**
+	 * using this method, a <b>registered</b> micro-service can take a batch
+	 * of messages from its allocated queue in a single operation. Up to
+	 * {@code max} messages are moved, in order, into {@code buffer}. This
+	 * method is blocking only if no messages are available in the
+	 * micro-service queue. The method should throw the
+	 * {@link IllegalStateException} in the case where {@code m} was never
+	 * registered.
+	 * <p>
+	 * The messages are moved using {@link Mailbox#drainTo}, which for the
+	 * default {@link LinkedMailbox} takes the queue lock once for the whole
+	 * batch.
+	 * <p>
+	 * If the queue of {@code m} is empty and {@code m} subscribed to request
+	 * types with {@link #setWorkStealing work stealing} enabled, {@code m}
+	 * steals a single pending request from its busiest sibling. While it has
+	 * nothing to do it parks, and is woken when a message is added to its
+	 * queue or a request of one of those types to a sibling's.
+	 * <p>
+	 * 
+	 * @param m
+	 *            the micro-service requesting to take messages from its
+	 *            message queue
+	 * @param buffer
+	 *            the collection to add the taken messages to
+	 * @param max
+	 *            the maximum number of messages to take, must be positive
+	 * @return the number of messages added to {@code buffer} (at least one)
+	 * @throws InterruptedException
+	 *             if interrupted while waiting for a message to became
+	 *             available.
+	 */
+	public int awaitMessages(MicroService m, Collection<? super Message> buffer, int max)
+			throws InterruptedException {
+		ServiceRegistry.Entry entry = getRegisteredEntry(m);
+		Mailbox queue = entry.getMailbox();
+		int drained = queue.drainTo(buffer, max);
+		if (drained > 0)
+			return drained;
+		List<RequestRoute> routes = queue instanceof LinkedMailbox ? getStealingRoutes(entry) : null;
+		if (routes == null || routes.isEmpty()) {
+			buffer.add(queue.take());
+			return 1 + queue.drainTo(buffer, max - 1);
+		}
+		LinkedMailbox own = (LinkedMailbox) queue;
+		own.setWaiter(Thread.currentThread());
+		try {
+			while (true) {
+				// registered as idle before looking, so a request sent
+				// meanwhile either is seen here or wakes this thread
+				for (RequestRoute route : routes)
+					route.addIdle(own);
+				Message next = own.poll();
+				if (next != null) {
+					buffer.add(next);
+					return 1 + queue.drainTo(buffer, max - 1);
+				}
+				Message stolen = steal(entry, own);
+				if (stolen != null) {
+					buffer.add(stolen);
+					return 1;
+				}
+				LockSupport.park(own);
+				for (RequestRoute route : routes)
+					route.removeIdle(own);
+				if (Thread.interrupted())
+					throw new InterruptedException();
+			}
+		} finally {
+			own.setWaiter(null);
+			for (RequestRoute route : routes)
+				route.removeIdle(own);
+		}
+	}
+
+	/**
+	 * using this method, a <b>registered</b> micro-service can take the
+	 * messages that are already waiting in its allocated queue, up to
+	 * {@code max} of them, in order, into {@code buffer}. This method never
+	 * waits, and never steals work from other micro-services. The method
+	 * should throw the {@link IllegalStateException} in the case where
+	 * {@code m} was never registered.
+	 * <p>
+	 * 
+	 * @param m
+	 *            the micro-service requesting to take messages from its
+	 *            message queue
+	 * @param buffer
+	 *            the collection to add the taken messages to
+	 * @param max
+	 *            the maximum number of messages to take
+	 * @return the number of messages added to {@code buffer}, possibly zero
+	 */
+	public int pollMessages(MicroService m, Collection<? super Message> buffer, int max) {
+		return getRegisteredEntry(m).getMailbox().drainTo(buffer, max);
+	}
+
+	/**
+	 * @return the routes of the request types the micro-service of
+	 *         {@code entry} subscribed to with work stealing enabled and
+	 *         other subscribers.
+	 */
+	private List<RequestRoute> getStealingRoutes(ServiceRegistry.Entry entry) {
+		List<RequestRoute> routes = new ArrayList<RequestRoute>();
+		for (Class<? extends Message> type : entry.getSubscriptions()) {
+			RequestRoute route = RequestSubscribers.get(type);
+			if (route != null && route.isWorkStealing() && route.size() > 1)
+				routes.add(route);
+		}
+		return routes;
+	}
+
+	/**
+	 * takes a pending request, of a type with work stealing enabled, from the
+	 * fullest queue of the other subscribers of that type. The slot of the
+	 * request, and its metrics, move to the queue of the thief.
+	 * 
+	 * @param entry
+	 *            the entry of the idle micro-service.
+	 * @param own
+	 *            the queue of the idle micro-service.
+	 * @return the stolen request, or null if there was nothing to steal.
+	 */
+	private Message steal(ServiceRegistry.Entry entry, LinkedMailbox own) {
+		for (Class<? extends Message> type : entry.getSubscriptions()) {
+			RequestRoute route = RequestSubscribers.get(type);
+			if (route == null || !route.isWorkStealing())
+				continue;
+			LinkedMailbox victim = null;
+			int victimSize = 0;
+			for (Mailbox mailbox : route.getMailboxes()) {
+				int size = mailbox.size();
+				if (mailbox != own && mailbox instanceof LinkedMailbox && size > victimSize) {
+					victim = (LinkedMailbox) mailbox;
+					victimSize = size;
+				}
+			}
+			Message stolen = victim == null ? null : victim.steal(type);
+			if (stolen != null) {
+				Requests.setReceiver((Request<?>) stolen, own);
+				BusMetrics metrics = Metrics;
+				if (metrics != null)
+					metrics.stolen(victim, own, stolen);
+				return stolen;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * @param m
+	 *            the micro-service whose registry entry is needed.
+	 * @return the registry entry of {@code m}.
+	 * @throws IllegalStateException
+	 *             if {@code m} is not registered.
+	 */
+	private ServiceRegistry.Entry getRegisteredEntry(MicroService m) {
+		ServiceRegistry.Entry entry = Services.get(m);
+		if (entry == null)
 			throw new IllegalStateException("MicroService " + m.getName() + " NOT Registered");
-		Message message = (PersonalMessageQueues.get(m.getName())).take();
-		return message;
+		return entry;
 	}
 
-	public ConcurrentHashMap<String, LinkedBlockingQueue<Message>> getPersonalMessageQueues() {
-		return PersonalMessageQueues;
+	/**
+	 * @param m
+	 *            a micro-service.
+	 * @return the message queue allocated to {@code m}, or null if {@code m}
+	 *         is not registered.
+	 */
+	public Mailbox getMailbox(MicroService m) {
+		return Services.getMailbox(m);
+	}
+
+	/**
+	 * @return the number of messages waiting in the queues of all the
+	 *         registered micro-services (see {@link ServiceRegistry#backlog()}).
+	 */
+	public int getBacklog() {
+		return Services.backlog();
+	}
+
+	/**
+	 * enables or disables quiescence tracking (see {@link QuiescenceTracker}
+	 * and {@link #whenQuiescent(Runnable)}). Only the default
+	 * {@link LinkedMailbox}es allocated after this call are tracked, so it
+	 * must be called before the micro-services register, and none of them
+	 * may use another kind of mailbox.
+	 * <p>
+	 * 
+	 * @param enabled
+	 *            true to track quiescence.
+	 */
+	public void setQuiescenceTracking(boolean enabled) {
+		Quiescence = enabled ? new QuiescenceTracker() : null;
+	}
+
+	/**
+	 * runs {@code task} once the message-bus is quiescent (see
+	 * {@link QuiescenceTracker#whenQuiescent(Runnable)}).
+	 * <p>
+	 * 
+	 * @param task
+	 *            the task to run.
+	 * @throws IllegalStateException
+	 *             if quiescence tracking is not enabled.
+	 */
+	public void whenQuiescent(Runnable task) {
+		QuiescenceTracker tracker = Quiescence;
+		if (tracker == null)
+			throw new IllegalStateException("Quiescence tracking is not enabled");
+		tracker.whenQuiescent(task);
+	}
+
+	/**
+	 * enables or disables the metrics of the messages (see
+	 * {@link BusMetrics}). Enabling them starts new empty metrics. Only the
+	 * micro-services registering after this call get mailbox counters, and
+	 * only the requests sent after it a round-trip time, so it should be
+	 * called before the micro-services register.
+	 * <p>
+	 * 
+	 * @param enabled
+	 *            true to keep metrics.
+	 */
+	public void setMetrics(boolean enabled) {
+		Metrics = enabled ? new BusMetrics() : null;
+		Requests.setTimed(Metrics != null || Tracer != null);
+	}
+
+	/**
+	 * @return the metrics of the messages, or null if they are not kept.
+	 */
+	public BusMetrics getMetrics() {
+		return Metrics;
+	}
+
+	/**
+	 * enables or disables the tracing of requests (see
+	 * {@link RequestTracer}). Enabling it starts a new empty ring of spans,
+	 * and the micro-services stamp the requests they send from now on with
+	 * their trace context.
+	 * <p>
+	 * 
+	 * @param capacity
+	 *            the number of spans kept, zero or less to disable tracing.
+	 */
+	public void setTracing(int capacity) {
+		Tracer = capacity > 0 ? new RequestTracer(capacity) : null;
+		Requests.setTimed(Metrics != null || Tracer != null);
+	}
+
+	/**
+	 * @return the spans of the traced requests, or null if requests are not
+	 *         traced.
+	 */
+	public RequestTracer getTracer() {
+		return Tracer;
+	}
+
+	public boolean isMetered() {
+		return Metrics != null || Tracer != null;
+	}
+
+	public boolean isTraced() {
+		return Tracer != null;
+	}
+
+	public void handled(MicroService m, Mailbox queue, Message msg, long startNanos, long endNanos) {
+		BusMetrics metrics = Metrics;
+		if (metrics != null)
+			metrics.handled(queue, msg, startNanos, endNanos);
+		RequestTracer tracer = Tracer;
+		if (tracer == null)
+			return;
+		if (msg instanceof Request)
+			tracer.record((Request<?>) msg, RequestTracer.Kind.HANDLE, m.getName(), startNanos, endNanos, false);
+		else if (msg instanceof RequestCompleted)
+			tracer.record(((RequestCompleted<?>) msg).getCompletedRequest(), RequestTracer.Kind.CALLBACK,
+					m.getName(), startNanos, endNanos, false);
+	}
+
+	/**
+	 * sets the listener notified of every subscription change, replacing the
+	 * current one.
+	 * <p>
+	 * 
+	 * @param listener
+	 *            the listener, or null for none.
+	 */
+	public void setSubscriptionListener(SubscriptionListener listener) {
+		Listener = listener;
+	}
+
+	private void notifySubscribed(Class<? extends Message> type, MicroService m) {
+		SubscriptionListener listener = Listener;
+		if (listener != null)
+			listener.subscribed(type, m);
+	}
+
+	private void notifyUnsubscribed(Class<? extends Message> type, MicroService m) {
+		SubscriptionListener listener = Listener;
+		if (listener != null)
+			listener.unsubscribed(type, m);
+	}
+
+	/**
+	 * @return the quiescence tracker, or null if quiescence is not tracked.
+	 */
+	public QuiescenceTracker getQuiescence() {
+		return Quiescence;
 	}
 
-	public ConcurrentHashMap<String, LinkedBlockingQueue<Class<? extends Message>>> getPersonalSubscribes() {
-		return PersonalSubscribes;
+	public ServiceRegistry getServices() {
+		return Services;
 	}
 
-	public ConcurrentHashMap<Class<? extends Request>, RoundRobinList<MicroService>> getRequestSubscribers() {
+	public ConcurrentHashMap<Class<? extends Request>, RequestRoute> getRequestSubscribers() {
 		return RequestSubscribers;
 	}
 
-	public ConcurrentHashMap<Class<? extends Broadcast>, LinkedBlockingQueue<MicroService>> getBroadcastSubscribers() {
+	public ConcurrentHashMap<Class<? extends Broadcast>, BroadcastRoute> getBroadcastSubscribers() {
 		return BroadcastSubscribers;
 	}
 
-	public ConcurrentHashMap<Request, MicroService> getRequesterMessage() {
-		return RequesterMessage;
+	public RequestTable getRequests() {
+		return Requests;
 	}
 
-	public ConcurrentHashMap<String, LinkedBlockingQueue<Request>> getRequestsSent() {
-		return RequestsSent;
+	public HierarchicalTimerWheel getTimeouts() {
+		return Timeouts;
 	}
 
 }
\ No newline at end of file
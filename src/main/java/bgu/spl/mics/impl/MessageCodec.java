@@ -0,0 +1,654 @@
+package bgu.spl.mics.impl;
+
+import java.nio.BufferOverflowException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+
+import bgu.spl.mics.Request;
+import bgu.spl.mics.RequestCompleted;
+
+/**
+ * A compact binary codec for the messages sent out of the process, e.g., by
+ * a {@link BusNode}.
+ * <p>
+ * Every class is registered with a tag and a {@link Format} that writes and
+ * reads its fields, the codec writes the tag before the fields of a value so
+ * it knows which format reads it back. Both sides must register the same
+ * classes with the same tags. The tags below {@link #FIRST_TAG} are taken by
+ * null, {@link Boolean}, {@link Integer}, {@link Long}, {@link String} and
+ * {@link RequestCompleted}, the id and the trace context of a
+ * {@link Request} are written by the codec itself, so a traced request keeps
+ * its trace in the process that handles it. A class that is not registered is written by the fallback
+ * format, if one was set.
+ * <p>
+ * The numbers are zigzag varints, so a small number takes a byte whatever
+ * its sign. A symbol, a string that is repeated from message to message
+ * like a shoe type or a service name, is written in full the first time
+ * only, and then by its index in a dictionary both sides build as they go.
+ * The dictionary is the state of a stream: an {@link Encoder} and the
+ * {@link Decoder} reading what it wrote must see the same messages in the
+ * same order, and a new stream takes a new pair.
+ * <p>
+ * Encoding allocates nothing once the symbols are known, and decoding
+ * allocates only the decoded objects: a known symbol is read back as the
+ * same {@link String} instance.
+ */
+public class MessageCodec {
+	/**
+	 * the first tag free for the registered classes.
+	 */
+	public static final int FIRST_TAG = 16;
+	/**
+	 * the largest number of symbols of a stream, later ones are written in
+	 * full every time.
+	 */
+	public static final int MAX_SYMBOLS = 4096;
+
+	private static final int NULL = 0;
+	private static final int FALLBACK = 1;
+	private static final int BOOLEAN = 2;
+	private static final int INTEGER = 3;
+	private static final int LONG = 4;
+	private static final int STRING = 5;
+	private static final int REQUEST_COMPLETED = 6;
+
+	/**
+	 * Writes and reads the fields of a class.
+	 *
+	 * @param <T>
+	 *            the class.
+	 */
+	public interface Format<T> {
+		/**
+		 * writes the fields of {@code value}.
+		 */
+		void write(T value, Encoder out);
+
+		/**
+		 * reads the fields written by {@link #write}.
+		 *
+		 * @return the value.
+		 */
+		T read(Decoder in);
+
+		/**
+		 * @return the {@link Format} made of {@code writer} and
+		 *         {@code reader}.
+		 */
+		static <T> Format<T> of(BiConsumer<T, Encoder> writer, Function<Decoder, T> reader) {
+			return new Format<T>() {
+				@Override
+				public void write(T value, Encoder out) {
+					writer.accept(value, out);
+				}
+
+				@Override
+				public T read(Decoder in) {
+					return reader.apply(in);
+				}
+			};
+		}
+	}
+
+	private static final class Registration {
+		private final int tag;
+		private final Format<Object> format;
+		/**
+		 * boolean - true if the class is a {@link Request}, whose id is
+		 * written before its fields.
+		 */
+		private final boolean request;
+
+		@SuppressWarnings("unchecked")
+		private Registration(Class<?> type, int tag, Format<?> format) {
+			this.tag = tag;
+			this.format = (Format<Object>) format;
+			this.request = Request.class.isAssignableFrom(type);
+		}
+	}
+
+	/**
+	 * ConcurrentHashMap - the registrations by class.
+	 */
+	private final ConcurrentHashMap<Class<?>, Registration> byClass;
+	/**
+	 * Registration[] - the registrations by tag, replaced by a larger copy
+	 * when a larger tag is registered.
+	 */
+	private volatile Registration[] byTag;
+	private volatile Format<Object> fallback;
+
+	/**
+	 * Creates a new {@link MessageCodec} knowing the built-in classes only.
+	 */
+	public MessageCodec() {
+		this.byClass = new ConcurrentHashMap<Class<?>, Registration>();
+		this.byTag = new Registration[FIRST_TAG];
+		put(Boolean.class, BOOLEAN, Format.of((b, out) -> out.writeBoolean(b), in -> in.readBoolean()));
+		put(Integer.class, INTEGER, Format.of((i, out) -> out.writeInt(i), in -> in.readInt()));
+		put(Long.class, LONG, Format.of((l, out) -> out.writeLong(l), in -> in.readLong()));
+		put(String.class, STRING, Format.of((s, out) -> out.writeString(s), in -> in.readString()));
+		put(RequestCompleted.class, REQUEST_COMPLETED, Format.of(MessageCodec::writeCompleted,
+				MessageCodec::readCompleted));
+	}
+
+	/**
+	 * registers {@code type}, must be called before the encoders and
+	 * decoders of the codec are used.
+	 *
+	 * @param <T>
+	 *            the class.
+	 * @param type
+	 *            the class, its subclasses must be registered on their own.
+	 * @param tag
+	 *            the tag written before the values of {@code type}, at least
+	 *            {@link #FIRST_TAG}.
+	 * @param format
+	 *            writes and reads the fields of {@code type}.
+	 * @throws IllegalArgumentException
+	 *             if the tag is reserved or taken, or the class is already
+	 *             registered.
+	 */
+	public synchronized <T> void register(Class<T> type, int tag, Format<T> format) {
+		if (tag < FIRST_TAG)
+			throw new IllegalArgumentException("Tag " + tag + " is reserved");
+		if (tag < byTag.length && byTag[tag] != null)
+			throw new IllegalArgumentException("Tag " + tag + " is taken");
+		if (byClass.containsKey(type))
+			throw new IllegalArgumentException(type.getName() + " is already registered");
+		put(type, tag, format);
+	}
+
+	/**
+	 * sets the format of the classes that are not registered. It writes the
+	 * class of the value itself, e.g., as a symbol.
+	 *
+	 * @param fallback
+	 *            the format, null to reject the classes that are not
+	 *            registered.
+	 */
+	public void setFallback(Format<Object> fallback) {
+		this.fallback = fallback;
+	}
+
+	/**
+	 * @return true if a fallback format was set.
+	 */
+	public boolean hasFallback() {
+		return fallback != null;
+	}
+
+	/**
+	 * @return a new {@link Encoder}, the start of a stream.
+	 */
+	public Encoder newEncoder() {
+		return new Encoder();
+	}
+
+	/**
+	 * @return a new {@link Decoder}, the start of a stream.
+	 */
+	public Decoder newDecoder() {
+		return new Decoder();
+	}
+
+	private void put(Class<?> type, int tag, Format<?> format) {
+		Registration registration = new Registration(type, tag, format);
+		Registration[] registrations = byTag;
+		if (tag >= registrations.length) {
+			Registration[] larger = new Registration[Math.max(tag + 1, 2 * registrations.length)];
+			System.arraycopy(registrations, 0, larger, 0, registrations.length);
+			registrations = larger;
+		}
+		registrations[tag] = registration;
+		byTag = registrations;
+		byClass.put(type, registration);
+	}
+
+	@SuppressWarnings("rawtypes")
+	private static void writeCompleted(RequestCompleted completed, Encoder out) {
+		out.writeObject(completed.getCompletedRequest());
+		out.writeObject(completed.getResult());
+		out.writeBoolean(completed.isTimedOut());
+	}
+
+	@SuppressWarnings({ "rawtypes", "unchecked" })
+	private static RequestCompleted readCompleted(Decoder in) {
+		Request completed = (Request) in.readObject();
+		Object result = in.readObject();
+		// the callback is not sent, the receiver completes by request id
+		return new RequestCompleted(completed, result, null, in.readBoolean());
+	}
+
+	/**
+	 * Writes the values of a stream, used by one thread at a time.
+	 */
+	public final class Encoder {
+		private final Format<Object> object = Format.of((value, out) -> out.writeObject(value), null);
+		/**
+		 * Map - the index of every symbol written so far.
+		 */
+		private final Map<String, Integer> symbols;
+		/**
+		 * List - the symbols in the order they were written, to forget the
+		 * symbols of a value that did not fit.
+		 */
+		private final List<String> order;
+		private ByteBuffer out;
+		/**
+		 * ByteBuffer - reused by {@link #encode(Object)}, and grown when a
+		 * value does not fit.
+		 */
+		private ByteBuffer scratch;
+
+		private Encoder() {
+			this.symbols = new HashMap<String, Integer>();
+			this.order = new ArrayList<String>();
+			this.scratch = ByteBuffer.allocate(256);
+		}
+
+		/**
+		 * writes the tag and the fields of {@code value}.
+		 *
+		 * @param value
+		 *            the value, may be null.
+		 * @param buffer
+		 *            the buffer to write to.
+		 * @throws BufferOverflowException
+		 *             if the value does not fit in {@code buffer}, which is
+		 *             then left as it was.
+		 * @throws IllegalArgumentException
+		 *             if the class of the value is not registered and there
+		 *             is no fallback.
+		 */
+		public void encode(Object value, ByteBuffer buffer) {
+			encode(value, object, buffer);
+		}
+
+		/**
+		 * writes the fields of {@code value} with {@code format}, without a
+		 * tag.
+		 *
+		 * @see #encode(Object, ByteBuffer)
+		 */
+		public <T> void encode(T value, Format<T> format, ByteBuffer buffer) {
+			int position = buffer.position();
+			int known = order.size();
+			out = buffer;
+			try {
+				format.write(value, this);
+			} catch (BufferOverflowException | IllegalArgumentException e) {
+				buffer.position(position);
+				while (order.size() > known)
+					symbols.remove(order.remove(order.size() - 1));
+				throw e;
+			} finally {
+				out = null;
+			}
+		}
+
+		/**
+		 * writes the tag and the fields of {@code value} into a buffer owned
+		 * by the encoder.
+		 *
+		 * @return the buffer, ready to be read, valid until the next call.
+		 */
+		public ByteBuffer encode(Object value) {
+			return encode(value, object);
+		}
+
+		/**
+		 * writes the fields of {@code value} with {@code format}, without a
+		 * tag, into a buffer owned by the encoder.
+		 *
+		 * @return the buffer, ready to be read, valid until the next call.
+		 */
+		public <T> ByteBuffer encode(T value, Format<T> format) {
+			return encode(value, format, Integer.MAX_VALUE);
+		}
+
+		/**
+		 * writes the fields of {@code value} with {@code format}, without a
+		 * tag, into a buffer owned by the encoder, in at most {@code limit}
+		 * bytes.
+		 *
+		 * @return the buffer, ready to be read, valid until the next call.
+		 * @throws BufferOverflowException
+		 *             if the value takes more than {@code limit} bytes, the
+		 *             stream is then left as it was.
+		 */
+		public <T> ByteBuffer encode(T value, Format<T> format, int limit) {
+			while (true) {
+				scratch.clear();
+				scratch.limit(Math.min(scratch.capacity(), limit));
+				try {
+					encode(value, format, scratch);
+					scratch.flip();
+					return scratch;
+				} catch (BufferOverflowException e) {
+					if (scratch.capacity() >= limit)
+						throw e;
+					scratch = ByteBuffer.allocate((int) Math.min(2L * scratch.capacity(), limit));
+				}
+			}
+		}
+
+		/**
+		 * writes {@code value} as a zigzag varint, from 1 to 5 bytes.
+		 */
+		public void writeInt(int value) {
+			writeVarint((value << 1) ^ (value >> 31));
+		}
+
+		/**
+		 * writes {@code value} as a zigzag varint, from 1 to 10 bytes.
+		 */
+		public void writeLong(long value) {
+			long zigzag = (value << 1) ^ (value >> 63);
+			while ((zigzag & ~0x7FL) != 0) {
+				out.put((byte) ((zigzag & 0x7F) | 0x80));
+				zigzag >>>= 7;
+			}
+			out.put((byte) zigzag);
+		}
+
+		/**
+		 * writes {@code value} as one byte, 1 or 0.
+		 */
+		public void writeBoolean(boolean value) {
+			out.put((byte) (value ? 1 : 0));
+		}
+
+		/**
+		 * writes {@code value}, which may be null, in full.
+		 */
+		public void writeString(String value) {
+			if (value == null) {
+				writeVarint(0);
+				return;
+			}
+			writeVarint(utf8Length(value) + 1);
+			writeUtf8(value);
+		}
+
+		/**
+		 * writes {@code value}, which may be null, by its index if it was
+		 * written before in the stream.
+		 */
+		public void writeSymbol(String value) {
+			if (value == null) {
+				writeVarint(0);
+				return;
+			}
+			Integer index = symbols.get(value);
+			if (index != null) {
+				writeVarint(index + 2);
+				return;
+			}
+			writeVarint(1);
+			writeVarint(utf8Length(value));
+			writeUtf8(value);
+			if (order.size() < MAX_SYMBOLS) {
+				symbols.put(value, order.size());
+				order.add(value);
+			}
+		}
+
+		/**
+		 * writes the tag and the fields of {@code value}, which may be null.
+		 *
+		 * @throws IllegalArgumentException
+		 *             if the class of the value is not registered and there
+		 *             is no fallback.
+		 */
+		public void writeObject(Object value) {
+			if (value == null) {
+				writeVarint(NULL);
+				return;
+			}
+			Registration registration = byClass.get(value.getClass());
+			if (registration == null) {
+				Format<Object> format = fallback;
+				if (format == null)
+					throw new IllegalArgumentException(value.getClass().getName() + " is not registered");
+				writeVarint(FALLBACK);
+				format.write(value, this);
+				return;
+			}
+			writeVarint(registration.tag);
+			if (registration.request) {
+				Request<?> r = (Request<?>) value;
+				writeLong(r.getRequestId());
+				writeLong(r.getTraceId());
+				writeLong(r.getSpanId());
+				writeLong(r.getParentSpanId());
+			}
+			registration.format.write(value, this);
+		}
+
+		private void writeVarint(int value) {
+			while ((value & ~0x7F) != 0) {
+				out.put((byte) ((value & 0x7F) | 0x80));
+				value >>>= 7;
+			}
+			out.put((byte) value);
+		}
+
+		private void writeUtf8(String value) {
+			for (int i = 0; i < value.length(); i++) {
+				char c = value.charAt(i);
+				if (c < 0x80) {
+					out.put((byte) c);
+				} else if (c < 0x800) {
+					out.put((byte) (0xC0 | (c >> 6)));
+					out.put((byte) (0x80 | (c & 0x3F)));
+				} else if (Character.isHighSurrogate(c) && i + 1 < value.length()
+						&& Character.isLowSurrogate(value.charAt(i + 1))) {
+					int code = Character.toCodePoint(c, value.charAt(++i));
+					out.put((byte) (0xF0 | (code >> 18)));
+					out.put((byte) (0x80 | ((code >> 12) & 0x3F)));
+					out.put((byte) (0x80 | ((code >> 6) & 0x3F)));
+					out.put((byte) (0x80 | (code & 0x3F)));
+				} else {
+					// a lone surrogate is written as is, like a 3 bytes char
+					out.put((byte) (0xE0 | (c >> 12)));
+					out.put((byte) (0x80 | ((c >> 6) & 0x3F)));
+					out.put((byte) (0x80 | (c & 0x3F)));
+				}
+			}
+		}
+
+		private int utf8Length(String value) {
+			int length = 0;
+			for (int i = 0; i < value.length(); i++) {
+				char c = value.charAt(i);
+				if (c < 0x80) {
+					length++;
+				} else if (c < 0x800) {
+					length += 2;
+				} else if (Character.isHighSurrogate(c) && i + 1 < value.length()
+						&& Character.isLowSurrogate(value.charAt(i + 1))) {
+					length += 4;
+					i++;
+				} else {
+					length += 3;
+				}
+			}
+			return length;
+		}
+	}
+
+	/**
+	 * Reads the values of a stream written by an {@link Encoder}, used by one
+	 * thread at a time.
+	 */
+	public final class Decoder {
+		private final Format<Object> object = Format.of(null, in -> in.readObject());
+		/**
+		 * List - the symbols read so far, by index.
+		 */
+		private final List<String> symbols;
+		private ByteBuffer in;
+		/**
+		 * byte[] - reused to copy the bytes of a string out of a direct
+		 * buffer.
+		 */
+		private byte[] scratch;
+
+		private Decoder() {
+			this.symbols = new ArrayList<String>();
+			this.scratch = new byte[256];
+		}
+
+		/**
+		 * reads a value written by {@link Encoder#encode(Object, ByteBuffer)}.
+		 *
+		 * @param buffer
+		 *            the buffer to read from, holding the whole value.
+		 * @return the value.
+		 * @throws BufferUnderflowException
+		 *             if the buffer ends before the value.
+		 * @throws IllegalArgumentException
+		 *             if the value has an unknown tag.
+		 */
+		public Object decode(ByteBuffer buffer) {
+			return decode(buffer, object);
+		}
+
+		/**
+		 * reads a value written by
+		 * {@link Encoder#encode(Object, Format, ByteBuffer)}.
+		 *
+		 * @see #decode(ByteBuffer)
+		 */
+		public <T> T decode(ByteBuffer buffer, Format<T> format) {
+			in = buffer;
+			try {
+				return format.read(this);
+			} finally {
+				in = null;
+			}
+		}
+
+		/**
+		 * reads a value written by {@link Encoder#writeInt}.
+		 */
+		public int readInt() {
+			int zigzag = readVarint();
+			return (zigzag >>> 1) ^ -(zigzag & 1);
+		}
+
+		/**
+		 * reads a value written by {@link Encoder#writeLong}.
+		 */
+		public long readLong() {
+			long zigzag = 0;
+			for (int shift = 0;; shift += 7) {
+				byte b = in.get();
+				zigzag |= (long) (b & 0x7F) << shift;
+				if (b >= 0)
+					break;
+			}
+			return (zigzag >>> 1) ^ -(zigzag & 1);
+		}
+
+		/**
+		 * reads a value written by {@link Encoder#writeBoolean}.
+		 */
+		public boolean readBoolean() {
+			return in.get() != 0;
+		}
+
+		/**
+		 * reads a value written by {@link Encoder#writeString}, may be null.
+		 */
+		public String readString() {
+			int length = readVarint();
+			return length == 0 ? null : readUtf8(length - 1);
+		}
+
+		/**
+		 * reads a value written by {@link Encoder#writeSymbol}, may be null.
+		 *
+		 * @throws IllegalArgumentException
+		 *             if it refers to a symbol not read before.
+		 */
+		public String readSymbol() {
+			int index = readVarint();
+			if (index == 0)
+				return null;
+			if (index > 1) {
+				if (index - 2 >= symbols.size())
+					throw new IllegalArgumentException("Unknown symbol " + (index - 2));
+				return symbols.get(index - 2);
+			}
+			String symbol = readUtf8(readVarint());
+			if (symbols.size() < MAX_SYMBOLS)
+				symbols.add(symbol);
+			return symbol;
+		}
+
+		/**
+		 * reads a value written by {@link Encoder#writeObject}.
+		 */
+		public Object readObject() {
+			int tag = readVarint();
+			if (tag == NULL)
+				return null;
+			if (tag == FALLBACK) {
+				Format<Object> format = fallback;
+				if (format == null)
+					throw new IllegalArgumentException("No fallback format");
+				return format.read(this);
+			}
+			Registration[] registrations = byTag;
+			Registration registration = tag < registrations.length ? registrations[tag] : null;
+			if (registration == null)
+				throw new IllegalArgumentException("Unknown tag " + tag);
+			if (!registration.request)
+				return registration.format.read(this);
+			long requestId = readLong();
+			long traceId = readLong();
+			long spanId = readLong();
+			long parentSpanId = readLong();
+			Request<?> request = (Request<?>) registration.format.read(this);
+			request.setRequestId(requestId);
+			request.setTrace(traceId, spanId, parentSpanId);
+			return request;
+		}
+
+		private int readVarint() {
+			int value = 0;
+			for (int shift = 0;; shift += 7) {
+				byte b = in.get();
+				value |= (b & 0x7F) << shift;
+				if (b >= 0)
+					return value;
+			}
+		}
+
+		private String readUtf8(int length) {
+			if (in.remaining() < length)
+				throw new BufferUnderflowException();
+			String value;
+			if (in.hasArray()) {
+				value = new String(in.array(), in.arrayOffset() + in.position(), length, StandardCharsets.UTF_8);
+				in.position(in.position() + length);
+			} else {
+				if (scratch.length < length)
+					scratch = new byte[Math.max(length, 2 * scratch.length)];
+				in.get(scratch, 0, length);
+				value = new String(scratch, 0, length, StandardCharsets.UTF_8);
+			}
+			return value;
+		}
+	}
+}
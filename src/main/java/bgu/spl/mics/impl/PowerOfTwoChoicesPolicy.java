@@ -0,0 +1,32 @@
+package bgu.spl.mics.impl;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+import bgu.spl.mics.Mailbox;
+import bgu.spl.mics.MicroService;
+import bgu.spl.mics.Request;
+
+/**
+ * A {@link RoutingPolicy} picking two different subscribers at random and
+ * handing the request to the one with the lower {@link RoutingPolicy#load
+ * load}. Selecting costs two load reads whatever the number of subscribers,
+ * and avoids overloaded subscribers almost as well as
+ * {@link LeastLoadedPolicy}, without making all the concurrent senders pick
+ * the same least loaded subscriber at once.
+ */
+public class PowerOfTwoChoicesPolicy implements RoutingPolicy {
+
+	@Override
+	public int select(Request<?> r, MicroService[] subscribers, Mailbox[] mailboxes) {
+		int n = subscribers.length;
+		if (n == 1)
+			return 0;
+		ThreadLocalRandom random = ThreadLocalRandom.current();
+		int first = random.nextInt(n);
+		// a second index, different from the first
+		int second = (first + 1 + random.nextInt(n - 1)) % n;
+		return RoutingPolicy.load(subscribers[second], mailboxes[second]) < RoutingPolicy.load(subscribers[first],
+				mailboxes[first]) ? second : first;
+	}
+
+}
@@ -0,0 +1,86 @@
+package bgu.spl.mics.impl;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counts the messages added to the tracked mailboxes and not handled yet,
+ * messages being handled included, so the message-bus can tell when it is
+ * quiescent: every queue is empty and no micro-service is inside a callback.
+ * <p>
+ * A message is counted when it is added to a {@link LinkedMailbox} created
+ * with this tracker, and uncounted when its micro-service finished handling
+ * the batch it was taken in (see {@link bgu.spl.mics.Mailbox#handled(int)}),
+ * or when it is dropped from the mailbox. A callback that sends messages
+ * counts them before its own message is uncounted, so the count reaches zero
+ * only when the work triggered by the messages sent so far is done.
+ */
+public class QuiescenceTracker {
+	/**
+	 * AtomicLong - the number of messages added and not handled yet.
+	 */
+	private final AtomicLong outstanding;
+	/**
+	 * ConcurrentLinkedQueue - the tasks to run at the next quiescence.
+	 */
+	private final ConcurrentLinkedQueue<Runnable> waiting;
+
+	/**
+	 * Creates a new {@link QuiescenceTracker}.
+	 */
+	public QuiescenceTracker() {
+		this.outstanding = new AtomicLong();
+		this.waiting = new ConcurrentLinkedQueue<Runnable>();
+	}
+
+	/**
+	 * counts a message added to a tracked mailbox.
+	 */
+	public void sent() {
+		outstanding.incrementAndGet();
+	}
+
+	/**
+	 * uncounts {@code count} messages that were handled or dropped, and runs
+	 * the waiting tasks if none is left.
+	 *
+	 * @param count
+	 *            the number of messages.
+	 */
+	public void handled(int count) {
+		if (count > 0 && outstanding.addAndGet(-count) == 0)
+			runWaiting();
+	}
+
+	/**
+	 * runs {@code task} once no message is outstanding, right away, in the
+	 * calling thread, if none is. Otherwise it is run by the thread handling
+	 * the last outstanding message, so it must be short.
+	 * <p>
+	 * Only the micro-services add messages while some are outstanding, but a
+	 * thread that is not a micro-service (e.g., a timer) may add a message
+	 * right after the count was seen at zero, in which case {@code task}
+	 * runs anyway.
+	 *
+	 * @param task
+	 *            the task to run.
+	 */
+	public void whenQuiescent(Runnable task) {
+		waiting.add(task);
+		if (outstanding.get() == 0)
+			runWaiting();
+	}
+
+	/**
+	 * @return the number of messages added and not handled yet.
+	 */
+	public long getOutstanding() {
+		return outstanding.get();
+	}
+
+	private void runWaiting() {
+		Runnable task;
+		while ((task = waiting.poll()) != null)
+			task.run();
+	}
+}
@@ -0,0 +1,215 @@
+package bgu.spl.mics.impl;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import bgu.spl.mics.Mailbox;
+import bgu.spl.mics.MicroService;
+import bgu.spl.mics.Request;
+
+/**
+ * The routing table entry of a single {@link Request} type. It holds the
+ * subscribed micro-services together with their already resolved message
+ * queues, in an immutable snapshot that is rebuilt only when a micro-service
+ * subscribes or un-registers, and the {@link RoutingPolicy} that picks the
+ * receiver of every sent request.
+ * <p>
+ * Selecting a receiver takes no lock and needs no per-subscriber lookup.
+ */
+public class RequestRoute {
+
+	/**
+	 * The subscribers and their message queues, replaced as a whole so a
+	 * reader always sees arrays of the same length.
+	 */
+	private static final class Targets {
+		private final MicroService[] subscribers;
+		private final Mailbox[] mailboxes;
+
+		private Targets(MicroService[] subscribers, Mailbox[] mailboxes) {
+			this.subscribers = subscribers;
+			this.mailboxes = mailboxes;
+		}
+	}
+
+	/**
+	 * Targets - the current subscribers snapshot, in subscription order.
+	 */
+	private volatile Targets targets;
+	/**
+	 * RoutingPolicy - picks the receiver of every sent request.
+	 */
+	private volatile RoutingPolicy policy;
+	/**
+	 * boolean - true if idle subscribers may steal pending requests of this
+	 * type from the mailboxes of busy subscribers.
+	 */
+	private volatile boolean workStealing;
+	/**
+	 * ConcurrentLinkedQueue - the mailboxes of the subscribers parked with
+	 * nothing to do, that may steal a request of this type.
+	 */
+	private final ConcurrentLinkedQueue<LinkedMailbox> idle;
+
+	/**
+	 * Creates a new empty {@link RequestRoute} using a
+	 * {@link RoundRobinPolicy}.
+	 */
+	public RequestRoute() {
+		this.targets = new Targets(new MicroService[0], new Mailbox[0]);
+		this.policy = new RoundRobinPolicy();
+		this.idle = new ConcurrentLinkedQueue<LinkedMailbox>();
+	}
+
+	/**
+	 * @param r
+	 *            the sent request.
+	 * @return the message queue of the subscriber the {@link #policy}
+	 *         picked for {@code r}, or null if there are no subscribers.
+	 */
+	public Mailbox select(Request<?> r) {
+		Targets snapshot = targets;
+		if (snapshot.subscribers.length == 0)
+			return null;
+		return snapshot.mailboxes[policy.select(r, snapshot.subscribers, snapshot.mailboxes)];
+	}
+
+	/**
+	 * Adds {@code m} and its message queue to the end of the route.
+	 *
+	 * @param m
+	 *            the subscribing micro-service.
+	 * @param mailbox
+	 *            the message queue of {@code m}.
+	 */
+	public synchronized void add(MicroService m, Mailbox mailbox) {
+		Targets current = targets;
+		MicroService[] nextSubscribers = Arrays.copyOf(current.subscribers, current.subscribers.length + 1);
+		Mailbox[] nextMailboxes = Arrays.copyOf(current.mailboxes, current.mailboxes.length + 1);
+		nextSubscribers[current.subscribers.length] = m;
+		nextMailboxes[current.mailboxes.length] = mailbox;
+		targets = new Targets(nextSubscribers, nextMailboxes);
+	}
+
+	/**
+	 * Removes {@code m} from the route, if it is there.
+	 *
+	 * @param m
+	 *            the micro-service to remove.
+	 */
+	public synchronized void remove(MicroService m) {
+		Targets current = targets;
+		int index = indexOf(current, m);
+		if (index == -1)
+			return;
+		MicroService[] nextSubscribers = new MicroService[current.subscribers.length - 1];
+		Mailbox[] nextMailboxes = new Mailbox[current.mailboxes.length - 1];
+		for (int i = 0, j = 0; i < current.subscribers.length; i++) {
+			if (i != index) {
+				nextSubscribers[j] = current.subscribers[i];
+				nextMailboxes[j] = current.mailboxes[i];
+				j++;
+			}
+		}
+		targets = new Targets(nextSubscribers, nextMailboxes);
+	}
+
+	/**
+	 * @param m
+	 *            the checked micro-service.
+	 * @return true if {@code m} is subscribed to this route.
+	 */
+	public boolean contains(MicroService m) {
+		return indexOf(targets, m) != -1;
+	}
+
+	/**
+	 * @return the number of subscribers.
+	 */
+	public int size() {
+		return targets.subscribers.length;
+	}
+
+	/**
+	 * @return the current subscribers snapshot, must not be modified.
+	 */
+	public MicroService[] getSubscribers() {
+		return targets.subscribers;
+	}
+
+	/**
+	 * @return the current message queues snapshot, must not be modified.
+	 */
+	public Mailbox[] getMailboxes() {
+		return targets.mailboxes;
+	}
+
+	/**
+	 * @return the {@link #policy}.
+	 */
+	public RoutingPolicy getPolicy() {
+		return policy;
+	}
+
+	/**
+	 * @param policy
+	 *            the {@link #policy} to set.
+	 */
+	public void setPolicy(RoutingPolicy policy) {
+		this.policy = policy;
+	}
+
+	/**
+	 * @return the {@link #workStealing}.
+	 */
+	public boolean isWorkStealing() {
+		return workStealing;
+	}
+
+	/**
+	 * @param workStealing
+	 *            the {@link #workStealing} to set.
+	 */
+	public void setWorkStealing(boolean workStealing) {
+		this.workStealing = workStealing;
+	}
+
+	/**
+	 * @param mailbox
+	 *            the mailbox of a subscriber about to park until a request is
+	 *            sent to it or to a sibling.
+	 */
+	public void addIdle(LinkedMailbox mailbox) {
+		idle.add(mailbox);
+	}
+
+	/**
+	 * @param mailbox
+	 *            the mailbox of a subscriber that is no longer parked.
+	 */
+	public void removeIdle(LinkedMailbox mailbox) {
+		idle.remove(mailbox);
+	}
+
+	/**
+	 * wakes a parked subscriber, after a request was added to
+	 * {@code receiver}, so it can steal it if the receiver is busy. The
+	 * receiver itself is woken by its own mailbox, and then takes the
+	 * request before any thief would.
+	 *
+	 * @param receiver
+	 *            the message queue the request was added to.
+	 */
+	public void wakeIdle(Mailbox receiver) {
+		LinkedMailbox thief = idle.poll();
+		if (thief != null && thief != receiver)
+			thief.wake();
+	}
+
+	private static int indexOf(Targets snapshot, MicroService m) {
+		for (int i = 0; i < snapshot.subscribers.length; i++)
+			if (snapshot.subscribers[i] == m)
+				return i;
+		return -1;
+	}
+}
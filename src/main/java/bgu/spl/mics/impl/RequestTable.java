@@ -0,0 +1,402 @@
+package bgu.spl.mics.impl;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import bgu.spl.mics.Callback;
+import bgu.spl.mics.Mailbox;
+import bgu.spl.mics.Request;
+
+/**
+ * The table of the requests that were sent through the {@link MessageBusImpl}
+ * and not completed yet. Every in-flight request occupies a slot, and the id
+ * of the slot is stamped on the request (see {@link Request#getRequestId()}),
+ * so completing a request is an array access instead of a map lookup.
+ * <p>
+ * A slot holds the handle and the registration serial of the requester (see
+ * {@link ServiceRegistry}), the callback to run on completion, the mailbox
+ * the request was sent to and its deadline timer, if it has one. Slots are
+ * kept in primitive arrays, allocated in segments of {@link #SEGMENT_SIZE},
+ * and recycled through a lock-free free-list as soon as their request is
+ * completed, so the table does not grow under sustained load. Every time a
+ * slot is recycled its generation is increased; the id of a request is
+ * {@code generation << 32 | index}, so completing a request twice, or using
+ * an id whose slot was already recycled, is detected and ignored.
+ */
+public class RequestTable {
+	/**
+	 * the number of slots added to the table at once.
+	 */
+	public static final int SEGMENT_SIZE = 1024;
+	private static final int SEGMENT_SHIFT = 10;
+
+	/**
+	 * The columns of {@link #SEGMENT_SIZE} consecutive slots.
+	 */
+	private static final class Segment {
+		private final int[] generations = new int[SEGMENT_SIZE];
+		private final int[] requesters = new int[SEGMENT_SIZE];
+		private final int[] requesterSerials = new int[SEGMENT_SIZE];
+		private final int[] nextFree = new int[SEGMENT_SIZE];
+		private final long[] sentNanos = new long[SEGMENT_SIZE];
+		private final Request<?>[] requests = new Request<?>[SEGMENT_SIZE];
+		private final Callback<?>[] callbacks = new Callback<?>[SEGMENT_SIZE];
+		private final Mailbox[] receivers = new Mailbox[SEGMENT_SIZE];
+		private final HierarchicalTimerWheel.Timeout[] timeouts = new HierarchicalTimerWheel.Timeout[SEGMENT_SIZE];
+
+		private Segment() {
+			Arrays.fill(generations, 1);
+		}
+	}
+
+	/**
+	 * The requester and callback of a completed request, as returned by
+	 * {@link RequestTable#release(Request)}.
+	 */
+	public static final class Completion {
+		private final int requester;
+		private final int requesterSerial;
+		private final Callback<?> callback;
+		private final Mailbox receiver;
+		private final HierarchicalTimerWheel.Timeout timeout;
+		private final long sentNanos;
+
+		private Completion(int requester, int requesterSerial, Callback<?> callback, Mailbox receiver,
+				HierarchicalTimerWheel.Timeout timeout, long sentNanos) {
+			this.requester = requester;
+			this.requesterSerial = requesterSerial;
+			this.callback = callback;
+			this.receiver = receiver;
+			this.timeout = timeout;
+			this.sentNanos = sentNanos;
+		}
+
+		/**
+		 * @return the bus handle of the micro-service that sent the request.
+		 */
+		public int getRequester() {
+			return requester;
+		}
+
+		/**
+		 * @return the registration serial of the requester when it sent the
+		 *         request.
+		 */
+		public int getRequesterSerial() {
+			return requesterSerial;
+		}
+
+		/**
+		 * @return the callback given when the request was sent, may be null.
+		 */
+		public Callback<?> getCallback() {
+			return callback;
+		}
+
+		/**
+		 * @return the mailbox the request was sent to.
+		 */
+		public Mailbox getReceiver() {
+			return receiver;
+		}
+
+		/**
+		 * @return the deadline timer of the request, or null if it has none.
+		 */
+		public HierarchicalTimerWheel.Timeout getTimeout() {
+			return timeout;
+		}
+
+		/**
+		 * @return the System.nanoTime the request was sent at, or 0 if the
+		 *         table was not timed then (see {@link RequestTable#setTimed}).
+		 */
+		public long getSentNanos() {
+			return sentNanos;
+		}
+	}
+
+	/**
+	 * Segment[] - the slot segments, slot {@code i} is in segment
+	 * {@code i / SEGMENT_SIZE}.
+	 */
+	private volatile Segment[] segments;
+	/**
+	 * AtomicLong - the head of the free-list: an ABA tag in the high 32 bits
+	 * and the index of the first free slot plus one in the low 32 bits (zero
+	 * when the list is empty).
+	 */
+	private final AtomicLong freeHead;
+	/**
+	 * LongAdder - the number of slots in use.
+	 */
+	private final LongAdder inFlight;
+	/**
+	 * boolean - whether the time every request is sent at is kept.
+	 */
+	private volatile boolean timed;
+
+	/**
+	 * Creates a new empty {@link RequestTable}.
+	 */
+	public RequestTable() {
+		this.segments = new Segment[0];
+		this.freeHead = new AtomicLong();
+		this.inFlight = new LongAdder();
+	}
+
+	/**
+	 * Takes a free slot for {@code r} and stamps its id on {@code r}.
+	 *
+	 * @param r
+	 *            the sent request.
+	 * @param requester
+	 *            the bus handle of the micro-service sending {@code r}.
+	 * @param requesterSerial
+	 *            the registration serial of the requester.
+	 * @param callback
+	 *            the callback to run when {@code r} is completed, may be null.
+	 * @param receiver
+	 *            the mailbox {@code r} is sent to.
+	 * @return the id stamped on {@code r}.
+	 */
+	public long acquire(Request<?> r, int requester, int requesterSerial, Callback<?> callback, Mailbox receiver) {
+		int index = pop();
+		Segment segment = segments[index >>> SEGMENT_SHIFT];
+		int offset = index & (SEGMENT_SIZE - 1);
+		segment.requesters[offset] = requester;
+		segment.requesterSerials[offset] = requesterSerial;
+		segment.requests[offset] = r;
+		segment.callbacks[offset] = callback;
+		segment.receivers[offset] = receiver;
+		segment.timeouts[offset] = null;
+		segment.sentNanos[offset] = timed ? System.nanoTime() : 0;
+		long id = ((long) segment.generations[offset] << 32) | index;
+		r.setRequestId(id);
+		inFlight.increment();
+		return id;
+	}
+
+	/**
+	 * attaches the deadline timer of the request whose id is {@code id}.
+	 *
+	 * @param r
+	 *            the sent request.
+	 * @param id
+	 *            the id {@link #acquire} stamped on {@code r}.
+	 * @param timeout
+	 *            the timer to cancel when {@code r} is completed.
+	 * @return true if attached, false if {@code r} is no longer in flight.
+	 */
+	public boolean setTimeout(Request<?> r, long id, HierarchicalTimerWheel.Timeout timeout) {
+		Segment segment = find(id);
+		if (segment == null)
+			return false;
+		int offset = (int) id & (SEGMENT_SIZE - 1);
+		synchronized (segment) {
+			if (segment.generations[offset] != (int) (id >>> 32) || segment.requests[offset] != r)
+				return false;
+			segment.timeouts[offset] = timeout;
+			return true;
+		}
+	}
+
+	/**
+	 * moves the in-flight request {@code r} to the message queue of another
+	 * receiver, after it was stolen from the queue it was sent to.
+	 *
+	 * @param r
+	 *            the stolen request.
+	 * @param receiver
+	 *            the message queue of the micro-service that took it.
+	 * @return true if moved, false if {@code r} is no longer in flight.
+	 */
+	public boolean setReceiver(Request<?> r, Mailbox receiver) {
+		long id = r.getRequestId();
+		Segment segment = find(id);
+		if (segment == null)
+			return false;
+		int offset = (int) id & (SEGMENT_SIZE - 1);
+		synchronized (segment) {
+			if (segment.generations[offset] != (int) (id >>> 32) || segment.requests[offset] != r)
+				return false;
+			segment.receivers[offset] = receiver;
+			return true;
+		}
+	}
+
+	/**
+	 * Frees the slot of the completed request {@code r}.
+	 *
+	 * @param r
+	 *            the completed request.
+	 * @return the requester and callback of {@code r}, or null if {@code r}
+	 *         is not in flight (never sent, or already completed).
+	 */
+	public Completion release(Request<?> r) {
+		return release(r, r.getRequestId());
+	}
+
+	/**
+	 * Frees the slot of {@code r}, if it is still the slot {@code id}. Unlike
+	 * {@link #release(Request)}, a request that was completed and sent again
+	 * since it was given {@code id} is not released.
+	 *
+	 * @param r
+	 *            the completed request.
+	 * @param id
+	 *            the id {@link #acquire} stamped on {@code r}.
+	 * @return the requester and callback of {@code r}, or null if the slot
+	 *         {@code id} is no longer in flight.
+	 */
+	public Completion release(Request<?> r, long id) {
+		Segment segment = find(id);
+		if (segment == null)
+			return null;
+		int index = (int) id;
+		int generation = (int) (id >>> 32);
+		int offset = index & (SEGMENT_SIZE - 1);
+		HierarchicalTimerWheel.Timeout timeout;
+		synchronized (segment) {
+			if (segment.generations[offset] != generation || segment.requests[offset] != r)
+				return null;
+			segment.generations[offset] = generation == Integer.MAX_VALUE ? 1 : generation + 1;
+			timeout = segment.timeouts[offset];
+		}
+		Completion completion = new Completion(segment.requesters[offset], segment.requesterSerials[offset],
+				segment.callbacks[offset], segment.receivers[offset], timeout, segment.sentNanos[offset]);
+		segment.requests[offset] = null;
+		segment.callbacks[offset] = null;
+		segment.receivers[offset] = null;
+		segment.timeouts[offset] = null;
+		push(index);
+		inFlight.decrement();
+		return completion;
+	}
+
+	/**
+	 * @param receiver
+	 *            the message queue of a micro-service.
+	 * @param requester
+	 *            the bus handle of a micro-service.
+	 * @param requesterSerial
+	 *            the registration serial of the micro-service.
+	 * @return the requests in flight sent to {@code receiver} or by the
+	 *         micro-service registered as {@code requester} and
+	 *         {@code requesterSerial}, to release when it un-registers.
+	 */
+	public List<Request<?>> inFlight(Mailbox receiver, int requester, int requesterSerial) {
+		List<Request<?>> found = new ArrayList<Request<?>>();
+		if (inFlight.sum() == 0)
+			return found;
+		for (Segment segment : segments) {
+			synchronized (segment) {
+				for (int offset = 0; offset < SEGMENT_SIZE; offset++) {
+					Request<?> r = segment.requests[offset];
+					if (r != null && (segment.receivers[offset] == receiver
+							|| (segment.requesters[offset] == requester
+									&& segment.requesterSerials[offset] == requesterSerial)))
+						found.add(r);
+				}
+			}
+		}
+		return found;
+	}
+
+	/**
+	 * sets whether the time every request is sent at is kept, for the
+	 * round-trip latency of the {@link BusMetrics}.
+	 *
+	 * @param timed
+	 *            true to keep the send times of the requests sent from now.
+	 */
+	public void setTimed(boolean timed) {
+		this.timed = timed;
+	}
+
+	/**
+	 * @return the number of requests in flight.
+	 */
+	public int size() {
+		return inFlight.intValue();
+	}
+
+	/**
+	 * @return the number of slots the table holds, used or free.
+	 */
+	public int capacity() {
+		return segments.length * SEGMENT_SIZE;
+	}
+
+	/**
+	 * Forgets all the requests in flight.
+	 */
+	public synchronized void clear() {
+		segments = new Segment[0];
+		freeHead.set(0);
+		inFlight.reset();
+	}
+
+	/**
+	 * @return the segment of the slot {@code id}, or null if {@code id} is
+	 *         not a slot id.
+	 */
+	private Segment find(long id) {
+		int index = (int) id;
+		int generation = (int) (id >>> 32);
+		Segment[] current = segments;
+		if (generation == 0 || index < 0 || (index >>> SEGMENT_SHIFT) >= current.length)
+			return null;
+		return current[index >>> SEGMENT_SHIFT];
+	}
+
+	private int pop() {
+		while (true) {
+			long head = freeHead.get();
+			int index = (int) head - 1;
+			if (index < 0) {
+				grow(head);
+				continue;
+			}
+			int next = segments[index >>> SEGMENT_SHIFT].nextFree[index & (SEGMENT_SIZE - 1)];
+			if (freeHead.compareAndSet(head, nextTag(head) | (next + 1)))
+				return index;
+		}
+	}
+
+	private void push(int index) {
+		Segment segment = segments[index >>> SEGMENT_SHIFT];
+		long head;
+		do {
+			head = freeHead.get();
+			segment.nextFree[index & (SEGMENT_SIZE - 1)] = (int) head - 1;
+		} while (!freeHead.compareAndSet(head, nextTag(head) | (index + 1)));
+	}
+
+	private static long nextTag(long head) {
+		return ((head >>> 32) + 1) << 32;
+	}
+
+	/**
+	 * adds a segment of free slots, unless another thread already refilled
+	 * the free-list since {@code emptyHead} was read.
+	 */
+	private synchronized void grow(long emptyHead) {
+		if (freeHead.get() != emptyHead)
+			return;
+		Segment[] current = segments;
+		Segment segment = new Segment();
+		int base = current.length * SEGMENT_SIZE;
+		for (int i = 0; i < SEGMENT_SIZE - 1; i++)
+			segment.nextFree[i] = base + i + 1;
+		segment.nextFree[SEGMENT_SIZE - 1] = -1;
+		Segment[] next = Arrays.copyOf(current, current.length + 1);
+		next[current.length] = segment;
+		segments = next;
+		freeHead.set(nextTag(emptyHead) | (base + 1));
+	}
+
+}
@@ -0,0 +1,251 @@
+package bgu.spl.mics.impl;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import bgu.spl.mics.Request;
+
+/**
+ * The spans of the traced requests of a {@link MessageBusImpl} (see
+ * {@link MessageBusImpl#setTracing(int)}). Every traced request is stamped
+ * by its sender with a trace id, its own span id and the span id of the
+ * request it was sent on behalf of (see {@link Request#getTraceId()}), and
+ * leaves up to three spans sharing its span id:
+ * <li>{@link Kind#REQUEST}, from sending it to completing it, at the
+ * requester.</li>
+ * <li>{@link Kind#HANDLE}, the callback of the receiver.</li>
+ * <li>{@link Kind#CALLBACK}, the on-complete callback of the requester.</li>
+ * <p>
+ * So the spans of a trace form the tree of the requests a purchase fanned
+ * out into, where the wait of a hop is the start of its handling minus the
+ * start of its request, and the critical path is read from the ends of the
+ * children.
+ * <p>
+ * The spans are kept in a ring of the last {@code capacity} spans: recording
+ * a span takes a slot with an atomic increment and overwrites the oldest
+ * one, without any lock. Reading the ring while spans are recorded may miss
+ * the spans recorded meanwhile.
+ */
+public class RequestTracer {
+
+	/**
+	 * The part of the life of a request a {@link Span} covers.
+	 */
+	public enum Kind {
+		REQUEST, HANDLE, CALLBACK
+	}
+
+	/**
+	 * A timed part of the life of a traced request.
+	 */
+	public static final class Span {
+		private final long traceId;
+		private final long spanId;
+		private final long parentSpanId;
+		private final Kind kind;
+		private final Class<?> type;
+		private final String service;
+		private final long startNanos;
+		private final long endNanos;
+		private final boolean timedOut;
+
+		private Span(Request<?> r, Kind kind, String service, long startNanos, long endNanos, boolean timedOut) {
+			this.traceId = r.getTraceId();
+			this.spanId = r.getSpanId();
+			this.parentSpanId = r.getParentSpanId();
+			this.kind = kind;
+			this.type = r.getClass();
+			this.service = service;
+			this.startNanos = startNanos;
+			this.endNanos = endNanos;
+			this.timedOut = timedOut;
+		}
+
+		public long getTraceId() {
+			return traceId;
+		}
+
+		public long getSpanId() {
+			return spanId;
+		}
+
+		/**
+		 * @return the span id of the request this one was sent on behalf of,
+		 *         or 0 for the first request of the trace.
+		 */
+		public long getParentSpanId() {
+			return parentSpanId;
+		}
+
+		public Kind getKind() {
+			return kind;
+		}
+
+		/**
+		 * @return the class of the request.
+		 */
+		public Class<?> getType() {
+			return type;
+		}
+
+		/**
+		 * @return the name of the requester for {@link Kind#REQUEST} and
+		 *         {@link Kind#CALLBACK} spans, of the receiver for
+		 *         {@link Kind#HANDLE} spans.
+		 */
+		public String getService() {
+			return service;
+		}
+
+		public long getStartNanos() {
+			return startNanos;
+		}
+
+		public long getEndNanos() {
+			return endNanos;
+		}
+
+		public long getDurationNanos() {
+			return endNanos - startNanos;
+		}
+
+		/**
+		 * @return true if the request timed out, {@link Kind#REQUEST} spans
+		 *         only.
+		 */
+		public boolean isTimedOut() {
+			return timedOut;
+		}
+	}
+
+	/**
+	 * AtomicReferenceArray - the ring of the spans, span {@code n} is in slot
+	 * {@code n % capacity}.
+	 */
+	private final AtomicReferenceArray<Span> ring;
+	/**
+	 * AtomicLong - the number of spans recorded so far.
+	 */
+	private final AtomicLong recorded;
+	/**
+	 * long - the System.nanoTime and the wall clock time, in microseconds,
+	 * the tracer started at, exported spans are placed on the wall clock so
+	 * the files of several processes can be merged.
+	 */
+	private final long originNanos;
+	private final long originMicros;
+
+	/**
+	 * Creates a new empty {@link RequestTracer}.
+	 *
+	 * @param capacity
+	 *            the number of spans kept, must be positive.
+	 */
+	public RequestTracer(int capacity) {
+		if (capacity <= 0)
+			throw new IllegalArgumentException("capacity must be positive: " + capacity);
+		this.ring = new AtomicReferenceArray<Span>(capacity);
+		this.recorded = new AtomicLong();
+		this.originNanos = System.nanoTime();
+		this.originMicros = TimeUnit.MILLISECONDS.toMicros(System.currentTimeMillis());
+	}
+
+	/**
+	 * records a span of {@code r}, if it is traced.
+	 *
+	 * @param r
+	 *            the request.
+	 * @param kind
+	 *            the part of the life of {@code r} the span covers.
+	 * @param service
+	 *            the name of the micro-service the span ran in.
+	 * @param startNanos
+	 *            the System.nanoTime the span started at.
+	 * @param endNanos
+	 *            the System.nanoTime the span ended at.
+	 * @param timedOut
+	 *            true if {@code r} timed out.
+	 */
+	public void record(Request<?> r, Kind kind, String service, long startNanos, long endNanos, boolean timedOut) {
+		if (r.getTraceId() == 0)
+			return;
+		long n = recorded.getAndIncrement();
+		ring.lazySet((int) (n % ring.length()), new Span(r, kind, service, startNanos, endNanos, timedOut));
+	}
+
+	/**
+	 * @return the number of spans recorded so far, the overwritten included.
+	 */
+	public long getRecorded() {
+		return recorded.get();
+	}
+
+	/**
+	 * @return the spans in the ring, by start time.
+	 */
+	public List<Span> getSpans() {
+		List<Span> spans = new ArrayList<Span>(ring.length());
+		for (int i = 0; i < ring.length(); i++) {
+			Span span = ring.get(i);
+			if (span != null)
+				spans.add(span);
+		}
+		spans.sort(Comparator.comparingLong(Span::getStartNanos));
+		return spans;
+	}
+
+	/**
+	 * @param traceId
+	 *            a trace id.
+	 * @return the spans of the trace {@code traceId} still in the ring, by
+	 *         start time.
+	 */
+	public List<Span> getTrace(long traceId) {
+		List<Span> trace = new ArrayList<Span>();
+		for (Span span : getSpans())
+			if (span.getTraceId() == traceId)
+				trace.add(span);
+		return trace;
+	}
+
+	/**
+	 * writes the spans in the ring to {@code file}, one JSON object a line:
+	 * the ids in hexadecimal, the kind, the request class, the service, the
+	 * start on the wall clock and the duration in microseconds, and whether
+	 * the request timed out.
+	 *
+	 * @param file
+	 *            the file to write, replaced if it exists.
+	 * @return the number of spans written.
+	 * @throws IOException
+	 *             if the file cannot be written.
+	 */
+	public int export(Path file) throws IOException {
+		List<Span> spans = getSpans();
+		try (Writer out = Files.newBufferedWriter(file, StandardCharsets.UTF_8)) {
+			for (Span span : spans) {
+				out.write("{\"trace\":\"" + Long.toHexString(span.traceId) + "\",\"span\":\""
+						+ Long.toHexString(span.spanId) + "\",\"parent\":\"" + Long.toHexString(span.parentSpanId)
+						+ "\",\"kind\":\"" + span.kind.name().toLowerCase() + "\",\"type\":\""
+						+ span.type.getSimpleName() + "\",\"service\":\"" + escape(span.service) + "\",\"start\":"
+						+ (originMicros + TimeUnit.NANOSECONDS.toMicros(span.startNanos - originNanos))
+						+ ",\"duration\":" + TimeUnit.NANOSECONDS.toMicros(span.getDurationNanos())
+						+ ",\"timedOut\":" + span.timedOut + "}\n");
+			}
+		}
+		return spans.size();
+	}
+
+	private static String escape(String value) {
+		return value == null ? "" : value.replace("\\", "\\\\").replace("\"", "\\\"");
+	}
+}
@@ -0,0 +1,222 @@
+package bgu.spl.mics.impl;
+
+import java.util.Collection;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+import bgu.spl.mics.Mailbox;
+import bgu.spl.mics.Message;
+
+/**
+ * A bounded multi-producer single-consumer {@link Mailbox} backed by an array
+ * used as a ring buffer. Adding a message allocates nothing: a sender claims
+ * the next sequence number with a CAS on {@link #tail} and publishes the
+ * message into the matching slot; the owning micro-service takes messages by
+ * clearing slots and advancing {@link #head}, without any lock.
+ * <p>
+ * When the ring is full, senders wait for the consumer to free a slot, so the
+ * capacity should be large enough for the worst burst the owner receives.
+ * How the owner waits for messages on an empty ring is decided by its
+ * {@link WaitStrategy}.
+ */
+public class RingBufferMailbox implements Mailbox {
+
+	/**
+	 * The way the owning micro-service waits while its mailbox is empty.
+	 */
+	public enum WaitStrategy {
+		/**
+		 * busy-spin on the ring. The lowest wake-up latency, but the owner
+		 * keeps a core busy the whole time. The owner still yields once every
+		 * {@link RingBufferMailbox#SPINS_BEFORE_YIELD} checks, so it cannot
+		 * starve a sender that shares its core.
+		 */
+		SPIN,
+		/**
+		 * spin while yielding the processor to other threads between checks.
+		 */
+		YIELD,
+		/**
+		 * park the owner thread until a sender un-parks it. No CPU is used
+		 * while idle.
+		 */
+		PARK
+	}
+
+	/**
+	 * the default capacity of a ring.
+	 */
+	public static final int DEFAULT_CAPACITY = 1024;
+	/**
+	 * the number of empty checks a {@link WaitStrategy#SPIN} owner makes
+	 * before yielding once.
+	 */
+	public static final int SPINS_BEFORE_YIELD = 1024;
+
+	/**
+	 * AtomicReferenceArray - the ring slots, a null slot is free.
+	 */
+	private final AtomicReferenceArray<Message> slots;
+	/**
+	 * int - {@code capacity - 1}, the capacity is a power of two.
+	 */
+	private final int mask;
+	/**
+	 * AtomicLong - the next sequence number to be claimed by a sender.
+	 */
+	private final AtomicLong tail;
+	/**
+	 * long - the sequence number of the next message to take, written only by
+	 * the owner.
+	 */
+	private volatile long head;
+	/**
+	 * WaitStrategy - how the owner waits while the ring is empty.
+	 */
+	private final WaitStrategy waitStrategy;
+	/**
+	 * Thread - the owner thread while it is parked, null otherwise.
+	 */
+	private volatile Thread waiter;
+
+	/**
+	 * Creates a new {@link RingBufferMailbox} with the
+	 * {@link #DEFAULT_CAPACITY} and the {@link WaitStrategy#PARK} strategy.
+	 */
+	public RingBufferMailbox() {
+		this(DEFAULT_CAPACITY, WaitStrategy.PARK);
+	}
+
+	/**
+	 * Creates a new {@link RingBufferMailbox}.
+	 *
+	 * @param capacity
+	 *            the minimal number of messages the ring can hold, it is
+	 *            rounded up to a power of two.
+	 * @param waitStrategy
+	 *            how the owner waits while the ring is empty.
+	 */
+	public RingBufferMailbox(int capacity, WaitStrategy waitStrategy) {
+		if (capacity < 1)
+			throw new IllegalArgumentException("capacity must be positive: " + capacity);
+		int size = Integer.highestOneBit(capacity);
+		if (size < capacity)
+			size <<= 1;
+		this.slots = new AtomicReferenceArray<Message>(size);
+		this.mask = size - 1;
+		this.tail = new AtomicLong();
+		this.waitStrategy = waitStrategy;
+	}
+
+	@Override
+	public void put(Message m) {
+		long sequence;
+		boolean interrupted = false;
+		while (true) {
+			sequence = tail.get();
+			if (sequence - head > mask) {
+				// full, let the owner free a slot
+				Thread.yield();
+				interrupted |= Thread.interrupted();
+			} else if (tail.compareAndSet(sequence, sequence + 1)) {
+				break;
+			}
+		}
+		slots.set((int) (sequence & mask), m);
+		Thread owner = waiter;
+		if (owner != null)
+			LockSupport.unpark(owner);
+		if (interrupted)
+			Thread.currentThread().interrupt();
+	}
+
+	@Override
+	public Message take() throws InterruptedException {
+		Message m = poll();
+		int spins = 0;
+		while (m == null) {
+			if (Thread.interrupted())
+				throw new InterruptedException();
+			await(++spins);
+			m = poll();
+		}
+		return m;
+	}
+
+	/**
+	 * waits, according to the {@link #waitStrategy}, for a message to be
+	 * published. May return spuriously.
+	 * 
+	 * @param spins
+	 *            the number of times the owner already waited for this
+	 *            message.
+	 */
+	private void await(int spins) {
+		switch (waitStrategy) {
+		case SPIN:
+			if (spins % SPINS_BEFORE_YIELD == 0)
+				Thread.yield();
+			break;
+		case YIELD:
+			Thread.yield();
+			break;
+		case PARK:
+			waiter = Thread.currentThread();
+			if (isEmpty())
+				LockSupport.park(this);
+			waiter = null;
+			break;
+		}
+	}
+
+	@Override
+	public Message poll() {
+		long sequence = head;
+		int index = (int) (sequence & mask);
+		Message m = slots.get(index);
+		if (m != null) {
+			slots.lazySet(index, null);
+			head = sequence + 1;
+		}
+		return m;
+	}
+
+	@Override
+	public Message peek() {
+		return slots.get((int) (head & mask));
+	}
+
+	@Override
+	public int drainTo(Collection<? super Message> buffer, int max) {
+		int drained = 0;
+		Message m;
+		while (drained < max && (m = poll()) != null) {
+			buffer.add(m);
+			drained++;
+		}
+		return drained;
+	}
+
+	/**
+	 * @return the number of messages in the ring, including messages whose
+	 *         slot was claimed but not yet published.
+	 */
+	@Override
+	public int size() {
+		return (int) Math.max(0, tail.get() - head);
+	}
+
+	@Override
+	public boolean isEmpty() {
+		return peek() == null;
+	}
+
+	/**
+	 * @return the number of messages the ring can hold.
+	 */
+	public int capacity() {
+		return mask + 1;
+	}
+
+}
@@ -0,0 +1,25 @@
+package bgu.spl.mics.impl;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import bgu.spl.mics.Mailbox;
+import bgu.spl.mics.MicroService;
+import bgu.spl.mics.Request;
+
+/**
+ * A {@link RoutingPolicy} handing the requests to the subscribers in turns,
+ * regardless of their load. Selecting is a single atomic increment.
+ */
+public class RoundRobinPolicy implements RoutingPolicy {
+	/**
+	 * AtomicInteger - the number of selections made so far, decides which
+	 * subscriber is selected next.
+	 */
+	private final AtomicInteger cursor = new AtomicInteger();
+
+	@Override
+	public int select(Request<?> r, MicroService[] subscribers, Mailbox[] mailboxes) {
+		return (cursor.getAndIncrement() & Integer.MAX_VALUE) % subscribers.length;
+	}
+
+}
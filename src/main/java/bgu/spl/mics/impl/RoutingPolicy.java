@@ -0,0 +1,68 @@
+package bgu.spl.mics.impl;
+
+import bgu.spl.mics.Mailbox;
+import bgu.spl.mics.MicroService;
+import bgu.spl.mics.Request;
+
+/**
+ * Decides which of the subscribers of a {@link Request} type receives a sent
+ * request. Every {@link RequestRoute} has its own policy instance, so a
+ * policy may keep per-type state (e.g., a round-robin cursor). Policies are
+ * called concurrently by all the senders and must not block.
+ * <p>
+ * A policy is set per request type with
+ * {@link MessageBusImpl#setRoutingPolicy(Class, RoutingPolicy)}, the default
+ * is {@link RoundRobinPolicy}.
+ */
+public interface RoutingPolicy {
+
+	/**
+	 * @param r
+	 *            the request being sent.
+	 * @param subscribers
+	 *            the subscribers of {@code r.getClass()}, never empty, must
+	 *            not be modified.
+	 * @param mailboxes
+	 *            {@code mailboxes[i]} is the message queue of
+	 *            {@code subscribers[i]}, must not be modified.
+	 * @return the index of the subscriber that should receive {@code r}.
+	 */
+	int select(Request<?> r, MicroService[] subscribers, Mailbox[] mailboxes);
+
+	/**
+	 * @param m
+	 *            a subscriber.
+	 * @param mailbox
+	 *            the message queue of {@code m}.
+	 * @return the load of {@code m}: the messages waiting in its queue plus
+	 *         the work it already accepted (see
+	 *         {@link MicroService#getPendingWork()}).
+	 */
+	static int load(MicroService m, Mailbox mailbox) {
+		return mailbox.size() + m.getPendingWork();
+	}
+
+	/**
+	 * @param name
+	 *            the name of a policy: {@code "round-robin"},
+	 *            {@code "least-loaded"}, {@code "power-of-two"} or
+	 *            {@code "affinity"}.
+	 * @return a new instance of the policy called {@code name}.
+	 * @throws IllegalArgumentException
+	 *             if there is no policy called {@code name}.
+	 */
+	static RoutingPolicy forName(String name) {
+		switch (name.toLowerCase()) {
+		case "round-robin":
+			return new RoundRobinPolicy();
+		case "least-loaded":
+			return new LeastLoadedPolicy();
+		case "power-of-two":
+			return new PowerOfTwoChoicesPolicy();
+		case "affinity":
+			return new AffinityPolicy();
+		default:
+			throw new IllegalArgumentException("Unknown routing policy: " + name);
+		}
+	}
+}
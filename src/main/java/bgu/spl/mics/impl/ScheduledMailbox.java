@@ -0,0 +1,37 @@
+package bgu.spl.mics.impl;
+
+import bgu.spl.mics.Message;
+
+/**
+ * The {@link LinkedMailbox} of a micro-service run by a
+ * {@link ServiceScheduler}. Adding a message also notifies the scheduler, so
+ * the owning micro-service is scheduled on a worker only when it has
+ * messages to handle.
+ */
+public class ScheduledMailbox extends LinkedMailbox {
+
+	private static final long serialVersionUID = 1L;
+
+	/**
+	 * Runnable - called after every message is added.
+	 */
+	private final transient Runnable onPut;
+
+	/**
+	 * Creates a new empty {@link ScheduledMailbox}.
+	 *
+	 * @param onPut
+	 *            called, by the sending thread, after every message is added.
+	 */
+	public ScheduledMailbox(Runnable onPut) {
+		super(MessageBusImpl.getInstance().getQuiescence());
+		this.onPut = onPut;
+	}
+
+	@Override
+	public void put(Message m) {
+		super.put(m);
+		onPut.run();
+	}
+
+}
@@ -0,0 +1,261 @@
+package bgu.spl.mics.impl;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import bgu.spl.mics.Mailbox;
+import bgu.spl.mics.Message;
+import bgu.spl.mics.MicroService;
+
+/**
+ * The registry of the micro-services registered to the {@link MessageBusImpl}.
+ * Every registered micro-service receives a dense integer handle (see
+ * {@link MicroService#getBusHandle()}) which indexes its {@link Entry} in an
+ * array, so finding the mailbox of a micro-service is an array access rather
+ * than a lookup by its (not necessarily unique) name.
+ * <p>
+ * Handles of un-registered micro-services are recycled. Registering and
+ * un-registering are synchronized, reading an entry takes no lock.
+ */
+public class ServiceRegistry {
+
+	/**
+	 * The bus-side state of a single registered micro-service.
+	 */
+	public static final class Entry {
+		/**
+		 * MicroService - the registered micro-service.
+		 */
+		private final MicroService service;
+		/**
+		 * Mailbox - the message queue allocated to {@link #service}.
+		 */
+		private final Mailbox mailbox;
+		/**
+		 * List - the message types {@link #service} subscribed to.
+		 */
+		private final List<Class<? extends Message>> subscriptions;
+		/**
+		 * int - the registration serial of this entry, unique among all the
+		 * registrations, so an entry can be told apart from a later entry
+		 * that got the same (recycled) handle.
+		 */
+		private final int serial;
+
+		private Entry(MicroService service, Mailbox mailbox, int serial) {
+			this.service = service;
+			this.mailbox = mailbox;
+			this.subscriptions = new CopyOnWriteArrayList<Class<? extends Message>>();
+			this.serial = serial;
+		}
+
+		/**
+		 * @return the {@link #service}.
+		 */
+		public MicroService getService() {
+			return service;
+		}
+
+		/**
+		 * @return the {@link #mailbox}.
+		 */
+		public Mailbox getMailbox() {
+			return mailbox;
+		}
+
+		/**
+		 * @return the {@link #subscriptions}.
+		 */
+		public List<Class<? extends Message>> getSubscriptions() {
+			return subscriptions;
+		}
+
+		/**
+		 * @return the {@link #serial}.
+		 */
+		public int getSerial() {
+			return serial;
+		}
+	}
+
+	/**
+	 * Entry[] - {@code entries[h]} is the entry of the micro-service whose
+	 * handle is {@code h}, or null if the handle is free.
+	 */
+	private volatile Entry[] entries;
+	/**
+	 * int[] - a stack of recycled handles.
+	 */
+	private int[] freeHandles;
+	/**
+	 * int - the number of handles in {@link #freeHandles}.
+	 */
+	private int freeCount;
+	/**
+	 * int - the lowest handle that was never allocated.
+	 */
+	private int nextHandle;
+	/**
+	 * int - the number of registered micro-services.
+	 */
+	private int size;
+	/**
+	 * int - the number of registrations so far, used for the entry serials.
+	 */
+	private int registrations;
+
+	/**
+	 * Creates a new empty {@link ServiceRegistry}.
+	 */
+	public ServiceRegistry() {
+		clear();
+	}
+
+	/**
+	 * Registers {@code m} with {@code mailbox} as its message queue and
+	 * attaches the allocated handle to {@code m}. If {@code m} is already
+	 * registered, its current entry is kept.
+	 *
+	 * @param m
+	 *            the micro-service to register.
+	 * @param mailbox
+	 *            the message queue of {@code m}.
+	 * @return the entry of {@code m}.
+	 */
+	public synchronized Entry register(MicroService m, Mailbox mailbox) {
+		Entry entry = get(m);
+		if (entry != null)
+			return entry;
+		int handle = freeCount > 0 ? freeHandles[--freeCount] : nextHandle++;
+		Entry[] current = entries;
+		if (handle == current.length)
+			current = Arrays.copyOf(current, Math.max(16, current.length * 2));
+		entry = new Entry(m, mailbox, ++registrations);
+		current[handle] = entry;
+		entries = current;
+		size++;
+		m.setBusHandle(handle);
+		return entry;
+	}
+
+	/**
+	 * Un-registers {@code m} and frees its handle.
+	 *
+	 * @param m
+	 *            the micro-service to un-register.
+	 * @return the entry {@code m} had, or null if it was not registered.
+	 */
+	public synchronized Entry unregister(MicroService m) {
+		Entry entry = get(m);
+		if (entry == null)
+			return null;
+		int handle = m.getBusHandle();
+		m.setBusHandle(-1);
+		Entry[] current = entries;
+		current[handle] = null;
+		entries = current;
+		if (freeCount == freeHandles.length)
+			freeHandles = Arrays.copyOf(freeHandles, Math.max(16, freeHandles.length * 2));
+		freeHandles[freeCount++] = handle;
+		size--;
+		return entry;
+	}
+
+	/**
+	 * @param m
+	 *            a micro-service.
+	 * @return the entry of {@code m}, or null if {@code m} is not registered.
+	 */
+	public Entry get(MicroService m) {
+		int handle = m.getBusHandle();
+		Entry[] current = entries;
+		if (handle < 0 || handle >= current.length)
+			return null;
+		Entry entry = current[handle];
+		return entry != null && entry.service == m ? entry : null;
+	}
+
+	/**
+	 * @param handle
+	 *            a handle.
+	 * @return the entry registered with {@code handle}, or null if the handle
+	 *         is free.
+	 */
+	public Entry get(int handle) {
+		Entry[] current = entries;
+		return handle < 0 || handle >= current.length ? null : current[handle];
+	}
+
+	/**
+	 * @param handle
+	 *            a handle.
+	 * @param serial
+	 *            a registration serial.
+	 * @return the entry registered with {@code handle}, or null if the handle
+	 *         is free or was recycled since the registration {@code serial}.
+	 */
+	public Entry get(int handle, int serial) {
+		Entry entry = get(handle);
+		return entry != null && entry.serial == serial ? entry : null;
+	}
+
+	/**
+	 * @param m
+	 *            a micro-service.
+	 * @return the mailbox of {@code m}, or null if {@code m} is not
+	 *         registered.
+	 */
+	public Mailbox getMailbox(MicroService m) {
+		Entry entry = get(m);
+		return entry == null ? null : entry.mailbox;
+	}
+
+	/**
+	 * sums the sizes of the mailboxes of all the registered micro-services,
+	 * without locking: the mailboxes are read one after the other from the
+	 * current snapshot, so the result is only an estimate while messages
+	 * are sent and taken. It costs a read per registered micro-service.
+	 *
+	 * @return the number of messages waiting in the mailboxes.
+	 */
+	public int backlog() {
+		int backlog = 0;
+		for (Entry entry : entries)
+			if (entry != null)
+				backlog += entry.mailbox.size();
+		return backlog;
+	}
+
+	/**
+	 * @return the number of registered micro-services.
+	 */
+	public synchronized int size() {
+		return size;
+	}
+
+	/**
+	 * @return one more than the highest handle allocated so far, every handle
+	 *         in use is lower.
+	 */
+	public synchronized int handleLimit() {
+		return nextHandle;
+	}
+
+	/**
+	 * Un-registers all the micro-services.
+	 */
+	public synchronized void clear() {
+		Entry[] current = entries;
+		if (current != null)
+			for (Entry entry : current)
+				if (entry != null)
+					entry.service.setBusHandle(-1);
+		entries = new Entry[0];
+		freeHandles = new int[0];
+		freeCount = 0;
+		nextHandle = 0;
+		size = 0;
+	}
+
+}
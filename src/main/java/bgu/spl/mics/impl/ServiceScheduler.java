@@ -0,0 +1,153 @@
+package bgu.spl.mics.impl;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import bgu.spl.mics.MicroService;
+
+/**
+ * An execution engine running many micro-services on a fixed pool of worker
+ * threads, instead of a thread per micro-service. A micro-service is an
+ * actor: it is scheduled on a worker only when its message queue is not
+ * empty, handles up to {@link #MAX_BATCH} messages (see
+ * {@link MicroService#handleAvailable(int)}) and gives the worker back, so
+ * idle micro-services cost no thread at all.
+ * <p>
+ * A micro-service is never scheduled on two workers at once, so its
+ * callbacks still run one message at a time, exactly as in its own thread.
+ * Callbacks must not block though: a blocked callback holds a worker, and
+ * enough of them stop the whole pool.
+ */
+public class ServiceScheduler {
+	/**
+	 * the maximum number of messages a micro-service handles before giving
+	 * its worker to the next scheduled micro-service.
+	 */
+	public static final int MAX_BATCH = 32;
+
+	/**
+	 * A micro-service run by the scheduler.
+	 */
+	private final class Actor implements Runnable {
+		private final MicroService service;
+		/**
+		 * AtomicBoolean - true while the actor is queued for, or running on,
+		 * a worker; stays true once the micro-service terminated.
+		 */
+		private final AtomicBoolean scheduled = new AtomicBoolean(true);
+		private final ScheduledMailbox mailbox = new ScheduledMailbox(this::signal);
+		private boolean initialized = false;
+
+		private Actor(MicroService service) {
+			this.service = service;
+		}
+
+		/**
+		 * schedules the actor, unless it is already scheduled.
+		 */
+		private void signal() {
+			if (scheduled.compareAndSet(false, true))
+				workers.execute(this);
+		}
+
+		@Override
+		public void run() {
+			boolean running;
+			try {
+				if (!initialized) {
+					initialized = true;
+					running = service.registerAndInitialize();
+				} else {
+					running = service.handleAvailable(MAX_BATCH);
+				}
+			} catch (RuntimeException e) {
+				// like an exception ending the thread of a micro-service
+				e.printStackTrace();
+				running = false;
+			}
+			if (!running) {
+				retire();
+				return;
+			}
+			scheduled.set(false);
+			// a message added after the batch was taken, but before the flag
+			// was cleared, did not schedule the actor
+			if (!mailbox.isEmpty())
+				signal();
+		}
+	}
+
+	/**
+	 * ExecutorService - the worker threads.
+	 */
+	private final ExecutorService workers;
+	/**
+	 * AtomicInteger - the number of started micro-services that did not
+	 * terminate yet.
+	 */
+	private final AtomicInteger running;
+
+	/**
+	 * Creates a new {@link ServiceScheduler} with a worker per available
+	 * processor.
+	 */
+	public ServiceScheduler() {
+		this(Runtime.getRuntime().availableProcessors());
+	}
+
+	/**
+	 * Creates a new {@link ServiceScheduler}.
+	 *
+	 * @param workers
+	 *            the number of worker threads.
+	 */
+	public ServiceScheduler(int workers) {
+		AtomicInteger count = new AtomicInteger();
+		this.workers = Executors.newFixedThreadPool(workers,
+				task -> new Thread(task, "scheduler-worker-" + count.getAndIncrement()));
+		this.running = new AtomicInteger();
+	}
+
+	/**
+	 * starts running {@code m} on the workers. {@code m} is given a
+	 * {@link ScheduledMailbox}, replacing any mailbox set with
+	 * {@link MicroService#useMailbox}, and is initialized on a worker.
+	 *
+	 * @param m
+	 *            the micro-service to run.
+	 */
+	public void start(MicroService m) {
+		Actor actor = new Actor(m);
+		m.useMailbox(actor.mailbox);
+		running.incrementAndGet();
+		workers.execute(actor);
+	}
+
+	/**
+	 * @return the number of started micro-services that did not terminate
+	 *         yet.
+	 */
+	public int getRunning() {
+		return running.get();
+	}
+
+	/**
+	 * waits until all the started micro-services terminated, and stops the
+	 * workers.
+	 *
+	 * @throws InterruptedException
+	 *             if interrupted while waiting.
+	 */
+	public synchronized void awaitTermination() throws InterruptedException {
+		while (running.get() > 0)
+			wait();
+		workers.shutdown();
+	}
+
+	private synchronized void retire() {
+		if (running.decrementAndGet() == 0)
+			notifyAll();
+	}
+}
@@ -0,0 +1,90 @@
+package bgu.spl.mics.impl;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Creates the threads that run the micro-services event loops.
+ * <p>
+ * Two kinds of threads are available: platform threads, one OS thread per
+ * micro-service, and virtual threads, which are scheduled by the JVM on a
+ * small pool of carrier threads, so a simulation may run a micro-service per
+ * customer even with tens of thousands of customers. A micro-service blocked
+ * in {@code awaitMessage}, or waiting on the {@link java.util.concurrent.Phaser}
+ * and {@link java.util.concurrent.CountDownLatch} used by the application,
+ * parks and releases its carrier: none of them waits while holding a monitor.
+ * <p>
+ * Virtual threads exist from Java 21 on. The project is built for Java 17, so
+ * they are looked up reflectively; on an older runtime
+ * {@link #virtualThreads()} falls back to platform threads.
+ */
+public final class ServiceThreads {
+	/**
+	 * ThreadFactory - creates virtual threads, or null if the runtime has
+	 * none.
+	 */
+	private static final ThreadFactory VIRTUAL = lookupVirtualFactory();
+
+	private ServiceThreads() {
+	}
+
+	/**
+	 * @return a factory creating a platform thread per micro-service.
+	 */
+	public static ThreadFactory platformThreads() {
+		AtomicLong count = new AtomicLong();
+		return task -> new Thread(task, "service-" + count.getAndIncrement());
+	}
+
+	/**
+	 * @return a factory creating a virtual thread per micro-service, or
+	 *         platform threads if the runtime does not support virtual
+	 *         threads (see {@link #isVirtualSupported()}).
+	 */
+	public static ThreadFactory virtualThreads() {
+		return VIRTUAL != null ? VIRTUAL : platformThreads();
+	}
+
+	/**
+	 * @return true if the runtime supports virtual threads.
+	 */
+	public static boolean isVirtualSupported() {
+		return VIRTUAL != null;
+	}
+
+	/**
+	 * @param name
+	 *            {@code "platform"} or {@code "virtual"}.
+	 * @return the factory called {@code name}.
+	 * @throws IllegalArgumentException
+	 *             if there is no factory called {@code name}.
+	 */
+	public static ThreadFactory forName(String name) {
+		switch (name.toLowerCase()) {
+		case "platform":
+			return platformThreads();
+		case "virtual":
+			return virtualThreads();
+		default:
+			throw new IllegalArgumentException("Unknown thread kind: " + name);
+		}
+	}
+
+	/**
+	 * @return {@code Thread.ofVirtual().name("service-", 0).factory()}, or
+	 *         null if the runtime does not support virtual threads.
+	 */
+	private static ThreadFactory lookupVirtualFactory() {
+		try {
+			Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+			Class<?> builderType = Class.forName("java.lang.Thread$Builder");
+			Method name = builderType.getMethod("name", String.class, long.class);
+			Method factory = builderType.getMethod("factory");
+			return (ThreadFactory) factory.invoke(name.invoke(builder, "service-", 0L));
+		} catch (ReflectiveOperationException | RuntimeException e) {
+			// older runtime, or virtual threads still in preview
+			return null;
+		}
+	}
+}
@@ -0,0 +1,238 @@
+package bgu.spl.mics.impl;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.function.Consumer;
+
+/**
+ * A bounded single-producer single-consumer ring of byte records laid out in
+ * a region of a {@link ByteBuffer}, usually a {@link java.nio.MappedByteBuffer}
+ * of a file mapped by two processes, one writing and one reading.
+ * <p>
+ * The region starts with a {@link #HEADER_SIZE} bytes header holding the
+ * {@code head}, the position of the next record to read, and the
+ * {@code tail}, the position after the last record written, on separate
+ * cache lines, followed by the records. A record is its length as an int
+ * and its bytes, padded to 8 bytes. A record that does not fit before the
+ * end of the ring is written at its start, behind a {@link #WRAP} length
+ * that tells the reader to skip the rest of the ring; the wrap is published
+ * on its own as soon as the rest of the ring is free, so any record that
+ * fits the ring is written once the reader caught up. The positions only
+ * grow, the index of a position is {@code position & (capacity - 1)}.
+ * <p>
+ * The producer writes the record with plain writes and publishes it with a
+ * release write of the tail, and the consumer frees it with a release write
+ * of the head, so no lock is taken, and both sides see the records of each
+ * other in order even in different processes. Neither side waits: a full or
+ * empty ring is reported, and the caller decides how to wait.
+ */
+public class SharedRing {
+	/**
+	 * the size, in bytes, of the header of a ring.
+	 */
+	public static final int HEADER_SIZE = 128;
+	/**
+	 * the length written where a record was wrapped to the start of the ring.
+	 */
+	private static final int WRAP = -1;
+	private static final int HEAD = 0;
+	private static final int TAIL = 64;
+	private static final VarHandle POSITION = MethodHandles.byteBufferViewVarHandle(long[].class,
+			ByteOrder.nativeOrder());
+
+	private final ByteBuffer buffer;
+	/**
+	 * ByteBuffer - a view of {@link #buffer} bounded to the record handed to
+	 * the consumer, touched only by the consumer.
+	 */
+	private final ByteBuffer view;
+	/**
+	 * int - the index of the header in {@link #buffer}.
+	 */
+	private final int offset;
+	/**
+	 * int - the index of the first record byte in {@link #buffer}.
+	 */
+	private final int data;
+	private final int capacity;
+	/**
+	 * long - the tail as last written by the producer, touched only by the
+	 * producer.
+	 */
+	private long tail;
+	/**
+	 * long - the head as last written by the consumer, touched only by the
+	 * consumer.
+	 */
+	private long head;
+
+	/**
+	 * Creates a new {@link SharedRing} over a region of {@code buffer}. A
+	 * zeroed region is an empty ring, e.g. the region of a new file, and a
+	 * region already in use is continued where it stands.
+	 *
+	 * @param buffer
+	 *            the buffer holding the ring, must be direct.
+	 * @param offset
+	 *            the index of the region in {@code buffer}, a multiple of 8.
+	 * @param capacity
+	 *            the number of record bytes, a power of two and a multiple
+	 *            of 8. The region is {@code HEADER_SIZE + capacity} bytes.
+	 */
+	public SharedRing(ByteBuffer buffer, int offset, int capacity) {
+		if (capacity < 8 || Integer.bitCount(capacity) != 1)
+			throw new IllegalArgumentException("capacity must be a power of two of at least 8: " + capacity);
+		if (offset % 8 != 0)
+			throw new IllegalArgumentException("offset must be a multiple of 8: " + offset);
+		this.buffer = buffer;
+		this.view = buffer.duplicate();
+		this.offset = offset;
+		this.data = offset + HEADER_SIZE;
+		this.capacity = capacity;
+		this.tail = (long) POSITION.getAcquire(buffer, offset + TAIL);
+		this.head = (long) POSITION.getAcquire(buffer, offset + HEAD);
+	}
+
+	/**
+	 * @param length
+	 *            the number of bytes of a record.
+	 * @return the number of ring bytes the record takes.
+	 */
+	public static int recordSize(int length) {
+		return (4 + length + 7) & ~7;
+	}
+
+	/**
+	 * @return the number of record bytes.
+	 */
+	public int capacity() {
+		return capacity;
+	}
+
+	/**
+	 * writes {@code record} at the end of the ring, called by the producer
+	 * only.
+	 *
+	 * @param record
+	 *            the bytes to write.
+	 * @return true if written, false if the ring is full.
+	 * @throws IllegalArgumentException
+	 *             if the record can never fit in the ring.
+	 */
+	public boolean offer(byte[] record) {
+		return offer(ByteBuffer.wrap(record));
+	}
+
+	/**
+	 * writes the remaining bytes of {@code record} at the end of the ring,
+	 * called by the producer only.
+	 *
+	 * @param record
+	 *            the bytes to write, its position is moved to its limit if
+	 *            written.
+	 * @return true if written, false if the ring is full.
+	 * @throws IllegalArgumentException
+	 *             if the record can never fit in the ring.
+	 */
+	public boolean offer(ByteBuffer record) {
+		int length = record.remaining();
+		int size = recordSize(length);
+		if (size > capacity)
+			throw new IllegalArgumentException("A record of " + length + " bytes exceeds the ring capacity");
+		long at = tail;
+		long read = (long) POSITION.getAcquire(buffer, offset + HEAD);
+		int index = (int) (at & (capacity - 1));
+		int toEnd = capacity - index;
+		if (size > toEnd) {
+			// the rest of the ring is free once read up to it
+			if (at + toEnd - read > capacity)
+				return false;
+			buffer.putInt(data + index, WRAP);
+			at += toEnd;
+			index = 0;
+			tail = at;
+			POSITION.setRelease(buffer, offset + TAIL, tail);
+		}
+		if (at + size - read > capacity)
+			return false;
+		buffer.putInt(data + index, length);
+		buffer.put(data + index + 4, record, record.position(), length);
+		record.position(record.limit());
+		tail = at + size;
+		POSITION.setRelease(buffer, offset + TAIL, tail);
+		return true;
+	}
+
+	/**
+	 * reads the record at the start of the ring and frees its bytes, called
+	 * by the consumer only.
+	 *
+	 * @return the record, or null if the ring is empty.
+	 */
+	public byte[] poll() {
+		int index = first();
+		if (index < 0)
+			return null;
+		int length = buffer.getInt(data + index);
+		byte[] record = new byte[length];
+		buffer.get(data + index + 4, record);
+		head += recordSize(length);
+		POSITION.setRelease(buffer, offset + HEAD, head);
+		return record;
+	}
+
+	/**
+	 * hands the record at the start of the ring to {@code reader} in place,
+	 * without copying it, and frees its bytes once {@code reader} returns,
+	 * called by the consumer only.
+	 *
+	 * @param reader
+	 *            reads the record from the buffer it is given, which is only
+	 *            valid until it returns.
+	 * @return true if a record was read, false if the ring is empty.
+	 */
+	public boolean poll(Consumer<ByteBuffer> reader) {
+		int index = first();
+		if (index < 0)
+			return false;
+		int length = buffer.getInt(data + index);
+		view.clear();
+		view.position(data + index + 4);
+		view.limit(data + index + 4 + length);
+		try {
+			reader.accept(view);
+		} finally {
+			head += recordSize(length);
+			POSITION.setRelease(buffer, offset + HEAD, head);
+		}
+		return true;
+	}
+
+	/**
+	 * skips the rest of the ring if the record at the head was wrapped to
+	 * its start, and frees those bytes.
+	 *
+	 * @return the index of the record at the head, or -1 if the ring is
+	 *         empty.
+	 */
+	private int first() {
+		long written = (long) POSITION.getAcquire(buffer, offset + TAIL);
+		if (head == written)
+			return -1;
+		int index = (int) (head & (capacity - 1));
+		if (buffer.getInt(data + index) != WRAP)
+			return index;
+		head += capacity - index;
+		POSITION.setRelease(buffer, offset + HEAD, head);
+		return head == written ? -1 : 0;
+	}
+
+	/**
+	 * @return true if the ring has no record, called by the consumer only.
+	 */
+	public boolean isEmpty() {
+		return first() < 0;
+	}
+}
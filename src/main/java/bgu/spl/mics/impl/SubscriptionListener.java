@@ -0,0 +1,39 @@
+package bgu.spl.mics.impl;
+
+import bgu.spl.mics.Message;
+import bgu.spl.mics.MicroService;
+
+/**
+ * Notified by the {@link MessageBusImpl} of every change in the
+ * subscriptions of the registered micro-services, e.g., by a {@link BusNode}
+ * that announces them to the other nodes.
+ * <p>
+ * The methods are called by the thread that changed the subscriptions,
+ * after the change, sometimes while the message-bus is locked, so they must
+ * be short and must not call the message-bus.
+ */
+public interface SubscriptionListener {
+
+	/**
+	 * called once {@code m} subscribed to {@code type}.
+	 *
+	 * @param type
+	 *            a {@link bgu.spl.mics.Request} or
+	 *            {@link bgu.spl.mics.Broadcast} type.
+	 * @param m
+	 *            the subscribed micro-service.
+	 */
+	void subscribed(Class<? extends Message> type, MicroService m);
+
+	/**
+	 * called once {@code m} unsubscribed from {@code type}, or un-registered
+	 * while subscribed to it.
+	 *
+	 * @param type
+	 *            a {@link bgu.spl.mics.Request} or
+	 *            {@link bgu.spl.mics.Broadcast} type.
+	 * @param m
+	 *            the unsubscribed micro-service.
+	 */
+	void unsubscribed(Class<? extends Message> type, MicroService m);
+}
@@ -0,0 +1,112 @@
+package bgu.spl.app;
+
+import static org.junit.Assert.*;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import bgu.spl.mics.RequestCompleted;
+import bgu.spl.mics.impl.MessageCodec;
+
+import com.google.gson.Gson;
+
+public class StoreMessagesTest {
+	MessageCodec.Encoder encoder;
+	MessageCodec.Decoder decoder;
+
+	@Before
+	public void setUp() throws Exception {
+		MessageCodec codec = StoreMessages.newCodec();
+		encoder = codec.newEncoder();
+		decoder = codec.newDecoder();
+	}
+
+	private Object roundTrip(Object message) {
+		return decoder.decode(encoder.encode(message));
+	}
+
+	@Test
+	public void testPurchaseOrderRequest() {
+		PurchaseOrderRequest request = new PurchaseOrderRequest("seller 1", "Bruria", "red-boots", true, 12, 2);
+		request.setRequestId(99);
+		PurchaseOrderRequest decoded = (PurchaseOrderRequest) roundTrip(request);
+		assertEquals("seller 1", decoded.getSeller());
+		assertEquals("Bruria", decoded.getCustomer());
+		assertEquals("red-boots", decoded.getShoeType());
+		assertTrue(decoded.isOnlyDiscount());
+		assertEquals(12, decoded.getRequestTick());
+		assertEquals(2, decoded.getAmount());
+		assertEquals(99, decoded.getRequestId());
+	}
+
+	@Test
+	public void testManufacturingOrderRequest() {
+		ManufacturingOrderRequest request = new ManufacturingOrderRequest("work-shoes", 5, 3);
+		request.decreaseAmount();
+		ManufacturingOrderRequest decoded = (ManufacturingOrderRequest) roundTrip(request);
+		assertEquals("work-shoes", decoded.getShoeType());
+		assertEquals(4, decoded.getAmount());
+		assertEquals(5, decoded.getRequestedAmount());
+		assertEquals(3, decoded.getRequestTick());
+	}
+
+	@Test
+	public void testRestockRequest() {
+		assertEquals("ugly-sandals", ((RestockRequest) roundTrip(new RestockRequest("ugly-sandals"))).getShoeType());
+	}
+
+	@Test
+	public void testTickBroadcast() {
+		TickBroadcast decoded = (TickBroadcast) roundTrip(new TickBroadcast(60, 60));
+		assertEquals(60, decoded.getTick());
+		assertEquals(60, decoded.getLifeSpan());
+		assertTrue(decoded.isDead());
+	}
+
+	@Test
+	public void testNewDiscountBroadcast() {
+		NewDiscountBroadcast decoded = (NewDiscountBroadcast) roundTrip(new NewDiscountBroadcast("blue-sneakers", 4));
+		assertEquals("blue-sneakers", decoded.getShoeType());
+		assertEquals(4, decoded.getAmount());
+	}
+
+	@Test
+	public void testTerminationBroadcast() {
+		TerminationBroadcast decoded = (TerminationBroadcast) roundTrip(new TerminationBroadcast(null));
+		assertNull(decoded.getPhaser());
+	}
+
+	@Test
+	public void testReceiptAndRequestCompleted() {
+		PurchaseOrderRequest request = new PurchaseOrderRequest("seller 2", "Shraga", "green-flip-flops", false, 3, 1);
+		Receipt receipt = new Receipt("seller 2", "Shraga", "green-flip-flops", false, 4, 3, 1);
+		RequestCompleted<?> decoded = (RequestCompleted<?>) roundTrip(new RequestCompleted<Receipt>(request, receipt));
+		Receipt result = (Receipt) decoded.getResult();
+		assertEquals("seller 2", result.getSeller());
+		assertEquals("Shraga", result.getCustomer());
+		assertEquals("green-flip-flops", result.getShoeType());
+		assertFalse(result.isDiscount());
+		assertEquals(4, result.getIssuedTick());
+		assertEquals(3, result.getRequestTick());
+		assertEquals(1, result.getAmountSold());
+		assertEquals("Shraga", ((PurchaseOrderRequest) decoded.getCompletedRequest()).getCustomer());
+		// Test the symbols of the request were reused by the receipt
+		assertSame(result.getSeller(), ((PurchaseOrderRequest) decoded.getCompletedRequest()).getSeller());
+	}
+
+	@Test
+	public void testSmallerThanJson() {
+		Gson gson = new Gson();
+		PurchaseOrderRequest request = new PurchaseOrderRequest("seller 1", "Bruria", "red-boots", true, 12, 2);
+		int json = gson.toJson(request).getBytes(StandardCharsets.UTF_8).length;
+		ByteBuffer first = encoder.encode(request);
+		assertTrue(first.remaining() < json / 2);
+		decoder.decode(first);
+		// once the names are known a request takes a few bytes, 3 of them
+		// for the trace context of an untraced request
+		assertTrue(encoder.encode(request).remaining() <= 13);
+	}
+}
@@ -4,13 +4,47 @@ import static org.junit.Assert.*;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Phaser;
+import java.util.concurrent.TimeUnit;
 
 
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 
+import bgu.spl.mics.Broadcast;
+import bgu.spl.mics.MicroService;
+import bgu.spl.mics.SimulationClock;
+import bgu.spl.mics.impl.MessageBusImpl;
+
 public class StoreTest {
+
+	private static class DeliverBroadcast implements Broadcast {
+	}
+
+	/**
+	 * holds the {@link ManufacturingOrderRequest} it receives until a
+	 * {@link DeliverBroadcast}, then completes it in full.
+	 */
+	private static class SlowFactory extends MicroService {
+		private final CountDownLatch ready;
+		private ManufacturingOrderRequest pending;
+
+		SlowFactory(CountDownLatch ready) {
+			super("factory");
+			this.ready = ready;
+		}
+
+		@Override
+		protected void initialize() {
+			subscribeRequest(ManufacturingOrderRequest.class, req -> pending = req);
+			subscribeBroadcast(DeliverBroadcast.class, deliver -> complete(pending, new Receipt("factory", "store",
+					pending.getShoeType(), false, 0, pending.getRequestTick(), pending.getAmount())));
+			subscribeBroadcast(TerminationBroadcast.class, broadcast -> terminate());
+			ready.countDown();
+		}
+	}
 	Store store;
 	ShoeStorageInfo[] shoeStorageInfo;
 	
@@ -25,6 +59,11 @@ public class StoreTest {
 
 	@After
 	public void tearDown() throws Exception {
+		MessageBusImpl messageBus = MessageBusImpl.getInstance();
+		messageBus.getRequestSubscribers().clear();
+		messageBus.getBroadcastSubscribers().clear();
+		messageBus.getServices().clear();
+		messageBus.getRequests().clear();
 		store.getReceipts().clear();
 		Store.getShoeStorageData().clear();
 		for(int i = 0; i<shoeStorageInfo.length; i++)
@@ -100,6 +139,51 @@ public class StoreTest {
 		assertEquals(null, store.getByShoeType("type5"));
 	}
 
+	@Test(timeout = 10000)
+	public void testRestockTimeoutKeepsStock() throws InterruptedException {
+		// at tick 0 the manager orders a single shoe, reserved for the seller
+		SimulationClock.getInstance().reset();
+		CountDownLatch ready = new CountDownLatch(3);
+		SellingService seller = new SellingService(store, "seller", ready);
+		seller.setRequestTimeout(50);
+		List<Thread> threads = new ArrayList<Thread>();
+		threads.add(new Thread(seller));
+		threads.add(new Thread(new ManagementService(store, ready)));
+		threads.add(new Thread(new SlowFactory(ready)));
+		for (Thread thread : threads)
+			thread.start();
+		ready.await();
+		// type0 is out of stock, the restock outlives the seller's deadline
+		CountDownLatch answered = new CountDownLatch(1);
+		final Receipt[] result = { new Receipt("none", "none", "none", false, 0, 0, 0) };
+		Thread client = new Thread(new MicroService("client") {
+			@Override
+			protected void initialize() {
+				subscribeBroadcast(TerminationBroadcast.class, broadcast -> terminate());
+				sendRequest(new PurchaseOrderRequest("seller", "client", "type0", false, 0, 1), receipt -> {
+					result[0] = receipt;
+					answered.countDown();
+				});
+			}
+		});
+		threads.add(client);
+		client.start();
+		answered.await();
+		assertNull(result[0]);
+		// Test that the shoe reserved for the seller that gave up is stocked
+		MessageBusImpl.getInstance().sendBroadcast(new DeliverBroadcast());
+		long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+		while (store.getByShoeType("type0").getAmountOnStorage() == 0 && System.nanoTime() < deadline)
+			Thread.sleep(10);
+		assertEquals(1, store.getByShoeType("type0").getAmountOnStorage());
+		MessageBusImpl.getInstance().sendBroadcast(new TerminationBroadcast(new Phaser(2)));
+		for (Thread thread : threads)
+			thread.join();
+		// only the manufacturing receipt is filed, the client bought nothing
+		assertEquals(1, store.getReceipts().size());
+		assertEquals("store", store.getReceipts().get(0).getCustomer());
+	}
+
 	@Test
 	public void testGetReceipts(){
 		assertEquals(new ArrayList<Receipt>(), store.getReceipts());
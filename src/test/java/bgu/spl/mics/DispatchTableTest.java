@@ -0,0 +1,69 @@
+package bgu.spl.mics;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class DispatchTableTest {
+
+	private static class TickBroadcast implements Broadcast {
+	}
+
+	private static class LateTickBroadcast extends TickBroadcast {
+	}
+
+	private static class OrderRequest extends Request<Boolean> {
+	}
+
+	private DispatchTable table;
+	private List<String> calls;
+
+	@Before
+	public void setUp() throws Exception {
+		table = new DispatchTable();
+		calls = new ArrayList<String>();
+	}
+
+	@Test
+	public void testDispatch() {
+		table.put(TickBroadcast.class, tick -> calls.add("tick"));
+		table.put(OrderRequest.class, order -> calls.add("order"));
+		table.dispatch(new OrderRequest());
+		table.dispatch(new TickBroadcast());
+		assertEquals(2, calls.size());
+		assertEquals("order", calls.get(0));
+		assertEquals("tick", calls.get(1));
+	}
+
+	@Test
+	public void testDispatchSubclass() {
+		table.put(TickBroadcast.class, tick -> calls.add("tick"));
+		table.dispatch(new LateTickBroadcast());
+		assertEquals(1, calls.size());
+		// Test a later subscription of the subclass replaces the cached
+		// superclass callback
+		table.put(LateTickBroadcast.class, tick -> calls.add("late"));
+		table.dispatch(new LateTickBroadcast());
+		table.dispatch(new TickBroadcast());
+		assertEquals("late", calls.get(1));
+		assertEquals("tick", calls.get(2));
+	}
+
+	@Test
+	public void testDispatchUnhandled() {
+		assertFalse(table.isHandled(OrderRequest.class));
+		// Test an unhandled message is ignored, not an exception
+		table.dispatch(new OrderRequest());
+		table.dispatch(new OrderRequest());
+		assertEquals(0, calls.size());
+		table.put(OrderRequest.class, order -> calls.add("order"));
+		assertTrue(table.isHandled(OrderRequest.class));
+		table.dispatch(new OrderRequest());
+		assertEquals(1, calls.size());
+	}
+
+}
@@ -0,0 +1,255 @@
+package bgu.spl.mics;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Test;
+
+import bgu.spl.mics.impl.MessageBusImpl;
+import bgu.spl.mics.impl.RequestTracer;
+
+public class MicroServiceTest {
+
+	private static class DoubleRequest extends Request<Integer> {
+		private final int value;
+
+		DoubleRequest(int value) {
+			this.value = value;
+		}
+	}
+
+	private static class QuadrupleRequest extends Request<Integer> {
+		private final int value;
+
+		QuadrupleRequest(int value) {
+			this.value = value;
+		}
+	}
+
+	private static class StopBroadcast implements Broadcast {
+	}
+
+	/**
+	 * completes every {@link DoubleRequest} with twice its value, until a
+	 * {@link StopBroadcast} is received.
+	 */
+	private static class Doubler extends MicroService {
+		private final CountDownLatch ready;
+
+		Doubler(CountDownLatch ready) {
+			super("doubler");
+			this.ready = ready;
+		}
+
+		@Override
+		protected void initialize() {
+			subscribeRequest(DoubleRequest.class, req -> complete(req, 2 * req.value));
+			subscribeBroadcast(StopBroadcast.class, stop -> terminate());
+			ready.countDown();
+		}
+	}
+
+	/**
+	 * completes every {@link QuadrupleRequest} by doubling its value twice
+	 * with {@link DoubleRequest}s, the second sent once the first completed.
+	 */
+	private static class Quadrupler extends MicroService {
+		private final CountDownLatch ready;
+
+		Quadrupler(CountDownLatch ready) {
+			super("quadrupler");
+			this.ready = ready;
+		}
+
+		@Override
+		protected void initialize() {
+			subscribeRequest(QuadrupleRequest.class, req -> sendRequest(new DoubleRequest(req.value),
+					doubled -> sendRequest(new DoubleRequest(doubled), quadrupled -> complete(req, quadrupled))));
+			subscribeBroadcast(StopBroadcast.class, stop -> terminate());
+			ready.countDown();
+		}
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		MessageBusImpl messageBus = MessageBusImpl.getInstance();
+		messageBus.setTracing(0);
+		messageBus.getRequestSubscribers().clear();
+		messageBus.getBroadcastSubscribers().clear();
+		messageBus.getServices().clear();
+		messageBus.getRequests().clear();
+		SimulationClock.getInstance().reset();
+	}
+
+	@Test
+	public void testSimulationClock() {
+		SimulationClock clock = SimulationClock.getInstance();
+		assertEquals(0, clock.getTick());
+		assertEquals(3, clock.advance(3));
+		// Test the clock never goes back
+		assertEquals(3, clock.advance(2));
+		assertEquals(3, clock.getTick());
+		final int[] read = new int[1];
+		new MicroService("reader") {
+			@Override
+			protected void initialize() {
+				read[0] = getCurrentTick();
+			}
+		}.initialize();
+		assertEquals(3, read[0]);
+	}
+
+	@Test(timeout = 10000)
+	public void testSendRequests() throws InterruptedException {
+		CountDownLatch ready = new CountDownLatch(1);
+		Thread doubler = new Thread(new Doubler(ready));
+		doubler.start();
+		ready.await();
+		final List<Integer> results = new ArrayList<Integer>();
+		final Thread[] completedOn = new Thread[1];
+		Thread requester = new Thread(new MicroService("requester") {
+			@Override
+			protected void initialize() {
+				subscribeBroadcast(StopBroadcast.class, stop -> terminate());
+				sendRequests(Arrays.asList(new DoubleRequest(1), new DoubleRequest(2), new DoubleRequest(3)))
+						.thenAccept(doubled -> {
+							results.addAll(doubled);
+							completedOn[0] = Thread.currentThread();
+							sendBroadcast(new StopBroadcast());
+						});
+			}
+		});
+		requester.start();
+		requester.join();
+		doubler.join();
+		// Test the results are in order, and were handled in the event loop
+		assertEquals(Arrays.asList(2, 4, 6), results);
+		assertEquals(requester, completedOn[0]);
+	}
+
+	@Test(timeout = 10000)
+	public void testTracing() throws InterruptedException, IOException {
+		MessageBusImpl.getInstance().setTracing(1024);
+		CountDownLatch ready = new CountDownLatch(2);
+		Thread doubler = new Thread(new Doubler(ready));
+		Thread quadrupler = new Thread(new Quadrupler(ready));
+		doubler.start();
+		quadrupler.start();
+		ready.await();
+		final int[] result = new int[1];
+		Thread requester = new Thread(new MicroService("requester") {
+			@Override
+			protected void initialize() {
+				subscribeBroadcast(StopBroadcast.class, stop -> terminate());
+				sendRequest(new QuadrupleRequest(3), quadrupled -> {
+					result[0] = quadrupled;
+					sendBroadcast(new StopBroadcast());
+				});
+			}
+		});
+		requester.start();
+		requester.join();
+		doubler.join();
+		quadrupler.join();
+		assertEquals(12, result[0]);
+		RequestTracer tracer = MessageBusImpl.getInstance().getTracer();
+		List<RequestTracer.Span> spans = tracer.getSpans();
+		// Test every request left a request, a handle and a callback span
+		assertEquals(9, spans.size());
+		long traceId = spans.get(0).getTraceId();
+		assertEquals(spans, tracer.getTrace(traceId));
+		RequestTracer.Span root = null;
+		List<RequestTracer.Span> children = new ArrayList<RequestTracer.Span>();
+		for (RequestTracer.Span span : spans) {
+			if (span.getKind() != RequestTracer.Kind.REQUEST)
+				continue;
+			if (span.getType() == QuadrupleRequest.class)
+				root = span;
+			else
+				children.add(span);
+		}
+		assertEquals(0, root.getParentSpanId());
+		assertEquals("requester", root.getService());
+		// Test both doubles are children of the quadruple, the second one
+		// sent from the callback of the first
+		assertEquals(2, children.size());
+		for (RequestTracer.Span child : children) {
+			assertEquals(root.getSpanId(), child.getParentSpanId());
+			assertEquals("quadrupler", child.getService());
+			assertTrue(child.getEndNanos() <= root.getEndNanos());
+		}
+		assertNotEquals(children.get(0).getSpanId(), children.get(1).getSpanId());
+		Path file = Files.createTempFile("trace", ".jsonl");
+		try {
+			assertEquals(9, tracer.export(file));
+			List<String> lines = Files.readAllLines(file);
+			assertEquals(9, lines.size());
+			assertTrue(lines.get(0).contains("\"trace\":\"" + Long.toHexString(traceId) + "\""));
+		} finally {
+			Files.delete(file);
+		}
+	}
+
+	@Test(timeout = 10000)
+	public void testSendRequestNotSubscribed() throws InterruptedException {
+		final Throwable[] failure = new Throwable[1];
+		Thread requester = new Thread(new MicroService("requester") {
+			@Override
+			protected void initialize() {
+				sendRequest(new DoubleRequest(1)).exceptionally(e -> {
+					failure[0] = e;
+					return null;
+				});
+				terminate();
+			}
+		});
+		requester.start();
+		requester.join();
+		assertEquals(IllegalStateException.class, failure[0].getClass());
+	}
+
+	@Test(timeout = 10000)
+	public void testScheduleAtFixedRate() throws InterruptedException {
+		final List<Thread> calledOn = new ArrayList<Thread>();
+		Thread ticker = new Thread(new MicroService("ticker") {
+			@Override
+			protected void initialize() {
+				scheduleAtFixedRate(0, 5, TimeUnit.MILLISECONDS, deadline -> {
+					calledOn.add(Thread.currentThread());
+					if (calledOn.size() == 3)
+						terminate();
+				});
+			}
+		});
+		ticker.start();
+		ticker.join();
+		// Test the timer ran its action in the event loop, and stopped with
+		// the micro-service
+		assertEquals(Arrays.asList(ticker, ticker, ticker), calledOn);
+	}
+
+	@Test
+	public void testWhenAll() {
+		CompletableFuture<Integer> first = new CompletableFuture<Integer>();
+		CompletableFuture<Integer> second = new CompletableFuture<Integer>();
+		CompletableFuture<List<Integer>> all = MicroService.whenAll(Arrays.asList(first, second));
+		second.complete(2);
+		assertEquals(false, all.isDone());
+		first.complete(1);
+		assertEquals(Arrays.asList(1, 2), all.join());
+		CompletableFuture<Integer> failed = new CompletableFuture<Integer>();
+		failed.completeExceptionally(new IllegalStateException());
+		assertEquals(true, MicroService.whenAll(Arrays.asList(first, failed)).isCompletedExceptionally());
+	}
+
+}
@@ -0,0 +1,86 @@
+package bgu.spl.mics.impl;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+import bgu.spl.mics.Broadcast;
+import bgu.spl.mics.Mailbox;
+
+public class BusMetricsTest {
+
+	@Test
+	public void testHistogram() {
+		BusMetrics.Histogram histogram = new BusMetrics.Histogram();
+		assertEquals(0, histogram.getPercentile(0.5));
+		for (int i = 0; i < 99; i++)
+			histogram.record(100);
+		histogram.record(1000000);
+		assertEquals(100, histogram.getCount());
+		assertEquals(1000000, histogram.getMax());
+		assertEquals((99 * 100 + 1000000) / 100, histogram.getMean());
+		// Test a percentile is the upper bound of its bucket: 100 is in
+		// [64, 128)
+		assertEquals(127, histogram.getPercentile(0.5));
+		assertEquals(127, histogram.getPercentile(0.9));
+		assertEquals(1000000, histogram.getPercentile(1));
+		assertEquals(99, histogram.getBucket(7));
+		// Test negative and huge durations fall in the first and last buckets
+		histogram.record(-5);
+		histogram.record(Long.MAX_VALUE);
+		assertEquals(1, histogram.getBucket(0));
+		assertEquals(1, histogram.getBucket(BusMetrics.Histogram.BUCKETS - 1));
+	}
+
+	@Test
+	public void testQueueWait() {
+		BusMetrics metrics = new BusMetrics();
+		Mailbox mailbox = new LinkedMailbox();
+		metrics.registered("service", mailbox);
+		Broadcast first = new Broadcast() {
+		};
+		Broadcast second = new Broadcast() {
+		};
+		metrics.enqueued(mailbox, first);
+		mailbox.put(first);
+		metrics.enqueued(mailbox, second);
+		mailbox.put(second);
+		BusMetrics.ServiceMetrics service = metrics.getServices().iterator().next();
+		assertEquals(2, service.getHighWater());
+		// Test a message taken out of order still finds its stamp, and
+		// the stamps before it are dropped
+		long now = System.nanoTime();
+		metrics.handled(mailbox, second, now, now);
+		metrics.handled(mailbox, first, now, now);
+		assertEquals(1, metrics.type(second.getClass()).getQueueWait().getCount());
+		assertEquals(0, metrics.type(first.getClass()).getQueueWait().getCount());
+		assertEquals(1, metrics.type(first.getClass()).getHandling().getCount());
+		assertEquals(2, service.getDequeued());
+	}
+
+	@Test
+	public void testUnregistered() {
+		BusMetrics metrics = new BusMetrics();
+		Mailbox mailbox = new LinkedMailbox();
+		metrics.registered("service", mailbox);
+		Broadcast b = new Broadcast() {
+		};
+		metrics.enqueued(mailbox, b);
+		mailbox.put(b);
+		metrics.unregistered(mailbox);
+		// Test the counters are kept, without the mailbox
+		BusMetrics.ServiceMetrics service = metrics.getServices().iterator().next();
+		assertEquals(1, service.getEnqueued());
+		assertEquals(0, service.getDepth());
+		metrics.enqueued(mailbox, b);
+		assertEquals(1, service.getEnqueued());
+		// Test only the last retired counters are kept
+		for (int i = 0; i < 2 * BusMetrics.MAX_RETIRED; i++) {
+			Mailbox churned = new LinkedMailbox();
+			metrics.registered("churned" + i, churned);
+			metrics.unregistered(churned);
+		}
+		assertEquals(BusMetrics.MAX_RETIRED, metrics.getServices().size());
+		assertFalse(metrics.getServices().contains(service));
+	}
+}
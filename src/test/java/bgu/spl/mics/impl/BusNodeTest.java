@@ -0,0 +1,226 @@
+package bgu.spl.mics.impl;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Test;
+
+import bgu.spl.mics.Broadcast;
+import bgu.spl.mics.MicroService;
+import bgu.spl.mics.Request;
+
+public class BusNodeTest {
+
+	public static class MultiplyRequest extends Request<Integer> {
+		private int value;
+
+		public MultiplyRequest(int value) {
+			this.value = value;
+		}
+	}
+
+	public static class StopBroadcast implements Broadcast {
+	}
+
+	/**
+	 * completes every {@link MultiplyRequest} with its value times
+	 * {@code factor}, until a {@link StopBroadcast} is received.
+	 */
+	public static class Multiplier extends MicroService {
+		private final int factor;
+		private final CountDownLatch ready;
+
+		public Multiplier(String name, int factor, CountDownLatch ready) {
+			super(name);
+			this.factor = factor;
+			this.ready = ready;
+		}
+
+		@Override
+		protected void initialize() {
+			subscribeRequest(MultiplyRequest.class, req -> complete(req, factor * req.value));
+			subscribeBroadcast(StopBroadcast.class, stop -> terminate());
+			ready.countDown();
+		}
+	}
+
+	/**
+	 * runs a tripling {@link Multiplier} in another JVM, connected to the
+	 * node listening on the port given as the first argument, or sharing
+	 * the file given as {@code shm:<path>}. With a second argument
+	 * {@code twins}, a multiplier by 5 of the same name runs next to it.
+	 */
+	public static class RemoteTripler {
+		public static void main(String[] args) throws Exception {
+			BusNode node = new BusNode("remote");
+			boolean twins = args.length > 1 && args[1].equals("twins");
+			CountDownLatch ready = new CountDownLatch(twins ? 2 : 1);
+			Thread tripler = new Thread(new Multiplier("tripler", 3, ready));
+			tripler.start();
+			Thread twin = new Thread(new Multiplier("tripler", 5, ready));
+			if (twins)
+				twin.start();
+			ready.await();
+			if (args[0].startsWith("shm:"))
+				node.connectShared(Paths.get(args[0].substring("shm:".length())));
+			else
+				node.connect("localhost", Integer.parseInt(args[0]));
+			tripler.join();
+			if (twins)
+				twin.join();
+			node.close();
+		}
+	}
+
+	private BusNode node;
+
+	@After
+	public void tearDown() throws Exception {
+		if (node != null)
+			node.close();
+		MessageBusImpl messageBus = MessageBusImpl.getInstance();
+		messageBus.getRequestSubscribers().clear();
+		messageBus.getBroadcastSubscribers().clear();
+		messageBus.getServices().clear();
+		messageBus.getRequests().clear();
+	}
+
+	@Test(timeout = 60000)
+	public void testRemoteNode() throws Exception {
+		node = new BusNode("local");
+		int port = node.listen(0);
+		testRemoteTripler(Integer.toString(port));
+	}
+
+	@Test(timeout = 60000)
+	public void testSharedMemoryNode() throws Exception {
+		File file = File.createTempFile("bus-node", ".shm");
+		file.delete();
+		node = new BusNode("local");
+		node.listenShared(file.toPath(), 64 * 1024);
+		assertTrue(file.exists());
+		testRemoteTripler("shm:" + file.getPath());
+		// Test the creator deleted the file once the remote node left
+		assertFalse(file.exists());
+	}
+
+	@Test(timeout = 60000)
+	public void testSameNames() throws Exception {
+		node = new BusNode("local");
+		int port = node.listen(0);
+		Process remote = startRemote(Integer.toString(port), "twins");
+		try {
+			assertTrue(node.awaitPeers(1, 30, TimeUnit.SECONDS));
+			MessageBusImpl messageBus = MessageBusImpl.getInstance();
+			assertEquals(2, messageBus.getRequestSubscribers().get(MultiplyRequest.class).size());
+			List<Integer> results = multiply(4);
+			// Test the two remote micro-services of the same name both got
+			// requests, alternately
+			assertEquals(results.get(2) / 3, results.get(0) / 1);
+			assertEquals(results.get(3) / 4, results.get(1) / 2);
+			assertEquals(8, results.get(0) / 1 + results.get(1) / 2);
+			assertTrue(remote.waitFor(30, TimeUnit.SECONDS));
+			assertEquals(0, remote.exitValue());
+		} finally {
+			remote.destroy();
+		}
+	}
+
+	@Test(timeout = 60000)
+	public void testOversizedFrame() throws Exception {
+		node = new BusNode("local");
+		int port = node.listen(0);
+		// Test a peer sending a length prefix over the maximum is dropped,
+		// and the node still accepts the next one
+		for (int i = 0; i < 2; i++) {
+			try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), port)) {
+				socket.setSoTimeout(30000);
+				socket.getOutputStream().write("GET / HTTP/1.1\r\n\r\n".getBytes(StandardCharsets.US_ASCII));
+				InputStream in = socket.getInputStream();
+				while (in.read() != -1)
+					;
+			}
+		}
+		assertEquals(0, node.getPeerCount());
+	}
+
+	/**
+	 * runs a local doubler and a remote tripler, connected to {@link #node}
+	 * through {@code address}, and sends them requests.
+	 */
+	private void testRemoteTripler(String address) throws Exception {
+		CountDownLatch ready = new CountDownLatch(1);
+		Thread doubler = new Thread(new Multiplier("doubler", 2, ready));
+		doubler.start();
+		ready.await();
+		Process remote = startRemote(address);
+		try {
+			assertTrue(node.awaitPeers(1, 30, TimeUnit.SECONDS));
+			MessageBusImpl messageBus = MessageBusImpl.getInstance();
+			assertEquals(2, messageBus.getRequestSubscribers().get(MultiplyRequest.class).size());
+
+			List<Integer> results = multiply(4);
+			doubler.join();
+			// Test round-robin alternates the local and the remote subscriber
+			assertEquals(Arrays.asList(2, 6, 6, 12), results);
+			// Test the broadcast stopped the remote micro-service
+			assertTrue(remote.waitFor(30, TimeUnit.SECONDS));
+			assertEquals(0, remote.exitValue());
+			while (messageBus.getRequestSubscribers().get(MultiplyRequest.class).size() > 0)
+				Thread.sleep(10);
+			while (node.getPeerCount() > 0)
+				Thread.sleep(10);
+		} finally {
+			remote.destroy();
+		}
+	}
+
+	/**
+	 * starts a {@link RemoteTripler} in another JVM with {@code args}.
+	 */
+	private static Process startRemote(String... args) throws Exception {
+		List<String> command = new ArrayList<String>(Arrays.asList(System.getProperty("java.home") + File.separator
+				+ "bin" + File.separator + "java", "-cp", System.getProperty("java.class.path"),
+				RemoteTripler.class.getName()));
+		command.addAll(Arrays.asList(args));
+		return new ProcessBuilder(command).inheritIO().start();
+	}
+
+	/**
+	 * sends a {@link MultiplyRequest} of every value from 1 to {@code count}
+	 * from a requester, and then a {@link StopBroadcast}.
+	 *
+	 * @return the results, in the order of the values.
+	 */
+	private static List<Integer> multiply(int count) throws InterruptedException {
+		final List<Integer> results = new ArrayList<Integer>();
+		Thread requester = new Thread(new MicroService("requester") {
+			@Override
+			protected void initialize() {
+				List<MultiplyRequest> requests = new ArrayList<MultiplyRequest>();
+				for (int i = 1; i <= count; i++)
+					requests.add(new MultiplyRequest(i));
+				sendRequests(requests).thenAccept(multiplied -> {
+					results.addAll(multiplied);
+					sendBroadcast(new StopBroadcast());
+					terminate();
+				});
+			}
+		});
+		requester.start();
+		requester.join();
+		return results;
+	}
+}
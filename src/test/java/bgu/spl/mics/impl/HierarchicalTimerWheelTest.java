@@ -0,0 +1,90 @@
+package bgu.spl.mics.impl;
+
+import static org.junit.Assert.*;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class HierarchicalTimerWheelTest {
+	private HierarchicalTimerWheel wheel;
+
+	@Before
+	public void setUp() throws Exception {
+		wheel = new HierarchicalTimerWheel(1, TimeUnit.MILLISECONDS, "test-wheel");
+	}
+
+	@Test(timeout = 10000)
+	public void testScheduleAcrossLevels() throws InterruptedException {
+		final List<Long> order = new CopyOnWriteArrayList<Long>();
+		final long[] lateness = new long[3];
+		final CountDownLatch done = new CountDownLatch(3);
+		// due in level 0, level 1 and after a cascade of level 1 into level 0
+		long[] delays = { 10, 5 * HierarchicalTimerWheel.SLOTS + 7, HierarchicalTimerWheel.SLOTS + 1 };
+		for (int i = 0; i < delays.length; i++) {
+			final int index = i;
+			final long delay = delays[i];
+			wheel.schedule(deadline -> {
+				lateness[index] = System.nanoTime() - deadline;
+				order.add(delay);
+				done.countDown();
+			}, delay, TimeUnit.MILLISECONDS);
+		}
+		done.await();
+		assertEquals(Long.valueOf(10), order.get(0));
+		assertEquals(Long.valueOf(HierarchicalTimerWheel.SLOTS + 1), order.get(1));
+		assertEquals(Long.valueOf(5 * HierarchicalTimerWheel.SLOTS + 7), order.get(2));
+		// Test no task ran before its deadline
+		for (long late : lateness)
+			assertTrue(late >= 0);
+		// the wheel drops a task just after running it
+		long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(1);
+		while (wheel.pending() > 0 && System.nanoTime() < deadline)
+			Thread.sleep(1);
+		assertEquals(0, wheel.pending());
+	}
+
+	@Test(timeout = 10000)
+	public void testScheduleAtFixedRate() throws InterruptedException {
+		final int runs = 20;
+		final long period = 10;
+		final List<Long> deadlines = new CopyOnWriteArrayList<Long>();
+		final CountDownLatch done = new CountDownLatch(runs);
+		long start = System.nanoTime();
+		HierarchicalTimerWheel.Timeout timeout = wheel.scheduleAtFixedRate(deadline -> {
+			deadlines.add(deadline);
+			done.countDown();
+		}, 0, period, TimeUnit.MILLISECONDS);
+		done.await();
+		assertTrue(timeout.cancel());
+		// Test the deadlines are exactly a period apart, whatever the delay
+		// of every run
+		for (int i = 1; i < runs; i++)
+			assertEquals(TimeUnit.MILLISECONDS.toNanos(period), deadlines.get(i) - deadlines.get(i - 1));
+		assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos((runs - 1) * period));
+	}
+
+	@Test(timeout = 10000)
+	public void testCancel() throws InterruptedException {
+		final boolean[] ran = new boolean[1];
+		HierarchicalTimerWheel.Timeout timeout = wheel.schedule(deadline -> ran[0] = true, 20,
+				TimeUnit.MILLISECONDS);
+		assertTrue(timeout.cancel());
+		assertFalse(timeout.cancel());
+		final CountDownLatch after = new CountDownLatch(1);
+		wheel.schedule(deadline -> after.countDown(), 40, TimeUnit.MILLISECONDS);
+		after.await();
+		assertFalse(ran[0]);
+		// Test a task that ran cannot be cancelled
+		final CountDownLatch done = new CountDownLatch(1);
+		HierarchicalTimerWheel.Timeout ranTimeout = wheel.schedule(deadline -> done.countDown(), 0,
+				TimeUnit.MILLISECONDS);
+		done.await();
+		assertFalse(ranTimeout.cancel());
+	}
+
+}
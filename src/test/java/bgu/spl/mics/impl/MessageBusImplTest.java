@@ -1,15 +1,19 @@
 package bgu.spl.mics.impl;
 
 import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
 
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 
-import bgu.spl.ds.RoundRobinList;
 import bgu.spl.mics.Broadcast;
+import bgu.spl.mics.Mailbox;
 import bgu.spl.mics.Message;
 import bgu.spl.mics.MicroService;
 import bgu.spl.mics.Request;
@@ -60,10 +64,11 @@ public class MessageBusImplTest {
 	public void tearDown() throws Exception {
 		messageBus.getRequestSubscribers().clear();
 		messageBus.getBroadcastSubscribers().clear();
-		messageBus.getPersonalMessageQueues().clear();
-		messageBus.getRequesterMessage().clear();
-		messageBus.getRequestsSent().clear();
-		messageBus.getPersonalSubscribes().clear();
+		messageBus.getServices().clear();
+		messageBus.getRequests().clear();
+		messageBus.setQuiescenceTracking(false);
+		messageBus.setMetrics(false);
+		messageBus.setTracing(0);
 	}
 
 	@Test
@@ -73,45 +78,144 @@ public class MessageBusImplTest {
 
 	@Test
 	public void testSubscribeRequest() {
+		messageBus.register(m);
+		messageBus.register(m2);
+		messageBus.register(m3);
 
 		messageBus.subscribeRequest(r.getClass(), m);
 
-		RoundRobinList<MicroService> list = messageBus.getRequestSubscribers().get(r.getClass());
+		RequestRoute route = messageBus.getRequestSubscribers().get(r.getClass());
 
 		// Test if microservice successfuly subscribed
-		assertNotEquals(null, list);
-		assertEquals(1, list.size());
-		assertEquals("MicroService1", list.select().getName());
+		assertNotEquals(null, route);
+		assertEquals(1, route.size());
+		assertEquals(messageBus.getMailbox(m), route.select(r));
 
 		messageBus.subscribeRequest(r.getClass(), m2);
 		messageBus.subscribeRequest(r.getClass(), m3);
 
 		// Test if the second and third microservices successfuly subscribed
-		assertNotEquals(null, list);
-		assertEquals(3, list.size());
-		assertEquals("MicroService2", list.select().getName());
-		assertEquals("MicroService3", list.select().getName());
-		assertEquals("MicroService1", list.select().getName());
-		assertEquals("MicroService2", list.select().getName());
+		assertNotEquals(null, route);
+		assertEquals(3, route.size());
+		assertEquals("MicroService2", route.getSubscribers()[1].getName());
+		assertEquals("MicroService3", route.getSubscribers()[2].getName());
+		assertEquals(messageBus.getMailbox(m2), route.select(r));
+		assertEquals(messageBus.getMailbox(m3), route.select(r));
+		assertEquals(messageBus.getMailbox(m), route.select(r));
+		assertEquals(messageBus.getMailbox(m2), route.select(r));
+	}
+
+	@Test
+	public void testLeastLoadedRouting() {
+		messageBus.register(m);
+		messageBus.register(m2);
+		messageBus.register(m3);
+		messageBus.setRoutingPolicy(r.getClass(), new LeastLoadedPolicy());
+		messageBus.subscribeRequest(r.getClass(), m);
+		messageBus.subscribeRequest(r.getClass(), m2);
+		Mailbox queue1 = messageBus.getMailbox(m);
+		Mailbox queue2 = messageBus.getMailbox(m2);
+		// m is busy with a broadcast, the requests go to m2 until it is as
+		// loaded as m
+		messageBus.subscribeBroadcast(b.getClass(), m);
+		messageBus.sendBroadcast(b);
+		messageBus.sendRequest(r, m3);
+		assertEquals(1, queue2.size());
+		messageBus.sendRequest(r, m3);
+		messageBus.sendRequest(r, m3);
+		assertEquals(2, queue1.size());
+		assertEquals(2, queue2.size());
+		assertEquals(true, messageBus.getRequestSubscribers().get(r.getClass()).getPolicy() instanceof LeastLoadedPolicy);
+	}
+
+	@Test
+	public void testPowerOfTwoChoicesRouting() {
+		messageBus.register(m);
+		messageBus.register(m2);
+		messageBus.register(m3);
+		messageBus.subscribeRequest(r.getClass(), m);
+		messageBus.subscribeRequest(r.getClass(), m2);
+		messageBus.setRoutingPolicy(r.getClass(), RoutingPolicy.forName("power-of-two"));
+		// With two subscribers both are always compared, so the loads never
+		// differ by more than one
+		for (int i = 0; i < 10; i++) {
+			messageBus.sendRequest(r, m3);
+			assertEquals(true, Math.abs(messageBus.getMailbox(m).size() - messageBus.getMailbox(m2).size()) <= 1);
+		}
+	}
+
+	private static class KeyedRequest extends Request<Boolean> {
+		private final String key;
+
+		KeyedRequest(String key) {
+			this.key = key;
+		}
+
+		@Override
+		public Object getRoutingKey() {
+			return key;
+		}
+	}
+
+	@Test
+	public void testAffinityRouting() {
+		messageBus.register(m);
+		messageBus.register(m2);
+		messageBus.register(m3);
+		messageBus.register(m4);
+		messageBus.setRoutingPolicy(KeyedRequest.class, RoutingPolicy.forName("affinity"));
+		messageBus.subscribeRequest(KeyedRequest.class, m);
+		messageBus.subscribeRequest(KeyedRequest.class, m2);
+		messageBus.subscribeRequest(KeyedRequest.class, m3);
+		RequestRoute route = messageBus.getRequestSubscribers().get(KeyedRequest.class);
+		Mailbox[] owners = new Mailbox[100];
+		for (int i = 0; i < owners.length; i++)
+			owners[i] = route.select(new KeyedRequest("shoe" + i));
+		// Test that a key keeps its subscriber and that keys are spread
+		for (int i = 0; i < owners.length; i++)
+			assertEquals(owners[i], route.select(new KeyedRequest("shoe" + i)));
+		for (Mailbox mailbox : route.getMailboxes())
+			assertEquals(true, Arrays.asList(owners).contains(mailbox));
+		// Test that only the keys of a leaving subscriber move
+		Mailbox leaving = messageBus.getMailbox(m2);
+		messageBus.unregister(m2);
+		for (int i = 0; i < owners.length; i++) {
+			Mailbox owner = route.select(new KeyedRequest("shoe" + i));
+			assertNotEquals(leaving, owner);
+			if (owners[i] != leaving)
+				assertEquals(owners[i], owner);
+		}
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testUnknownRoutingPolicy() {
+		RoutingPolicy.forName("random");
 	}
 
 	@Test
 	public void testSubscribeBroadcast() {
+		messageBus.register(m);
+		messageBus.register(m2);
 		messageBus.subscribeBroadcast(b.getClass(), m);
-		LinkedBlockingQueue<MicroService> queue = messageBus.getBroadcastSubscribers().get(b.getClass());
+		BroadcastRoute route = messageBus.getBroadcastSubscribers().get(b.getClass());
 		// Test if microservice successfuly subscribed
-		assertNotEquals(null, queue);
-		assertEquals(1, queue.size());
-		assertEquals(m, queue.peek());
+		assertNotEquals(null, route);
+		assertEquals(1, route.size());
+		assertEquals(m, route.getSubscribers()[0]);
 
 		messageBus.subscribeBroadcast(b.getClass(), m2);
 
 		// Test if the second microservice successfuly subscribed
-		assertNotEquals(null, queue);
-		assertEquals(2, queue.size());
-		assertEquals(true, queue.contains(m2));
-		assertEquals("MicroService1", queue.remove().getName());
-		assertEquals("MicroService2", queue.remove().getName());
+		assertNotEquals(null, route);
+		assertEquals(2, route.size());
+		assertEquals(true, route.contains(m2));
+		assertEquals("MicroService1", route.getSubscribers()[0].getName());
+		assertEquals("MicroService2", route.getSubscribers()[1].getName());
+
+		// Test if the mailboxes were resolved together with the subscribers
+		assertEquals(2, route.getMailboxes().length);
+		assertEquals(messageBus.getMailbox(m), route.getMailboxes()[0]);
+		assertEquals(messageBus.getMailbox(m2), route.getMailboxes()[1]);
 	}
 
 	@SuppressWarnings("unchecked")
@@ -151,6 +255,231 @@ public class MessageBusImplTest {
 		}
 	}
 
+	@SuppressWarnings("unchecked")
+	@Test
+	public void testCompleteRecyclesSlots() {
+		messageBus.register(m);
+		messageBus.register(m2);
+		messageBus.subscribeRequest(r.getClass(), m);
+		final Boolean[] result = new Boolean[1];
+		// Test that a long run of requests keeps reusing the same slots
+		for (int i = 0; i < 3 * RequestTable.SEGMENT_SIZE; i++) {
+			messageBus.sendRequest(r, m2, x -> result[0] = x);
+			assertEquals(1, messageBus.getRequests().size());
+			messageBus.complete((Request<Boolean>) messageBus.getMailbox(m).poll(), true);
+			assertEquals(0, messageBus.getRequests().size());
+			RequestCompleted<Boolean> completed = (RequestCompleted<Boolean>) messageBus.getMailbox(m2).poll();
+			completed.getOnComplete().call(completed.getResult());
+			assertEquals(Boolean.TRUE, result[0]);
+		}
+		assertEquals(RequestTable.SEGMENT_SIZE, messageBus.getRequests().capacity());
+		// Test that completing twice delivers a single result
+		messageBus.sendRequest(r, m2);
+		messageBus.complete(r, true);
+		messageBus.complete(r, false);
+		assertEquals(1, messageBus.getMailbox(m2).size());
+		assertEquals(0, messageBus.getRequests().size());
+	}
+
+	@Test
+	public void testCompleteAfterRequesterUnregistered() {
+		messageBus.register(m);
+		messageBus.register(m2);
+		messageBus.subscribeRequest(r.getClass(), m);
+		messageBus.sendRequest(r, m2);
+		messageBus.unregister(m2);
+		// m3 gets the handle m2 had
+		messageBus.register(m3);
+		messageBus.complete(r, true);
+		assertEquals(true, messageBus.getMailbox(m3).isEmpty());
+		assertEquals(0, messageBus.getRequests().size());
+	}
+
+	@SuppressWarnings("unchecked")
+	@Test
+	public void testUnregisterReleasesRequests() {
+		messageBus.register(m);
+		messageBus.register(m2);
+		messageBus.subscribeRequest(r.getClass(), m);
+		messageBus.subscribeRequest(r2.getClass(), m);
+		messageBus.sendRequest(r, m2);
+		messageBus.sendRequest(r2, m2);
+		assertEquals(2, messageBus.getRequests().size());
+		// Test the requests the receiver never handled time out to the
+		// requester, and free their slots
+		messageBus.unregister(m);
+		assertEquals(0, messageBus.getRequests().size());
+		Mailbox requester = messageBus.getMailbox(m2);
+		assertEquals(true, ((RequestCompleted<Boolean>) requester.poll()).isTimedOut());
+		assertEquals(true, ((RequestCompleted<Boolean>) requester.poll()).isTimedOut());
+		assertEquals(false, messageBus.complete(r, true));
+		// Test the requests of an un-registered requester free their slots
+		messageBus.register(m3);
+		messageBus.subscribeRequest(r.getClass(), m3);
+		messageBus.sendRequest(r, m2);
+		messageBus.unregister(m2);
+		assertEquals(0, messageBus.getRequests().size());
+		assertEquals(true, messageBus.getMailbox(m3).isEmpty());
+	}
+
+	@SuppressWarnings("unchecked")
+	@Test(timeout = 10000)
+	public void testSendRequestTimesOut() throws InterruptedException {
+		messageBus.register(m);
+		messageBus.register(m2);
+		messageBus.subscribeRequest(r.getClass(), m);
+		messageBus.sendRequest(r, m2, null, 20, TimeUnit.MILLISECONDS);
+		assertEquals(1, messageBus.getMailbox(m).size());
+		RequestCompleted<Boolean> completed = (RequestCompleted<Boolean>) ((LinkedMailbox) messageBus.getMailbox(m2))
+				.poll(5, TimeUnit.SECONDS);
+		// Test the requester got a timed out completion, and the request was
+		// dropped from the receiver queue and the request table
+		assertEquals(true, completed.isTimedOut());
+		assertEquals(null, completed.getResult());
+		assertEquals(true, messageBus.getMailbox(m).isEmpty());
+		assertEquals(0, messageBus.getRequests().size());
+		// Test a late completion is ignored
+		messageBus.complete(r, true);
+		assertEquals(true, messageBus.getMailbox(m2).isEmpty());
+	}
+
+	@Test
+	public void testCancel() throws InterruptedException {
+		messageBus.register(m);
+		messageBus.register(m2);
+		messageBus.subscribeRequest(r.getClass(), m);
+		messageBus.sendRequest(r, m2, null, 20, TimeUnit.MILLISECONDS);
+		assertEquals(true, messageBus.cancel(r));
+		assertEquals(false, messageBus.cancel(r));
+		assertEquals(true, messageBus.getMailbox(m).isEmpty());
+		assertEquals(0, messageBus.getRequests().size());
+		// Test neither the deadline nor a completion reach the requester
+		Thread.sleep(100);
+		messageBus.complete(r, true);
+		assertEquals(true, messageBus.getMailbox(m2).isEmpty());
+	}
+
+	@SuppressWarnings("unchecked")
+	@Test(timeout = 10000)
+	public void testMetrics() throws InterruptedException {
+		assertEquals(false, messageBus.isMetered());
+		messageBus.setMetrics(true);
+		assertEquals(true, messageBus.isMetered());
+		BusMetrics metrics = messageBus.getMetrics();
+		messageBus.register(m);
+		messageBus.register(m2);
+		messageBus.subscribeRequest(r.getClass(), m);
+		messageBus.subscribeBroadcast(b.getClass(), m);
+		messageBus.subscribeBroadcast(b.getClass(), m2);
+		messageBus.sendRequest(r, m2);
+		messageBus.sendBroadcast(b);
+		BusMetrics.ServiceMetrics service = null;
+		for (BusMetrics.ServiceMetrics candidate : metrics.getServices())
+			if (candidate.getName().equals("MicroService1"))
+				service = candidate;
+		assertEquals(2, service.getEnqueued());
+		assertEquals(2, service.getHighWater());
+		assertEquals(2, service.getDepth());
+		Message taken = messageBus.awaitMessage(m);
+		long start = System.nanoTime();
+		messageBus.handled(m, messageBus.getMailbox(m), taken, start, start + 1000);
+		messageBus.complete(r, true);
+		// Test the wait, the handling and the round-trip were recorded
+		BusMetrics.TypeMetrics type = metrics.type(r.getClass());
+		assertEquals(1, service.getDequeued());
+		assertEquals(1, service.getDepth());
+		assertEquals(1, type.getSent());
+		assertEquals(1, type.getQueueWait().getCount());
+		assertEquals(1000, type.getHandling().getMax());
+		assertEquals(1, type.getRoundTrip().getCount());
+		assertEquals(2, metrics.type(b.getClass()).getSent());
+		assertEquals(1, metrics.type(RequestCompleted.class).getSent());
+		// Test a timed out request is counted
+		messageBus.subscribeRequest(r2.getClass(), m);
+		messageBus.sendRequest(r2, m2, null, 20, TimeUnit.MILLISECONDS);
+		LinkedMailbox requester = (LinkedMailbox) messageBus.getMailbox(m2);
+		assertEquals(b, requester.poll(5, TimeUnit.SECONDS));
+		assertEquals(false, ((RequestCompleted<Boolean>) requester.poll(5, TimeUnit.SECONDS)).isTimedOut());
+		assertEquals(true, ((RequestCompleted<Boolean>) requester.poll(5, TimeUnit.SECONDS)).isTimedOut());
+		assertEquals(1, metrics.type(r2.getClass()).getTimedOut());
+		assertTrue(metrics.report().contains("MicroService1"));
+		// Test an un-registered micro-service keeps its counters only
+		messageBus.unregister(m);
+		assertEquals(0, service.getDepth());
+		assertEquals(2, metrics.getServices().size());
+		assertTrue(metrics.report().contains("MicroService1"));
+	}
+
+	@Test
+	public void testWhenQuiescent() {
+		messageBus.setQuiescenceTracking(true);
+		QuiescenceTracker tracker = messageBus.getQuiescence();
+		messageBus.register(m);
+		messageBus.register(m2);
+		messageBus.subscribeBroadcast(b.getClass(), m);
+		messageBus.subscribeBroadcast(b.getClass(), m2);
+		messageBus.sendBroadcast(b);
+		assertEquals(2, tracker.getOutstanding());
+		final int[] runs = new int[1];
+		messageBus.whenQuiescent(() -> runs[0]++);
+		assertEquals(0, runs[0]);
+		// Test a taken message is outstanding until its batch was handled
+		messageBus.getMailbox(m).poll();
+		messageBus.getMailbox(m).handled(1);
+		assertEquals(1, tracker.getOutstanding());
+		assertEquals(0, runs[0]);
+		// Test un-registering drops the pending messages
+		messageBus.unregister(m2);
+		assertEquals(0, tracker.getOutstanding());
+		assertEquals(1, runs[0]);
+		messageBus.whenQuiescent(() -> runs[0]++);
+		assertEquals(2, runs[0]);
+	}
+
+	@Test(expected = IllegalStateException.class)
+	public void testWhenQuiescentNotTracked() {
+		messageBus.whenQuiescent(() -> {
+		});
+	}
+
+	@Test
+	public void testUnsubscribeBroadcast() {
+		messageBus.register(m);
+		messageBus.register(m2);
+		messageBus.subscribeBroadcast(b.getClass(), m);
+		messageBus.subscribeBroadcast(b.getClass(), m2);
+		// Test subscribing twice is delivered once
+		messageBus.subscribeBroadcast(b.getClass(), m2);
+		assertEquals(2, messageBus.getBroadcastSubscribers().get(b.getClass()).size());
+		messageBus.sendBroadcast(b);
+		messageBus.unsubscribeBroadcast(b.getClass(), m2);
+		messageBus.sendBroadcast(b);
+		assertEquals(2, messageBus.getMailbox(m).size());
+		// Test the broadcasts already in the queue are kept
+		assertEquals(1, messageBus.getMailbox(m2).size());
+		messageBus.subscribeBroadcast(b.getClass(), m2);
+		messageBus.sendBroadcast(b);
+		assertEquals(2, messageBus.getMailbox(m2).size());
+		messageBus.unregister(m2);
+		assertEquals(1, messageBus.getBroadcastSubscribers().get(b.getClass()).size());
+	}
+
+	@Test
+	public void testGetBacklog() {
+		assertEquals(0, messageBus.getBacklog());
+		messageBus.register(m);
+		messageBus.register(m2);
+		messageBus.subscribeBroadcast(b.getClass(), m);
+		messageBus.subscribeBroadcast(b.getClass(), m2);
+		messageBus.sendBroadcast(b);
+		messageBus.sendBroadcast(b);
+		assertEquals(4, messageBus.getBacklog());
+		messageBus.getMailbox(m).poll();
+		assertEquals(3, messageBus.getBacklog());
+		messageBus.unregister(m2);
+		assertEquals(1, messageBus.getBacklog());
+	}
+
 	@Test
 	public void testSendBroadcast() {
 		messageBus.register(m);
@@ -159,10 +488,9 @@ public class MessageBusImplTest {
 
 		messageBus.subscribeBroadcast(b.getClass(), m);
 		messageBus.sendBroadcast(b);
-		ConcurrentHashMap<String, LinkedBlockingQueue<Message>> messages = messageBus.getPersonalMessageQueues();
-		LinkedBlockingQueue<Message> queue1 = messages.get(m.getName());
-		LinkedBlockingQueue<Message> queue2 = messages.get(m2.getName());
-		LinkedBlockingQueue<Message> queue3 = messages.get(m3.getName());
+		Mailbox queue1 = messageBus.getMailbox(m);
+		Mailbox queue2 = messageBus.getMailbox(m2);
+		Mailbox queue3 = messageBus.getMailbox(m3);
 		assertNotEquals(null, queue1);
 		assertEquals(1, queue1.size());
 		assertEquals(b.getClass(), queue1.peek().getClass());
@@ -176,11 +504,11 @@ public class MessageBusImplTest {
 		messageBus.sendBroadcast(b2);
 		assertNotEquals(null, queue1);
 		assertEquals(2, queue1.size());
-		assertEquals(b.getClass(), queue1.remove().getClass());
-		assertEquals(b2.getClass(), queue1.remove().getClass());
+		assertEquals(b.getClass(), queue1.poll().getClass());
+		assertEquals(b2.getClass(), queue1.poll().getClass());
 		assertNotEquals(null, queue2);
 		assertEquals(1, queue2.size());
-		assertEquals(b2.getClass(), queue2.remove().getClass());
+		assertEquals(b2.getClass(), queue2.poll().getClass());
 		assertNotEquals(null, queue3);
 		assertEquals(0, queue3.size());
 
@@ -195,10 +523,9 @@ public class MessageBusImplTest {
 
 		messageBus.subscribeRequest(r.getClass(), m);
 		messageBus.sendRequest(r, m3);
-		ConcurrentHashMap<String, LinkedBlockingQueue<Message>> messages = messageBus.getPersonalMessageQueues();
-		LinkedBlockingQueue<Message> queue1 = messages.get(m.getName());
-		LinkedBlockingQueue<Message> queue2 = messages.get(m2.getName());
-		LinkedBlockingQueue<Message> queue3 = messages.get(m3.getName());
+		Mailbox queue1 = messageBus.getMailbox(m);
+		Mailbox queue2 = messageBus.getMailbox(m2);
+		Mailbox queue3 = messageBus.getMailbox(m3);
 		assertNotEquals(null, queue1);
 		assertNotEquals(null, queue2);
 		assertNotEquals(null, queue3);
@@ -245,34 +572,97 @@ public class MessageBusImplTest {
 		assertEquals(r.getClass(), queue2.peek().getClass());
 		assertEquals(1, queue3.size());
 		assertEquals(r.getClass(), queue3.peek().getClass());
-		assertEquals(r.getClass(), queue1.remove().getClass());
-		assertEquals(r.getClass(), queue1.remove().getClass());
-		assertEquals(r2.getClass(), queue1.remove().getClass());
-		assertEquals(r.getClass(), queue2.remove().getClass());
-		assertEquals(r2.getClass(), queue2.remove().getClass());
-		assertEquals(r.getClass(), queue3.remove().getClass());
+		assertEquals(r.getClass(), queue1.poll().getClass());
+		assertEquals(r.getClass(), queue1.poll().getClass());
+		assertEquals(r2.getClass(), queue1.poll().getClass());
+		assertEquals(r.getClass(), queue2.poll().getClass());
+		assertEquals(r2.getClass(), queue2.poll().getClass());
+		assertEquals(r.getClass(), queue3.poll().getClass());
 
 		// Test if one can send for himself
 		messageBus.sendRequest(r, m2);
-		assertEquals(r.getClass(), queue2.remove().getClass());
+		assertEquals(r.getClass(), queue2.poll().getClass());
 		assertEquals(0, queue1.size());
 		assertEquals(0, queue2.size());
 		assertEquals(0, queue3.size());
 
 	}
 
+	@Test
+	public void testUnregisterRemovesBroadcastRoute() {
+		messageBus.register(m);
+		messageBus.register(m2);
+		messageBus.subscribeBroadcast(b.getClass(), m);
+		messageBus.subscribeBroadcast(b.getClass(), m2);
+		messageBus.unregister(m);
+		BroadcastRoute route = messageBus.getBroadcastSubscribers().get(b.getClass());
+		assertEquals(1, route.size());
+		assertEquals(false, route.contains(m));
+		messageBus.sendBroadcast(b);
+		assertEquals(1, messageBus.getMailbox(m2).size());
+	}
+
 	@Test
 	public void testRegister() {
-		assertEquals(null, messageBus.getPersonalMessageQueues().get(m.getName()));
+		assertEquals(null, messageBus.getMailbox(m));
 		messageBus.register(m);
-		assertNotEquals(null, messageBus.getPersonalMessageQueues().get(m.getName()));
+		assertNotEquals(null, messageBus.getMailbox(m));
+	}
+
+	@Test
+	public void testRegisterDuplicateNames() {
+		// m3 and m4 have the same name but must not share a queue
+		messageBus.register(m3);
+		messageBus.register(m4);
+		assertNotEquals(m3.getBusHandle(), m4.getBusHandle());
+		assertNotEquals(messageBus.getMailbox(m3), messageBus.getMailbox(m4));
+		messageBus.subscribeRequest(r.getClass(), m3);
+		messageBus.sendRequest(r, m4);
+		assertEquals(1, messageBus.getMailbox(m3).size());
+		assertEquals(0, messageBus.getMailbox(m4).size());
+		messageBus.unregister(m3);
+		assertEquals(null, messageBus.getMailbox(m3));
+		assertNotEquals(null, messageBus.getMailbox(m4));
+	}
+
+	@Test
+	public void testRegisterRecyclesHandles() {
+		messageBus.register(m);
+		messageBus.register(m2);
+		int handle = m.getBusHandle();
+		messageBus.unregister(m);
+		assertEquals(-1, m.getBusHandle());
+		messageBus.register(m3);
+		assertEquals(handle, m3.getBusHandle());
+		assertEquals(2, messageBus.getServices().size());
+	}
+
+	@Test(expected = IllegalStateException.class)
+	public void testSubscribeNotRegistered() {
+		messageBus.subscribeBroadcast(b.getClass(), m);
+	}
+
+	@Test
+	public void testRegisterWithMailbox() {
+		Mailbox mailbox = new RingBufferMailbox();
+		messageBus.register(m, mailbox);
+		assertEquals(mailbox, messageBus.getMailbox(m));
+		messageBus.subscribeBroadcast(b.getClass(), m);
+		messageBus.sendBroadcast(b);
+		try {
+			assertEquals(b, messageBus.awaitMessage(m));
+		} catch (InterruptedException e) {
+			fail("An unhandled exception");
+			e.printStackTrace();
+		}
+		assertEquals(true, mailbox.isEmpty());
 	}
 
 	@Test
 	public void testUnregister() {
 		messageBus.register(m);
 		messageBus.unregister(m);
-		assertEquals(null, messageBus.getPersonalMessageQueues().get(m.getName()));
+		assertEquals(null, messageBus.getMailbox(m));
 
 	}
 
@@ -282,43 +672,123 @@ public class MessageBusImplTest {
 		messageBus.subscribeBroadcast(b.getClass(), m);
 		messageBus.sendBroadcast(b);
 		try {
-			assertEquals(messageBus.getPersonalMessageQueues().get(m.getName()).peek(), messageBus.awaitMessage(m));
+			assertEquals(messageBus.getMailbox(m).peek(), messageBus.awaitMessage(m));
 		} catch (InterruptedException e) {
 			fail("An unhandled exception");
 			e.printStackTrace();
 		}
-		assertEquals(0, messageBus.getPersonalMessageQueues().get(m.getName()).size());
+		assertEquals(0, messageBus.getMailbox(m).size());
 
 	}
 
 	@Test
-	public void getPersonalMessageQueues() {
-		assertEquals(new ConcurrentHashMap<String, LinkedBlockingQueue<Message>>(), messageBus.getPersonalMessageQueues());
+	public void testAwaitMessages() {
+		List<Message> batch = new ArrayList<Message>();
+		messageBus.register(m);
+		messageBus.subscribeBroadcast(b.getClass(), m);
+		messageBus.subscribeBroadcast(b2.getClass(), m);
+		messageBus.sendBroadcast(b);
+		messageBus.sendBroadcast(b2);
+		messageBus.sendBroadcast(b);
+		try {
+			// Test if no more than max messages are taken, in order
+			assertEquals(2, messageBus.awaitMessages(m, batch, 2));
+			assertEquals(b, batch.get(0));
+			assertEquals(b2, batch.get(1));
+			assertEquals(1, messageBus.awaitMessages(m, batch, 5));
+			assertEquals(3, batch.size());
+			assertEquals(b, batch.get(2));
+		} catch (InterruptedException e) {
+			fail("An unhandled exception");
+			e.printStackTrace();
+		}
+		assertEquals(0, messageBus.getMailbox(m).size());
+	}
+
+	@Test(timeout = 10000)
+	public void testAwaitMessagesStealsRequests() throws InterruptedException {
+		messageBus.register(m);
+		messageBus.register(m2);
+		messageBus.register(m3);
+		messageBus.setWorkStealing(r.getClass(), true);
+		messageBus.subscribeRequest(r.getClass(), m);
+		messageBus.subscribeRequest(r.getClass(), m2);
+		messageBus.subscribeBroadcast(b.getClass(), m2);
+		// m2 is busy: a broadcast and two requests wait in its queue
+		messageBus.sendBroadcast(b);
+		for (int i = 0; i < 4; i++)
+			messageBus.sendRequest(r, m3);
+		Mailbox queue1 = messageBus.getMailbox(m);
+		Mailbox queue2 = messageBus.getMailbox(m2);
+		assertEquals(r, queue1.poll());
+		assertEquals(r, queue1.poll());
+		assertEquals(3, queue2.size());
+		// Test that the idle m steals a request, and only a request
+		List<Message> batch = new ArrayList<Message>();
+		assertEquals(1, messageBus.awaitMessages(m, batch, 5));
+		assertEquals(r, batch.get(0));
+		assertEquals(2, queue2.size());
+		assertEquals(b, queue2.poll());
+		assertEquals(r, queue2.poll());
+		// Test that the stolen request is completed to its requester
+		messageBus.complete(r, true);
+		assertEquals(1, messageBus.getMailbox(m3).size());
 	}
 
 	@Test
-	public void getPersonalSubscribes() {
-		assertEquals(new ConcurrentHashMap<String, LinkedBlockingQueue<Class<? extends Message>>>(), messageBus.getPersonalSubscribes());
+	public void testAwaitMessagesWakesIdleThief() throws InterruptedException {
+		messageBus.register(m);
+		messageBus.register(m2);
+		messageBus.register(m3);
+		messageBus.setWorkStealing(r.getClass(), true);
+		messageBus.subscribeRequest(r.getClass(), m);
+		messageBus.subscribeRequest(r.getClass(), m2);
+		// the first request goes to m, which already took it
+		messageBus.sendRequest(r, m3);
+		Mailbox queue1 = messageBus.getMailbox(m);
+		assertEquals(r, queue1.poll());
+		List<Message> batch = new ArrayList<Message>();
+		Thread thief = new Thread(() -> {
+			try {
+				messageBus.awaitMessages(m, batch, 5);
+			} catch (InterruptedException e) {
+			}
+		});
+		thief.start();
+		Thread.sleep(50);
+		// Test that the parked m is woken by a request sent to m2, steals it
+		// and becomes its receiver
+		messageBus.sendRequest(r, m3);
+		thief.join(TimeUnit.SECONDS.toMillis(5));
+		assertFalse(thief.isAlive());
+		assertEquals(Arrays.asList(r), batch);
+		assertEquals(0, messageBus.getMailbox(m2).size());
+		assertSame(queue1, messageBus.getRequests().release(r).getReceiver());
+	}
+
+	@Test(expected = IllegalStateException.class)
+	public void testAwaitMessagesNotRegistered() throws InterruptedException {
+		messageBus.awaitMessages(m, new ArrayList<Message>(), 1);
 	}
 
 	@Test
-	public void getRequestSubscribers() {
-		assertEquals(new ConcurrentHashMap<Class<? extends Request<Boolean>>, RoundRobinList<MicroService>>(), messageBus.getRequestSubscribers());
+	public void getServices() {
+		assertEquals(0, messageBus.getServices().size());
 	}
 
 	@Test
-	public void getBroadcastSubscribers() {
-		assertEquals(new ConcurrentHashMap<Class<? extends Broadcast>, LinkedBlockingQueue<MicroService>>(), messageBus.getBroadcastSubscribers());
+	public void getRequestSubscribers() {
+		assertEquals(new ConcurrentHashMap<Class<? extends Request<Boolean>>, RequestRoute>(), messageBus.getRequestSubscribers());
 	}
 
 	@Test
-	public void getRequesterMessage() {
-		assertEquals(new ConcurrentHashMap<Request<Boolean>, MicroService>(), messageBus.getRequesterMessage());
+	public void getBroadcastSubscribers() {
+		assertEquals(new ConcurrentHashMap<Class<? extends Broadcast>, BroadcastRoute>(), messageBus.getBroadcastSubscribers());
 	}
 
 	@Test
-	public void getRequestsSent() {
-		assertEquals(new ConcurrentHashMap<String, LinkedBlockingQueue<Request<Boolean>>>(), messageBus.getRequestsSent());
+	public void getRequests() {
+		assertEquals(0, messageBus.getRequests().size());
 	}
 
 }
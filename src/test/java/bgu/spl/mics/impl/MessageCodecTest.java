@@ -0,0 +1,179 @@
+package bgu.spl.mics.impl;
+
+import static org.junit.Assert.*;
+
+import java.lang.management.ManagementFactory;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+
+import org.junit.Test;
+
+import bgu.spl.mics.Request;
+import bgu.spl.mics.RequestCompleted;
+import bgu.spl.mics.impl.MessageCodec.Decoder;
+import bgu.spl.mics.impl.MessageCodec.Encoder;
+import bgu.spl.mics.impl.MessageCodec.Format;
+
+public class MessageCodecTest {
+
+	private static class NameRequest extends Request<String> {
+		private final String name;
+		private final int count;
+
+		NameRequest(String name, int count) {
+			this.name = name;
+			this.count = count;
+		}
+	}
+
+	private static MessageCodec codec() {
+		MessageCodec codec = new MessageCodec();
+		codec.register(NameRequest.class, MessageCodec.FIRST_TAG, Format.of((r, out) -> {
+			out.writeSymbol(r.name);
+			out.writeInt(r.count);
+		}, in -> new NameRequest(in.readSymbol(), in.readInt())));
+		return codec;
+	}
+
+	@Test
+	public void testNumbers() {
+		MessageCodec codec = new MessageCodec();
+		Encoder encoder = codec.newEncoder();
+		Decoder decoder = codec.newDecoder();
+		ByteBuffer buffer = ByteBuffer.allocate(64);
+		for (int value : new int[] { 0, 1, -1, 63, -64, 64, Integer.MAX_VALUE, Integer.MIN_VALUE }) {
+			buffer.clear();
+			encoder.encode(value, buffer);
+			buffer.flip();
+			assertEquals(value, decoder.decode(buffer));
+			assertFalse(buffer.hasRemaining());
+		}
+		for (long value : new long[] { 0, -1, Long.MAX_VALUE, Long.MIN_VALUE }) {
+			buffer.clear();
+			encoder.encode(value, buffer);
+			buffer.flip();
+			assertEquals(value, decoder.decode(buffer));
+		}
+		// Test a small number takes a byte after the tag, whatever its sign
+		buffer.clear();
+		encoder.encode(-5, buffer);
+		assertEquals(2, buffer.position());
+	}
+
+	@Test
+	public void testStrings() {
+		MessageCodec codec = new MessageCodec();
+		Encoder encoder = codec.newEncoder();
+		Decoder decoder = codec.newDecoder();
+		for (String value : new String[] { "", "red-boots", "été", "中文", "👟", null }) {
+			ByteBuffer encoded = encoder.encode(value);
+			assertEquals(value, decoder.decode(encoded));
+		}
+		// Test a direct buffer is read as well
+		ByteBuffer direct = ByteBuffer.allocateDirect(64);
+		encoder.encode("été", direct);
+		direct.flip();
+		assertEquals("été", decoder.decode(direct));
+	}
+
+	@Test
+	public void testSymbolsAndRequestId() {
+		MessageCodec codec = codec();
+		Encoder encoder = codec.newEncoder();
+		Decoder decoder = codec.newDecoder();
+		NameRequest request = new NameRequest("green-flip-flops", 3);
+		request.setRequestId(42);
+		request.setTrace(5, 6, 0);
+		ByteBuffer first = encoder.encode(request);
+		assertTrue(first.remaining() > "green-flip-flops".length());
+		NameRequest once = (NameRequest) decoder.decode(first);
+		ByteBuffer again = encoder.encode(request);
+		// Test a known symbol is written by its index: tag, id, trace, span,
+		// parent span, symbol, count
+		assertEquals(7, again.remaining());
+		NameRequest twice = (NameRequest) decoder.decode(again);
+		assertEquals("green-flip-flops", once.name);
+		assertSame(once.name, twice.name);
+		assertEquals(3, twice.count);
+		assertEquals(42, once.getRequestId());
+		assertEquals(42, twice.getRequestId());
+		assertEquals(5, twice.getTraceId());
+		assertEquals(6, twice.getSpanId());
+		assertEquals(0, twice.getParentSpanId());
+	}
+
+	@Test
+	public void testRequestCompleted() {
+		MessageCodec codec = codec();
+		NameRequest request = new NameRequest("work-shoes", 1);
+		request.setRequestId(7);
+		RequestCompleted<String> completed = new RequestCompleted<String>(request, "done", null, true);
+		RequestCompleted<?> decoded = (RequestCompleted<?>) codec.newDecoder().decode(
+				codec.newEncoder().encode(completed));
+		assertEquals("done", decoded.getResult());
+		assertTrue(decoded.isTimedOut());
+		assertEquals(7, decoded.getCompletedRequest().getRequestId());
+		assertEquals("work-shoes", ((NameRequest) decoded.getCompletedRequest()).name);
+	}
+
+	@Test
+	public void testOverflowRollsBack() {
+		MessageCodec codec = codec();
+		Encoder encoder = codec.newEncoder();
+		Decoder decoder = codec.newDecoder();
+		ByteBuffer small = ByteBuffer.allocate(8);
+		small.put((byte) 9);
+		try {
+			encoder.encode(new NameRequest("uncomfortable-high-heels", 1), small);
+			fail("the request does not fit");
+		} catch (BufferOverflowException e) {
+			assertEquals(1, small.position());
+		}
+		// Test the symbol of the value that did not fit was forgotten
+		NameRequest decoded = (NameRequest) decoder.decode(encoder.encode(new NameRequest(
+				"uncomfortable-high-heels", 2)));
+		assertEquals("uncomfortable-high-heels", decoded.name);
+		assertEquals(2, decoded.count);
+	}
+
+	@Test
+	public void testUnregistered() {
+		MessageCodec codec = new MessageCodec();
+		try {
+			codec.newEncoder().encode(new NameRequest("x", 1));
+			fail("the class is not registered");
+		} catch (IllegalArgumentException e) {
+			// expected
+		}
+		codec.setFallback(Format.of((value, out) -> out.writeString(value.toString()), in -> in.readString()));
+		Object decoded = codec.newDecoder().decode(codec.newEncoder().encode(new StringBuilder("fallback")));
+		assertEquals("fallback", decoded);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testReservedTag() {
+		new MessageCodec().register(NameRequest.class, 3, null);
+	}
+
+	@Test
+	public void testEncodeDoesNotAllocate() {
+		com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory
+				.getThreadMXBean();
+		MessageCodec codec = codec();
+		Encoder encoder = codec.newEncoder();
+		NameRequest request = new NameRequest("blue-sneakers", 10);
+		ByteBuffer buffer = ByteBuffer.allocateDirect(64);
+		for (int i = 0; i < 10000; i++) {
+			buffer.clear();
+			encoder.encode(request, buffer);
+		}
+		long before = threads.getThreadAllocatedBytes(Thread.currentThread().getId());
+		for (int i = 0; i < 100000; i++) {
+			buffer.clear();
+			encoder.encode(request, buffer);
+		}
+		long allocated = threads.getThreadAllocatedBytes(Thread.currentThread().getId()) - before;
+		// a byte per encoding would be 100KB
+		assertTrue("allocated " + allocated + " bytes", allocated < 16 * 1024);
+	}
+}
@@ -0,0 +1,115 @@
+package bgu.spl.mics.impl;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+import bgu.spl.mics.Broadcast;
+import bgu.spl.mics.Message;
+import bgu.spl.mics.impl.RingBufferMailbox.WaitStrategy;
+
+public class RingBufferMailboxTest {
+
+	private static class Numbered implements Broadcast {
+		private final int producer;
+		private final int number;
+
+		Numbered(int producer, int number) {
+			this.producer = producer;
+			this.number = number;
+		}
+	}
+
+	@Test
+	public void testCapacity() {
+		assertEquals(1, new RingBufferMailbox(1, WaitStrategy.PARK).capacity());
+		assertEquals(8, new RingBufferMailbox(5, WaitStrategy.PARK).capacity());
+		assertEquals(8, new RingBufferMailbox(8, WaitStrategy.PARK).capacity());
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testIllegalCapacity() {
+		new RingBufferMailbox(0, WaitStrategy.PARK);
+	}
+
+	@Test
+	public void testPutPollInOrder() {
+		RingBufferMailbox mailbox = new RingBufferMailbox(4, WaitStrategy.SPIN);
+		assertEquals(true, mailbox.isEmpty());
+		assertEquals(null, mailbox.poll());
+		// Test wrapping around the ring a few times
+		for (int i = 0; i < 10; i++) {
+			Message first = new Numbered(0, i);
+			Message second = new Numbered(0, i + 1);
+			mailbox.put(first);
+			mailbox.put(second);
+			assertEquals(2, mailbox.size());
+			assertEquals(first, mailbox.peek());
+			assertEquals(first, mailbox.poll());
+			assertEquals(second, mailbox.poll());
+			assertEquals(true, mailbox.isEmpty());
+		}
+	}
+
+	@Test
+	public void testDrainTo() {
+		RingBufferMailbox mailbox = new RingBufferMailbox(8, WaitStrategy.YIELD);
+		for (int i = 0; i < 5; i++)
+			mailbox.put(new Numbered(0, i));
+		List<Message> buffer = new ArrayList<Message>();
+		assertEquals(3, mailbox.drainTo(buffer, 3));
+		assertEquals(2, mailbox.drainTo(buffer, 3));
+		assertEquals(0, mailbox.drainTo(buffer, 3));
+		for (int i = 0; i < 5; i++)
+			assertEquals(i, ((Numbered) buffer.get(i)).number);
+	}
+
+	@Test(timeout = 10000)
+	public void testProducersKeepOrder() throws InterruptedException {
+		for (WaitStrategy waitStrategy : WaitStrategy.values()) {
+			final int producers = 4;
+			final int messages = 20000;
+			// A small ring, so producers have to wait for the consumer
+			final RingBufferMailbox mailbox = new RingBufferMailbox(16, waitStrategy);
+			Thread[] threads = new Thread[producers];
+			for (int p = 0; p < producers; p++) {
+				final int producer = p;
+				threads[p] = new Thread(() -> {
+					for (int i = 0; i < messages; i++)
+						mailbox.put(new Numbered(producer, i));
+				});
+				threads[p].start();
+			}
+			int[] next = new int[producers];
+			for (int i = 0; i < producers * messages; i++) {
+				Numbered m = (Numbered) mailbox.take();
+				assertEquals(next[m.producer], m.number);
+				next[m.producer]++;
+			}
+			for (Thread thread : threads)
+				thread.join();
+			assertEquals(true, mailbox.isEmpty());
+		}
+	}
+
+	@Test(timeout = 10000)
+	public void testTakeInterrupted() throws InterruptedException {
+		final RingBufferMailbox mailbox = new RingBufferMailbox(4, WaitStrategy.PARK);
+		final boolean[] interrupted = new boolean[1];
+		Thread consumer = new Thread(() -> {
+			try {
+				mailbox.take();
+			} catch (InterruptedException e) {
+				interrupted[0] = true;
+			}
+		});
+		consumer.start();
+		consumer.interrupt();
+		consumer.join();
+		assertEquals(true, interrupted[0]);
+	}
+
+}
@@ -0,0 +1,126 @@
+package bgu.spl.mics.impl;
+
+import static org.junit.Assert.*;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Test;
+
+import bgu.spl.mics.Broadcast;
+import bgu.spl.mics.MicroService;
+import bgu.spl.mics.Request;
+
+public class ServiceSchedulerTest {
+
+	private static class CountRequest extends Request<Integer> {
+	}
+
+	private static class StopBroadcast implements Broadcast {
+	}
+
+	/**
+	 * completes every {@link CountRequest} with the number of requests it
+	 * handled so far, and records the largest number of threads that were
+	 * ever inside its callback at once.
+	 */
+	private static class Counter extends MicroService {
+		private final AtomicInteger inside = new AtomicInteger();
+		private final AtomicInteger maxInside = new AtomicInteger();
+		private final CountDownLatch ready;
+		private int handled = 0;
+
+		Counter(String name, CountDownLatch ready) {
+			super(name);
+			this.ready = ready;
+		}
+
+		@Override
+		protected void initialize() {
+			subscribeRequest(CountRequest.class, req -> {
+				int now = inside.incrementAndGet();
+				maxInside.accumulateAndGet(now, Math::max);
+				handled++;
+				inside.decrementAndGet();
+				complete(req, handled);
+			});
+			subscribeBroadcast(StopBroadcast.class, stop -> terminate());
+			ready.countDown();
+		}
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		MessageBusImpl messageBus = MessageBusImpl.getInstance();
+		messageBus.getRequestSubscribers().clear();
+		messageBus.getBroadcastSubscribers().clear();
+		messageBus.getServices().clear();
+		messageBus.getRequests().clear();
+	}
+
+	@Test(timeout = 10000)
+	public void testManyServicesOnFewWorkers() throws InterruptedException {
+		ServiceScheduler scheduler = new ServiceScheduler(2);
+		Counter[] counters = new Counter[4];
+		CountDownLatch ready = new CountDownLatch(counters.length);
+		for (int i = 0; i < counters.length; i++) {
+			counters[i] = new Counter("counter" + i, ready);
+			scheduler.start(counters[i]);
+		}
+		ready.await();
+		final int requesters = 50;
+		final int perRequester = 20;
+		final AtomicInteger completed = new AtomicInteger();
+		final AtomicInteger finished = new AtomicInteger();
+		for (int i = 0; i < requesters; i++) {
+			scheduler.start(new MicroService("requester" + i) {
+				private int remaining = perRequester;
+
+				@Override
+				protected void initialize() {
+					subscribeBroadcast(StopBroadcast.class, stop -> terminate());
+					next();
+				}
+
+				private void next() {
+					sendRequest(new CountRequest()).thenAccept(count -> {
+						completed.incrementAndGet();
+						if (--remaining > 0)
+							next();
+						else if (finished.incrementAndGet() == requesters)
+							sendBroadcast(new StopBroadcast());
+					});
+				}
+			});
+		}
+		scheduler.awaitTermination();
+		// Test every request was completed, and no service ran on two
+		// workers at once
+		assertEquals(requesters * perRequester, completed.get());
+		assertEquals(0, scheduler.getRunning());
+		int handled = 0;
+		for (Counter counter : counters) {
+			handled += counter.handled;
+			assertEquals(1, counter.maxInside.get());
+		}
+		assertEquals(requesters * perRequester, handled);
+	}
+
+	@Test(timeout = 10000)
+	public void testTerminateInInitialize() throws InterruptedException {
+		ServiceScheduler scheduler = new ServiceScheduler(1);
+		final boolean[] initialized = new boolean[1];
+		scheduler.start(new MicroService("once") {
+			@Override
+			protected void initialize() {
+				initialized[0] = true;
+				terminate();
+			}
+		});
+		scheduler.awaitTermination();
+		assertTrue(initialized[0]);
+		assertEquals(0, scheduler.getRunning());
+	}
+
+}
@@ -0,0 +1,169 @@
+package bgu.spl.mics.impl;
+
+import static org.junit.Assert.*;
+import static org.junit.Assume.assumeTrue;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Test;
+
+import bgu.spl.mics.Broadcast;
+import bgu.spl.mics.MicroService;
+import bgu.spl.mics.Request;
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+
+public class ServiceThreadsTest {
+
+	public static class PingRequest extends Request<Boolean> {
+	}
+
+	public static class StopBroadcast implements Broadcast {
+	}
+
+	/**
+	 * completes every {@link PingRequest}, until a {@link StopBroadcast} is
+	 * received.
+	 */
+	public static class Ponger extends MicroService {
+		private final CountDownLatch ready;
+
+		public Ponger(String name, CountDownLatch ready) {
+			super(name);
+			this.ready = ready;
+		}
+
+		@Override
+		protected void initialize() {
+			subscribeRequest(PingRequest.class, req -> complete(req, true));
+			subscribeBroadcast(StopBroadcast.class, stop -> terminate());
+			ready.countDown();
+		}
+	}
+
+	/**
+	 * sends {@code count} {@link PingRequest}s one after the other, and
+	 * terminates once the last one is completed.
+	 */
+	public static class Pinger extends MicroService {
+		private final int count;
+		private final AtomicInteger completed;
+
+		public Pinger(String name, int count, AtomicInteger completed) {
+			super(name);
+			this.count = count;
+			this.completed = completed;
+		}
+
+		@Override
+		protected void initialize() {
+			ping(count);
+		}
+
+		private void ping(int left) {
+			if (left == 0) {
+				terminate();
+				return;
+			}
+			sendRequest(new PingRequest(), done -> {
+				completed.incrementAndGet();
+				ping(left - 1);
+			});
+		}
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		MessageBusImpl messageBus = MessageBusImpl.getInstance();
+		messageBus.getRequestSubscribers().clear();
+		messageBus.getBroadcastSubscribers().clear();
+		messageBus.getServices().clear();
+		messageBus.getRequests().clear();
+	}
+
+	@Test
+	public void testForName() throws Exception {
+		Thread platform = ServiceThreads.forName("platform").newThread(() -> {
+		});
+		assertFalse(isVirtual(platform));
+		// Test virtual threads fall back to platform threads before Java 21
+		Thread virtual = ServiceThreads.forName("Virtual").newThread(() -> {
+		});
+		assertEquals(ServiceThreads.isVirtualSupported(), isVirtual(virtual));
+		try {
+			ServiceThreads.forName("green");
+			fail("there are no green threads");
+		} catch (IllegalArgumentException e) {
+			// expected
+		}
+	}
+
+	/**
+	 * runs micro-services exchanging requests on virtual threads, recording
+	 * the {@code jdk.VirtualThreadPinned} events, which are raised when a
+	 * virtual thread parks while holding a monitor. Skipped before Java 21.
+	 */
+	@Test(timeout = 60000)
+	public void testVirtualThreadsNotPinned() throws Exception {
+		assumeTrue(ServiceThreads.isVirtualSupported());
+		Path file = Files.createTempFile("service-threads", ".jfr");
+		try (Recording recording = new Recording()) {
+			recording.enable("jdk.VirtualThreadPinned").withThreshold(Duration.ZERO).withStackTrace();
+			recording.start();
+			CountDownLatch ready = new CountDownLatch(2);
+			List<Thread> threads = new ArrayList<Thread>();
+			for (int i = 0; i < 2; i++)
+				threads.add(ServiceThreads.virtualThreads().newThread(new Ponger("ponger" + i, ready)));
+			for (Thread thread : threads) {
+				assertTrue(isVirtual(thread));
+				thread.start();
+			}
+			assertTrue(ready.await(30, TimeUnit.SECONDS));
+			AtomicInteger completed = new AtomicInteger();
+			List<Thread> pingers = new ArrayList<Thread>();
+			for (int i = 0; i < 16; i++)
+				pingers.add(ServiceThreads.virtualThreads().newThread(new Pinger("pinger" + i, 200, completed)));
+			for (Thread thread : pingers)
+				thread.start();
+			for (Thread thread : pingers)
+				thread.join();
+			assertEquals(16 * 200, completed.get());
+			threads.add(ServiceThreads.virtualThreads().newThread(new MicroService("stopper") {
+				@Override
+				protected void initialize() {
+					sendBroadcast(new StopBroadcast());
+					terminate();
+				}
+			}));
+			threads.get(threads.size() - 1).start();
+			for (Thread thread : threads)
+				thread.join();
+			recording.stop();
+			recording.dump(file);
+			List<String> pinned = new ArrayList<String>();
+			for (RecordedEvent event : RecordingFile.readAllEvents(file))
+				if (event.getEventType().getName().equals("jdk.VirtualThreadPinned"))
+					pinned.add(String.valueOf(event.getStackTrace()));
+			assertEquals(new ArrayList<String>(), pinned);
+		} finally {
+			Files.deleteIfExists(file);
+		}
+	}
+
+	private static boolean isVirtual(Thread thread) throws Exception {
+		try {
+			return (Boolean) Thread.class.getMethod("isVirtual").invoke(thread);
+		} catch (NoSuchMethodException e) {
+			return false;
+		}
+	}
+}
@@ -0,0 +1,145 @@
+package bgu.spl.mics.impl;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+import org.junit.Test;
+
+public class SharedRingTest {
+
+	private static byte[] record(int length, int value) {
+		byte[] record = new byte[length];
+		for (int i = 0; i < length; i++)
+			record[i] = (byte) (value + i);
+		return record;
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testIllegalCapacity() {
+		new SharedRing(ByteBuffer.allocateDirect(256), 0, 100);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testRecordTooLarge() {
+		new SharedRing(ByteBuffer.allocateDirect(SharedRing.HEADER_SIZE + 64), 0, 64).offer(new byte[61]);
+	}
+
+	@Test
+	public void testOfferPollInOrder() {
+		SharedRing ring = new SharedRing(ByteBuffer.allocateDirect(SharedRing.HEADER_SIZE + 64), 0, 64);
+		assertNull(ring.poll());
+		assertTrue(ring.offer(record(3, 1)));
+		assertTrue(ring.offer(record(0, 0)));
+		assertTrue(ring.offer(record(10, 7)));
+		assertArrayEquals(record(3, 1), ring.poll());
+		assertArrayEquals(record(0, 0), ring.poll());
+		assertArrayEquals(record(10, 7), ring.poll());
+		assertNull(ring.poll());
+		assertTrue(ring.isEmpty());
+	}
+
+	@Test
+	public void testFull() {
+		SharedRing ring = new SharedRing(ByteBuffer.allocateDirect(SharedRing.HEADER_SIZE + 64), 0, 64);
+		// every record takes 16 bytes
+		for (int i = 0; i < 4; i++)
+			assertTrue(ring.offer(record(12, i)));
+		assertFalse(ring.offer(record(1, 0)));
+		assertArrayEquals(record(12, 0), ring.poll());
+		assertTrue(ring.offer(record(12, 4)));
+		for (int i = 1; i <= 4; i++)
+			assertArrayEquals(record(12, i), ring.poll());
+	}
+
+	@Test
+	public void testWrapAround() {
+		SharedRing ring = new SharedRing(ByteBuffer.allocateDirect(SharedRing.HEADER_SIZE + 64), 0, 64);
+		// 24 bytes records leave 16 bytes at the end after two of them
+		assertTrue(ring.offer(record(20, 0)));
+		assertTrue(ring.offer(record(20, 1)));
+		assertArrayEquals(record(20, 0), ring.poll());
+		// does not fit the 16 bytes left, nor the 24 freed at the start
+		assertFalse(ring.offer(record(40, 2)));
+		assertTrue(ring.offer(record(20, 2)));
+		assertArrayEquals(record(20, 1), ring.poll());
+		assertArrayEquals(record(20, 2), ring.poll());
+		assertNull(ring.poll());
+		for (int i = 0; i < 100; i++) {
+			assertTrue(ring.offer(record(i % 30, i)));
+			assertArrayEquals(record(i % 30, i), ring.poll());
+		}
+	}
+
+	@Test
+	public void testWrapOnItsOwn() {
+		SharedRing ring = new SharedRing(ByteBuffer.allocateDirect(SharedRing.HEADER_SIZE + 64), 0, 64);
+		assertTrue(ring.offer(record(20, 0)));
+		assertArrayEquals(record(20, 0), ring.poll());
+		// 48 bytes fit the empty ring, but neither the 40 bytes before its
+		// end nor with them: the wrap is written alone, and once the reader
+		// skipped it the record goes at the start
+		assertFalse(ring.offer(record(44, 1)));
+		assertTrue(ring.isEmpty());
+		assertNull(ring.poll());
+		assertTrue(ring.offer(record(44, 1)));
+		assertArrayEquals(record(44, 1), ring.poll());
+		assertTrue(ring.isEmpty());
+	}
+
+	@Test
+	public void testPollInPlace() {
+		SharedRing ring = new SharedRing(ByteBuffer.allocateDirect(SharedRing.HEADER_SIZE + 64), 0, 64);
+		final byte[][] read = new byte[1][];
+		assertFalse(ring.poll(record -> fail()));
+		// the second record wraps to the start of the ring
+		assertTrue(ring.offer(record(20, 0)));
+		assertTrue(ring.offer(record(20, 1)));
+		assertTrue(ring.poll(record -> {
+			read[0] = new byte[record.remaining()];
+			record.get(read[0]);
+		}));
+		assertArrayEquals(record(20, 0), read[0]);
+		assertTrue(ring.offer(record(20, 2)));
+		assertArrayEquals(record(20, 1), ring.poll());
+		assertTrue(ring.poll(record -> {
+			read[0] = new byte[record.remaining()];
+			record.get(read[0]);
+		}));
+		assertArrayEquals(record(20, 2), read[0]);
+		assertTrue(ring.isEmpty());
+	}
+
+	@Test(timeout = 30000)
+	public void testMappedAcrossThreads() throws Exception {
+		File file = File.createTempFile("shared-ring", ".map");
+		file.deleteOnExit();
+		MappedByteBuffer buffer;
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ,
+				StandardOpenOption.WRITE)) {
+			buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, SharedRing.HEADER_SIZE + 256);
+		}
+		SharedRing producer = new SharedRing(buffer, 0, 256);
+		SharedRing consumer = new SharedRing(buffer.duplicate(), 0, 256);
+		final int count = 10000;
+		Thread thread = new Thread(() -> {
+			for (int i = 0; i < count; i++)
+				while (!producer.offer(record(i % 50, i)))
+					Thread.yield();
+		});
+		thread.start();
+		for (int i = 0; i < count; i++) {
+			byte[] record;
+			while ((record = consumer.poll()) == null)
+				Thread.yield();
+			assertArrayEquals(record(i % 50, i), record);
+		}
+		thread.join();
+		assertTrue(consumer.isEmpty());
+		file.delete();
+	}
+}